@@ -0,0 +1,388 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, AdventureEngine.java
+// This File: AdventureEngine.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.random.RandomGenerator;
+
+/**
+ * Hosts one story for any number of players. The story is loaded once into an immutable Story,
+ * and each player gets a lightweight Session holding only its current room and its own generator.
+ * Sessions share the story and its RoomTextCache, so starting a session neither parses nor copies
+ * the story.
+ *
+ * The story can be replaced while sessions are playing it, as a StoryWatcher does when the story
+ * file is edited. Each replacement is published atomically as a new Version, and sessions move to
+ * the latest version at the start of their next turn.
+ *
+ * An engine is thread-safe: sessions may be created and played on different threads at the same
+ * time, as long as each Session is only used by one thread at a time.
+ *
+ * @author Benjamin Tarmann
+ */
+public class AdventureEngine {
+    private final String storyFile; // the file the story was loaded from
+    private final AtomicReference<Version> version; // the latest version of the story
+    private volatile Settings settings; // the settings of new sessions
+    private final AtomicLong sessions = new AtomicLong(); // the id of the next session
+
+    /**
+     * One version of the hosted story: the story, the room new sessions start in and the rendered
+     * rooms of that story. A version never changes once it is published, apart from the counts of
+     * the Metrics of its rooms.
+     */
+    public static class Version {
+        private final int number; // 1 for the story loaded first, increasing with each reload
+        private final Story story; // the shared, immutable story
+        private final int startRoom; // the index of the room new sessions start in
+        private final RoomTextCache roomText; // rendered rooms shared by all sessions
+        private final RoomCounts counts; // visits and transitions per room, or null
+        private volatile Long hash; // the hash of story, computed when first needed
+
+        private Version(int number, Story story, int startRoom) {
+            this.number = number;
+            this.story = story;
+            this.startRoom = startRoom;
+            this.roomText = new RoomTextCache(story, Config.ROOM_CACHE_SIZE, false);
+            this.counts = Metrics.counts(story);
+        }
+
+        /**
+         * Returns the number of this version.
+         *
+         * @return 1 for the story loaded first, one more for each version published after it.
+         */
+        public int number() {
+            return number;
+        }
+
+        /**
+         * Returns the story of this version.
+         *
+         * @return The story.
+         */
+        public Story story() {
+            return story;
+        }
+
+        /**
+         * Returns the index of the room new sessions start in.
+         *
+         * @return The start room.
+         */
+        public int startRoom() {
+            return startRoom;
+        }
+
+        /**
+         * Returns the cache of rendered rooms of this version.
+         *
+         * @return The cache.
+         */
+        public RoomTextCache roomText() {
+            return roomText;
+        }
+
+        /**
+         * Returns the visits to the rooms of this version and the transitions taken out of them,
+         * counted for Metrics.
+         *
+         * @return The counts, or null if Metrics.ENABLED is not set.
+         */
+        public RoomCounts counts() {
+            return counts;
+        }
+
+        /**
+         * Returns the hash of the story of this version, see ReplayLog.hash. It is computed the
+         * first time it is needed.
+         *
+         * @return The hash.
+         */
+        public long hash() {
+            Long h = hash;
+            if (h == null) {
+                h = ReplayLog.hash(story);
+                hash = h; // computing it twice on a race gives the same value
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Creates an engine for a story that has already been loaded.
+     *
+     * @param storyFile The name of the file the story was loaded from.
+     * @param story The story.
+     * @param startRoom The index of the room new sessions start in.
+     */
+    public AdventureEngine(String storyFile, Story story, int startRoom) {
+        this.storyFile = storyFile;
+        this.version = new AtomicReference<Version>(new Version(1, story, startRoom));
+        this.settings = Settings.defaults();
+    }
+
+    /**
+     * Returns the settings new sessions are started with unless they are given their own.
+     *
+     * @return The settings, Settings.defaults() when the engine was created.
+     */
+    public Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Sets the settings new sessions are started with unless they are given their own. Sessions
+     * already started keep their settings.
+     *
+     * @param settings The settings.
+     * @return This engine.
+     */
+    public AdventureEngine settings(Settings settings) {
+        this.settings = settings;
+        return this;
+    }
+
+    /**
+     * Loads a story file, bookmark file or story image into a new engine. Story images, and
+     * bookmarks into them, are memory-mapped and read lazily, so loading them takes the same time
+     * whatever the size of the story. If Config.LAZY_DESCRIPTIONS is set, story files are opened
+     * as an IndexedStory, which reads room descriptions from the file when they are displayed.
+     * Other files are loaded with AdventureStory.parseFile and compiled into a StoryGraph. Loading
+     * a bookmark makes new sessions start in the bookmarked room.
+     *
+     * Errors are printed to System.out as described by AdventureStory.parseFile, and the story is
+     * checked with StoryValidator.check. Story images were checked when they were compiled, so
+     * only the number of problems found then is printed.
+     *
+     * @param fName The name of the file to load.
+     * @return The engine, or null if the file could not be loaded.
+     */
+    public static AdventureEngine load(String fName) {
+        long start = Metrics.start();
+        String storyFile = Bookmarks.storyOf(fName); // the file at the end of a bookmark chain
+        if (storyFile == null) {
+            return null; // a cycle of bookmarks
+        }
+        if (StoryImage.isImage(storyFile)) {
+            try {
+                StoryImage image = StoryImage.open(storyFile);
+                if (image.size() > 0) {
+                    Metrics.parsed(start, image);
+                    if (image.problems() == -1) {
+                        StoryValidator.check(image); // the image was written without validating
+                    } else if (image.problems() > 0 && Config.VALIDATE_STORY) {
+                        System.out.println("Warning: " + image.problems() + " problem"
+                            + (image.problems() == 1 ? " was" : "s were") + " found when "
+                            + storyFile + " was compiled");
+                    }
+                    String[] bookmark = storyFile.equals(fName) ? null : Bookmarks.read(fName);
+                    int first = bookmark == null ? 0 : image.indexOf(bookmark[1]);
+                    return new AdventureEngine(fName, image, first == -1 ? 0 : first);
+                }
+                System.out.print("Error parsing file: rooms or transitions not properly parsed.");
+            } catch (IOException e) {
+                System.out.println("Error reading file: " + storyFile);
+            }
+            return null;
+        }
+
+        if (Config.LAZY_DESCRIPTIONS && ParallelStoryParser.splittable() && isStoryFile(fName)) {
+            try {
+                IndexedStory story = IndexedStory.open(fName);
+                if (story == null) {
+                    return null;
+                }
+                Metrics.parsed(start, story);
+                StoryValidator.check(story);
+                return new AdventureEngine(fName, story, 0);
+            } catch (IOException e) {
+                System.out.println("Error reading file: " + fName);
+                return null;
+            }
+        }
+
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] curRoom = new String[1];
+        if (!AdventureStory.parseFile(fName, rooms, trans, curRoom)) {
+            return null;
+        }
+        Metrics.parsed(start, trans);
+        StoryGraph graph = StoryGraph.compile(rooms, trans);
+        StoryValidator.check(graph);
+        int first = graph.indexOf(curRoom[0]);
+        return new AdventureEngine(fName, graph, first == -1 ? 0 : first);
+    }
+
+    /**
+     * Returns whether the first line of a file is Config.MAGIC_STORY.
+     *
+     * @param fName The name of the file.
+     * @return false if the file is not a story file or cannot be read.
+     */
+    private static boolean isStoryFile(String fName) {
+        try (FileChannel ch = FileChannel.open(new File(fName).toPath())) {
+            LineReader in = new LineReader(ch, Charset.defaultCharset());
+            return in.nextLine() && in.trimmedLine().equals(Config.MAGIC_STORY);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the name of the file the story was loaded from.
+     *
+     * @return The story filename.
+     */
+    public String storyFile() {
+        return storyFile;
+    }
+
+    /**
+     * Returns the latest version of the story. Use the story and start room of one version
+     * together rather than calling story() and startRoom(), which may see different versions.
+     *
+     * @return The version.
+     */
+    public Version version() {
+        return version.get();
+    }
+
+    /**
+     * Returns the latest version of the story hosted by this engine.
+     *
+     * @return The story.
+     */
+    public Story story() {
+        return version.get().story;
+    }
+
+    /**
+     * Returns the index of the room new sessions start in, in the latest version of the story.
+     *
+     * @return The start room.
+     */
+    public int startRoom() {
+        return version.get().startRoom;
+    }
+
+    /**
+     * Returns the cache of rendered rooms of the latest version of the story.
+     *
+     * @return The cache.
+     */
+    public RoomTextCache roomText() {
+        return version.get().roomText;
+    }
+
+    /**
+     * Replaces the story. New sessions start in the new story, and running sessions move to it at
+     * the start of their next turn.
+     *
+     * @param story The new story.
+     * @param startRoom The index of the room new sessions start in.
+     * @return The version published.
+     */
+    public Version publish(Story story, int startRoom) {
+        while (true) {
+            Version current = version.get();
+            Version next = new Version(current.number + 1, story, startRoom);
+            if (version.compareAndSet(current, next)) {
+                Metrics.retire(current.counts);
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Starts a session in the start room with the settings of the engine. With the default
+     * settings, its generator is a Random seeded with Config.SEED, the same random sequence the
+     * main method uses.
+     *
+     * @return The new session.
+     */
+    public Session newSession() {
+        return newSession(settings);
+    }
+
+    /**
+     * Starts a session in the start room with its own settings: its generator is created by
+     * RandomStreams.forSession from settings.random(), settings.seed() and the session id, and its
+     * rooms are rendered with settings.displayWidth() and settings.lineChar().
+     *
+     * @param settings The settings of the session.
+     * @return The new session.
+     */
+    public Session newSession(Settings settings) {
+        return newSession(settings, false);
+    }
+
+    /**
+     * Starts a session as newSession(Settings) does, recording a ReplayLog of its playthrough
+     * that Session.replayLog returns.
+     *
+     * @param settings The settings of the session.
+     * @return The new session.
+     */
+    public Session newRecordedSession(Settings settings) {
+        return newSession(settings, true);
+    }
+
+    /**
+     * Starts a session in the start room, recording it if record is set.
+     */
+    private Session newSession(Settings settings, boolean record) {
+        Version current = version.get();
+        long id = sessions.getAndIncrement();
+        long seed = RandomStreams.sessionSeed(settings.random(), settings.seed(), id);
+        Session session = new Session(this, current, current.startRoom, id,
+            RandomStreams.create(settings.random(), seed), settings);
+        if (record) {
+            session.record(new ReplayLog.Recorder(current.hash(), settings.random(), seed,
+                current.story.id(current.startRoom)));
+        }
+        return session;
+    }
+
+    /**
+     * Starts a session in the given room, with the settings of the engine apart from the
+     * generator.
+     *
+     * @param roomId The id of the room to start in.
+     * @param rand The generator, such as a Random, the session draws weighted transitions from.
+     * @return The new session, or null if there is no room with the given id.
+     */
+    public Session newSession(String roomId, RandomGenerator rand) {
+        return newSession(roomId, rand, settings);
+    }
+
+    /**
+     * Starts a session in the given room with its own settings apart from the generator.
+     *
+     * @param roomId The id of the room to start in.
+     * @param rand The generator, such as a Random, the session draws weighted transitions from.
+     * @param settings The settings of the session, whose rooms are rendered with
+     *                 settings.displayWidth() and settings.lineChar().
+     * @return The new session, or null if there is no room with the given id.
+     */
+    public Session newSession(String roomId, RandomGenerator rand, Settings settings) {
+        Version current = version.get();
+        int room = current.story.indexOf(roomId);
+        return room == -1 ? null
+            : new Session(this, current, room, sessions.getAndIncrement(), rand, settings);
+    }
+}
@@ -12,10 +12,17 @@
 import java.util.Scanner;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
-import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+import java.util.NoSuchElementException;
+import java.util.random.RandomGenerator;
+import java.io.PrintStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 
 /**
  * This class contains the code to go through a choose your own adventure story. Users
@@ -26,6 +33,103 @@ import java.io.IOException;
  */
 public class AdventureStory {
 
+    /**
+     * The number of stories whose compiled graphs are kept by the lookup methods
+     */
+    private static final int GRAPHS = 4;
+
+    /**
+     * The graphs compiled from the rooms and trans ArrayLists most recently passed to the lookup
+     * methods, most recent first, up to GRAPHS of them and Config.STORY_CACHE_ROOMS rooms in
+     * all, though the most recent one is kept even if it is larger. A graph is recompiled when a
+     * lookup is made against its rooms with trans it was not compiled from. The ArrayLists are
+     * only weakly referenced, and a graph is dropped once they are collected or the main method
+     * ends the game playing them. The array is replaced rather than changed, so it can be read
+     * without locking.
+     */
+    private static volatile Compiled[] graphs = new Compiled[0];
+
+    /**
+     * A StoryGraph and the rooms and trans ArrayLists it was compiled from. The graph holds copies
+     * of the Strings of the ArrayLists, so the lookup methods compare the two to notice rooms and
+     * transitions that were changed in place after the graph was compiled.
+     */
+    private static class Compiled {
+        private final StoryGraph graph; // the graph compiled from rooms and trans
+        private final WeakReference<ArrayList<String[]>> rooms; // the rooms compiled
+        private final WeakReference<ArrayList<ArrayList<String[]>>> trans; // null if not compiled
+        private final int roomCount; // the size of rooms when the graph was compiled
+        private final int tranCount; // the size of trans when the graph was compiled, -1 if null
+        private final IdentityHashMap<ArrayList<String[]>, Integer> tranRooms; // list -> room
+
+        private Compiled(StoryGraph graph, ArrayList<String[]> rooms,
+            ArrayList<ArrayList<String[]>> trans) {
+            this.graph = graph;
+            this.rooms = new WeakReference<ArrayList<String[]>>(rooms);
+            this.trans = trans == null ? null
+                : new WeakReference<ArrayList<ArrayList<String[]>>>(trans);
+            this.roomCount = rooms.size();
+            this.tranCount = trans == null ? -1 : trans.size();
+            this.tranRooms = new IdentityHashMap<>();
+            for (int i = 0; trans != null && i < trans.size() && i < roomCount; i++) {
+                tranRooms.putIfAbsent(trans.get(i), i);
+            }
+        }
+
+        /**
+         * Checks whether the ArrayLists the graph was compiled from have been collected.
+         */
+        private boolean isCollected() {
+            return rooms.get() == null || (trans != null && trans.get() == null);
+        }
+
+        /**
+         * Checks whether the graph was compiled from the given ArrayLists and they have not grown
+         * or shrunk since. Rooms that were modified in place are detected by the lookups instead.
+         */
+        private boolean isCompiledFrom(ArrayList<String[]> rooms,
+            ArrayList<ArrayList<String[]>> trans) {
+            if (this.rooms.get() != rooms || roomCount != rooms.size()) {
+                return false;
+            }
+            return trans == null
+                || (this.trans != null && this.trans.get() == trans && tranCount == trans.size());
+        }
+
+        /**
+         * Returns the parsed probability weights of a transition ArrayList the graph was compiled
+         * from. A table is only returned if every transition of curTrans still has the room id
+         * and weight the graph copied, compared by reference, so transitions edited in place are
+         * not answered from a stale table.
+         *
+         * @return The weight table of the room, or null if curTrans is not one of the transition
+         *         ArrayLists the graph was compiled from or it has changed since.
+         */
+        private WeightTable weightsOf(ArrayList<String[]> curTrans) {
+            Integer room = tranRooms.get(curTrans);
+            if (room == null) {
+                return null;
+            }
+            int start = graph.transitionStart(room);
+            if (curTrans.size() != graph.transitionEnd(room) - start) {
+                return null;
+            }
+            for (int t = 0; t < curTrans.size(); t++) {
+                String[] tran = curTrans.get(t);
+                if (tran[Config.TRAN_ROOM_ID] != graph.transitionRoomId(start + t)
+                    || tran[Config.TRAN_PROB] != graph.transitionWeight(start + t)) {
+                    return null; // a transition was changed in place
+                }
+            }
+            return graph.weights(room);
+        }
+    }
+
+    /**
+     * The rendered rooms of the story of one of the cached graphs.
+     */
+    private static volatile RoomTextCache roomText;
+
     /**
      * Prompts the user for a value by displaying prompt. 
      *
@@ -38,31 +142,94 @@ public class AdventureStory {
      * @param min    The minimum acceptable int value (inclusive).
      * @param max    The maximum acceptable int value (inclusive).
      * @return Returns the value read from the user.
+     * @throws NoSuchElementException If the input ends before a valid value is read.
      */
     public static int promptInt(Scanner sc, String prompt, int min, int max) {
+        return promptInt(sc, System.out, prompt, min, max);
+    }
+
+    /**
+     * Prompts the user for a value by displaying prompt on out, as promptInt(Scanner, String, int,
+     * int) does on System.out. out is flushed after every prompt so that a player on a network
+     * connection sees the prompt before the method waits for input.
+     *
+     * A line that does not start with an int is skipped, so that it is not read again by the next
+     * prompt, and the end of the input ends the prompt with a NoSuchElementException rather than
+     * prompting again forever.
+     *
+     * @param sc     The Scanner instance to read the player's input from.
+     * @param out    The stream to write the prompt and error messages to.
+     * @param prompt The name of the value for which the user is prompted.
+     * @param min    The minimum acceptable int value (inclusive).
+     * @param max    The maximum acceptable int value (inclusive).
+     * @return Returns the value read from the user.
+     * @throws NoSuchElementException If the input ends before a valid value is read.
+     */
+    public static int promptInt(Scanner sc, PrintStream out, String prompt, int min, int max) {
         boolean validInput = false;
         int intValue;
 
         while (validInput == false) {
-            System.out.print(prompt);
+            out.print(prompt);
+            out.flush();
             // checks that the next token exists and is an integer
             if (sc.hasNextInt()) {
                 intValue = sc.nextInt();
-            } else {
-                System.out.println("Invalid value.");
+            } else if (sc.hasNext()) {
+                sc.nextLine(); // skips the rest of the invalid line instead of reading it again
+                out.println("Invalid value.");
                 continue;
+            } else {
+                throw new NoSuchElementException("No more input");
             }
             // checks the integer entered is between the min and max values
             if (intValue >= min && intValue <= max) {
                 return intValue;
             } else {
-                System.out.println("Invalid value.");
+                out.println("Invalid value.");
                 continue;
             }
         }
         return -99; // only returns -99 if the loop is exited, which it should never
     }
 
+    /**
+     * Prompts the user for a value by displaying prompt on out, as promptInt(Scanner, PrintStream,
+     * String, int, int) does, reading whole lines from a LineReader instead of tokens from a
+     * Scanner. The int is parsed from the line without a regular expression or a String, and the
+     * rest of the line is consumed, so the caller must not skip it. Blank lines are skipped, as a
+     * Scanner skips them looking for a token.
+     *
+     * out is only flushed when the next line has not been read yet, so a player who pipes several
+     * answers at once is not sent a flush per prompt.
+     *
+     * @param in     The LineReader to read the player's input from.
+     * @param out    The stream to write the prompt and error messages to.
+     * @param prompt The name of the value for which the user is prompted.
+     * @param min    The minimum acceptable int value (inclusive).
+     * @param max    The maximum acceptable int value (inclusive).
+     * @return Returns the value read from the user.
+     * @throws NoSuchElementException If the input ends before a valid value is read.
+     * @throws UncheckedIOException If the input cannot be read.
+     */
+    public static int promptInt(LineReader in, PrintStream out, String prompt, int min, int max) {
+        printPrompt(in, out, prompt);
+        while (true) {
+            if (!nextLine(in)) {
+                throw new NoSuchElementException("No more input");
+            }
+            if (in.blank()) {
+                continue;
+            }
+            long value = in.firstInt(); // NOT_AN_INT is below any min
+            if (value >= min && value <= max) {
+                return (int) value;
+            }
+            out.println("Invalid value.");
+            printPrompt(in, out, prompt);
+        }
+    }
+
     /**
      * Prompts the user for a char value by displaying prompt.
      *
@@ -75,13 +242,31 @@ public class AdventureStory {
      *         there are no non-whitespace characters read, the null character is returned.
      */
     public static char promptChar(Scanner sc, String prompt) {
+        return promptChar(sc, System.out, prompt);
+    }
+
+    /**
+     * Prompts the user for a char value by displaying prompt on out, as promptChar(Scanner, String)
+     * does on System.out. out is flushed after the prompt.
+     *
+     * @param sc The Scanner instance to read the player's input from.
+     * @param out The stream to write the prompt to.
+     * @param prompt The user prompt.
+     * @return Returns the first non-whitespace character (in lower case) read from the user. If 
+     *         there are no non-whitespace characters read, the null character is returned.
+     */
+    public static char promptChar(Scanner sc, PrintStream out, String prompt) {
         String userInput;
         char charValue;
-        System.out.print(prompt);
+        out.print(prompt);
+        out.flush();
         // checks that the next token exists
         if (sc.hasNextLine()) {
             userInput = sc.nextLine();
             userInput = userInput.trim().toLowerCase();
+            if (userInput.isEmpty()) {
+                return '\0'; // a blank line
+            }
             charValue = userInput.charAt(0);
             return charValue;
         } else {
@@ -89,6 +274,31 @@ public class AdventureStory {
         }
     }
 
+    /**
+     * Prompts the user for a char value by displaying prompt on out, as promptChar(Scanner,
+     * PrintStream, String) does, reading the line from a LineReader. A blank line is not an
+     * answer, so the user is prompted again, and the end of the input ends the prompt with a
+     * NoSuchElementException, as it ends promptInt, rather than being taken for an answer.
+     *
+     * @param in The LineReader to read the player's input from.
+     * @param out The stream to write the prompt to.
+     * @param prompt The user prompt.
+     * @return Returns the first non-whitespace character (in lower case) read from the user.
+     * @throws NoSuchElementException If the input ends before a non-blank line is read.
+     * @throws UncheckedIOException If the input cannot be read.
+     */
+    public static char promptChar(LineReader in, PrintStream out, String prompt) {
+        while (true) {
+            printPrompt(in, out, prompt);
+            if (!nextLine(in)) {
+                throw new NoSuchElementException("No more input");
+            }
+            if (!in.blank()) {
+                return in.firstChar();
+            }
+        }
+    }
+
     /**
      * Prompts the user for a string value by displaying prompt.
      *
@@ -100,13 +310,75 @@ public class AdventureStory {
      * @return Returns the string entered by the user with leading and trailing whitespace removed.
      */
     public static String promptString(Scanner sc, String prompt) {
+        return promptString(sc, System.out, prompt);
+    }
+
+    /**
+     * Prompts the user for a string value by displaying prompt on out, as promptString(Scanner,
+     * String) does on System.out. out is flushed after the prompt.
+     *
+     * @param sc The Scanner instance to read the player's input from.
+     * @param out The stream to write the prompt to.
+     * @param prompt The user prompt.
+     * @return Returns the string entered by the user with leading and trailing whitespace removed.
+     */
+    public static String promptString(Scanner sc, PrintStream out, String prompt) {
         String userInput;
-        System.out.print(prompt);
+        out.print(prompt);
+        out.flush();
         userInput = sc.nextLine();
         userInput = userInput.trim();
         return userInput;
     }
 
+    /**
+     * Prompts the user for a string value by displaying prompt on out, as promptString(Scanner,
+     * PrintStream, String) does, reading the line from a LineReader.
+     *
+     * @param in The LineReader to read the player's input from.
+     * @param out The stream to write the prompt to.
+     * @param prompt The user prompt.
+     * @return Returns the string entered by the user with leading and trailing whitespace removed.
+     * @throws NoSuchElementException If the input has ended.
+     * @throws UncheckedIOException If the input cannot be read.
+     */
+    public static String promptString(LineReader in, PrintStream out, String prompt) {
+        printPrompt(in, out, prompt);
+        if (!nextLine(in)) {
+            throw new NoSuchElementException("No line found");
+        }
+        return in.trimmedLine();
+    }
+
+    /**
+     * Prints a prompt, flushing out unless the answer has already been read.
+     *
+     * @param in The LineReader the answer is read from.
+     * @param out The stream to write the prompt to.
+     * @param prompt The prompt.
+     */
+    private static void printPrompt(LineReader in, PrintStream out, String prompt) {
+        out.print(prompt);
+        if (!in.hasBufferedLine()) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Advances a LineReader to its next line.
+     *
+     * @param in The LineReader.
+     * @return false at the end of the input. Otherwise, true.
+     * @throws UncheckedIOException If the input cannot be read.
+     */
+    private static boolean nextLine(LineReader in) {
+        try {
+            return in.nextLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Saves the current position in the story to a file.
      *
@@ -115,6 +387,9 @@ public class AdventureStory {
      * Line 2: The filename of the story file from storyFile
      * Line 3: The current room id from curRoom
      *
+     * The file is replaced atomically by Bookmarks.save, so an existing bookmark is kept if the
+     * new one cannot be written.
+     *
      * @param storyFile The filename containing the cyoa story.
      * @param curRoom The id of the current room.
      * @param bookmarkFile The filename of the bookmark file.
@@ -122,13 +397,7 @@ public class AdventureStory {
      */
     public static boolean saveBookmark(String storyFile, String curRoom, String bookmarkFile) {
         try {
-            File f = new File(bookmarkFile);
-            PrintWriter p = new PrintWriter(f);
-            p.println(Config.MAGIC_BOOKMARK);
-            p.println(storyFile);
-            p.println(curRoom);
-            p.flush();
-            p.close();
+            Bookmarks.save(storyFile, curRoom, bookmarkFile);
         } catch (IOException e) {
             return false;
         }
@@ -143,6 +412,10 @@ public class AdventureStory {
      * If the first line is Config.MAGIC_STORY, then the file is parsed using the parseStory method.
      * If the first line is Config.MAGIC_BOOKMARK, the the file is parsed using the parseBookmark
      * method.
+     * If the first line is Config.MAGIC_IMAGE, the file is a precompiled story image and is loaded
+     * using the StoryImage.load method, which copies every room into the ArrayLists. Since images
+     * are binary, this line is checked by reading the first bytes of the file before it is opened
+     * with a Scanner. The main method plays images without copying them, see AdventureEngine.load.
      * Otherwise, print an error message, terminated by a new line, to System.out, displaying: 
      * "First line: trimmedLineRead does not correspond to known value.", where trimmedLineRead is 
      * the trimmed value of the first line from the file. 
@@ -157,6 +430,14 @@ public class AdventureStory {
      * Milestone #2: Open the file, handling the IOExceptions as described above. Do not read the
      * the first line: Assume the file is a story file and call the parseStory method.
      *
+     * If Config.STREAM_PARSER is true, story files are read in a single pass over a FileChannel by
+     * a LineReader and parsed by a StoryParser instead of through a Scanner. Other files are still
+     * read through a Scanner. If Config.PARALLEL_PARSER is true, story files of several megabytes
+     * are split at room boundaries and parsed on several threads by a ParallelStoryParser. If
+     * Config.POOL_STRINGS is true, equal room ids and transition Strings of a story file are
+     * shared through a StringPool. Every room and transition is still a String array of its own,
+     * so it can be changed without changing any other.
+     *
      * @param fName The name of the file to read.
      * @param rooms The ArrayList structure that will contain the room details. A parallel ArrayList
      *              trans.
@@ -171,6 +452,24 @@ public class AdventureStory {
     public static boolean parseFile(String fName, ArrayList<String[]> rooms,
         ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
         String firstLine;
+        if (StoryImage.isImage(fName)) {
+            return StoryImage.load(fName, rooms, trans, curRoom);
+        }
+        if (Config.PARALLEL_PARSER && ParallelStoryParser.worthwhile(fName)) {
+            return ParallelStoryParser.parse(fName, rooms, trans, curRoom);
+        }
+        if (Config.STREAM_PARSER) {
+            try (FileChannel ch = FileChannel.open(new File(fName).toPath())) {
+                LineReader in = new LineReader(ch, Charset.defaultCharset());
+                if (in.nextLine() && in.trimmedLine().equals(Config.MAGIC_STORY)) {
+                    return StoryParser.parse(in, rooms, trans, curRoom);
+                }
+            } catch (IOException e) {
+                System.out.print("Error reading file: " + fName);
+                System.out.println();
+                return false;
+            }
+        }
         try {
             // opens the file and wraps it in a Scanner object
             File f = new File(fName);
@@ -188,10 +487,14 @@ public class AdventureStory {
                 if (parseStory(s, rooms, trans, curRoom) != true) {
                     return false;
                 }
+                if (Config.POOL_STRINGS) {
+                    new StringPool().dedupe(rooms, trans);
+                }
             } else if (firstLine.equals(Config.MAGIC_BOOKMARK)) {
                 if (parseBookmark(s, rooms, trans, curRoom) != true) {
                     return false;
                 }
+
             } else {
                 System.out
                     .println("First line: " + firstLine + " does not correspond to known value.");
@@ -223,6 +526,14 @@ public class AdventureStory {
      * Goldilocks.story
      * 7
      *
+     * The story filename may name another bookmark file, whose story is then loaded. Such chains
+     * are followed by Bookmarks.storyOf without parsing each bookmark, and a chain that leads back
+     * to a bookmark already visited is reported as described there and is a parsing error.
+     *
+     * If Config.STORY_CACHE is true, the story is copied from StoryCache.shared into rooms and
+     * trans, so it is only parsed again if the story file changed since it was last parsed. The
+     * lookup methods use the cached story's graph for the copy rather than compiling it again.
+     *
      * @param sc The Scanner object buffering the input file to read.
      * @param rooms The ArrayList structure that will contain the room details. A parallel ArrayList
      *              trans.
@@ -234,9 +545,23 @@ public class AdventureStory {
      */
     public static boolean parseBookmark(Scanner sc, ArrayList<String[]> rooms,
         ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
-        String fileName = sc.nextLine().trim();
+        String fileName = Bookmarks.storyOf(sc.nextLine().trim());
+        boolean parsed;
+        if (fileName == null) {
+            parsed = false; // a cycle of bookmarks
+        } else if (Config.STORY_CACHE) {
+            StoryCache.Entry story = StoryCache.shared().get(fileName);
+            parsed = story != null;
+            if (parsed) {
+                story.copyTo(rooms, trans);
+                adoptGraph(story.story(), rooms, trans);
+                curRoom[0] = story.startRoom();
+            }
+        } else {
+            parsed = parseFile(fileName, rooms, trans, curRoom);
+        }
         // checks that the story file listed in the bookmark is valid
-        if (parseFile(fileName, rooms, trans, curRoom) != true) {
+        if (parsed != true) {
             curRoom[0] = sc.nextLine().trim();
             return false;
         } else {
@@ -454,12 +779,7 @@ public class AdventureStory {
      * @return The index of the room with the given id if found in rooms. Otherwise, -1.
      */
     public static int getRoomIndex(String id, ArrayList<String[]> rooms) {
-        for (int i = 0; i < Config.ROOM_DET_LEN - 1; i++) {
-            if (id.equals(rooms.get(i)[Config.ROOM_ID])) {
-                return i;
-            }
-        }
-        return -1; // -1 is returned if the index of the room with the given id is not found
+        return findRoom(id, rooms, null);
     }
 
     /**
@@ -470,12 +790,150 @@ public class AdventureStory {
      * @return The reference to the String array in rooms with the room id of id. Otherwise, null.
      */
     public static String[] getRoomDetails(String id, ArrayList<String[]> rooms) {
-        for (int i = 0; i < rooms.size(); i++) {
-            if (id.equals(rooms.get(i)[Config.ROOM_ID])) {
-                return rooms.get(i);
+        int i = findRoom(id, rooms, null);
+        return i == -1 ? null : rooms.get(i); // null returned if room id is not found
+    }
+
+    /**
+     * Returns the graph compiled from rooms and trans, compiling it if none of the cached graphs
+     * was compiled from them.
+     *
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details, or null if only
+     *              room lookups are needed.
+     * @return The compiled graph.
+     */
+    private static StoryGraph compiledGraph(ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        for (Compiled c : graphs) {
+            if (c.isCompiledFrom(rooms, trans)) {
+                return c.graph;
+            }
+        }
+        return compileGraph(rooms, trans);
+    }
+
+    /**
+     * Compiles rooms and trans and caches the graph in front of the others, replacing any graph
+     * of the same rooms and dropping the least recently compiled one if GRAPHS are kept.
+     *
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details, or null.
+     * @return The compiled graph.
+     */
+    private static StoryGraph compileGraph(ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        Compiled c = new Compiled(StoryGraph.compile(rooms, trans), rooms, trans);
+        cacheGraph(c);
+        return c.graph;
+    }
+
+    /**
+     * Caches a graph the rooms and trans ArrayLists were just copied from by Story.copyTo, as if
+     * it had been compiled from them, so the lookup methods do not compile them again.
+     *
+     * @param graph The graph.
+     * @param rooms The ArrayList structure holding the room details copied from graph.
+     * @param trans The ArrayList structure holding the transition details copied from graph.
+     */
+    private static void adoptGraph(StoryGraph graph, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        if (rooms.size() == graph.size() && trans.size() == graph.size()) {
+            cacheGraph(new Compiled(graph, rooms, trans));
+        }
+    }
+
+    /**
+     * Caches a compiled graph in front of the others, replacing any graph of the same rooms and
+     * dropping graphs whose ArrayLists were collected and the least recently compiled ones, so at
+     * most GRAPHS graphs and Config.STORY_CACHE_ROOMS rooms are kept.
+     */
+    private static synchronized void cacheGraph(Compiled c) {
+        ArrayList<String[]> rooms = c.rooms.get();
+        Compiled[] old = graphs;
+        Compiled[] next = new Compiled[Math.min(old.length + 1, GRAPHS)];
+        next[0] = c;
+        int n = 1;
+        long total = c.graph.size(); // the rooms of the graphs kept
+        for (int i = 0; i < old.length && n < next.length; i++) {
+            if (old[i].rooms.get() == rooms || old[i].isCollected()) {
+                continue;
             }
+            total += old[i].graph.size();
+            if (total > Config.STORY_CACHE_ROOMS) {
+                break;
+            }
+            next[n++] = old[i];
+        }
+        graphs = n == next.length ? next : Arrays.copyOf(next, n);
+        dropRoomText();
+    }
+
+    /**
+     * Drops the graph compiled from rooms, and any graph whose ArrayLists were collected, when
+     * the rooms are no longer going to be looked up.
+     *
+     * @param rooms The ArrayList structure that contained the room details.
+     */
+    private static synchronized void releaseGraphs(ArrayList<String[]> rooms) {
+        Compiled[] old = graphs;
+        Compiled[] next = new Compiled[old.length];
+        int n = 0;
+        for (Compiled c : old) {
+            if (c.rooms.get() != rooms && !c.isCollected()) {
+                next[n++] = c;
+            }
+        }
+        if (n < old.length) {
+            graphs = Arrays.copyOf(next, n);
+            dropRoomText();
         }
-        return null; // null returned if room id is not found
+    }
+
+    /**
+     * Drops the rendered rooms displayRoom keeps if their graph is no longer cached, so they do
+     * not keep the graph alive. Must be called while holding the lock on AdventureStory.class.
+     */
+    private static void dropRoomText() {
+        RoomTextCache cache = roomText;
+        if (cache == null) {
+            return;
+        }
+        for (Compiled c : graphs) {
+            if (c.graph == cache.story()) {
+                return;
+            }
+        }
+        roomText = null;
+    }
+
+    /**
+     * Returns the index of the given room id in rooms using the compiled graph.
+     *
+     * A hit from the graph is confirmed against the room String array, so rooms that were changed
+     * in place after the graph was compiled are still found. In that case, or if the id is not in
+     * the graph, rooms is searched linearly and the graph is recompiled if it was stale.
+     *
+     * @param id The room id to search for.
+     * @param rooms The ArrayList of rooms.
+     * @param trans The ArrayList of transitions, or null if only the room is needed.
+     * @return The index of the room with the given id if found in rooms. Otherwise, -1.
+     */
+    private static int findRoom(String id, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        StoryGraph g = compiledGraph(rooms, trans);
+        int i = g.indexOf(id);
+        if (i != -1 && rooms.get(i)[Config.ROOM_ID].equals(id)) {
+            return i;
+        }
+
+        for (i = 0; i < rooms.size(); i++) {
+            if (rooms.get(i)[Config.ROOM_ID].equals(id)) {
+                compileGraph(rooms, trans); // a room was changed in place
+                return i;
+            }
+        }
+        return -1; // -1 is returned if the index of the room with the given id is not found
     }
 
     /**
@@ -485,10 +943,9 @@ public class AdventureStory {
      * @param c The character to print out.
      */
     public static void printLine(int len, char c) {
-        for (int i = 0; i < len; i++) {
-            System.out.print(c);
-        }
-        System.out.println("");
+        StringBuilder sb = new StringBuilder(len + 2);
+        RoomRenderer.appendLine(sb, len, c);
+        System.out.print(sb);
     }
 
     /**
@@ -509,46 +966,17 @@ public class AdventureStory {
      *
      * After printing out the characters in the string, a new line is output.
      *
+     * The characters are counted and wrapped into a StringBuilder by RoomRenderer.appendString,
+     * and the result is printed to System.out with a single call.
+     *
      * @param len The maximum number of characters to print out.
      * @param val The string to print out.
      */
     public static void printString(int len, String val) {
-        int counterVal = 0;
-        for (int i = 0; i < val.length(); i++) {
-            // checks for a newline
-            if (val.charAt(i) == '\n') {
-                System.out.print(val.charAt(i));
-                counterVal = 0;
-                continue;
-            }
-            
-            // if the number of characters printed meets the max per line
-            if (counterVal >= len - 1) {
-                if (Character.isWhitespace(val.charAt(i))) {
-                    System.out.print("\n");
-                } else if (!Character.isLetterOrDigit(val.charAt(i))) {
-                    System.out.print(val.charAt(i) + "\n");
-                } else {
-                    if (Character.isWhitespace(val.charAt(i - 1))) {
-                        System.out.print("\n" + val.charAt(i));
-                        counterVal = 1;
-                        continue;
-                    } else {
-                        System.out.print("-" + "\n" + val.charAt(i));
-                        counterVal = 1;
-                        continue;
-                    }
-                }
-                counterVal = 0;
-                continue;
-            // if the number of characters has not yet met the max per line
-            } else {
-                System.out.print(val.charAt(i));
-                counterVal++;
-            }
-        }
-        
-        System.out.println(""); // prints a newline following all of the characters in val
+        // room for the text plus the characters added when wrapping it
+        StringBuilder sb = new StringBuilder(val.length() * 3 / 2 + 2);
+        RoomRenderer.appendString(sb, len, val);
+        System.out.print(sb); // prints the wrapped string with a single write
     }
 
     /**
@@ -562,38 +990,62 @@ public class AdventureStory {
      * Config.DISPLAY_WIDTH. Finally, a line of Config.LINE_CHAR of length Config.DISPLAY_WIDTH is 
      * output.
      *
+     * The room is rendered by RoomRenderer.appendRoom and printed to System.out with a single call.
+     * Rendered rooms are kept in a RoomTextCache of up to Config.ROOM_CACHE_SIZE rooms, so a room
+     * that is displayed again with the same Config.DISPLAY_WIDTH is not wrapped again. A room whose
+     * title or description was changed in place since rooms was compiled is compiled again, so it
+     * is rendered from its new text.
+     *
      * @param id Room ID to display
      * @param rooms ArrayList containing the room details.
      */
     public static void displayRoom(String id, ArrayList<String[]> rooms) {
-        String[] roomDetails = new String[Config.ROOM_DET_LEN];
+        displayRoom(id, rooms, Config.DISPLAY_WIDTH, Config.LINE_CHAR);
+    }
+
+    /**
+     * Prints out the room title and description to System.out as displayRoom(String, ArrayList)
+     * does, with a given display width and line character instead of the defaults in Config.
+     *
+     * @param id Room ID to display
+     * @param rooms ArrayList containing the room details.
+     * @param width The maximum number of characters per line.
+     * @param lineChar The character of the divider lines.
+     */
+    public static void displayRoom(String id, ArrayList<String[]> rooms, int width,
+        char lineChar) {
+        int i = findRoom(id, rooms, null);
 
         // checks if the details for the room can be found
-        if (getRoomDetails(id, rooms) != null) {
-            roomDetails = getRoomDetails(id, rooms);
-            printLine(Config.DISPLAY_WIDTH, Config.LINE_CHAR); // divider line
-            
-            // if a title for the room exists
-            if (roomDetails[Config.ROOM_TITLE] != null) {
-                printString(Config.DISPLAY_WIDTH, roomDetails[Config.ROOM_TITLE]);
-            } else {
-                System.out.println("");
+        if (i != -1) {
+            StoryGraph g = compiledGraph(rooms, null);
+            String[] room = rooms.get(i);
+            if (room[Config.ROOM_TITLE] != g.title(i)
+                || room[Config.ROOM_DESC] != g.description(i)) {
+                g = compileGraph(rooms, null); // the room was changed in place
             }
-            System.out.println("");
-            
-            // if a description for the room exists
-            if (roomDetails[Config.ROOM_DESC] != null) {
-                printString(Config.DISPLAY_WIDTH, roomDetails[Config.ROOM_DESC]);
-            } else {
-                System.out.println("");
+            RoomTextCache cache = roomText;
+            if (cache == null || cache.story() != g) {
+                cache = new RoomTextCache(g, Config.ROOM_CACHE_SIZE, false);
+                roomText = cache;
             }
-            printLine(Config.DISPLAY_WIDTH, Config.LINE_CHAR); // divider line
-        
+            // prints the whole room with a single write
+            System.out.print(cache.render(i, width, lineChar));
         } else {
             return; // method is exited if room details cannot be found
         }
     }
 
+    /**
+     * Returns the cache of rendered rooms used by displayRoom.
+     *
+     * @return The cache of the story most recently displayed, or null if no room has been
+     *         displayed yet.
+     */
+    public static RoomTextCache roomTextCache() {
+        return roomText;
+    }
+
     /**
      * Prints out and returns the transitions for a given room. 
      *
@@ -621,30 +1073,28 @@ public class AdventureStory {
      */
     public static ArrayList<String[]> displayTransitions(String id, ArrayList<String[]> rooms,
         ArrayList<ArrayList<String[]>> trans) {
-        // searches through rooms for the room id
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i)[Config.ROOM_ID].equals(id)) {
+        // looks up the room id in the compiled graph
+        int i = findRoom(id, rooms, trans);
+        if (i == -1) {
+            return null; // null is returned if the room id cannot be found in the rooms list
+        }
 
-                // if the room is a terminal room
-                if ((trans.get(i).size() == 1)
-                    && (trans.get(i).get(0)[Config.TRAN_DESC].equals(Config.SUCCESS)
-                        || trans.get(i).get(0)[Config.TRAN_DESC].equals(Config.FAIL))) {
-                    return trans.get(i);
+        // if the room is a terminal room
+        if ((trans.get(i).size() == 1)
+            && (trans.get(i).get(0)[Config.TRAN_DESC].equals(Config.SUCCESS)
+                || trans.get(i).get(0)[Config.TRAN_DESC].equals(Config.FAIL))) {
+            return trans.get(i);
 
-                    // if the room is not a terminal room
-                } else {
-                    // displays the transition description and index
-                    for (int j = 0; j < trans.get(i).size(); j++) {
-                        if (trans.get(i).get(j)[Config.TRAN_PROB] == null) {
-                            System.out.println(j + ") " + trans.get(i).get(j)[Config.TRAN_DESC]);
-                        }
-                    }
-                    return trans.get(i);
+            // if the room is not a terminal room
+        } else {
+            // displays the transition description and index
+            for (int j = 0; j < trans.get(i).size(); j++) {
+                if (trans.get(i).get(j)[Config.TRAN_PROB] == null) {
+                    System.out.println(j + ") " + trans.get(i).get(j)[Config.TRAN_DESC]);
                 }
             }
+            return trans.get(i);
         }
-        
-        return null; // null is returned if the room id cannot be found in the rooms list
     }
 
     /**
@@ -662,48 +1112,97 @@ public class AdventureStory {
      *   - Return the String at index Config.TRAN_ROOM_ID of the first transition that causes the 
      *     running sum of probability weights to exceed the random integer.   
      *
+     * The weights of a room are parsed once, into the WeightTable of the compiled StoryGraph, and
+     * the transition is found by a binary search of their prefix sums. If Config.ALIAS_SAMPLING is
+     * true, the alias method is used instead, which selects with the same probabilities but draws
+     * a different sequence of values from rand.
+     *
      * See parseStory method for the details of the transition String array.
      *
-     * @param rand The Random class from which to draw random values.
+     * @param rand The generator, such as a Random, from which to draw random values.
      * @param curTrans The ArrayList structure that contains the transition details.
      * @return The room id that was randomly selected if the sum of probabilities is greater than 0.
      *         Otherwise, return null. Also, return null if there is a NumberFormatException. 
      */
-    public static String probTrans(Random rand, ArrayList<String[]> curTrans) {
+    public static String probTrans(RandomGenerator rand, ArrayList<String[]> curTrans) {
         if (curTrans == null) {
             return null;
         }
 
-        int totalWeight = 0;
-        int currentWeight = 0;
-        int randomValue;
-
-        try {
-            // sums the total probability weight for all transitions
-            for (int i = 0; i < curTrans.size(); i++) {
-                totalWeight += Integer.parseInt(curTrans.get(i)[Config.TRAN_PROB]);
+        // uses the weights parsed when the story was compiled, parsing them here only for
+        // transitions that are not part of the compiled graph
+        WeightTable weights = null;
+        for (Compiled c : graphs) {
+            weights = c.weightsOf(curTrans);
+            if (weights != null) {
+                break;
             }
+        }
+        if (weights == null) {
+            weights = WeightTable.build(curTrans);
+        }
 
-            if (totalWeight < 1) {
-                return null;
+        if (Config.ALIAS_SAMPLING) {
+            return weights.sampleAlias(rand);
+        }
+        return weights.sample(rand);
+    }
+
+    /**
+     * Plays the story loop of the main method in a session, rendering each room and its
+     * transitions to System.out as displayRoom and displayTransitions print them. The player
+     * chooses transitions, quits or saves a bookmark in fileName as in the main method's story
+     * loop.
+     *
+     * @param session The session, in the room the story starts in.
+     * @param userInput The LineReader to read the player's input from.
+     * @param fileName The name of the file the story was loaded from, saved in bookmarks.
+     * @return Config.SUCCESS or Config.FAIL once the story has ended, or the id of the current
+     *         room if the player saved a bookmark.
+     * @throws NoSuchElementException If the input ends before the story does.
+     */
+    private static String playSession(Session session, LineReader userInput, String fileName) {
+        RoomRenderer renderer = new RoomRenderer(System.out);
+        while (!session.isOver()) {
+            session.render(renderer);
+            try {
+                renderer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
 
-            // Sums up the probability weights again until they exceed the random value.
-            // The room ID of the first room that causes the weight to exceed the random value is
-            // returned.
-            randomValue = rand.nextInt(totalWeight);
-            for (int i = 0; i < curTrans.size(); i++) {
-                currentWeight += Integer.parseInt(curTrans.get(i)[Config.TRAN_PROB]);
-                if (currentWeight > randomValue) {
-                    return curTrans.get(i)[Config.TRAN_ROOM_ID];
+            if (session.isTerminal() || session.isWeighted()) {
+                if (session.step() == -1 && !session.isOver()) {
+                    System.out.println("Error: the story has no room to continue to.");
+                    session.quit();
                 }
+                continue;
             }
 
-        } catch (NumberFormatException e) {
-            return null;
+            long wait = Metrics.start();
+            int choice = promptInt(userInput, System.out, "Choose: ", -2, session.numChoices() - 1);
+            Metrics.PROMPT.stop(wait);
+            if (choice == -1) {
+                if (promptChar(userInput, System.out,
+                    "Are you sure you want to quit the adventure? ") == 'y') {
+                    session.quit();
+                }
+            } else if (choice == -2) {
+                String bookmarkFile = promptString(userInput, System.out,
+                    "Bookmarking current location: " + session.roomId()
+                        + ". Enter bookmark filename: ");
+                if (saveBookmark(fileName, session.roomId(), bookmarkFile)) {
+                    System.out.println("Bookmark saved in " + bookmarkFile);
+                } else {
+                    System.out.println("Error saving bookmark in " + bookmarkFile);
+                }
+                return session.roomId();
+            } else if (!session.choose(choice)) {
+                System.out.println("Error: the story has no room to continue to.");
+                session.quit();
+            }
         }
-
-        return null;
+        return session.outcome();
     }
 
     /**
@@ -713,112 +1212,194 @@ public class AdventureStory {
      * 
      * The Scanner object to read from System.in and the Random object with a seed of Config.SEED 
      * will be created in the main method and used as arguments for the supporting methods as 
-     * required.
+     * required. System.in is read by a LineReader rather than a Scanner, so the prompts parse
+     * whole lines without regular expressions and take answers piped in a batch from one read.
+     *
+     * If Config.STORY_CACHE is true, stories are taken from StoryCache.shared, so playing the
+     * same story again does not parse its file again unless it changed, and each game is played by
+     * a Session on the cached story rather than on a copy of it. Story images, and bookmarks into
+     * them, are loaded by AdventureEngine.load and played by a Session on the mapped image. Either
+     * way, starting a game does not copy the story.
+     *
+     * The display width, line character and seed can be changed for this run with the options
+     * -width, -lineChar and -seed, or a properties file given with -settings, see Settings.parse.
+     * Each game played draws from the generator RandomStreams.forSession creates for its number;
+     * in the default RandomStreams.LEGACY mode that is a Random seeded with the seed, so every
+     * game selects the same weighted transitions, while with -random and an algorithm such as
+     * L64X128MixRandom each game gets a stream of its own.
      *
-     * @param args Unused
+     * When the input ends, the game ends as if the player had answered no, whether it ends at the
+     * prompt to play again or in the middle of a story.
+     *
+     * @param args The options, see Settings.parse.
      */
     public static void main(String[] args) {
+        Settings settings;
+        try {
+            settings = Settings.parse(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Invalid settings: " + e.getMessage());
+            return;
+        }
+
         // welcome message
         System.out.println("Welcome to this choose your own adventure system!");
 
         boolean playAgain = true;
-        Scanner userInput = new Scanner(System.in);
+        LineReader userInput =
+            new LineReader(Channels.newChannel(System.in), Charset.defaultCharset());
         char continuePlaying;
         String fileName;
         int transitionChoice;
         String transitionProbID;
 
+        long game = 0; // the number of games played
+        ArrayList<String[]> rooms = null; // the rooms of the game being played
+
         // game loop
-        while (playAgain) {
-            Random rand = new Random(Config.SEED);
-            ArrayList<String[]> rooms = new ArrayList<>();
-            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
-            String[] curRoom = new String[Config.ROOM_DET_LEN];
-            ArrayList<String[]> currentTrans = new ArrayList<>();
-
-            // prompts for a file name
-            fileName = promptString(userInput, "Please enter the story filename: ");
-
-            // checks if the story file is found and successfully parsed
-            if (parseFile(fileName, rooms, trans, curRoom) == true) {
-
-                // story loop
-                while (!curRoom[0].equals(Config.FAIL) && !curRoom[0].equals(Config.SUCCESS)) {
-
-                    // displays room details
-                    displayRoom(curRoom[0], rooms);
-
-                    // stores the transitions for the given room
-                    currentTrans = displayTransitions(curRoom[0], rooms, trans);
-
-                    // checks if the transition is not a terminal transition
-                    if (((currentTrans != null) && (currentTrans.size() != 1))
-                        && (!(currentTrans.get(0)[Config.TRAN_DESC].equals(Config.SUCCESS))
-                            || !(currentTrans.get(0)[Config.TRAN_DESC].equals(Config.FAIL)))) {
-
-                        transitionProbID = probTrans(rand, currentTrans);
-                        // checks if the transitions have a probability
-                        if (transitionProbID == null) {
-                            transitionChoice =
-                                promptInt(userInput, "Choose: ", -2, currentTrans.size() - 1);
-                            userInput.nextLine();
-
-                            // if the user would like to exit the story
-                            if (transitionChoice == -1) {
-                                continuePlaying = promptChar(userInput,
-                                    "Are you sure you want to quit the adventure? ");
-                                if (continuePlaying == 'y') {
-                                    curRoom[0] = Config.FAIL;
+        try {
+            while (playAgain) {
+                RandomGenerator rand =
+                    RandomStreams.forSession(settings.random(), settings.seed(), game++);
+                rooms = new ArrayList<>();
+                ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
+                String[] curRoom = new String[Config.ROOM_DET_LEN];
+                ArrayList<String[]> currentTrans = new ArrayList<>();
+
+                // prompts for a file name
+                fileName = promptString(userInput, System.out, "Please enter the story filename: ");
+
+                // checks if the story file is found and successfully parsed
+                boolean parsed;
+                Session session = null; // plays a story image or cached story without copying it
+                String storyFile = Bookmarks.storyOf(fileName); // null for a bookmark cycle
+                if (storyFile == null) {
+                    parsed = false;
+                } else if (StoryImage.isImage(storyFile)) {
+                    AdventureEngine engine = AdventureEngine.load(fileName);
+                    if (engine != null) {
+                        session = engine.newSession(engine.story().id(engine.startRoom()), rand,
+                            settings);
+                    }
+                    parsed = session != null;
+                } else if (Config.STORY_CACHE) {
+                    StoryCache.Entry story = StoryCache.shared().get(fileName);
+                    if (story != null) {
+                        session = story.newSession(rand, settings);
+                    }
+                    parsed = session != null;
+                } else {
+                    long parseStart = Metrics.start();
+                    parsed = parseFile(fileName, rooms, trans, curRoom);
+                    if (parsed) {
+                        Metrics.parsed(parseStart, trans);
+                        // warns about mistakes in the story before a player runs into them, as
+                        // StoryCache does once for each story it parses
+                        StoryValidator.check(compiledGraph(rooms, trans));
+                    }
+                }
+                if (parsed == true) {
+
+                    // story loop, unless a session has played the story
+                    if (session != null) {
+                        curRoom[0] = playSession(session, userInput, fileName);
+                    }
+                    while (session == null && !curRoom[0].equals(Config.FAIL)
+                        && !curRoom[0].equals(Config.SUCCESS)) {
+
+                        // displays room details
+                        long start = Metrics.sample();
+                        displayRoom(curRoom[0], rooms, settings.displayWidth(),
+                            settings.lineChar());
+                        start = Metrics.DISPLAY_ROOM.stop(start);
+                        Metrics.visit(curRoom[0]);
+
+                        // stores the transitions for the given room
+                        currentTrans = displayTransitions(curRoom[0], rooms, trans);
+                        start = Metrics.DISPLAY_TRANSITIONS.stop(start);
+
+                        // checks if the transition is not a terminal transition
+                        if (((currentTrans != null) && (currentTrans.size() != 1))
+                            && (!(currentTrans.get(0)[Config.TRAN_DESC].equals(Config.SUCCESS))
+                                || !(currentTrans.get(0)[Config.TRAN_DESC].equals(Config.FAIL)))) {
+
+                            transitionProbID = probTrans(rand, currentTrans);
+                            start = Metrics.PROB_TRANS.stop(start);
+                            // checks if the transitions have a probability
+                            if (transitionProbID == null) {
+                                long wait = Metrics.start(); // the wait is timed every time
+                                transitionChoice = promptInt(userInput, System.out, "Choose: ", -2,
+                                    currentTrans.size() - 1);
+                                Metrics.PROMPT.stop(wait);
+
+                                // if the user would like to exit the story
+                                if (transitionChoice == -1) {
+                                    continuePlaying = promptChar(userInput, System.out,
+                                        "Are you sure you want to quit the adventure? ");
+                                    if (continuePlaying == 'y') {
+                                        curRoom[0] = Config.FAIL;
+                                    }
                                 }
-                            }
 
-                            // if the user would like to create a bookmark file
-                            if (transitionChoice == -2) {
-                                String bookmarkFile;
-                                bookmarkFile =
-                                    promptString(userInput, "Bookmarking current location: "
-                                        + curRoom[0] + ". Enter bookmark filename: ");
-                                if (saveBookmark(fileName, curRoom[0], bookmarkFile)) {
-                                    System.out.println("Bookmark saved in " + bookmarkFile);
-                                    break;
+                                // if the user would like to create a bookmark file
+                                if (transitionChoice == -2) {
+                                    String bookmarkFile;
+                                    bookmarkFile =
+                                        promptString(userInput, System.out,
+                                            "Bookmarking current location: "
+                                            + curRoom[0] + ". Enter bookmark filename: ");
+                                    if (saveBookmark(fileName, curRoom[0], bookmarkFile)) {
+                                        System.out.println("Bookmark saved in " + bookmarkFile);
+                                        break;
+                                    } else {
+                                        System.out.println(
+                                            "Error saving bookmark in " + bookmarkFile);
+                                        break;
+                                    }
+
+                                    // if the user enters a room
                                 } else {
-                                    System.out.println("Error saving bookmark in " + bookmarkFile);
-                                    break;
+                                    curRoom[0] =
+                                        currentTrans.get(transitionChoice)[Config.TRAN_ROOM_ID];
+                                    Metrics.transition();
                                 }
-
-                                // if the user enters a room
+                                // if the transition does have a probability
                             } else {
-                                curRoom[0] =
-                                    currentTrans.get(transitionChoice)[Config.TRAN_ROOM_ID];
+                                curRoom[0] = transitionProbID;
+                                Metrics.transition();
                             }
-                            // if the transition does have a probability
-                        } else {
-                            curRoom[0] = transitionProbID;
+
+                        }
+                        // if the transition is terminal, sets the current room to either pass or
+                        // fail
+                        else {
+                            curRoom[0] = currentTrans.get(0)[Config.TRAN_DESC];
                         }
 
                     }
-                    // if the transition is terminal, sets the current room to either pass or fail
-                    else {
-                        curRoom[0] = currentTrans.get(0)[Config.TRAN_DESC];
+                    // determines if the user completed the adventure of not, and prints a winning
+                    // or losing message
+                    if (curRoom[0].equals(Config.FAIL)) {
+                        System.out.println(
+                            "You failed to complete the adventure. Better luck next time!");
+                    } else if (curRoom[0].equals(Config.SUCCESS)) {
+                        System.out
+                            .println("Congratulations! You successfully completed the adventure!");
                     }
-
-                }
-                // determines if the user completed the adventure of not, and prints a winning or
-                // losing message
-                if (curRoom[0].equals(Config.FAIL)) {
-                    System.out
-                        .println("You failed to complete the adventure. Better luck next time!");
-                } else if (curRoom[0].equals(Config.SUCCESS)) {
-                    System.out
-                        .println("Congratulations! You successfully completed the adventure!");
                 }
-            }
+                releaseGraphs(rooms); // the rooms of this game are not looked up again
 
-            // prompts to user for if they would like to play again
-            continuePlaying = promptChar(userInput, "Do you want to try again? ");
-            if (continuePlaying == 'n') {
-                playAgain = false;
+                // prompts to user for if they would like to play again
+                continuePlaying = promptChar(userInput, System.out, "Do you want to try again? ");
+                if (continuePlaying == 'n') {
+                    playAgain = false;
+                }
             }
+        } catch (NoSuchElementException e) {
+            // the input ended in a game or at the prompt to play again, so there is nothing left
+            // to play
+            System.out.println(); // ends the line of the prompt
+            releaseGraphs(rooms);
         }
 
         // closing message
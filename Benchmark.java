@@ -0,0 +1,501 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Benchmark.java
+// This File: Benchmark.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.random.RandomGenerator;
+
+/**
+ * Measures the time per operation of the methods the story loop spends its time in: parseFile
+ * with each of its parsers, parseStory, getRoomDetails, displayTransitions, printString and
+ * probTrans. Each benchmark runs against the bundled stories and against generated stories of
+ * increasing size, so that changes to those methods can be compared by their numbers.
+ *
+ * Every benchmark is warmed up before it is measured, and is then measured over several timed
+ * iterations. The mean time per operation and its standard deviation over the iterations are
+ * reported. Results are kept in a volatile field so the JIT cannot remove the work measured.
+ * Output written by displayTransitions and printString is discarded while measuring.
+ *
+ * The story step benchmark displays a room and its transitions timed by Metrics as the story loop
+ * times them, and the session step benchmark renders a room of a Session and moves on, as a
+ * GameServer does, so running them with and without -Dadventure.metrics=true measures what the
+ * metrics cost.
+ *
+ * The probTrans benchmarks select weighted transitions with the legacy Random, which updates its
+ * seed with a compare-and-set, and with the L64X128MixRandom stream RandomStreams gives a session.
+ *
+ * The bookmark benchmarks report the saves per second of each BookmarkStore, saving the
+ * bookmarks of BOOKMARK_SESSIONS sessions in turn and committing every COMMIT_EVERY saves, as a
+ * server checkpointing its sessions would.
+ *
+ * The prompt benchmarks answer promptInt from PIPED_LINES lines piped at once, as a scripted
+ * player sends them, read through a Scanner and through a LineReader.
+ *
+ * The footprint benchmarks report the heap a loaded story retains, after garbage collection, with
+ * and without Config.POOL_STRINGS: as the lists parseFile returns, as the StoryGraph an
+ * AdventureEngine plays, and as an IndexedStory.
+ *
+ * Usage: java Benchmark [-sizes 1000,10000,100000] [-warmup ms] [-time ms] [-iterations n]
+ *                       [-filter text]
+ *
+ * -sizes lists the room counts of the generated stories (1000000 needs a large heap, e.g.
+ * -Xmx4g), -warmup and -time the duration of the warm-up and of each measured iteration, and
+ * -filter runs only the benchmarks whose name contains the text.
+ *
+ * @author Benjamin Tarmann
+ */
+public class Benchmark {
+    private static final String[] BUNDLED = {"Goldilocks.story", "GoldiFight.story",
+        "NeverEnd.story"}; // the stories shipped with the program
+    private static final int LOOKUPS = 1024; // room ids cycled through by lookup benchmarks
+    private static final int FOOTPRINT_ROOMS = 100000; // rooms loaded to measure a footprint
+    private static final int BOOKMARK_SESSIONS = 100000; // sessions saved by bookmark benchmarks
+    private static final int COMMIT_EVERY = 1000; // saves per commit in bookmark benchmarks
+    private static final int PIPED_LINES = 100000; // answers piped to the prompt benchmarks
+
+    private static volatile Object sink; // the latest result, so it is not optimized away
+
+    private long warmupMillis = 1000; // how long each benchmark runs before it is measured
+    private long iterationMillis = 1000; // how long each measured iteration runs
+    private int iterations = 5; // the number of measured iterations
+    private String filter = ""; // only benchmarks whose name contains this text are run
+
+    /**
+     * An operation to measure. The result is consumed so the work is not optimized away.
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @return The result of the operation, or null.
+         * @throws Exception If the operation fails.
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Runs an operation repeatedly and prints its mean time per operation.
+     *
+     * @param name The name of the benchmark.
+     * @param op The operation.
+     * @return The mean time per operation in nanoseconds, or -1 if the benchmark was filtered out.
+     * @throws Exception If the operation fails.
+     */
+    public double measure(String name, Operation op) throws Exception {
+        if (!name.contains(filter)) {
+            return -1;
+        }
+        PrintStream console = System.out;
+        double[] nanosPerOp = new double[iterations];
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            run(op, warmupMillis);
+            for (int i = 0; i < iterations; i++) {
+                nanosPerOp[i] = run(op, iterationMillis);
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        double mean = 0;
+        for (double n : nanosPerOp) {
+            mean += n;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (double n : nanosPerOp) {
+            variance += (n - mean) * (n - mean);
+        }
+        double stdDev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        console.println(String.format("%-48s %14.1f ns/op  +- %10.1f", name, mean, stdDev));
+        return mean;
+    }
+
+    /**
+     * Runs an operation and prints the heap its result retains after garbage collection. Small
+     * stories are loaded several times and the heap is divided among the copies, so their
+     * footprint is not lost in the noise of the collector.
+     *
+     * @param name The name of the benchmark.
+     * @param rooms The number of rooms of the story, to report the bytes per room.
+     * @param op The operation.
+     * @return The bytes retained, or -1 if the benchmark was filtered out.
+     * @throws Exception If the operation fails.
+     */
+    public long footprint(String name, int rooms, Operation op) throws Exception {
+        if (!name.contains(filter)) {
+            return -1;
+        }
+        PrintStream console = System.out;
+        long before = usedHeap();
+        Object[] results = new Object[Math.max(1, FOOTPRINT_ROOMS / Math.max(1, rooms))];
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = op.run();
+            }
+        } finally {
+            System.setOut(console);
+        }
+        long bytes = (usedHeap() - before) / results.length;
+        sink = results;
+        console.println(String.format("%-48s %14.1f KB     %10.1f B/room", name,
+            bytes / 1024.0, bytes / (double) Math.max(1, rooms)));
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes of heap in use after collecting garbage until the number stops falling.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Runs an operation for at least the given time, and at least once.
+     *
+     * @param op The operation.
+     * @param millis The time to run for.
+     * @return The mean time per operation in nanoseconds.
+     * @throws Exception If the operation fails.
+     */
+    private static double run(Operation op, long millis) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000L;
+        long ops = 0;
+        long now;
+        int batch = 1;
+        do {
+            // runs short operations in growing batches to keep the cost of the clock out of them
+            for (int i = 0; i < batch; i++) {
+                sink = op.run();
+            }
+            ops += batch;
+            now = System.nanoTime();
+            if (batch < 1024 && (now - start) * 100 < deadline - start) {
+                batch *= 2;
+            }
+        } while (now < deadline);
+        return (now - start) / (double) ops;
+    }
+
+    /**
+     * Runs every benchmark against one story file.
+     *
+     * @param label The name the results are reported under.
+     * @param fName The story file.
+     * @throws Exception If a benchmark fails.
+     */
+    public void benchStory(String label, String fName) throws Exception {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] curRoom = new String[1];
+        if (!AdventureStory.parseFile(fName, rooms, trans, curRoom)) {
+            System.out.println();
+            return;
+        }
+
+        boolean streamParser = Config.STREAM_PARSER;
+        boolean parallelParser = Config.PARALLEL_PARSER;
+        try {
+            Config.PARALLEL_PARSER = false;
+            Config.STREAM_PARSER = false;
+            measure(label + " parseFile", () -> parse(fName));
+            Config.STREAM_PARSER = true;
+            measure(label + " parseFile stream", () -> parse(fName));
+        } finally {
+            Config.STREAM_PARSER = streamParser;
+            Config.PARALLEL_PARSER = parallelParser;
+        }
+        measure(label + " parseFile parallel", () -> {
+            ArrayList<String[]> r = new ArrayList<String[]>();
+            ParallelStoryParser.parse(fName, r, new ArrayList<ArrayList<String[]>>(),
+                new String[1]);
+            return r;
+        });
+        measure(label + " parseStory", () -> {
+            try (Scanner sc = new Scanner(new FileInputStream(fName), "UTF-8")) {
+                sc.nextLine(); // the magic number
+                ArrayList<String[]> r = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> t = new ArrayList<ArrayList<String[]>>();
+                AdventureStory.parseStory(sc, r, t, new String[1]);
+                return r;
+            }
+        });
+
+        boolean poolStrings = Config.POOL_STRINGS;
+        try {
+            for (boolean pooled : new boolean[] {false, true}) {
+                Config.POOL_STRINGS = pooled;
+                String suffix = pooled ? " pooled" : "";
+                sink = null;
+                footprint(label + " footprint lists" + suffix, rooms.size(), () -> {
+                    ArrayList<String[]> r = new ArrayList<String[]>();
+                    ArrayList<ArrayList<String[]>> t = new ArrayList<ArrayList<String[]>>();
+                    AdventureStory.parseFile(fName, r, t, new String[1]);
+                    return new Object[] {r, t};
+                });
+                sink = null;
+                footprint(label + " footprint StoryGraph" + suffix, rooms.size(),
+                    () -> AdventureEngine.load(fName));
+            }
+        } finally {
+            Config.POOL_STRINGS = poolStrings;
+        }
+        if (ParallelStoryParser.splittable()) {
+            sink = null;
+            footprint(label + " footprint IndexedStory", rooms.size(),
+                () -> IndexedStory.open(fName));
+        }
+
+        // room ids to look up, in a random order so every lookup is not the same cache line
+        Random rand = new Random(Config.SEED);
+        String[] ids = new String[LOOKUPS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rooms.get(rand.nextInt(rooms.size()))[Config.ROOM_ID];
+        }
+        int[] next = new int[1];
+        measure(label + " getRoomDetails", () -> AdventureStory
+            .getRoomDetails(ids[next[0]++ & (LOOKUPS - 1)], rooms));
+        measure(label + " displayTransitions", () -> AdventureStory
+            .displayTransitions(ids[next[0]++ & (LOOKUPS - 1)], rooms, trans));
+        measure(label + " story step", () -> {
+            String id = ids[next[0]++ & (LOOKUPS - 1)];
+            long start = Metrics.sample();
+            AdventureStory.displayRoom(id, rooms);
+            start = Metrics.DISPLAY_ROOM.stop(start);
+            Metrics.visit(id);
+            ArrayList<String[]> curTrans = AdventureStory.displayTransitions(id, rooms, trans);
+            Metrics.DISPLAY_TRANSITIONS.stop(start);
+            return curTrans;
+        });
+
+        // a step of a Session, as a GameServer plays it: the room is rendered, and the session
+        // moves on through a weighted transition or the player's choice
+        AdventureEngine engine = AdventureEngine.load(fName);
+        if (engine != null) {
+            RoomRenderer renderer = new RoomRenderer(Writer.nullWriter());
+            Session[] session = {engine.newSession()};
+            measure(label + " session step", () -> {
+                Session s = session[0];
+                if (s.isOver()) {
+                    s = engine.newSession();
+                    session[0] = s;
+                }
+                s.render(renderer);
+                renderer.flush();
+                if (s.isTerminal() || s.isWeighted()) {
+                    s.step();
+                } else {
+                    s.choose(next[0]++ % s.numChoices());
+                }
+                return s;
+            });
+        }
+
+        String description = rooms.get(0)[Config.ROOM_DESC];
+        if (description != null) {
+            measure(label + " printString", () -> {
+                AdventureStory.printString(Config.DISPLAY_WIDTH, description);
+                return description;
+            });
+        }
+
+        ArrayList<String[]> weighted = null;
+        for (ArrayList<String[]> t : trans) {
+            if (!t.isEmpty() && t.get(0)[Config.TRAN_PROB] != null) {
+                weighted = t;
+                break;
+            }
+        }
+        if (weighted != null) {
+            ArrayList<String[]> curTrans = weighted;
+            Random probRand = new Random(Config.SEED);
+            measure(label + " probTrans", () -> AdventureStory.probTrans(probRand, curTrans));
+            RandomGenerator splitRand =
+                RandomStreams.forSession("L64X128MixRandom", Config.SEED, 0);
+            measure(label + " probTrans split",
+                () -> AdventureStory.probTrans(splitRand, curTrans));
+        }
+    }
+
+    /**
+     * Measures the saves per second of each BookmarkStore in a temporary directory.
+     *
+     * @throws Exception If a benchmark fails.
+     */
+    public void benchBookmarks() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("bench-bookmarks").toFile();
+        try {
+            String[] names = {"file", "log", "mapped"};
+            String[] stores = {new File(dir, "files").getPath() + File.separator,
+                new File(dir, "bookmarks.log").getPath(), new File(dir, "bookmarks").getPath()};
+            for (int i = 0; i < stores.length; i++) {
+                try (BookmarkStore store = BookmarkStore.open(stores[i])) {
+                    int[] next = new int[1];
+                    double nanos = measure("bookmark " + names[i] + " save", () -> {
+                        int n = next[0]++;
+                        store.save("session-" + (n % BOOKMARK_SESSIONS), "Goldilocks.story",
+                            Integer.toString(n & 15));
+                        if (n % COMMIT_EVERY == COMMIT_EVERY - 1) {
+                            store.commit();
+                        }
+                        return store;
+                    });
+                    if (nanos > 0) {
+                        System.out.println(String.format("%-48s %14.0f saves/s",
+                            "bookmark " + names[i] + " save", 1e9 / nanos));
+                    }
+                }
+            }
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Measures promptInt answered from piped input through a Scanner and through a LineReader.
+     *
+     * @throws Exception If a benchmark fails.
+     */
+    public void benchPrompts() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < PIPED_LINES; i++) {
+            sb.append(i % 5 - 2).append(System.lineSeparator());
+        }
+        String piped = sb.toString();
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+        Scanner[] sc = new Scanner[1];
+        int[] left = new int[1];
+        measure("promptInt Scanner", () -> {
+            if (left[0]-- == 0) {
+                sc[0] = new Scanner(piped);
+                left[0] = PIPED_LINES - 1;
+            }
+            int choice = AdventureStory.promptInt(sc[0], out, "Choose: ", -2, 2);
+            sc[0].nextLine();
+            return choice;
+        });
+        LineReader[] in = new LineReader[1];
+        left[0] = 0;
+        measure("promptInt LineReader", () -> {
+            if (left[0]-- == 0) {
+                in[0] = new LineReader(new StringReader(piped));
+                left[0] = PIPED_LINES - 1;
+            }
+            return AdventureStory.promptInt(in[0], out, "Choose: ", -2, 2);
+        });
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it.
+     */
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Parses a story file with AdventureStory.parseFile.
+     *
+     * @param fName The story file.
+     * @return The rooms parsed.
+     */
+    private static Object parse(String fName) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        AdventureStory.parseFile(fName, rooms, trans, new String[1]);
+        return rooms;
+    }
+
+    /**
+     * Runs the benchmarks against the bundled stories and generated stories.
+     *
+     * @param args The options described in the class comment.
+     */
+    public static void main(String[] args) {
+        Benchmark bench = new Benchmark();
+        int[] sizes = {1000, 10000, 100000};
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-sizes":
+                        String[] list = args[i + 1].split(",");
+                        sizes = new int[list.length];
+                        for (int s = 0; s < list.length; s++) {
+                            sizes[s] = Integer.parseInt(list[s].trim());
+                        }
+                        break;
+                    case "-warmup":
+                        bench.warmupMillis = Long.parseLong(args[i + 1]);
+                        break;
+                    case "-time":
+                        bench.iterationMillis = Long.parseLong(args[i + 1]);
+                        break;
+                    case "-iterations":
+                        bench.iterations = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "-filter":
+                        bench.filter = args[i + 1];
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        try {
+            for (String story : BUNDLED) {
+                bench.benchStory(story, story);
+            }
+            for (int size : sizes) {
+                File file = File.createTempFile("bench" + size + "-", ".story");
+                try {
+                    new StoryGenerator().rooms(size).seed(Config.SEED).write(file.getPath());
+                    bench.benchStory("generated-" + size, file.getPath());
+                } finally {
+                    file.delete();
+                }
+            }
+            bench.benchBookmarks();
+            bench.benchPrompts();
+        } catch (Exception e) {
+            System.out.println("Benchmark failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, BookmarkLog.java
+// This File: BookmarkLog.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the bookmarks of many sessions in one append-only log file, for programs that checkpoint
+ * thousands of sessions every few seconds. Saving a bookmark file per session would create,
+ * write and rename a file per checkpoint; the log instead collects the bookmarks put since the
+ * last flush and appends them with one write and one force.
+ *
+ * Each record of the log holds its length, a CRC32 checksum and either a bookmark (session id,
+ * story filename and room id) or the removal of a session. When the log is opened, its records
+ * are replayed in order, so the last record of a session wins. A record left half written by a
+ * crash fails its checksum, and the log is truncated before it.
+ *
+ * Old records of a session are dead once a newer one is written. When the log holds more than
+ * twice the bytes of its live records, and at least COMPACT_BYTES, a flush compacts it: the live
+ * bookmarks are written to a temporary file, which then replaces the log atomically.
+ *
+ * As a BookmarkStore, save is put, load is get and commit is flush. The log is thread-safe.
+ *
+ * @author Benjamin Tarmann
+ */
+public class BookmarkLog implements BookmarkStore {
+    private static final int MAGIC = 0x424b4c47; // "BKLG", the first 4 bytes of a log
+    private static final byte PUT = 1; // a record saving the bookmark of a session
+    private static final byte REMOVE = 2; // a record removing the bookmark of a session
+    private static final int HEADER = 8; // the length and checksum before each record
+    private static final long COMPACT_BYTES = 1 << 20; // the smallest log worth compacting
+
+    private final Path path; // the log file
+    private final Object io = new Object(); // held while writing to channel, before this
+    private FileChannel channel; // appends to the log file
+    private long logBytes; // the bytes in the log file
+    private final HashMap<String, Record> bookmarks = new HashMap<String, Record>(); // by session
+    private long liveBytes; // the bytes of the records in bookmarks
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); // records to append
+    private long flushes; // the number of flushes that wrote records
+    private long compactions; // the number of times the log was compacted
+    private Thread flusher; // flushes the log periodically, null if not started
+    private boolean closed; // whether close was called, guarded by this
+
+    /**
+     * The bookmark of a session and the length of its record in the log.
+     */
+    private static class Record {
+        private final String story; // the story filename
+        private final String room; // the room id
+        private final int bytes; // the length of the record, header included
+
+        private Record(String story, String room, int bytes) {
+            this.story = story;
+            this.room = room;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Opens a log file, creating it if it does not exist, and replays its records.
+     *
+     * @param fName The name of the log file.
+     * @throws IOException If the file cannot be read or written, or is not a bookmark log.
+     */
+    public BookmarkLog(String fName) throws IOException {
+        this.path = new File(fName).getAbsoluteFile().toPath();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            replay();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the records of the log into bookmarks, and truncates the log after the last whole
+     * record. An empty log is given its magic number.
+     */
+    private void replay() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC).flip();
+            while (magic.hasRemaining()) {
+                channel.write(magic, magic.position());
+            }
+            logBytes = 4;
+            return;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (data.hasRemaining() && channel.read(data, data.position()) > 0) {
+            // reads the whole log
+        }
+        data.flip();
+        if (data.remaining() < 4 || data.getInt() != MAGIC) {
+            throw new IOException("Not a bookmark log: " + path);
+        }
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= HEADER) {
+            int start = data.position();
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 1 || length > data.remaining()) {
+                data.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(data.slice(data.position(), length));
+            if ((int) crc.getValue() != checksum) {
+                data.position(start);
+                break;
+            }
+            ByteBuffer record = data.slice(data.position(), length);
+            data.position(data.position() + length);
+            byte type = record.get();
+            String session = readString(record);
+            if (type == PUT) {
+                apply(session, new Record(readString(record), readString(record),
+                    HEADER + length));
+            } else {
+                apply(session, null);
+            }
+        }
+        logBytes = data.position();
+        if (logBytes < size) {
+            channel.truncate(logBytes); // drops a record left half written
+        }
+    }
+
+    /**
+     * Reads a String written by writeString.
+     */
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the bookmark of a session in bookmarks, keeping liveBytes up to date.
+     */
+    private void apply(String session, Record record) {
+        Record old = record == null ? bookmarks.remove(session) : bookmarks.put(session, record);
+        if (old != null) {
+            liveBytes -= old.bytes;
+        }
+        if (record != null) {
+            liveBytes += record.bytes;
+        }
+    }
+
+    /**
+     * Saves the bookmark of a session. The bookmark is written to the log by the next flush.
+     *
+     * @param session The id of the session.
+     * @param storyFile The filename of the story file.
+     * @param curRoom The id of the current room.
+     */
+    public synchronized void put(String session, String storyFile, String curRoom) {
+        int bytes = append(pending, PUT, session, storyFile, curRoom);
+        apply(session, new Record(storyFile, curRoom, bytes));
+    }
+
+    @Override
+    public void save(String session, String storyFile, String curRoom) {
+        put(session, storyFile, curRoom);
+    }
+
+    /**
+     * Removes the bookmark of a session, if it has one. The removal is written to the log by the
+     * next flush.
+     *
+     * @param session The id of the session.
+     */
+    @Override
+    public synchronized void remove(String session) {
+        if (bookmarks.containsKey(session)) {
+            append(pending, REMOVE, session, null, null);
+            apply(session, null);
+        }
+    }
+
+    /**
+     * Returns the bookmark of a session.
+     *
+     * @param session The id of the session.
+     * @return The story filename and the room id, or null if the session has no bookmark.
+     */
+    public synchronized String[] get(String session) {
+        Record record = bookmarks.get(session);
+        return record == null ? null : new String[] {record.story, record.room};
+    }
+
+    @Override
+    public String[] load(String session) {
+        return get(session);
+    }
+
+    /**
+     * Returns the number of sessions with a bookmark.
+     *
+     * @return The number of sessions.
+     */
+    public synchronized int size() {
+        return bookmarks.size();
+    }
+
+    /**
+     * Appends a record to a stream.
+     *
+     * @return The length of the record, header included.
+     */
+    private static int append(ByteArrayOutputStream out, byte type, String session,
+        String storyFile, String curRoom) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(body);
+        try {
+            data.writeByte(type);
+            writeString(data, session);
+            if (type == PUT) {
+                writeString(data, storyFile);
+                writeString(data, curRoom);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(body.size());
+            header.writeInt((int) crc.getValue());
+            body.writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // a ByteArrayOutputStream does not throw
+        }
+        return HEADER + body.size();
+    }
+
+    /**
+     * Writes the length of a String in UTF-8 bytes, then the bytes.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes the bookmarks put since the last flush to the log with one write, and forces them
+     * to the disk. The log is compacted afterwards if it holds mostly dead records.
+     *
+     * The records written are only removed from the pending records once they have been forced,
+     * so if the write fails they are written again, with any put since, by the next flush.
+     *
+     * @return The number of bytes written, not counting a compaction.
+     * @throws IOException If the log cannot be written.
+     */
+    public long flush() throws IOException {
+        synchronized (io) {
+            byte[] batch;
+            boolean compact;
+            synchronized (this) {
+                batch = pending.toByteArray();
+                compact = logBytes + batch.length >= COMPACT_BYTES
+                    && logBytes + batch.length > 2 * (4 + liveBytes);
+            }
+            if (batch.length > 0) {
+                ByteBuffer bytes = ByteBuffer.wrap(batch);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, logBytes + bytes.position());
+                }
+                channel.force(false);
+                synchronized (this) {
+                    byte[] later = pending.toByteArray(); // the batch, then records put since
+                    pending = new ByteArrayOutputStream();
+                    pending.write(later, batch.length, later.length - batch.length);
+                    logBytes += batch.length;
+                    flushes++;
+                }
+            }
+            if (compact) {
+                compact();
+            }
+            return batch.length;
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        flush();
+    }
+
+    /**
+     * Replaces the log with one holding a record per live bookmark. Must be called while holding
+     * the io lock, after pending records older than the bookmarks were flushed.
+     */
+    private void compact() throws IOException {
+        ArrayList<Map.Entry<String, Record>> live = new ArrayList<Map.Entry<String, Record>>();
+        ByteArrayOutputStream out;
+        synchronized (this) {
+            for (Map.Entry<String, Record> entry : bookmarks.entrySet()) {
+                live.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+            out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, 4 + liveBytes));
+        }
+        new DataOutputStream(out).writeInt(MAGIC);
+        for (Map.Entry<String, Record> entry : live) {
+            Record record = entry.getValue();
+            append(out, PUT, entry.getKey(), record.story, record.room);
+        }
+
+        Path temp = Bookmarks.createSibling(path);
+        try {
+            try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+                while (bytes.hasRemaining()) {
+                    ch.write(bytes);
+                }
+                ch.force(false);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (this) {
+            logBytes = out.size();
+            compactions++;
+        }
+    }
+
+    /**
+     * Returns the number of bytes in the log file.
+     *
+     * @return The size of the log.
+     */
+    public synchronized long logBytes() {
+        return logBytes;
+    }
+
+    /**
+     * Returns the number of flushes that wrote records to the log.
+     *
+     * @return The number of flushes.
+     */
+    public synchronized long flushes() {
+        return flushes;
+    }
+
+    /**
+     * Returns the number of times the log was compacted.
+     *
+     * @return The number of compactions.
+     */
+    public synchronized long compactions() {
+        return compactions;
+    }
+
+    /**
+     * Starts a daemon thread that flushes the log periodically, until the log is closed. Errors
+     * writing the log are printed, terminated by a new line, to System.out.
+     *
+     * @param periodMillis The time between flushes in milliseconds.
+     * @return This log.
+     */
+    public synchronized BookmarkLog start(long periodMillis) {
+        if (flusher == null && !closed) {
+            // the thread waits on this rather than sleeping, since interrupting a thread in the
+            // middle of a write would close the channel
+            flusher = new Thread(() -> {
+                while (waitFor(periodMillis)) {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        System.out.println("Error writing bookmark log: " + path);
+                    }
+                }
+            }, "bookmark-log");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        return this;
+    }
+
+    /**
+     * Waits for the time between flushes, or until the log is closed.
+     *
+     * @return false if the log was closed.
+     */
+    private synchronized boolean waitFor(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+        while (!closed && left > 0) {
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            left = deadline - System.currentTimeMillis();
+        }
+        return !closed;
+    }
+
+    /**
+     * Stops the periodic flushes, flushes the bookmarks put since the last flush and closes the
+     * log file.
+     *
+     * @throws IOException If the log cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = flusher;
+            closed = true;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } finally {
+            synchronized (io) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, BookmarkStore.java
+// This File: BookmarkStore.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the bookmarks of sessions: for each session id, the story file a session plays and the id
+ * of the room it is in.
+ *
+ * A save is only guaranteed to survive a crash once commit returns, so callers that save many
+ * sessions commit them together. Implementations are thread-safe.
+ *
+ * @author Benjamin Tarmann
+ */
+public interface BookmarkStore extends Closeable {
+
+    /**
+     * Saves the bookmark of a session, replacing the one it had.
+     *
+     * @param session The id of the session.
+     * @param storyFile The filename of the story file.
+     * @param curRoom The id of the current room.
+     * @throws IOException If the bookmark cannot be saved.
+     */
+    void save(String session, String storyFile, String curRoom) throws IOException;
+
+    /**
+     * Returns the bookmark of a session.
+     *
+     * @param session The id of the session.
+     * @return The story filename and the room id, or null if the session has no bookmark.
+     * @throws IOException If the bookmark cannot be read.
+     */
+    String[] load(String session) throws IOException;
+
+    /**
+     * Removes the bookmark of a session, if it has one.
+     *
+     * @param session The id of the session.
+     * @throws IOException If the bookmark cannot be removed.
+     */
+    void remove(String session) throws IOException;
+
+    /**
+     * Makes every save and removal that returned before this call durable.
+     *
+     * @throws IOException If the bookmarks cannot be written.
+     */
+    void commit() throws IOException;
+
+    /**
+     * Opens the store of the given name: a directory of bookmark files if the name is an
+     * existing directory or ends with a file separator, a BookmarkLog if it ends with ".log",
+     * and a MappedBookmarkStore otherwise.
+     *
+     * @param name The name of the directory or file.
+     * @return The store.
+     * @throws IOException If the store cannot be opened.
+     */
+    static BookmarkStore open(String name) throws IOException {
+        if (new File(name).isDirectory() || name.endsWith(File.separator)) {
+            return new FileBookmarkStore(name);
+        }
+        if (name.endsWith(".log")) {
+            return new BookmarkLog(name);
+        }
+        return new MappedBookmarkStore(name);
+    }
+}
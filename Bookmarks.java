@@ -0,0 +1,174 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Bookmarks.java
+// This File: Bookmarks.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reads, follows and saves bookmark files, see AdventureStory.parseBookmark for their format.
+ *
+ * A bookmark may name another bookmark instead of a story file. Chains of bookmarks are followed
+ * in a loop rather than by parsing each bookmark with AdventureStory.parseFile, and a chain that
+ * leads back to a bookmark already visited is reported as a cycle instead of recursing until the
+ * stack overflows. Each bookmark of a chain is opened once and only its first three lines are
+ * read.
+ *
+ * Bookmarks are saved atomically: the new contents are written to a temporary file in the same
+ * directory, which then replaces the bookmark file in one rename, so a bookmark file is never
+ * left half written.
+ *
+ * @author Benjamin Tarmann
+ */
+public class Bookmarks {
+    /**
+     * Reads a bookmark file.
+     *
+     * @param fName The name of the file.
+     * @return The story filename and the room id saved in the bookmark, or null if the file
+     *         cannot be read or is not a bookmark file.
+     */
+    public static String[] read(String fName) {
+        Path path = new File(fName).toPath();
+        try (BufferedReader in = Files.newBufferedReader(path, Charset.defaultCharset())) {
+            String magic = in.readLine();
+            if (magic == null || !magic.trim().equals(Config.MAGIC_BOOKMARK)) {
+                return null;
+            }
+            String story = in.readLine();
+            String room = in.readLine();
+            if (story == null || room == null) {
+                return null;
+            }
+            return new String[] {story.trim(), room.trim()};
+        } catch (IOException e) {
+            return null; // an image or a file in another charset is no bookmark either
+        }
+    }
+
+    /**
+     * Follows a chain of bookmark files to the file at its end, which is not a bookmark file. A
+     * cycle of bookmarks is printed, terminated by a new line, to System.out, as "Bookmark cycle:
+     * a -> b -> a".
+     *
+     * @param fName The name of a bookmark file, or of any other file, which is its own end.
+     * @return The name of the first file of the chain that is not a readable bookmark file, or
+     *         null if the chain has a cycle.
+     */
+    public static String storyOf(String fName) {
+        ArrayList<String> chain = new ArrayList<String>();
+        HashSet<String> visited = new HashSet<String>();
+        String current = fName;
+        String[] bookmark;
+        while ((bookmark = read(current)) != null) {
+            chain.add(current);
+            if (!visited.add(canonical(current))) {
+                System.out.println("Bookmark cycle: " + String.join(" -> ", chain));
+                return null;
+            }
+            current = bookmark[0];
+        }
+        return current;
+    }
+
+    /**
+     * Returns the canonical path of a file, or its absolute path if it has none.
+     */
+    private static String canonical(String fName) {
+        File file = new File(fName);
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Saves a bookmark file atomically, replacing any file of that name.
+     *
+     * @param storyFile The filename of the story file.
+     * @param curRoom The id of the current room.
+     * @param bookmarkFile The filename of the bookmark file.
+     * @throws IOException If the bookmark cannot be written. The previous bookmark file, if any,
+     *                     is then unchanged.
+     */
+    public static void save(String storyFile, String curRoom, String bookmarkFile)
+        throws IOException {
+        String nl = System.lineSeparator();
+        ByteBuffer bytes = ByteBuffer.wrap((Config.MAGIC_BOOKMARK + nl + storyFile + nl + curRoom
+            + nl).getBytes(Charset.defaultCharset()));
+        Path target = new File(bookmarkFile).getAbsoluteFile().toPath();
+        Path temp = createSibling(target);
+        try {
+            try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    ch.write(bytes);
+                }
+                ch.force(false);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Creates an empty file in the directory of target to write a replacement of target to. The
+     * file is created with the default permissions, which follow the umask as a file written by a
+     * PrintWriter does, rather than the owner-only permissions of Files.createTempFile. If target
+     * exists on a file system with POSIX permissions, the file takes its permissions, so replacing
+     * target does not change who can read it.
+     *
+     * @param target The file that will be replaced.
+     * @return The new file, named after target and ending with .tmp.
+     * @throws IOException If the file cannot be created.
+     */
+    static Path createSibling(Path target) throws IOException {
+        Path dir = target.getParent();
+        while (true) {
+            Path temp = dir.resolve(target.getFileName() + "."
+                + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try {
+                if (Files.exists(target)) {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                }
+            } catch (UnsupportedOperationException e) {
+                // the file system has no POSIX permissions
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return temp;
+        }
+    }
+}
@@ -10,45 +10,118 @@
 ///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
 public class Config {
     /**
-     * Display maximum line length
+     * Display maximum line length, the default of Settings.displayWidth
      */
     public static int DISPLAY_WIDTH = 80; 
 
     /**
-     * Room details String[] constants
+     * Maximum number of rendered rooms kept by displayRoom
      */
-    public static int ROOM_DET_LEN = 3; // room details array length
-    public static int ROOM_ID = 0; // index of room id
-    public static int ROOM_TITLE = 1; // index of room title
-    public static int ROOM_DESC = 2; // index of room desc
+    public static int ROOM_CACHE_SIZE = 256;
+
+    /**
+     * Maximum number of room descriptions kept in memory by a story loaded with
+     * LAZY_DESCRIPTIONS
+     */
+    public static int DESCRIPTION_CACHE_SIZE = 4096;
+
+    /**
+     * Maximum number of weight tables of weighted rooms kept in memory by a story image
+     */
+    public static int WEIGHT_CACHE_SIZE = 4096;
+
+    /**
+     * Maximum number of rooms of the parsed stories kept by StoryCache.shared, and of the graphs
+     * the lookup methods of AdventureStory keep
+     */
+    public static long STORY_CACHE_ROOMS = 1000000;
+
+    /**
+     * Room details String[] constants. The layout of the arrays is fixed, so the constants are
+     * final and array accesses through them are compiled with constant indexes.
+     */
+    public static final int ROOM_DET_LEN = 3; // room details array length
+    public static final int ROOM_ID = 0; // index of room id
+    public static final int ROOM_TITLE = 1; // index of room title
+    public static final int ROOM_DESC = 2; // index of room desc
 
     /**
      * Transition details String[] constants
      */
-    public static int TRAN_DET_LEN = 3; // transition details array length
-    public static int TRAN_DESC = 0; // index of transition description
-    public static int TRAN_ROOM_ID = 1; // index of transition destination (id of the room)
-    public static int TRAN_PROB = 2; // index of transition probability weight
+    public static final int TRAN_DET_LEN = 3; // transition details array length
+    public static final int TRAN_DESC = 0; // index of transition description
+    public static final int TRAN_ROOM_ID = 1; // index of transition destination (id of the room)
+    public static final int TRAN_PROB = 2; // index of transition probability weight
 
     /**
      * Terminal state constants
      */
-    public static String SUCCESS = "=)";
-    public static String FAIL = "=(";
+    public static final String SUCCESS = "=)";
+    public static final String FAIL = "=(";
 
     /**
      * File magic numbers
      */
-    public static String MAGIC_STORY = "#!STORY";
-    public static String MAGIC_BOOKMARK = "#!BOOKMARK";
+    public static final String MAGIC_STORY = "#!STORY";
+    public static final String MAGIC_BOOKMARK = "#!BOOKMARK";
+    public static final String MAGIC_IMAGE = "#!STORYIMG";
 
     /**
-     * Character used when printing a line
+     * Character used when printing a line, the default of Settings.lineChar
      */
     public static char LINE_CHAR = '-';
 
     /**
-     * Random seed to use
+     * Whether story files are parsed in a single pass over a FileChannel instead of through a
+     * Scanner
+     */
+    public static boolean STREAM_PARSER = false;
+
+    /**
+     * Whether story files of several megabytes are parsed in chunks on several threads, with the
+     * same results as the single-pass parser
+     */
+    public static boolean PARALLEL_PARSER = true;
+
+    /**
+     * Whether AdventureEngine.load leaves room descriptions in the story file until they are
+     * displayed, to save memory on large stories
+     */
+    public static boolean LAZY_DESCRIPTIONS = false;
+
+    /**
+     * Whether loaded stories share one copy of equal room ids and transition texts
+     */
+    public static boolean POOL_STRINGS = true;
+
+    /**
+     * Whether the main loop and parseBookmark take stories from StoryCache.shared instead of
+     * parsing the file every time it is played
+     */
+    public static boolean STORY_CACHE = true;
+
+    /**
+     * Random seed to use, the default of Settings.seed
      */
     public static long SEED = 6;
+
+    /**
+     * The algorithm of the generators weighted transitions are selected with, the default of
+     * Settings.random: RandomStreams.LEGACY for a Random seeded with SEED in every session, or the
+     * name of a RandomGenerator algorithm, such as L64X128MixRandom, for a stream of its own per
+     * session
+     */
+    public static String RANDOM = RandomStreams.LEGACY;
+
+    /**
+     * Whether weighted transitions are sampled with the alias method instead of reproducing the
+     * selections of the original probTrans for Config.SEED
+     */
+    public static boolean ALIAS_SAMPLING = false;
+
+    /**
+     * Whether stories are checked for missing rooms, unreachable rooms, cycles with no exit and
+     * invalid weights when they are loaded, printing a warning for each problem found
+     */
+    public static boolean VALIDATE_STORY = true;
 }
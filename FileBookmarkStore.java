@@ -0,0 +1,84 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, FileBookmarkStore.java
+// This File: FileBookmarkStore.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Keeps each bookmark in its own bookmark file, in the format AdventureStory.saveBookmark writes,
+ * named after the session id with the ".bookmark" extension. Each file is saved atomically by
+ * Bookmarks.save, so a save is durable as soon as it returns, and the files can be played with
+ * AdventureStory.parseFile.
+ *
+ * Session ids are used as filenames, so they may only hold letters, digits, '-', '_' and '.'
+ * and must not start with '.'.
+ *
+ * @author Benjamin Tarmann
+ */
+public class FileBookmarkStore implements BookmarkStore {
+    private final File dir; // the directory of the bookmark files
+
+    /**
+     * Opens a directory of bookmark files, creating it if it does not exist.
+     *
+     * @param dirName The name of the directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public FileBookmarkStore(String dirName) throws IOException {
+        this.dir = new File(dirName);
+        Files.createDirectories(dir.toPath());
+    }
+
+    /**
+     * Returns the bookmark file of a session.
+     *
+     * @param session The id of the session.
+     * @return The file.
+     * @throws IllegalArgumentException If the session id is not a safe filename.
+     */
+    public File file(String session) {
+        boolean safe = !session.isEmpty() && session.charAt(0) != '.';
+        for (int i = 0; i < session.length() && safe; i++) {
+            char c = session.charAt(i);
+            safe = Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.';
+        }
+        if (!safe) {
+            throw new IllegalArgumentException("Invalid session id: " + session);
+        }
+        return new File(dir, session + ".bookmark");
+    }
+
+    @Override
+    public void save(String session, String storyFile, String curRoom) throws IOException {
+        Bookmarks.save(storyFile, curRoom, file(session).getPath());
+    }
+
+    @Override
+    public String[] load(String session) {
+        return Bookmarks.read(file(session).getPath());
+    }
+
+    @Override
+    public void remove(String session) throws IOException {
+        Files.deleteIfExists(file(session).toPath());
+    }
+
+    @Override
+    public void commit() {
+        // every save is durable when it returns
+    }
+
+    @Override
+    public void close() {
+        // no files are kept open
+    }
+}
@@ -0,0 +1,466 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, GameServer.java
+// This File: GameServer.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Serves one story to many players over TCP. Every connection plays the main method's game loop
+ * in a Session of a shared AdventureEngine, so the story is loaded once for all players, and the
+ * prompts read from and write to the connection instead of System.in and System.out.
+ *
+ * Input is read through a LineReader, so a client may send many answers at once, as scripted
+ * players do; they are split from one read and the prompts they answer are sent without a flush
+ * each.
+ *
+ * Each connection runs on its own thread. Where the JVM provides virtual threads, a virtual thread
+ * is started per connection; otherwise a cached pool of platform threads is used.
+ *
+ * Players cannot save bookmarks, since a bookmark filename would name a file on the server.
+ *
+ * @author Benjamin Tarmann
+ */
+public class GameServer implements Closeable {
+    private static final long MAX_BACKOFF_MILLIS = 1000; // the longest wait after accept fails
+    private static final int LOG_EVERY_FAILURES = 100; // failures of accept reported once
+
+    /**
+     * The algorithm of the generators of the sessions main serves, unless -random names another
+     */
+    public static final String RANDOM = "L64X128MixRandom";
+
+    private final AdventureEngine engine; // the story shared by all connections
+    private final ServerSocket server; // the socket connections are accepted on
+    private final ExecutorService players; // runs one task per connection
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet(); // connections being played
+    private final LongAdder served = new LongAdder(); // connections accepted so far
+    private final Thread acceptor; // accepts connections until the server is closed
+    private volatile Consumer<ReplayLog> replays; // receives the log of every session, or null
+
+    /**
+     * Creates a server and binds it to a port. Call start to accept connections.
+     *
+     * @param engine The engine hosting the story to serve.
+     * @param port The port to listen on, or 0 for any free port.
+     * @param bindAddr The address to listen on, or null for all local addresses.
+     * @throws IOException If the port cannot be bound.
+     */
+    public GameServer(AdventureEngine engine, int port, InetAddress bindAddr) throws IOException {
+        this.engine = engine;
+        this.server = new ServerSocket(port, 1024, bindAddr);
+        this.players = newPlayerExecutor();
+        this.acceptor = new Thread(this::acceptLoop, "GameServer-accept-" + server.getLocalPort());
+    }
+
+    /**
+     * Returns an executor that runs every task on a new virtual thread, or a cached thread pool if
+     * virtual threads are not available in this JVM.
+     *
+     * @return The executor.
+     */
+    public static ExecutorService newPlayerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return The local port.
+     */
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections accepted so far.
+     *
+     * @return The number of connections.
+     */
+    public long served() {
+        return served.sum();
+    }
+
+    /**
+     * Records every session played from now on and hands its ReplayLog to replays when the
+     * session ends or the player disconnects.
+     *
+     * @param replays The receiver of the logs, such as a ReplayLog.Writer, or null to stop
+     *                recording.
+     * @return This server.
+     */
+    public GameServer recordReplays(Consumer<ReplayLog> replays) {
+        this.replays = replays;
+        return this;
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     *
+     * @return This server.
+     */
+    public GameServer start() {
+        acceptor.start();
+        return this;
+    }
+
+    /**
+     * Stops accepting connections and disconnects every player.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket socket : open) {
+            socket.close();
+        }
+        players.shutdownNow();
+        try {
+            acceptor.join(TimeUnit.SECONDS.toMillis(5));
+            players.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts connections and hands each one to a player thread until the server is closed.
+     *
+     * If accept keeps failing while the server is open, as it does while the process is out of
+     * file descriptors, the loop waits before trying again, doubling the wait with each failure
+     * up to MAX_BACKOFF_MILLIS, and reports the first failure and every LOG_EVERY_FAILURES
+     * failures after it, instead of spinning on accept.
+     */
+    private void acceptLoop() {
+        int failures = 0; // consecutive failures of accept
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+                failures = 0;
+            } catch (IOException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+                if (failures % LOG_EVERY_FAILURES == 0) {
+                    System.out.println("Error accepting connection on port " + port() + ": "
+                        + e.getMessage() + " (" + (failures + 1) + " failures)");
+                }
+                failures++;
+                try {
+                    Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 1L << Math.min(failures, 10)));
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue; // a connection reset before it was accepted fails only once
+            }
+            served.increment();
+            open.add(socket);
+            try {
+                players.execute(() -> serve(socket));
+            } catch (RuntimeException e) {
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Plays the game loop over one connection and closes it.
+     *
+     * @param socket The connection.
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            LineReader in = new LineReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()),
+                false, StandardCharsets.UTF_8);
+            play(engine, in, out, replays);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            // the player disconnected or sent input the prompts cannot handle
+        } finally {
+            close(socket);
+        }
+    }
+
+    /**
+     * Closes a connection and forgets it.
+     *
+     * @param socket The connection.
+     */
+    private void close(Socket socket) {
+        open.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do with a connection that cannot be closed
+        }
+    }
+
+    /**
+     * Plays the main method's game loop for one player: the story of engine is played in a new
+     * session until it ends, and the player is asked whether to try again. The story filename is
+     * not prompted for, since the engine hosts a single story, and bookmarks are not saved.
+     *
+     * The game also ends when the player's input ends or out can no longer be written.
+     *
+     * @param engine The engine hosting the story.
+     * @param in The LineReader to read the player's input from.
+     * @param out The stream to write the game to.
+     */
+    public static void play(AdventureEngine engine, LineReader in, PrintStream out) {
+        play(engine, in, out, null);
+    }
+
+    /**
+     * Plays the game loop as play(AdventureEngine, LineReader, PrintStream) does, recording every
+     * session played and handing its ReplayLog to replays when it ends or the input ends.
+     *
+     * @param engine The engine hosting the story.
+     * @param in The LineReader to read the player's input from.
+     * @param out The stream to write the game to.
+     * @param replays The receiver of the logs, or null to play without recording.
+     */
+    public static void play(AdventureEngine engine, LineReader in, PrintStream out,
+        Consumer<ReplayLog> replays) {
+        RoomRenderer renderer = new RoomRenderer(out);
+        out.println("Welcome to this choose your own adventure system!");
+
+        boolean playAgain = true;
+        while (playAgain && !out.checkError()) {
+            Session session = replays == null ? engine.newSession()
+                : engine.newRecordedSession(engine.settings());
+            try {
+                playStory(session, renderer, in, out);
+            } finally {
+                if (replays != null) {
+                    replays.accept(session.replayLog());
+                }
+            }
+
+            if (session.outcome().equals(Config.FAIL)) {
+                out.println("You failed to complete the adventure. Better luck next time!");
+            } else {
+                out.println("Congratulations! You successfully completed the adventure!");
+            }
+
+            char continuePlaying;
+            try {
+                continuePlaying = AdventureStory.promptChar(in, out, "Do you want to try again? ");
+            } catch (NoSuchElementException e) {
+                continuePlaying = 'n'; // the player's input has ended, which ends the game
+            }
+            if (continuePlaying == 'n') {
+                playAgain = false;
+            }
+        }
+
+        out.println("Thank you for playing!");
+        out.flush();
+    }
+
+    /**
+     * Plays the story loop of a session until its story ends.
+     *
+     * @param session The session.
+     * @param renderer The renderer writing to out.
+     * @param in The LineReader to read the player's input from.
+     * @param out The stream to write the game to.
+     */
+    private static void playStory(Session session, RoomRenderer renderer, LineReader in,
+        PrintStream out) {
+        while (!session.isOver()) {
+            session.render(renderer);
+            flush(renderer);
+
+            if (session.isTerminal() || session.isWeighted()) {
+                if (session.step() == -1 && !session.isOver()) {
+                    out.println("Error: the story has no room to continue to.");
+                    session.quit();
+                }
+                continue;
+            }
+
+            long start = Metrics.start();
+            int choice = AdventureStory.promptInt(in, out, "Choose: ", -2,
+                session.numChoices() - 1);
+            Metrics.PROMPT.stop(start);
+            if (choice == -1) {
+                if (AdventureStory.promptChar(in, out,
+                    "Are you sure you want to quit the adventure? ") == 'y') {
+                    session.quit();
+                }
+            } else if (choice == -2) {
+                out.println("Bookmarks cannot be saved on this server.");
+            } else if (!session.choose(choice)) {
+                out.println("Error: the story has no room to continue to.");
+                session.quit();
+            }
+        }
+    }
+
+    /**
+     * Writes the text buffered in a renderer.
+     *
+     * @param renderer The renderer.
+     */
+    private static void flush(RoomRenderer renderer) {
+        try {
+            renderer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the settings of the sessions main serves: Settings.defaults() with the generator
+     * algorithm RANDOM, changed by the options as Settings.parse changes them.
+     *
+     * @param options The options -settings, -width, -lineChar, -seed and -random with their
+     *                values.
+     * @return The settings.
+     * @throws IOException If a settings file cannot be read.
+     * @throws IllegalArgumentException If an option or its value is invalid.
+     */
+    static Settings settings(ArrayList<String> options) throws IOException {
+        ArrayList<String> args = new ArrayList<String>();
+        args.add("-random");
+        args.add(RANDOM);
+        args.addAll(options);
+        return Settings.parse(args.toArray(new String[0]));
+    }
+
+    /**
+     * Serves a story until the process is stopped.
+     *
+     * Usage: java GameServer [options] storyFile [port]
+     *
+     * With -watch, a StoryWatcher reloads a story file whenever it is edited, and players keep
+     * playing the new version of the story from the room they are in. With -record replayFile,
+     * the ReplayLog of every session is appended to the replay file, which is written when the
+     * server stops, for Replayer to play again. The options of Settings.parse, such as -width or
+     * -seed, change the settings of every session. Every session draws its weighted transitions
+     * from its own generator of the algorithm RANDOM, see RandomStreams, unless -random names
+     * another one, such as RandomStreams.LEGACY for the sequence the main method of
+     * AdventureStory draws. The options may be given in any order, before or after the story.
+     *
+     * @param args The options, the story, bookmark or story image filename, and the port, 7070 by
+     *             default.
+     */
+    public static void main(String[] args) {
+        boolean watch = false;
+        String replayFile = null;
+        ArrayList<String> options = new ArrayList<String>(); // the options of Settings.parse
+        ArrayList<String> operands = new ArrayList<String>(); // the story and port
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-watch")) {
+                watch = true;
+            } else if (!args[i].startsWith("-")) {
+                operands.add(args[i]);
+            } else if (i + 1 == args.length) {
+                System.out.println("Missing value: " + args[i]);
+                return;
+            } else if (args[i].equals("-record")) {
+                replayFile = args[++i];
+            } else {
+                options.add(args[i]);
+                options.add(args[++i]);
+            }
+        }
+        if (operands.isEmpty() || operands.size() > 2) {
+            System.out.println("Usage: java GameServer [-watch] [-record replayFile] "
+                + "[-random algorithm] [-settings file] [-width width] [-lineChar char] "
+                + "[-seed seed] storyFile [port]");
+            return;
+        }
+        Settings settings;
+        try {
+            settings = settings(options);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Invalid settings: " + e.getMessage());
+            return;
+        }
+        String storyFile = operands.get(0);
+        int port;
+        try {
+            port = operands.size() > 1 ? Integer.parseInt(operands.get(1)) : 7070;
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (port < 0 || port > 0xFFFF) {
+            System.out.println("Invalid port: " + operands.get(1));
+            return;
+        }
+        AdventureEngine engine = AdventureEngine.load(storyFile);
+        if (engine == null) {
+            return;
+        }
+        engine.settings(settings);
+        ReplayLog.Writer writer = null;
+        if (replayFile != null) {
+            try {
+                writer = new ReplayLog.Writer(replayFile);
+            } catch (IOException e) {
+                System.out.println("Error writing file: " + replayFile);
+                return;
+            }
+            ReplayLog.Writer replays = writer;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    replays.close();
+                } catch (IOException e) {
+                    System.out.println("Error writing file: " + e.getMessage());
+                }
+            }));
+        }
+        try {
+            GameServer server = new GameServer(engine, port, null).recordReplays(writer).start();
+            System.out.println("Serving " + storyFile + " on port " + server.port());
+        } catch (IOException e) {
+            System.out.println("Error listening on port " + port + ": " + e.getMessage());
+            return;
+        }
+        if (watch) {
+            try {
+                new StoryWatcher(engine).start();
+                System.out.println("Reloading " + storyFile + " when it changes");
+            } catch (IOException e) {
+                System.out.println("Error watching file: " + e.getMessage());
+            }
+        }
+    }
+}
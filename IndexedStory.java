@@ -0,0 +1,541 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, IndexedStory.java
+// This File: IndexedStory.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A story whose room descriptions stay in the story file until they are displayed. The file is
+ * memory-mapped and scanned once: room ids, titles and transitions are parsed into compact
+ * arrays, but of each description only the position of its lines in the file is kept. A
+ * description is decoded from the mapped file the first time it is asked for, and kept in a
+ * bounded cache of soft references, so the garbage collector can reclaim descriptions when memory
+ * runs low. The weight tables of weighted rooms are built when first asked for and kept the same
+ * way, in a cache of the same size.
+ *
+ * Descriptions are most of the text of a story, and a playthrough only displays a few of them, so
+ * an IndexedStory needs a fraction of the heap of a StoryGraph of the same story. The lines are
+ * parsed by a StoryParser, so the story and its parse errors are the same as those of parseFile.
+ *
+ * The file must not be changed in place while the story is in use, since its descriptions are
+ * read from the mapping. Editors that replace the file, and StoryWatcher, which publishes a
+ * StoryGraph, are safe. Like ParallelStoryParser, the file must be in a charset that
+ * ParallelStoryParser.splittable accepts, and smaller than 2 GB.
+ *
+ * @author Benjamin Tarmann
+ */
+public class IndexedStory implements Story {
+    private final ByteBuffer buf; // the mapped story file
+    private final Charset charset; // the charset of the file
+    private final int roomCount; // the number of rooms
+    private final String[] ids; // room id per room
+    private final String[] titles; // room title per room
+    private final int[] descStart; // the position of the first description line per room
+    private final int[] descEnd; // the position of the ";;;" line per room
+    private final int[] tranStart; // CSR row offsets, one per room plus one
+    private final int[] tranTarget; // destination room index per transition, -1 if none
+    private final String[] tranDesc; // description per transition
+    private final String[] tranRoomId; // destination room id per transition
+    private final String[] tranWeight; // weight per transition, null if none
+    private final int[] slots; // open addressing hash table of room indexes, -1 if empty
+    private final LinkedHashMap<Integer, SoftReference<String>> descriptions; // decoded, LRU
+    private final LinkedHashMap<Integer, SoftReference<WeightTable>> weights; // built, LRU
+
+    /**
+     * Scans a story file. Use open to create instances.
+     */
+    private IndexedStory(ByteBuffer buf, Charset charset, Scan scan, int cacheSize) {
+        this.buf = buf;
+        this.charset = charset;
+        this.roomCount = scan.rooms;
+        this.ids = Arrays.copyOf(scan.ids, roomCount);
+        this.titles = Arrays.copyOf(scan.titles, roomCount);
+        this.descStart = Arrays.copyOf(scan.descStart, roomCount);
+        this.descEnd = Arrays.copyOf(scan.descEnd, roomCount);
+        this.tranStart = Arrays.copyOf(scan.tranStart, roomCount + 1);
+        this.tranStart[roomCount] = scan.trans;
+        this.tranDesc = Arrays.copyOf(scan.tranDesc, scan.trans);
+        this.tranWeight = Arrays.copyOf(scan.tranWeight, scan.trans);
+        this.tranRoomId = Arrays.copyOf(scan.tranRoomId, scan.trans);
+        this.tranTarget = new int[scan.trans];
+
+        int numSlots = Integer.highestOneBit(Math.max(1, roomCount) * 2) * 2;
+        slots = new int[numSlots];
+        Arrays.fill(slots, -1);
+        for (int r = 0; r < roomCount; r++) {
+            int slot = ids[r].hashCode() & (numSlots - 1);
+            while (slots[slot] != -1) {
+                if (ids[slots[slot]].equals(ids[r])) {
+                    break; // the first room with a given id wins, as in StoryGraph
+                }
+                slot = (slot + 1) & (numSlots - 1);
+            }
+            if (slots[slot] == -1) {
+                slots[slot] = r;
+            }
+        }
+        for (int t = 0; t < scan.trans; t++) {
+            tranTarget[t] = indexOf(tranRoomId[t]);
+            if (tranTarget[t] != -1) {
+                tranRoomId[t] = ids[tranTarget[t]]; // shares the String of the room id
+            }
+        }
+
+        this.descriptions = softCache(cacheSize);
+        this.weights = softCache(cacheSize);
+    }
+
+    /**
+     * Creates a map of soft references by room that keeps the most recently used maxSize rooms.
+     * It must be used while holding its lock.
+     */
+    private static <T> LinkedHashMap<Integer, SoftReference<T>> softCache(int maxSize) {
+        return new LinkedHashMap<Integer, SoftReference<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, SoftReference<T>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Opens a story file, keeping at most Config.DESCRIPTION_CACHE_SIZE decoded descriptions and
+     * as many weight tables.
+     * Parse errors are printed to System.out as described by AdventureStory.parseFile.
+     *
+     * @param fName The name of the story file.
+     * @return The story, or null if the file has a parse error.
+     * @throws IOException If the file cannot be read, is not a story file or is too large.
+     */
+    public static IndexedStory open(String fName) throws IOException {
+        return open(fName, Config.DESCRIPTION_CACHE_SIZE);
+    }
+
+    /**
+     * Opens a story file. Parse errors are printed to System.out as described by
+     * AdventureStory.parseFile.
+     *
+     * @param fName The name of the story file.
+     * @param cacheSize The maximum number of decoded descriptions, and of weight tables, to keep.
+     * @return The story, or null if the file has a parse error.
+     * @throws IOException If the file cannot be read, is not a story file or is too large.
+     */
+    public static IndexedStory open(String fName, int cacheSize) throws IOException {
+        if (!ParallelStoryParser.splittable()) {
+            throw new IOException("Unsupported charset: " + Charset.defaultCharset());
+        }
+        try (FileChannel ch = FileChannel.open(new File(fName).toPath())) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Story file larger than 2 GB: " + fName);
+            }
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            Scan scan = new Scan(buf, Charset.defaultCharset());
+            if (!scan.magic()) {
+                throw new IOException("Not a story file: " + fName);
+            }
+            if (!scan.run()) {
+                return null;
+            }
+            return new IndexedStory(buf, Charset.defaultCharset(), scan, cacheSize);
+        }
+    }
+
+    /**
+     * The single pass over a story file. Every line but the description lines is handed to a
+     * StoryParser, whose rooms and transitions are moved into growing arrays as they are parsed.
+     */
+    private static class Scan {
+        private final ByteBuffer buf; // the mapped story file
+        private final Charset charset; // the charset of the file
+        private final ArrayList<String[]> parsedRooms = new ArrayList<String[]>();
+        private final ArrayList<ArrayList<String[]>> parsedTrans =
+            new ArrayList<ArrayList<String[]>>();
+        private final StoryParser parser = new StoryParser(parsedRooms, parsedTrans, false);
+        private final HashMap<String, String> weightStrings = new HashMap<String, String>();
+        private char[] line = new char[256]; // the decoded current line
+        private int pos; // the start of the next line
+        private int rooms; // the number of rooms scanned
+        private int roomLists; // the number of transition lists scanned
+        private int trans; // the number of transitions scanned
+        private String[] ids = new String[1024];
+        private String[] titles = new String[1024];
+        private int[] descStart = new int[1024];
+        private int[] descEnd = new int[1024];
+        private int[] tranStart = new int[1025];
+        private String[] tranDesc = new String[4096];
+        private String[] tranRoomId = new String[4096];
+        private String[] tranWeight = new String[4096];
+
+        private Scan(ByteBuffer buf, Charset charset) {
+            this.buf = buf;
+            this.charset = charset;
+        }
+
+        /**
+         * Reads the first line and checks that it is Config.MAGIC_STORY.
+         */
+        private boolean magic() {
+            int end = lineEnd(0);
+            pos = next(end);
+            return decode(0, end).trim().equals(Config.MAGIC_STORY);
+        }
+
+        /**
+         * Scans the lines after the first line.
+         *
+         * @return false if there is a parse error, which is printed.
+         */
+        private boolean run() {
+            int size = buf.limit();
+            int lineNo = 0; // the number of the current line, not counting the first line
+            int description = -1; // the start of the description of the current room, if any
+            while (pos < size) {
+                int start = pos;
+                int end = lineEnd(start);
+                pos = next(end);
+                lineNo++;
+                int first = start;
+                while (first < end && (buf.get(first) & 0xff) <= ' ') {
+                    first++;
+                }
+                int last = end;
+                while (last > first && (buf.get(last - 1) & 0xff) <= ' ') {
+                    last--;
+                }
+                boolean separator = last - first == 3 && buf.get(first) == ';'
+                    && buf.get(first + 1) == ';' && buf.get(first + 2) == ';';
+                if (description != -1 && !separator) {
+                    continue; // a description line, read when the description is displayed
+                }
+                if (description != -1 && description != start) {
+                    descStart[rooms - 1] = description;
+                    descEnd[rooms - 1] = start;
+                }
+                description = -1;
+                boolean roomLine = first < end && buf.get(first) == 'R' && !separator;
+                if (roomLine) {
+                    collectTransitions();
+                }
+
+                int length = decodeLine(start, end);
+                if (!parser.parseLine(line, 0, length)) {
+                    System.out.print("Error parsing file on line: " + lineNo + ": "
+                        + parser.errorText());
+                    return false;
+                }
+                if (!parsedRooms.isEmpty()) {
+                    collectRooms();
+                    description = pos;
+                }
+            }
+            collectTransitions();
+            if (rooms < 1 || roomLists < 1 || rooms != roomLists) {
+                System.out.print("Error parsing file: rooms or transitions not properly parsed.");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Moves the room the parser has just parsed into the arrays.
+         */
+        private void collectRooms() {
+            for (String[] room : parsedRooms) {
+                if (rooms == ids.length) {
+                    int length = rooms * 2;
+                    ids = Arrays.copyOf(ids, length);
+                    titles = Arrays.copyOf(titles, length);
+                    descStart = Arrays.copyOf(descStart, length);
+                    descEnd = Arrays.copyOf(descEnd, length);
+                }
+                ids[rooms] = room[Config.ROOM_ID];
+                titles[rooms] = room[Config.ROOM_TITLE];
+                descStart[rooms] = -1;
+                descEnd[rooms] = -1;
+                rooms++;
+            }
+            parsedRooms.clear();
+        }
+
+        /**
+         * Moves the transitions the parser has parsed so far into the arrays. The parser adds
+         * transitions to the last list it created, so this is only done before a room line.
+         */
+        private void collectTransitions() {
+            for (ArrayList<String[]> list : parsedTrans) {
+                if (roomLists + 1 == tranStart.length) {
+                    tranStart = Arrays.copyOf(tranStart, tranStart.length * 2);
+                }
+                tranStart[roomLists++] = trans;
+                for (String[] tran : list) {
+                    if (trans == tranDesc.length) {
+                        int length = trans * 2;
+                        tranDesc = Arrays.copyOf(tranDesc, length);
+                        tranRoomId = Arrays.copyOf(tranRoomId, length);
+                        tranWeight = Arrays.copyOf(tranWeight, length);
+                    }
+                    String desc = tran[Config.TRAN_DESC];
+                    tranDesc[trans] = desc.isEmpty() ? "" : desc; // weighted ones are often empty
+                    tranRoomId[trans] = tran[Config.TRAN_ROOM_ID];
+                    String weight = tran[Config.TRAN_PROB];
+                    if (weight != null) {
+                        String shared = weightStrings.putIfAbsent(weight, weight);
+                        weight = shared != null ? shared : weight;
+                    }
+                    tranWeight[trans++] = weight;
+                }
+            }
+            parsedTrans.clear();
+        }
+
+        /**
+         * Decodes a line into the line array.
+         *
+         * @return The number of characters of the line.
+         */
+        private int decodeLine(int start, int end) {
+            boolean ascii = true;
+            for (int i = start; i < end && ascii; i++) {
+                ascii = buf.get(i) >= 0;
+            }
+            if (ascii) {
+                if (line.length < end - start) {
+                    line = new char[end - start];
+                }
+                for (int i = start; i < end; i++) {
+                    line[i - start] = (char) buf.get(i);
+                }
+                return end - start;
+            }
+            String decoded = decode(start, end);
+            if (line.length < decoded.length()) {
+                line = new char[decoded.length()];
+            }
+            decoded.getChars(0, decoded.length(), line, 0);
+            return decoded.length();
+        }
+
+        /**
+         * Decodes a range of the file.
+         */
+        private String decode(int start, int end) {
+            return charset.decode(buf.slice(start, end - start)).toString();
+        }
+
+        /**
+         * Returns the end of the line starting at start, excluding its line separator.
+         */
+        private int lineEnd(int start) {
+            int size = buf.limit();
+            int i = start;
+            while (i < size && LineReader.separatorLength(buf, i, charset) == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Returns the start of the line after a line ending at end.
+         */
+        private int next(int end) {
+            if (end >= buf.limit()) {
+                return end;
+            }
+            int length = LineReader.separatorLength(buf, end, charset);
+            if (buf.get(end) == '\r' && end + 1 < buf.limit() && buf.get(end + 1) == '\n') {
+                length = 2;
+            }
+            return end + length;
+        }
+    }
+
+    /**
+     * Decodes the description of a room from the file: its lines with leading and trailing
+     * whitespace removed, separated by '\n', as StoryParser stores them.
+     */
+    private String readDescription(int room) {
+        CharBuffer chars = charset.decode(buf.slice(descStart[room], descEnd[room]
+            - descStart[room]));
+        StringBuilder sb = new StringBuilder(chars.length());
+        int lines = 0;
+        int start = 0;
+        int length = chars.length();
+        while (start < length) {
+            int end = start;
+            char c = 0;
+            while (end < length) {
+                c = chars.get(end);
+                if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+                    break;
+                }
+                end++;
+            }
+            int first = start;
+            while (first < end && chars.get(first) <= ' ') {
+                first++;
+            }
+            int last = end;
+            while (last > first && chars.get(last - 1) <= ' ') {
+                last--;
+            }
+            if (lines++ > 0) {
+                sb.append('\n');
+            }
+            sb.append(chars, first, last);
+            start = end + 1;
+            if (c == '\r' && start < length && chars.get(start) == '\n') {
+                start++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of descriptions decoded and still cached.
+     *
+     * @return The number of cached descriptions.
+     */
+    public int cachedDescriptions() {
+        synchronized (descriptions) {
+            return descriptions.size();
+        }
+    }
+
+    @Override
+    public int size() {
+        return roomCount;
+    }
+
+    @Override
+    public int indexOf(String id) {
+        if (id == null) {
+            return -1;
+        }
+        int slot = id.hashCode() & (slots.length - 1);
+        while (slots[slot] != -1) {
+            if (ids[slots[slot]].equals(id)) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public String id(int room) {
+        return ids[room];
+    }
+
+    @Override
+    public String title(int room) {
+        return titles[room];
+    }
+
+    @Override
+    public String description(int room) {
+        if (descStart[room] == -1) {
+            return null;
+        }
+        SoftReference<String> ref;
+        synchronized (descriptions) {
+            ref = descriptions.get(room);
+        }
+        String description = ref == null ? null : ref.get();
+        if (description == null) {
+            description = readDescription(room);
+            synchronized (descriptions) {
+                descriptions.put(room, new SoftReference<String>(description));
+            }
+        }
+        return description;
+    }
+
+    @Override
+    public int transitionStart(int room) {
+        return tranStart[room];
+    }
+
+    @Override
+    public int transitionEnd(int room) {
+        return tranStart[room + 1];
+    }
+
+    @Override
+    public int target(int tran) {
+        return tranTarget[tran];
+    }
+
+    @Override
+    public String transitionDescription(int tran) {
+        return tranDesc[tran];
+    }
+
+    @Override
+    public String transitionRoomId(int tran) {
+        return tranRoomId[tran];
+    }
+
+    @Override
+    public String transitionWeight(int tran) {
+        return tranWeight[tran];
+    }
+
+    @Override
+    public WeightTable weights(int room) {
+        int start = tranStart[room];
+        int end = tranStart[room + 1];
+        if (end == start || tranWeight[start] == null) {
+            return WeightTable.NONE;
+        }
+        SoftReference<WeightTable> ref;
+        synchronized (weights) {
+            ref = weights.get(room);
+        }
+        WeightTable table = ref == null ? null : ref.get();
+        if (table == null) {
+            ArrayList<String[]> curTrans = new ArrayList<String[]>(end - start);
+            for (int t = start; t < end; t++) {
+                String[] tran = new String[Config.TRAN_DET_LEN];
+                tran[Config.TRAN_ROOM_ID] = tranRoomId[t];
+                tran[Config.TRAN_PROB] = tranWeight[t];
+                curTrans.add(tran);
+            }
+            table = WeightTable.build(curTrans);
+            synchronized (weights) {
+                weights.put(room, new SoftReference<WeightTable>(table));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the number of weight tables built and still cached.
+     *
+     * @return The number of cached weight tables.
+     */
+    public int cachedWeights() {
+        synchronized (weights) {
+            return weights.size();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, LatencyHistogram.java
+// This File: LatencyHistogram.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, in the manner of an HDR histogram: each power
+ * of two is split into SUB_BUCKETS buckets of equal width, so any value is counted in a bucket
+ * less than 1/SUB_BUCKETS of the value wide, from 1 ns to the largest long, in a fixed array of
+ * counters. Recording a value increments one counter and adds to a LongAdder, so threads never
+ * wait for each other.
+ *
+ * Percentiles are read from the counters while values are still being recorded, so they are
+ * approximate in two ways: within the width of a bucket, and by the values recorded during the
+ * read.
+ *
+ * @author Benjamin Tarmann
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3; // log2 of the buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // the buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS; // enough for any long
+
+    private final String name; // the name the histogram is reported under
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS); // values per bucket
+    private final LongAdder total = new LongAdder(); // the sum of the values
+    private final AtomicLong max = new AtomicLong(); // the largest value
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param name The name the histogram is reported under.
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the histogram.
+     *
+     * @return The name.
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds. Negative durations are counted as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Records the time since a start time taken by Metrics.start or Metrics.sample, if
+     * Metrics.ENABLED is set. The time returned can start the next step, so consecutive steps
+     * read the clock once each. A start time of 0, from a step Metrics.sample did not sample, is
+     * not recorded, so the steps after it are not either.
+     *
+     * @param startNanos The start time.
+     * @return The time the step ended, or 0 if Metrics.ENABLED is not set or startNanos is 0.
+     */
+    public long stop(long startNanos) {
+        if (Metrics.ENABLED && startNanos != 0) {
+            long now = System.nanoTime();
+            record(now - startNanos);
+            return now;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the bucket of a value: values below SUB_BUCKETS have their own bucket, and larger
+     * values are bucketed by their highest bit and the SUB_BITS bits below it.
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the smallest value of a bucket.
+     */
+    private static long lowest(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return The count.
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     *
+     * @return The mean in nanoseconds, or 0 if there are none.
+     */
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : total.sum() / (double) count;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return The largest value in nanoseconds, or 0 if there are none.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns a percentile of the values recorded, as the smallest value of the bucket it falls
+     * in, so the result is at most 1/SUB_BUCKETS below the exact percentile.
+     *
+     * @param percent The percentile, from 0 to 100.
+     * @return The percentile in nanoseconds, or 0 if there are no values.
+     */
+    public long percentile(double percent) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percent) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return lowest(i);
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Removes every value recorded. Values recorded during the reset may be kept in part.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.set(0);
+    }
+
+    /**
+     * Returns a summary of the histogram, such as "displayRoom: count 12, mean 4.1 us, p50 3.8 us,
+     * p99 9.0 us, max 9.2 us".
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("%s: count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+            name, count(), mean() / 1e3, percentile(50) / 1e3, percentile(99) / 1e3,
+            max() / 1e3);
+    }
+}
@@ -0,0 +1,329 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, LineReader.java
+// This File: LineReader.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads lines from a channel in a single pass without a Scanner. Bytes are read into one reusable
+ * ByteBuffer and decoded into one reusable char array, and each line is handed out as a range of
+ * that array, so no String is created unless the caller makes one. Lines can also be read from a
+ * Reader, whose characters are read straight into the array.
+ *
+ * Each read takes as much input as is available, so the lines of input that arrives in a batch,
+ * such as the commands a script pipes to the prompts, are split from one read, and
+ * hasBufferedLine tells whether the next line can be returned without waiting for more input.
+ *
+ * Lines are split the same way Scanner.nextLine splits them: on "\r\n", '\n', '\r', '\u2028',
+ * '\u2029' or '\u0085'. The text after the last line separator is only a line if it is not empty.
+ *
+ * @author Benjamin Tarmann
+ */
+public class LineReader {
+    /**
+     * The value firstInt returns for a line that does not start with an int
+     */
+    public static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    private final ReadableByteChannel channel; // the source of the bytes, or null
+    private final CharsetDecoder decoder; // decodes the bytes into buf
+    private final ByteBuffer bytes; // bytes read from channel, not yet decoded
+    private final Reader reader; // the source of the characters if channel is null
+    private char[] buf = new char[8192]; // decoded characters
+    private int pos; // the start of the characters not yet returned in a line
+    private int limit; // the end of the decoded characters
+    private boolean inputDone; // true once channel has no more bytes
+    private boolean eof; // true once every byte has been decoded
+    private int lineStart; // the start of the current line in buf
+    private int lineEnd; // the end (exclusive) of the current line in buf
+    private int numLines; // the number of lines read
+
+    /**
+     * Creates a reader of the lines of a channel.
+     *
+     * @param channel The channel to read from.
+     * @param charset The character set of the bytes in the channel.
+     */
+    public LineReader(ReadableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocateDirect(65536);
+        this.reader = null;
+    }
+
+    /**
+     * Creates a reader of the lines of a Reader.
+     *
+     * @param reader The Reader to read from.
+     */
+    public LineReader(Reader reader) {
+        this.channel = null;
+        this.decoder = null;
+        this.bytes = null;
+        this.reader = reader;
+    }
+
+    /**
+     * Advances to the next line.
+     *
+     * @return true if there is a next line, false at the end of the channel.
+     * @throws IOException If the channel cannot be read.
+     */
+    public boolean nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                char c = buf[i];
+                if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+                    if (c == '\r' && i + 1 == limit && !eof) {
+                        scan = i; // a '\n' may follow in the next read
+                        break;
+                    }
+                    lineStart = pos;
+                    lineEnd = i;
+                    pos = i + 1;
+                    if (c == '\r' && pos < limit && buf[pos] == '\n') {
+                        pos++;
+                    }
+                    numLines++;
+                    return true;
+                }
+                scan = i + 1;
+            }
+
+            if (eof) {
+                if (pos < limit) {
+                    lineStart = pos;
+                    lineEnd = limit;
+                    pos = limit;
+                    numLines++;
+                    return true;
+                }
+                return false;
+            }
+            scan -= pos;
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unreturned characters to the front of buf, growing it if it is mostly full, and
+     * decodes more bytes from the channel after them.
+     *
+     * @throws IOException If the channel cannot be read.
+     */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (buf.length - limit < buf.length / 4) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+
+        if (reader != null) {
+            int read = reader.read(buf, limit, buf.length - limit);
+            if (read == -1) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+            return;
+        }
+
+        CharBuffer out = CharBuffer.wrap(buf, limit, buf.length - limit);
+        while (out.position() == limit && !eof) {
+            if (!inputDone && channel.read(bytes) == -1) {
+                inputDone = true;
+            }
+            bytes.flip();
+            CoderResult result = decoder.decode(bytes, out, inputDone);
+            if (inputDone && !result.isOverflow()) {
+                result = decoder.flush(out);
+                eof = !result.isOverflow();
+            }
+            bytes.compact();
+            if (result.isOverflow()) {
+                break;
+            }
+        }
+        limit = out.position();
+    }
+
+    /**
+     * Returns the array holding the current line. The array is reused, and its contents are only
+     * valid until the next call to nextLine.
+     *
+     * @return The character buffer.
+     */
+    public char[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Returns the start of the current line in buffer().
+     *
+     * @return The index of the first character of the line.
+     */
+    public int start() {
+        return lineStart;
+    }
+
+    /**
+     * Returns the end of the current line in buffer().
+     *
+     * @return The index one past the last character of the line, excluding the line separator.
+     */
+    public int end() {
+        return lineEnd;
+    }
+
+    /**
+     * Returns the current line as a String with leading and trailing whitespace removed.
+     *
+     * @return The trimmed line.
+     */
+    public String trimmedLine() {
+        return new String(buf, lineStart, lineEnd - lineStart).trim();
+    }
+
+    /**
+     * Returns whether the current line holds only whitespace.
+     *
+     * @return true if the line is empty or all whitespace.
+     */
+    public boolean blank() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (!Character.isWhitespace(buf[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first non-whitespace character of the current line, converted to lower case.
+     *
+     * @return The character, or the null character if the line is blank.
+     */
+    public char firstChar() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buf[i] > ' ') { // the characters String.trim removes
+                return Character.toLowerCase(buf[i]);
+            }
+        }
+        return '\0';
+    }
+
+    /**
+     * Parses the first whitespace-separated token of the current line as an int, the way
+     * Scanner.nextInt parses a token without grouping separators: an optional '+' or '-'
+     * followed by decimal digits. The rest of the line is ignored. No objects are created.
+     *
+     * @return The int, or NOT_AN_INT if the line is blank, the token is not an int or it is out of
+     *         the range of an int.
+     */
+    public long firstInt() {
+        int i = lineStart;
+        while (i < lineEnd && Character.isWhitespace(buf[i])) {
+            i++;
+        }
+        boolean negative = i < lineEnd && buf[i] == '-';
+        if (i < lineEnd && (buf[i] == '-' || buf[i] == '+')) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < lineEnd && !Character.isWhitespace(buf[i]); i++, digits++) {
+            int digit = Character.digit(buf[i], 10);
+            if (digit == -1) {
+                return NOT_AN_INT;
+            }
+            value = value * 10 + digit;
+            if (value > 1L + Integer.MAX_VALUE) {
+                return NOT_AN_INT;
+            }
+        }
+        if (digits == 0) {
+            return NOT_AN_INT;
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? NOT_AN_INT : value;
+    }
+
+    /**
+     * Returns whether a whole line has already been read after the current one, so that
+     * nextLine returns without waiting for more input.
+     *
+     * @return true if a line separator follows the current line in the characters read.
+     */
+    public boolean hasBufferedLine() {
+        for (int i = pos; i < limit; i++) {
+            char c = buf[i];
+            if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+                return true;
+            }
+        }
+        return eof && pos < limit;
+    }
+
+    /**
+     * Returns the number of bytes of the line separator at a position of encoded text, or 0 if
+     * there is none. The separators are those lines are split on: '\n', '\r', '\u2028',
+     * '\u2029' and '\u0085'. "\r\n" counts as a '\r' alone.
+     *
+     * @param buf The encoded text.
+     * @param i The position in buf.
+     * @param charset The character set of buf: UTF-8, ISO-8859-1 or US-ASCII.
+     * @return The length of the separator in bytes.
+     */
+    public static int separatorLength(ByteBuffer buf, int i, Charset charset) {
+        byte b = buf.get(i);
+        if (b == '\n' || b == '\r') {
+            return 1;
+        }
+        if (b >= 0 || charset.equals(StandardCharsets.US_ASCII)) {
+            return 0;
+        }
+        if (charset.equals(StandardCharsets.ISO_8859_1)) {
+            return (b & 0xff) == 0x85 ? 1 : 0;
+        }
+        int size = buf.limit();
+        if ((b & 0xff) == 0xc2 && i + 1 < size && (buf.get(i + 1) & 0xff) == 0x85) {
+            return 2;
+        }
+        if ((b & 0xff) == 0xe2 && i + 2 < size && (buf.get(i + 1) & 0xff) == 0x80
+            && ((buf.get(i + 2) & 0xff) == 0xa8 || (buf.get(i + 2) & 0xff) == 0xa9)) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of lines read so far.
+     *
+     * @return The number of calls to nextLine that returned true.
+     */
+    public int lineNumber() {
+        return numLines;
+    }
+}
@@ -0,0 +1,305 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, LoadGenerator.java
+// This File: LoadGenerator.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Drives a GameServer with simulated players over loopback and measures how it holds up. Every
+ * client connects, plays a number of sessions choosing transitions at random, and answers the
+ * try again prompt until its sessions are done. The time from sending a choice to receiving the
+ * next prompt is recorded as the latency of that step.
+ *
+ * Usage: java LoadGenerator storyFile [clients] [sessionsPerClient]
+ *
+ * @author Benjamin Tarmann
+ */
+public class LoadGenerator {
+    private static final String CHOOSE = "Choose: "; // prompt for a transition
+    private static final String QUIT = "Are you sure you want to quit the adventure? ";
+    private static final String AGAIN = "Do you want to try again? "; // prompt after a story
+    private static final int MAX_STEPS = 1000; // choices per session before the client quits
+
+    /**
+     * The results of a load run.
+     */
+    public static class Report {
+        public final int clients; // the number of simulated players
+        public final long sessions; // the number of stories played to the end
+        public final long steps; // the number of choices sent
+        public final long nanos; // the duration of the run
+        public final long p50Nanos; // the median step latency
+        public final long p99Nanos; // the 99th percentile step latency
+
+        private Report(int clients, long sessions, long nanos, long[] latencies) {
+            Arrays.sort(latencies);
+            this.clients = clients;
+            this.sessions = sessions;
+            this.steps = latencies.length;
+            this.nanos = nanos;
+            this.p50Nanos = percentile(latencies, 50);
+            this.p99Nanos = percentile(latencies, 99);
+        }
+
+        /**
+         * Returns the number of sessions played per second.
+         *
+         * @return The session throughput.
+         */
+        public double sessionsPerSecond() {
+            return nanos == 0 ? 0 : sessions * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("clients: %d, sessions: %d in %.3f s (%.1f sessions/s)%n"
+                + "steps: %d, p50 step latency: %.1f us, p99 step latency: %.1f us", clients,
+                sessions, nanos / 1e9, sessionsPerSecond(), steps, p50Nanos / 1e3, p99Nanos / 1e3);
+        }
+    }
+
+    /**
+     * Returns a percentile of sorted values.
+     *
+     * @param sorted The values in ascending order.
+     * @param p The percentile, from 0 to 100.
+     * @return The value at the percentile, or 0 if there are no values.
+     */
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(sorted.length * (p / 100.0)) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    /**
+     * Serves a story on a loopback port and plays it with simulated clients.
+     *
+     * @param engine The engine hosting the story.
+     * @param clients The number of clients connected at the same time.
+     * @param sessionsPerClient The number of stories each client plays.
+     * @param seed The seed of the clients' choices.
+     * @return The results of the run.
+     * @throws IOException If the server or a client fails.
+     */
+    public static Report run(AdventureEngine engine, int clients, int sessionsPerClient, long seed)
+        throws IOException {
+        try (GameServer server =
+            new GameServer(engine, 0, InetAddress.getLoopbackAddress()).start()) {
+            ExecutorService players = GameServer.newPlayerExecutor();
+            try {
+                List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+                long start = System.nanoTime();
+                for (int c = 0; c < clients; c++) {
+                    Random rand = new Random(seed + c);
+                    results.add(players.submit(
+                        () -> playClient(server.port(), sessionsPerClient, rand)));
+                }
+                long[][] latencies = new long[clients][];
+                int steps = 0;
+                for (int c = 0; c < clients; c++) {
+                    latencies[c] = results.get(c).get();
+                    steps += latencies[c].length;
+                }
+                long nanos = System.nanoTime() - start;
+
+                long[] all = new long[steps];
+                int n = 0;
+                for (long[] client : latencies) {
+                    System.arraycopy(client, 0, all, n, client.length);
+                    n += client.length;
+                }
+                return new Report(clients, (long) clients * sessionsPerClient, nanos, all);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Client failed", e.getCause());
+            } finally {
+                players.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Plays sessions as one client and returns the latencies of its steps.
+     *
+     * @param port The loopback port of the server.
+     * @param sessions The number of stories to play.
+     * @param rand The source of the client's choices.
+     * @return The latency of each choice sent, in nanoseconds.
+     * @throws IOException If the connection fails or ends early.
+     */
+    private static long[] playClient(int port, int sessions, Random rand) throws IOException {
+        long[] latencies = new long[64];
+        int count = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            Reader in = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            StringBuilder text = new StringBuilder(4096);
+
+            int played = 0;
+            int steps = 0;
+            String prompt = readPrompt(in, text);
+            if (prompt == null) {
+                throw new IOException("Connection closed before the first prompt");
+            }
+            while (true) {
+                String answer;
+                if (prompt == CHOOSE) {
+                    int choices = countChoices(text);
+                    answer = steps++ >= MAX_STEPS || choices == 0 ? "-1"
+                        : Integer.toString(rand.nextInt(choices));
+                } else if (prompt == QUIT) {
+                    answer = "y";
+                } else {
+                    played++;
+                    steps = 0;
+                    answer = played < sessions ? "y" : "n";
+                }
+
+                boolean step = prompt == CHOOSE;
+                long sent = System.nanoTime();
+                out.write(answer);
+                out.write('\n');
+                out.flush();
+                text.setLength(0);
+                prompt = readPrompt(in, text);
+                if (step) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - sent;
+                }
+                if (prompt == null) {
+                    if (played < sessions) {
+                        throw new IOException("Connection closed after " + played + " sessions");
+                    }
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    /**
+     * Reads the game's output until it ends with a prompt or the connection is closed.
+     *
+     * @param in The connection's input.
+     * @param text The StringBuilder the output is appended to.
+     * @return CHOOSE, QUIT or AGAIN, or null if the connection was closed.
+     * @throws IOException If the connection fails.
+     */
+    private static String readPrompt(Reader in, StringBuilder text) throws IOException {
+        int c;
+        while ((c = in.read()) != -1) {
+            text.append((char) c);
+            if (c != ' ') {
+                continue;
+            }
+            if (endsWith(text, CHOOSE)) {
+                return CHOOSE;
+            } else if (endsWith(text, AGAIN)) {
+                return AGAIN;
+            } else if (endsWith(text, QUIT)) {
+                return QUIT;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a StringBuilder ends with a suffix.
+     */
+    private static boolean endsWith(StringBuilder text, String suffix) {
+        int offset = text.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (text.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the transitions listed before a Choose prompt, the lines that start with "0) ",
+     * "1) " and so on.
+     *
+     * @param text The output read since the previous answer.
+     * @return The number of transitions listed.
+     */
+    private static int countChoices(StringBuilder text) {
+        int choices = 0;
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            String next = choices + ") ";
+            if (text.length() - lineStart >= next.length()
+                && text.substring(lineStart, lineStart + next.length()).equals(next)) {
+                choices++;
+            }
+            int lineEnd = text.indexOf("\n", lineStart);
+            if (lineEnd == -1) {
+                break;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return choices;
+    }
+
+    /**
+     * Serves a story on loopback, plays it with simulated clients and prints the results.
+     *
+     * @param args The story filename, the number of clients (100 by default) and the number of
+     *             sessions per client (20 by default).
+     */
+    public static void main(String[] args) {
+        int clients;
+        int sessions;
+        try {
+            clients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+            sessions = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        } catch (NumberFormatException e) {
+            clients = -1;
+            sessions = -1;
+        }
+        if (args.length < 1 || clients < 1 || sessions < 1) {
+            System.out.println("Usage: java LoadGenerator storyFile [clients] [sessionsPerClient]");
+            return;
+        }
+        AdventureEngine engine = AdventureEngine.load(args[0]);
+        if (engine == null) {
+            return;
+        }
+        try {
+            System.out.println(run(engine, clients, sessions, Config.SEED));
+        } catch (IOException e) {
+            System.out.println("Load run failed: " + e.getMessage());
+        }
+    }
+}
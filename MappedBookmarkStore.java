@@ -0,0 +1,488 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, MappedBookmarkStore.java
+// This File: MappedBookmarkStore.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps millions of bookmarks in one memory-mapped file of fixed-size records, instead of a file
+ * per bookmark. A save writes a few ints into the mapped file, and commit forces every save since
+ * the last commit to the disk at once.
+ *
+ * Session ids, story filenames and room ids are stored once each in a second file, the string
+ * table, named after the store with ".strings" appended, and records refer to them by their int
+ * index. The record of a session holds the index of its id and two halves, each holding a
+ * sequence number, the story and room indexes and a checksum. A save writes the half that was not
+ * made durable by the last commit, with the next sequence number, so a crash in the middle of a
+ * write leaves the other half, the last committed bookmark, intact, however often the session is
+ * saved between commits. When the store is opened, the valid half with the higher sequence number
+ * is current. The checksum covers the Strings the indexes refer to, so a record
+ * that reached the disk before the Strings it refers to is ignored.
+ *
+ * Commits are group commits: callers that commit while another commit is forcing the files wait
+ * for it, and return without forcing again if it covered their saves. The store is thread-safe.
+ * Records are 64 bytes, and the mapped file is limited to 2 GB, about 33 million sessions.
+ *
+ * @author Benjamin Tarmann
+ */
+public class MappedBookmarkStore implements BookmarkStore {
+    private static final int MAGIC = 0x424b4d50; // "BKMP", the first 4 bytes of a store
+    private static final int HEADER = 64; // the bytes before the first record
+    private static final int RECORD = 64; // the bytes of a record, so no record spans two pages
+    private static final int HALF = 16; // the offset of the first half in a record
+    private static final int REMOVED = -1; // the story index of a removed bookmark
+    private static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER) / RECORD;
+
+    private final FileChannel channel; // the record file
+    private final FileChannel stringChannel; // the string table file
+    private MappedByteBuffer map; // the records
+    private int capacity; // the number of records map holds
+    private int used; // the number of records given to sessions, including free ones
+    private final ArrayList<Integer> free = new ArrayList<Integer>(); // records with no session
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>(); // by session
+    private int[] seq = new int[0]; // the sequence number of the current half of each record
+    private byte[] half = new byte[0]; // the current half of each record, 0 or 1
+    private byte[] committed = new byte[0]; // the half of each record the last commit made durable
+    private boolean[] dirty = new boolean[0]; // whether a record was written since the last commit
+    private ArrayList<Integer> written = new ArrayList<Integer>(); // the dirty records
+    private final ArrayList<String> strings = new ArrayList<String>(); // the string table
+    private final HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+    private ByteArrayOutputStream pendingStrings = new ByteArrayOutputStream(); // not yet written
+    private long stringBytes; // the bytes written to the string table file
+    private int size; // the number of sessions with a bookmark
+    private long saves; // the number of saves and removals
+    private final Object commitLock = new Object(); // held by the commit forcing the files
+    private long durable; // the number of saves and removals made durable, guarded by commitLock
+    private long commits; // the number of commits that forced the files
+    private long groupedCommits; // the number of commits covered by another one
+    private final CRC32 crc = new CRC32(); // computes record checksums
+
+    /**
+     * Opens a store, creating its files if they do not exist.
+     *
+     * @param fName The name of the record file.
+     * @throws IOException If the files cannot be read or written, or are not a bookmark store.
+     */
+    public MappedBookmarkStore(String fName) throws IOException {
+        File file = new File(fName);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        stringChannel = FileChannel.open(new File(fName + ".strings").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            readStrings();
+            long bytes = channel.size();
+            if (bytes > (long) HEADER + (long) MAX_SLOTS * RECORD) {
+                throw new IOException("Bookmark store too large: " + fName);
+            }
+            map(Math.max(1024, (int) ((Math.max(0, bytes - HEADER)) / RECORD)));
+            if (bytes == 0 || (map.getInt(0) == 0 && map.getInt(4) == 0)) {
+                // a new store, or one whose header was never committed
+                map.putInt(0, MAGIC);
+                map.putInt(4, RECORD);
+            } else if (map.getInt(0) != MAGIC || map.getInt(4) != RECORD) {
+                throw new IOException("Not a bookmark store: " + fName);
+            }
+            readRecords((int) (Math.max(0, bytes - HEADER) / RECORD));
+        } catch (IOException e) {
+            channel.close();
+            stringChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the string table, and truncates it after the last whole String.
+     */
+    private void readStrings() throws IOException {
+        long size = stringChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("String table too large");
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining() && stringChannel.read(data, data.position()) > 0) {
+            // reads the whole table
+        }
+        data.flip();
+        CRC32 check = new CRC32();
+        while (data.remaining() >= 8) {
+            int start = data.position();
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                data.position(start);
+                break;
+            }
+            check.reset();
+            check.update(data.slice(data.position(), length));
+            if ((int) check.getValue() != checksum) {
+                data.position(start);
+                break;
+            }
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            stringIndex.putIfAbsent(s, strings.size());
+            strings.add(s);
+        }
+        stringBytes = data.position();
+        if (stringBytes < size) {
+            stringChannel.truncate(stringBytes); // drops a String left half written
+        }
+    }
+
+    /**
+     * Finds the current half of each record, and the sessions with a bookmark.
+     */
+    private void readRecords(int count) {
+        for (int slot = 0; slot < count; slot++) {
+            int session = map.getInt(offset(slot));
+            int best = -1;
+            for (int h = 0; h < 2; h++) {
+                if (valid(slot, h) && (best == -1 || map.getInt(offset(slot) + HALF + HALF * h)
+                    - map.getInt(offset(slot) + HALF + HALF * best) > 0)) {
+                    best = h;
+                }
+            }
+            if (best == -1 || slots.containsKey(strings.get(session))) {
+                free.add(slot);
+            } else {
+                slots.put(strings.get(session), slot);
+                half[slot] = (byte) best;
+                committed[slot] = (byte) best;
+                seq[slot] = map.getInt(offset(slot) + HALF + HALF * best);
+                if (map.getInt(offset(slot) + HALF + HALF * best + 4) != REMOVED) {
+                    size++;
+                }
+            }
+            used = slot + 1;
+        }
+        // the records after the last one in use were never written, as the file grew
+        while (!free.isEmpty() && free.get(free.size() - 1) == used - 1) {
+            free.remove(free.size() - 1);
+            used--;
+        }
+    }
+
+    /**
+     * Returns whether a half of a record refers to Strings in the table and has their checksum.
+     */
+    private boolean valid(int slot, int h) {
+        int at = offset(slot) + HALF + HALF * h;
+        int session = map.getInt(offset(slot));
+        int story = map.getInt(at + 4);
+        int room = map.getInt(at + 8);
+        if (session < 0 || session >= strings.size() || (story != REMOVED && (story < 0
+            || story >= strings.size() || room < 0 || room >= strings.size()))) {
+            return false;
+        }
+        return map.getInt(at + 12) == checksum(session, map.getInt(at), story, room);
+    }
+
+    /**
+     * Returns the checksum of a half: the CRC32 of its indexes, its sequence number and the
+     * hashes of the Strings it refers to.
+     */
+    private int checksum(int session, int sequence, int story, int room) {
+        ByteBuffer fields = ByteBuffer.allocate(28);
+        fields.putInt(session).putInt(sequence).putInt(story).putInt(room);
+        fields.putInt(strings.get(session).hashCode());
+        fields.putInt(story == REMOVED ? 0 : strings.get(story).hashCode());
+        fields.putInt(story == REMOVED ? 0 : strings.get(room).hashCode());
+        crc.reset();
+        crc.update(fields.array());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the offset of a record in the file.
+     */
+    private static int offset(int slot) {
+        return HEADER + slot * RECORD;
+    }
+
+    /**
+     * Maps the record file with room for the given number of records, growing it if needed.
+     */
+    private void map(int records) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, offset(records));
+        capacity = records;
+        seq = Arrays.copyOf(seq, records);
+        half = Arrays.copyOf(half, records);
+        committed = Arrays.copyOf(committed, records);
+        dirty = Arrays.copyOf(dirty, records);
+    }
+
+    /**
+     * Returns the index of a String in the table, adding it if it is not there.
+     */
+    private int intern(String s) {
+        Integer index = stringIndex.get(s);
+        if (index != null) {
+            return index;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        CRC32 check = new CRC32();
+        check.update(bytes);
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(bytes.length)
+            .putInt((int) check.getValue());
+        pendingStrings.write(header.array(), 0, 8);
+        pendingStrings.write(bytes, 0, bytes.length);
+        stringIndex.put(s, strings.size());
+        strings.add(s);
+        return strings.size() - 1;
+    }
+
+    /**
+     * Returns the record of a session, giving it one if it has none.
+     */
+    private int slot(String session) throws IOException {
+        Integer slot = slots.get(session);
+        if (slot != null) {
+            return slot;
+        }
+        int s;
+        if (!free.isEmpty()) {
+            s = free.remove(free.size() - 1);
+        } else {
+            if (used == capacity) {
+                if (capacity == MAX_SLOTS) {
+                    throw new IOException("Bookmark store full");
+                }
+                map((int) Math.min(MAX_SLOTS, 2L * capacity));
+            }
+            s = used++;
+        }
+        map.putInt(offset(s), intern(session));
+        // the halves of a reused record belong to its old session, so their checksums fail now
+        seq[s] = 0;
+        half[s] = 1;
+        committed[s] = 1;
+        slots.put(session, s);
+        return s;
+    }
+
+    /**
+     * Writes the half of a record that the last commit did not make durable, and makes it
+     * current. Until the next commit, later saves of the record write the same half again.
+     */
+    private void write(int slot, int story, int room) {
+        int h = 1 - committed[slot];
+        int at = offset(slot) + HALF + HALF * h;
+        int sequence = seq[slot] + 1;
+        map.putInt(at, sequence);
+        map.putInt(at + 4, story);
+        map.putInt(at + 8, room);
+        map.putInt(at + 12, checksum(map.getInt(offset(slot)), sequence, story, room));
+        seq[slot] = sequence;
+        half[slot] = (byte) h;
+        if (!dirty[slot]) {
+            dirty[slot] = true;
+            written.add(slot);
+        }
+        saves++;
+    }
+
+    /**
+     * Marks the records written since the last commit as clean, and returns them with their
+     * sequence numbers, so the commit can make their current halves committed once it has forced
+     * them.
+     */
+    private synchronized int[][] takeWritten() {
+        int[][] taken = new int[2][written.size()];
+        for (int i = 0; i < written.size(); i++) {
+            int slot = written.get(i);
+            taken[0][i] = slot;
+            taken[1][i] = seq[slot];
+            dirty[slot] = false;
+        }
+        written = new ArrayList<Integer>();
+        return taken;
+    }
+
+    /**
+     * Makes the current half of each record a commit forced committed, unless the record was
+     * written again while the files were forced, as that write may not be durable yet. Such a
+     * record is dirty again, and the next commit makes it committed.
+     */
+    private synchronized void committed(int[][] taken) {
+        for (int i = 0; i < taken[0].length; i++) {
+            int slot = taken[0][i];
+            if (seq[slot] == taken[1][i]) {
+                committed[slot] = half[slot];
+            }
+        }
+    }
+
+    /**
+     * Marks the records a failed commit took as dirty again, so the next commit covers them.
+     */
+    private synchronized void uncommitted(int[][] taken) {
+        for (int slot : taken[0]) {
+            if (!dirty[slot]) {
+                dirty[slot] = true;
+                written.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the current half of a record holds a bookmark.
+     */
+    private boolean present(int slot) {
+        return map.getInt(offset(slot) + HALF + HALF * half[slot] + 4) != REMOVED;
+    }
+
+    @Override
+    public synchronized void save(String session, String storyFile, String curRoom)
+        throws IOException {
+        Integer known = slots.get(session);
+        int slot = slot(session);
+        if (known == null || !present(slot)) {
+            size++;
+        }
+        write(slot, intern(storyFile), intern(curRoom));
+    }
+
+    @Override
+    public synchronized String[] load(String session) {
+        Integer slot = slots.get(session);
+        if (slot == null || !present(slot)) {
+            return null;
+        }
+        int at = offset(slot) + HALF + HALF * half[slot];
+        return new String[] {strings.get(map.getInt(at + 4)), strings.get(map.getInt(at + 8))};
+    }
+
+    @Override
+    public synchronized void remove(String session) {
+        Integer slot = slots.get(session);
+        if (slot != null && present(slot)) {
+            write(slot, REMOVED, REMOVED);
+            size--;
+        }
+    }
+
+    /**
+     * Returns the number of sessions with a bookmark.
+     *
+     * @return The number of sessions.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the Strings added since the last commit to the string table, then forces the string
+     * table and the records to the disk, in that order, so a durable record never refers to a
+     * String that was lost.
+     *
+     * @throws IOException If the files cannot be written.
+     */
+    @Override
+    public void commit() throws IOException {
+        long target;
+        synchronized (this) {
+            target = saves;
+        }
+        synchronized (commitLock) {
+            if (durable >= target) {
+                groupedCommits++;
+                return;
+            }
+            long upto;
+            ByteArrayOutputStream batch;
+            MappedByteBuffer records;
+            int[][] taken;
+            synchronized (this) {
+                upto = saves;
+                batch = pendingStrings;
+                pendingStrings = new ByteArrayOutputStream();
+                records = map;
+                taken = takeWritten();
+            }
+            boolean stored = false; // whether the batch of Strings reached the string table
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch.toByteArray());
+                while (bytes.hasRemaining()) {
+                    stringChannel.write(bytes, stringBytes + bytes.position());
+                }
+                stringBytes += batch.size();
+                stored = true;
+                stringChannel.force(false);
+                records.force();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!stored) {
+                        // the next commit writes the batch again, before the Strings added since
+                        batch.write(pendingStrings.toByteArray(), 0, pendingStrings.size());
+                        pendingStrings = batch;
+                    }
+                    uncommitted(taken);
+                }
+                throw e;
+            }
+            committed(taken);
+            durable = upto;
+            commits++;
+        }
+    }
+
+    /**
+     * Returns the number of commits that forced the files to the disk.
+     *
+     * @return The number of commits.
+     */
+    public long commits() {
+        synchronized (commitLock) {
+            return commits;
+        }
+    }
+
+    /**
+     * Returns the number of commits that returned without forcing the files, since a commit on
+     * another thread had made their saves durable.
+     *
+     * @return The number of grouped commits.
+     */
+    public long groupedCommits() {
+        synchronized (commitLock) {
+            return groupedCommits;
+        }
+    }
+
+    /**
+     * Commits the saves since the last commit and closes the files.
+     *
+     * @throws IOException If the files cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            synchronized (commitLock) {
+                channel.close();
+                stringChannel.close();
+            }
+        }
+    }
+}
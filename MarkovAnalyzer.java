@@ -0,0 +1,514 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, MarkovAnalyzer.java
+// This File: MarkovAnalyzer.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.Arrays;
+
+/**
+ * Computes the exact chances of a story ending in Config.SUCCESS or Config.FAIL, and the expected
+ * number of transitions until it ends, by treating the story as an absorbing Markov chain instead
+ * of playing it.
+ *
+ * Every room is a state. The rooms ending the story are absorbing. A room with weighted
+ * transitions moves to each destination with the probability probTrans selects it with, and in
+ * the other rooms a Policy gives the probability of each choice. Transitions to rooms that do not
+ * exist, and rooms without transitions, lead nowhere: the chance of reaching them is the chance
+ * of the story never ending, together with the chance of looping forever.
+ *
+ * Only the rooms that do not end the story but can reach a room that does are unknowns; the
+ * story never ends from the others. For those rooms the chances solve the sparse linear system
+ * (I - P)x = b, where P holds the probabilities of their transitions to each other and b those of
+ * their transitions to the ending rooms. The system is solved with BiCGSTAB, preconditioned with
+ * the diagonal of I - P so that loops of a room to itself, like the one in NeverEnd.story, cost
+ * nothing extra. Each iteration costs two passes over the transitions, instead of the billions of
+ * steps a simulation needs for the same precision.
+ *
+ * Usage: java MarkovAnalyzer storyFile [-policy uniform|first] [-tolerance t] [-maxIterations n]
+ *
+ * @author Benjamin Tarmann
+ */
+public class MarkovAnalyzer {
+    private final Story story; // the story analyzed
+    private final byte[] outcome; // 1 for rooms ending in success, -1 in failure, 0 otherwise
+    private final int[] unknown; // the index of each room among the unknowns, or -1
+    private final int[] room; // the room of each unknown
+    private final int[] start; // start[i] to start[i + 1] are the transitions of unknown i
+    private final int[] next; // the unknown each of those transitions leads to
+    private final double[] prob; // the probability of each of those transitions
+    private final double[] diagonal; // 1 minus the probability of each unknown staying put
+    private final double[] toSuccess; // the probability of each unknown moving to a success room
+    private final double[] toFail; // the probability of each unknown moving to a failure room
+
+    /**
+     * Gives the probability of each choice of a room without weighted transitions.
+     */
+    public interface Policy {
+        /**
+         * Returns the probability that a transition of a room is chosen. The probabilities of the
+         * transitions of a room should sum to at most 1.
+         *
+         * @param story The story.
+         * @param room The index of the room.
+         * @param numChoices The number of transitions of the room, at least 1.
+         * @param choice The index of the transition.
+         * @return The probability of choosing the transition.
+         */
+        double probability(Story story, int room, int numChoices, int choice);
+    }
+
+    /**
+     * Chooses every transition with the same probability.
+     */
+    public static final Policy UNIFORM = (story, room, numChoices, choice) -> 1.0 / numChoices;
+
+    /**
+     * Always chooses the first transition.
+     */
+    public static final Policy FIRST = (story, room, numChoices, choice) -> choice == 0 ? 1 : 0;
+
+    /**
+     * The chances and expected lengths of the story from each room.
+     */
+    public static class Result {
+        private final double[] success; // the chance of ending in success from each room
+        private final double[] fail; // the chance of ending in failure from each room
+        private final double[] steps; // expected transitions times the chance of ending
+        private final int iterations; // the number of solver iterations done
+        private final boolean converged; // whether every solve met the tolerance
+
+        private Result(double[] success, double[] fail, double[] steps, int iterations,
+            boolean converged) {
+            this.success = success;
+            this.fail = fail;
+            this.steps = steps;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+
+        /**
+         * Returns the chance of the story ending in Config.SUCCESS when it is in a room.
+         *
+         * @param room The index of the room.
+         * @return The probability of success.
+         */
+        public double success(int room) {
+            return success[room];
+        }
+
+        /**
+         * Returns the chance of the story ending in Config.FAIL when it is in a room.
+         *
+         * @param room The index of the room.
+         * @return The probability of failure.
+         */
+        public double fail(int room) {
+            return fail[room];
+        }
+
+        /**
+         * Returns the chance of the story never ending when it is in a room.
+         *
+         * @param room The index of the room.
+         * @return The probability of looping forever or getting stuck.
+         */
+        public double unfinished(int room) {
+            return Math.max(0, 1 - success[room] - fail[room]);
+        }
+
+        /**
+         * Returns the expected number of transitions until the story ends when it is in a room,
+         * counting only the ways in which it does end.
+         *
+         * @param room The index of the room.
+         * @return The expected path length, or NaN if the story cannot end from the room.
+         */
+        public double expectedSteps(int room) {
+            double ends = success[room] + fail[room];
+            return ends == 0 ? Double.NaN : steps[room] / ends;
+        }
+
+        /**
+         * Returns the total number of iterations done by the solver.
+         *
+         * @return The number of iterations.
+         */
+        public int iterations() {
+            return iterations;
+        }
+
+        /**
+         * Returns whether the solver met the tolerance before running out of iterations.
+         *
+         * @return true if the results are within the tolerance.
+         */
+        public boolean converged() {
+            return converged;
+        }
+    }
+
+    /**
+     * Builds the transition probabilities of a story.
+     *
+     * @param story The story.
+     * @param policy The probabilities of the choices in rooms without weighted transitions.
+     */
+    public MarkovAnalyzer(Story story, Policy policy) {
+        this.story = story;
+        int rooms = story.size();
+        this.outcome = new byte[rooms];
+
+        // the probability and destination of every transition of the rooms not ending the story
+        int[] from = new int[rooms + 1];
+        int count = 0;
+        for (int r = 0; r < rooms; r++) {
+            count += story.transitionEnd(r) - story.transitionStart(r);
+        }
+        int[] target = new int[count];
+        double[] p = new double[count];
+        int t = 0;
+        for (int r = 0; r < rooms; r++) {
+            from[r] = t;
+            int first = story.transitionStart(r);
+            int n = story.transitionEnd(r) - first;
+            String desc = n == 1 ? story.transitionDescription(first) : null;
+            if (Config.SUCCESS.equals(desc) || Config.FAIL.equals(desc)) {
+                outcome[r] = (byte) (Config.SUCCESS.equals(desc) ? 1 : -1);
+                continue; // an ending room has no transitions in the chain
+            }
+            WeightTable weights = story.weights(r);
+            double[] weighted = weights != WeightTable.NONE ? weights.probabilities() : null;
+            for (int c = 0; c < n; c++) {
+                double chance = weighted != null ? weighted[c] : policy.probability(story, r, n, c);
+                target[t] = chance > 0 ? story.target(first + c) : -1;
+                p[t] = chance;
+                t++;
+            }
+        }
+        from[rooms] = t;
+
+        this.unknown = canEnd(from, target);
+        int n = 0;
+        for (int r = 0; r < rooms; r++) {
+            if (unknown[r] != -1) {
+                unknown[r] = n++;
+            }
+        }
+        this.room = new int[n];
+        this.start = new int[n + 1];
+        this.diagonal = new double[n];
+        this.toSuccess = new double[n];
+        this.toFail = new double[n];
+        int edges = 0;
+        for (int r = 0; r < rooms; r++) {
+            if (unknown[r] != -1) {
+                for (t = from[r]; t < from[r + 1]; t++) {
+                    if (target[t] != -1 && target[t] != r && unknown[target[t]] != -1) {
+                        edges++;
+                    }
+                }
+            }
+        }
+        this.next = new int[edges];
+        this.prob = new double[edges];
+        int e = 0;
+        for (int r = 0; r < rooms; r++) {
+            int i = unknown[r];
+            if (i == -1) {
+                continue;
+            }
+            room[i] = r;
+            start[i] = e;
+            diagonal[i] = 1;
+            for (t = from[r]; t < from[r + 1]; t++) {
+                int to = target[t];
+                if (to == -1) {
+                    continue;
+                } else if (outcome[to] == 1) {
+                    toSuccess[i] += p[t];
+                } else if (outcome[to] == -1) {
+                    toFail[i] += p[t];
+                } else if (to == r) {
+                    diagonal[i] -= p[t];
+                } else if (unknown[to] != -1) {
+                    next[e] = unknown[to];
+                    prob[e] = p[t];
+                    e++;
+                }
+            }
+        }
+        start[n] = e;
+    }
+
+    /**
+     * Finds the rooms that do not end the story but can reach a room that does, following the
+     * transitions backwards from the ending rooms.
+     *
+     * @param from from[r] to from[r + 1] are the transitions of room r.
+     * @param target The destination of each transition, -1 for transitions never taken.
+     * @return An array holding 0 for each such room and -1 for the other rooms.
+     */
+    private int[] canEnd(int[] from, int[] target) {
+        int rooms = outcome.length;
+        int[] inStart = new int[rooms + 1];
+        for (int t = 0; t < target.length; t++) {
+            if (target[t] != -1) {
+                inStart[target[t] + 1]++;
+            }
+        }
+        for (int r = 0; r < rooms; r++) {
+            inStart[r + 1] += inStart[r];
+        }
+        int[] inFrom = new int[inStart[rooms]];
+        int[] fill = inStart.clone();
+        for (int r = 0; r < rooms; r++) {
+            for (int t = from[r]; t < from[r + 1]; t++) {
+                if (target[t] != -1) {
+                    inFrom[fill[target[t]]++] = r;
+                }
+            }
+        }
+
+        int[] mark = new int[rooms];
+        int[] queue = new int[rooms];
+        int head = 0;
+        int tail = 0;
+        for (int r = 0; r < rooms; r++) {
+            mark[r] = -1;
+            if (outcome[r] != 0) {
+                queue[tail++] = r;
+            }
+        }
+        while (head < tail) {
+            int r = queue[head++];
+            for (int i = inStart[r]; i < inStart[r + 1]; i++) {
+                int q = inFrom[i];
+                if (outcome[q] == 0 && mark[q] == -1) {
+                    mark[q] = 0;
+                    queue[tail++] = q;
+                }
+            }
+        }
+        return mark;
+    }
+
+    /**
+     * Computes the chances and expected lengths of the story from every room.
+     *
+     * @param tolerance The relative residual at which a solve stops.
+     * @param maxIterations The largest number of iterations of each solve.
+     * @return The results.
+     */
+    public Result analyze(double tolerance, int maxIterations) {
+        int rooms = outcome.length;
+        int n = room.length;
+        double[] success = new double[rooms];
+        double[] fail = new double[rooms];
+        double[] steps = new double[rooms];
+        for (int r = 0; r < rooms; r++) {
+            success[r] = outcome[r] == 1 ? 1 : 0;
+            fail[r] = outcome[r] == -1 ? 1 : 0;
+        }
+
+        double[] xSuccess = new double[n];
+        double[] xFail = new double[n];
+        double[] xSteps = new double[n];
+        int iterations = 0;
+        int done = solve(xSuccess, toSuccess, tolerance, maxIterations);
+        boolean converged = done <= maxIterations;
+        iterations += Math.min(done, maxIterations);
+        done = solve(xFail, toFail, tolerance, maxIterations);
+        converged &= done <= maxIterations;
+        iterations += Math.min(done, maxIterations);
+
+        // steps holds the expected length times the chance of ending: a transition counts once
+        // for every way in which the story ends after it
+        double[] ends = new double[n];
+        for (int i = 0; i < n; i++) {
+            double sum = toSuccess[i] + toFail[i] + (1 - diagonal[i]) * (xSuccess[i] + xFail[i]);
+            for (int e = start[i]; e < start[i + 1]; e++) {
+                sum += prob[e] * (xSuccess[next[e]] + xFail[next[e]]);
+            }
+            ends[i] = sum;
+        }
+        done = solve(xSteps, ends, tolerance, maxIterations);
+        converged &= done <= maxIterations;
+        iterations += Math.min(done, maxIterations);
+
+        for (int i = 0; i < n; i++) {
+            success[room[i]] = Math.min(1, Math.max(0, xSuccess[i]));
+            fail[room[i]] = Math.min(1, Math.max(0, xFail[i]));
+            steps[room[i]] = Math.max(0, xSteps[i]);
+        }
+        return new Result(success, fail, steps, iterations, converged);
+    }
+
+    /**
+     * Computes (I - P)v.
+     */
+    private void multiply(double[] v, double[] out) {
+        for (int i = 0; i < v.length; i++) {
+            double sum = diagonal[i] * v[i];
+            for (int e = start[i]; e < start[i + 1]; e++) {
+                sum -= prob[e] * v[next[e]];
+            }
+            out[i] = sum;
+        }
+    }
+
+    /**
+     * Solves (I - P)x = b with BiCGSTAB, preconditioned with the diagonal of I - P.
+     *
+     * @param x The solution, starting from 0.
+     * @param b The right-hand side.
+     * @param tolerance The residual, relative to b, at which to stop.
+     * @param maxIterations The largest number of iterations.
+     * @return The number of iterations done, or maxIterations + 1 if the tolerance was not met.
+     */
+    private int solve(double[] x, double[] b, double tolerance, int maxIterations) {
+        int n = x.length;
+        double bNorm = Math.sqrt(dot(b, b));
+        if (bNorm == 0) {
+            return 0; // x = 0
+        }
+        double[] r = b.clone();
+        double[] r0 = b.clone();
+        double[] p = new double[n];
+        double[] v = new double[n];
+        double[] y = new double[n];
+        double[] z = new double[n];
+        double[] t = new double[n];
+        double rho = 1;
+        double alpha = 1;
+        double omega = 1;
+
+        for (int it = 1; it <= maxIterations; it++) {
+            double rhoNext = dot(r0, r);
+            if (rhoNext == 0) {
+                // breakdown: starts over from the current residual
+                System.arraycopy(r, 0, r0, 0, n);
+                Arrays.fill(p, 0);
+                Arrays.fill(v, 0);
+                rhoNext = dot(r0, r);
+                rho = 1;
+                alpha = 1;
+                omega = 1;
+            }
+            double beta = (rhoNext / rho) * (alpha / omega);
+            rho = rhoNext;
+            for (int i = 0; i < n; i++) {
+                p[i] = r[i] + beta * (p[i] - omega * v[i]);
+                y[i] = p[i] / diagonal[i];
+            }
+            multiply(y, v);
+            alpha = rho / dot(r0, v);
+            for (int i = 0; i < n; i++) {
+                x[i] += alpha * y[i];
+                r[i] -= alpha * v[i]; // r now holds s
+            }
+            if (Math.sqrt(dot(r, r)) <= tolerance * bNorm) {
+                return it;
+            }
+            for (int i = 0; i < n; i++) {
+                z[i] = r[i] / diagonal[i];
+            }
+            multiply(z, t);
+            double tt = dot(t, t);
+            omega = tt == 0 ? 0 : dot(t, r) / tt;
+            for (int i = 0; i < n; i++) {
+                x[i] += omega * z[i];
+                r[i] -= omega * t[i];
+            }
+            if (Math.sqrt(dot(r, r)) <= tolerance * bNorm) {
+                return it;
+            }
+            if (omega == 0) {
+                // stagnation: the next iteration starts over from the current residual
+                System.arraycopy(r, 0, r0, 0, n);
+                Arrays.fill(p, 0);
+                Arrays.fill(v, 0);
+                rho = 1;
+                alpha = 1;
+                omega = 1;
+            }
+        }
+        return maxIterations + 1;
+    }
+
+    /**
+     * Returns the dot product of two vectors.
+     */
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Analyzes a story and prints the chances and expected length from its start room.
+     *
+     * @param args The story filename followed by the options described in the class comment.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java MarkovAnalyzer storyFile [-policy uniform|first] "
+                + "[-tolerance t] [-maxIterations n]");
+            return;
+        }
+        Policy policy = UNIFORM;
+        double tolerance = 1e-12;
+        int maxIterations = 10_000;
+        try {
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-policy":
+                        if (args[i + 1].equals("uniform")) {
+                            policy = UNIFORM;
+                        } else if (args[i + 1].equals("first")) {
+                            policy = FIRST;
+                        } else {
+                            System.out.println("Unknown policy: " + args[i + 1]);
+                            return;
+                        }
+                        break;
+                    case "-tolerance":
+                        tolerance = Double.parseDouble(args[i + 1]);
+                        break;
+                    case "-maxIterations":
+                        maxIterations = Integer.parseInt(args[i + 1]);
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        AdventureEngine engine = AdventureEngine.load(args[0]);
+        if (engine == null) {
+            return;
+        }
+        long begin = System.nanoTime();
+        MarkovAnalyzer analyzer = new MarkovAnalyzer(engine.story(), policy);
+        Result result = analyzer.analyze(tolerance, maxIterations);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        int room = engine.startRoom();
+        System.out.println(String.format("%s  %.12f", Config.SUCCESS, result.success(room)));
+        System.out.println(String.format("%s  %.12f", Config.FAIL, result.fail(room)));
+        System.out.println(String.format("unfinished: %.12f", result.unfinished(room)));
+        System.out.println(String.format("expected path length: %.6f", result.expectedSteps(room)));
+        System.out.println(String.format("%d iterations%s, %.3f s", result.iterations(),
+            result.converged() ? "" : " (not converged)", seconds));
+    }
+}
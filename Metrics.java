@@ -0,0 +1,504 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Metrics.java
+// This File: Metrics.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and times the work of the game loop: the story files parsed with their rooms and
+ * transitions, the time spent displaying rooms and transitions, choosing weighted transitions and
+ * waiting for the player, and how often each room is visited.
+ *
+ * Metrics are only kept if the JVM is started with -Dadventure.metrics=true. ENABLED is a
+ * constant, so when it is false the JIT removes the timing code from the game loop entirely. The
+ * metrics can then be read over JMX as "AdventureStory:type=Metrics", and are printed to
+ * System.err every adventure.metrics.dump milliseconds if that property is set.
+ *
+ * When ENABLED is true, the steps of the story loop are cheap to count, as a step of a Session
+ * takes a few hundred nanoseconds when its output is not written anywhere. Its steps are timed
+ * one in SAMPLE_EVERY, chosen at random, so the histograms of steps hold a sample of them;
+ * parsing and waiting for the player are always timed. The visits and transitions of a Session
+ * are counted in the RoomCounts of the version of the story it plays, indexed by room, which
+ * Metrics adds up when they are read. The main method, which plays the lists parseFile returns,
+ * counts visits by room id.
+ *
+ * Call sites time consecutive steps as follows:
+ *
+ * long start = Metrics.sample();
+ * displayRoom(curRoom[0], rooms);
+ * start = Metrics.DISPLAY_ROOM.stop(start);
+ * currentTrans = displayTransitions(curRoom[0], rooms, trans);
+ * Metrics.DISPLAY_TRANSITIONS.stop(start);
+ *
+ * @author Benjamin Tarmann
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * Whether metrics are kept, set by the system property adventure.metrics
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("adventure.metrics");
+
+    /**
+     * Time spent parsing story files
+     */
+    public static final LatencyHistogram PARSE = new LatencyHistogram("parse");
+
+    /**
+     * Time spent in AdventureStory.displayRoom
+     */
+    public static final LatencyHistogram DISPLAY_ROOM = new LatencyHistogram("displayRoom");
+
+    /**
+     * Time spent in AdventureStory.displayTransitions
+     */
+    public static final LatencyHistogram DISPLAY_TRANSITIONS =
+        new LatencyHistogram("displayTransitions");
+
+    /**
+     * Time spent choosing weighted transitions, in AdventureStory.probTrans or Session.step
+     */
+    public static final LatencyHistogram PROB_TRANS = new LatencyHistogram("probTrans");
+
+    /**
+     * Time spent waiting for the player to choose a transition
+     */
+    public static final LatencyHistogram PROMPT = new LatencyHistogram("prompt");
+
+    /**
+     * Time spent rendering a room and its transitions in Session.render
+     */
+    public static final LatencyHistogram RENDER = new LatencyHistogram("render");
+
+    private static final LatencyHistogram[] HISTOGRAMS =
+        {PARSE, DISPLAY_ROOM, DISPLAY_TRANSITIONS, PROB_TRANS, PROMPT, RENDER};
+    private static final int TOP_ROOMS = 10; // the most visited rooms dump lists
+
+    /**
+     * One step in SAMPLE_EVERY is timed by sample, a power of two
+     */
+    public static final int SAMPLE_EVERY = 64;
+
+    private static final LongAdder filesParsed = new LongAdder(); // story files parsed
+    private static final LongAdder roomsLoaded = new LongAdder(); // rooms in the files parsed
+    private static final LongAdder transitionsLoaded = new LongAdder(); // their transitions
+    private static final LongAdder transitionsTaken = new LongAdder(); // transitions taken
+    private static final Map<String, LongAdder> visits = new ConcurrentHashMap<>(); // per room
+    private static final ConcurrentLinkedQueue<WeakReference<RoomCounts>> counts =
+        new ConcurrentLinkedQueue<>(); // the counts of the versions of stories being played
+
+    private static final Metrics MBEAN = new Metrics(); // the instance registered with JMX
+    private static Thread dumper; // the thread started by startDump, or null
+
+    static {
+        if (ENABLED) {
+            register();
+            long period = Long.getLong("adventure.metrics.dump", 0);
+            if (period > 0) {
+                startDump(period, System.err);
+            }
+        }
+    }
+
+    /**
+     * Metrics are only kept in static fields; the instance is the JMX view of them.
+     */
+    private Metrics() {}
+
+    /**
+     * Returns the time to pass to LatencyHistogram.stop at the end of a step.
+     *
+     * @return System.nanoTime() if ENABLED is set, otherwise 0.
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Returns the time to pass to LatencyHistogram.stop at the end of a step, for one step in
+     * SAMPLE_EVERY chosen at random. stop records nothing for the other steps.
+     *
+     * @return System.nanoTime() if ENABLED is set and the step is sampled, otherwise 0.
+     */
+    public static long sample() {
+        if (ENABLED && (ThreadLocalRandom.current().nextInt() & (SAMPLE_EVERY - 1)) == 0) {
+            return System.nanoTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Creates the counts of the rooms of a version of a story, which are reported with the
+     * metrics until the counts are retired or no longer referenced.
+     *
+     * @param story The story.
+     * @return The counts, or null if ENABLED is not set.
+     */
+    public static RoomCounts counts(Story story) {
+        if (!ENABLED) {
+            return null;
+        }
+        RoomCounts roomCounts = new RoomCounts(story);
+        counts.removeIf(ref -> ref.get() == null);
+        counts.add(new WeakReference<RoomCounts>(roomCounts));
+        return roomCounts;
+    }
+
+    /**
+     * Moves the counts of a version of a story that was replaced to the visits by room id, so
+     * they are still reported when the version is no longer referenced. Counts made after they
+     * are retired are not reported.
+     *
+     * @param roomCounts The counts, or null.
+     */
+    public static void retire(RoomCounts roomCounts) {
+        if (roomCounts == null) {
+            return;
+        }
+        counts.removeIf(ref -> ref.get() == roomCounts || ref.get() == null);
+        Story story = roomCounts.story();
+        for (int room = 0; room < story.size(); room++) {
+            long count = roomCounts.visits(room);
+            if (count > 0) {
+                visits.computeIfAbsent(story.id(room), k -> new LongAdder()).add(count);
+            }
+        }
+        transitionsTaken.add(roomCounts.transitions());
+        roomCounts.clear();
+    }
+
+    /**
+     * Returns the counts of the versions of stories being played.
+     */
+    private static ArrayList<RoomCounts> liveCounts() {
+        ArrayList<RoomCounts> live = new ArrayList<RoomCounts>();
+        for (Iterator<WeakReference<RoomCounts>> it = counts.iterator(); it.hasNext();) {
+            RoomCounts roomCounts = it.next().get();
+            if (roomCounts == null) {
+                it.remove();
+            } else {
+                live.add(roomCounts);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Records a story file that was parsed, if ENABLED is set.
+     *
+     * @param startNanos The time parsing started, from start.
+     * @param rooms The number of rooms in the story.
+     * @param transitions The number of transitions in the story.
+     */
+    public static void parsed(long startNanos, long rooms, long transitions) {
+        if (ENABLED) {
+            PARSE.stop(startNanos);
+            filesParsed.increment();
+            roomsLoaded.add(rooms);
+            transitionsLoaded.add(transitions);
+        }
+    }
+
+    /**
+     * Records a story file that was parsed into parallel ArrayLists, if ENABLED is set.
+     *
+     * @param startNanos The time parsing started, from start.
+     * @param trans The transitions of each room.
+     */
+    public static void parsed(long startNanos, ArrayList<ArrayList<String[]>> trans) {
+        if (ENABLED) {
+            long transitions = 0;
+            for (ArrayList<String[]> roomTrans : trans) {
+                transitions += roomTrans.size();
+            }
+            parsed(startNanos, trans.size(), transitions);
+        }
+    }
+
+    /**
+     * Records a story that was loaded, if ENABLED is set.
+     *
+     * @param startNanos The time loading started, from start.
+     * @param story The story.
+     */
+    public static void parsed(long startNanos, Story story) {
+        if (ENABLED) {
+            int size = story.size();
+            parsed(startNanos, size, size == 0 ? 0 : story.transitionEnd(size - 1));
+        }
+    }
+
+    /**
+     * Records a visit to a room, if ENABLED is set.
+     *
+     * @param id The id of the room.
+     */
+    public static void visit(String id) {
+        if (ENABLED) {
+            LongAdder count = visits.get(id);
+            if (count == null) {
+                count = visits.computeIfAbsent(id, k -> new LongAdder());
+            }
+            count.increment();
+        }
+    }
+
+    /**
+     * Records a transition taken, if ENABLED is set.
+     */
+    public static void transition() {
+        if (ENABLED) {
+            transitionsTaken.increment();
+        }
+    }
+
+    /**
+     * Returns the number of times a room was visited.
+     *
+     * @param id The id of the room.
+     * @return The number of visits.
+     */
+    public static long visits(String id) {
+        LongAdder count = visits.get(id);
+        long total = count == null ? 0 : count.sum();
+        for (RoomCounts roomCounts : liveCounts()) {
+            int room = roomCounts.story().indexOf(id);
+            if (room != -1) {
+                total += roomCounts.visits(room);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of rooms visited, counting each visit to the same room.
+     *
+     * @return The number of visits.
+     */
+    public static long roomVisits() {
+        long total = 0;
+        for (LongAdder count : visits.values()) {
+            total += count.sum();
+        }
+        for (RoomCounts roomCounts : liveCounts()) {
+            total += roomCounts.visits();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of transitions taken.
+     *
+     * @return The number of transitions.
+     */
+    public static long transitionsTaken() {
+        long total = transitionsTaken.sum();
+        for (RoomCounts roomCounts : liveCounts()) {
+            total += roomCounts.transitions();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the rooms visited most, with their visits, most visited first. The rooms are the
+     * most visited of the visits by room id and of each RoomCounts, with the visits of every
+     * version added up.
+     */
+    private static ArrayList<Map.Entry<String, Long>> topRooms() {
+        HashMap<String, Long> candidates = new HashMap<String, Long>();
+        ArrayList<Map.Entry<String, LongAdder>> byId = new ArrayList<>(visits.entrySet());
+        byId.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+        for (int i = 0; i < byId.size() && i < TOP_ROOMS; i++) {
+            candidates.put(byId.get(i).getKey(), 0L);
+        }
+        ArrayList<RoomCounts> live = liveCounts();
+        for (RoomCounts roomCounts : live) {
+            // the visits and index of the TOP_ROOMS most visited rooms, least visited first
+            PriorityQueue<long[]> top =
+                new PriorityQueue<long[]>((a, b) -> Long.compare(a[0], b[0]));
+            for (int room = 0; room < roomCounts.story().size(); room++) {
+                long count = roomCounts.visits(room);
+                if (count > 0) {
+                    top.add(new long[] {count, room});
+                    if (top.size() > TOP_ROOMS) {
+                        top.poll();
+                    }
+                }
+            }
+            for (long[] room : top) {
+                candidates.put(roomCounts.story().id((int) room[1]), 0L);
+            }
+        }
+        for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+            candidate.setValue(visits(candidate.getKey()));
+        }
+        ArrayList<Map.Entry<String, Long>> rooms = new ArrayList<>(candidates.entrySet());
+        rooms.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return rooms;
+    }
+
+    /**
+     * Registers the metrics with the platform MBeanServer, unless they are already registered.
+     *
+     * @return false if they could not be registered. Otherwise, true.
+     */
+    public static boolean register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("AdventureStory:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(MBEAN, name);
+            }
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts a daemon thread that prints the metrics every period, unless one was started before.
+     *
+     * @param periodMillis The time between dumps in milliseconds.
+     * @param out The stream to print to.
+     */
+    public static synchronized void startDump(long periodMillis, PrintStream out) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(periodMillis);
+                    out.print(text());
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // the JVM is exiting
+            }
+        }, "metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    /**
+     * Returns every metric as text: the counters, a line per histogram and the most visited rooms.
+     *
+     * @return The text.
+     */
+    public static String text() {
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        sb.append(String.format("metrics: %d files parsed, %d rooms, %d transitions loaded, "
+            + "%d rooms visited, %d transitions taken", filesParsed.sum(), roomsLoaded.sum(),
+            transitionsLoaded.sum(), roomVisits(), transitionsTaken())).append(nl);
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            if (histogram.count() > 0) {
+                sb.append("  ").append(histogram).append(nl);
+            }
+        }
+        ArrayList<Map.Entry<String, Long>> rooms = topRooms();
+        for (int i = 0; i < rooms.size() && i < TOP_ROOMS; i++) {
+            sb.append("  room ").append(rooms.get(i).getKey()).append(": ")
+                .append(rooms.get(i).getValue()).append(" visits").append(nl);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sets every metric back to 0.
+     */
+    public static void clear() {
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        filesParsed.reset();
+        roomsLoaded.reset();
+        transitionsLoaded.reset();
+        transitionsTaken.reset();
+        visits.clear();
+        for (RoomCounts roomCounts : liveCounts()) {
+            roomCounts.clear();
+        }
+    }
+
+    @Override
+    public long getFilesParsed() {
+        return filesParsed.sum();
+    }
+
+    @Override
+    public long getRoomsLoaded() {
+        return roomsLoaded.sum();
+    }
+
+    @Override
+    public long getTransitionsLoaded() {
+        return transitionsLoaded.sum();
+    }
+
+    @Override
+    public long getRoomVisits() {
+        return roomVisits();
+    }
+
+    @Override
+    public long getTransitionsTaken() {
+        return transitionsTaken();
+    }
+
+    @Override
+    public double getParseP99Micros() {
+        return PARSE.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getDisplayRoomP99Micros() {
+        return DISPLAY_ROOM.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getDisplayTransitionsP99Micros() {
+        return DISPLAY_TRANSITIONS.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getProbTransP99Micros() {
+        return PROB_TRANS.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getPromptP99Micros() {
+        return PROMPT.percentile(99) / 1e3;
+    }
+
+    @Override
+    public String dump() {
+        return text();
+    }
+
+    @Override
+    public void reset() {
+        clear();
+    }
+}
@@ -0,0 +1,101 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, MetricsMBean.java
+// This File: MetricsMBean.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+/**
+ * The attributes and operations Metrics exposes over JMX, under the name
+ * "AdventureStory:type=Metrics". Durations are in microseconds.
+ *
+ * @author Benjamin Tarmann
+ */
+public interface MetricsMBean {
+
+    /**
+     * Returns the number of story files parsed.
+     *
+     * @return The number of files.
+     */
+    long getFilesParsed();
+
+    /**
+     * Returns the number of rooms in the story files parsed.
+     *
+     * @return The number of rooms.
+     */
+    long getRoomsLoaded();
+
+    /**
+     * Returns the number of transitions in the story files parsed.
+     *
+     * @return The number of transitions.
+     */
+    long getTransitionsLoaded();
+
+    /**
+     * Returns the number of rooms displayed.
+     *
+     * @return The number of visits.
+     */
+    long getRoomVisits();
+
+    /**
+     * Returns the number of transitions taken.
+     *
+     * @return The number of transitions.
+     */
+    long getTransitionsTaken();
+
+    /**
+     * Returns the 99th percentile of the time spent parsing a story file.
+     *
+     * @return The time in microseconds.
+     */
+    double getParseP99Micros();
+
+    /**
+     * Returns the 99th percentile of the time spent displaying a room.
+     *
+     * @return The time in microseconds.
+     */
+    double getDisplayRoomP99Micros();
+
+    /**
+     * Returns the 99th percentile of the time spent displaying the transitions of a room.
+     *
+     * @return The time in microseconds.
+     */
+    double getDisplayTransitionsP99Micros();
+
+    /**
+     * Returns the 99th percentile of the time spent choosing a weighted transition.
+     *
+     * @return The time in microseconds.
+     */
+    double getProbTransP99Micros();
+
+    /**
+     * Returns the 99th percentile of the time spent waiting for the player to choose.
+     *
+     * @return The time in microseconds.
+     */
+    double getPromptP99Micros();
+
+    /**
+     * Returns every metric as text, as Metrics.dump does.
+     *
+     * @return The text.
+     */
+    String dump();
+
+    /**
+     * Sets every metric back to 0.
+     */
+    void reset();
+}
@@ -0,0 +1,318 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, ParallelStoryParser.java
+// This File: ParallelStoryParser.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses large story files on several threads. The file is memory-mapped and split into chunks
+ * at room boundaries, each chunk is parsed by its own StoryParser on a ForkJoinPool, and the rooms
+ * and transitions of the chunks are joined in file order. The result is the same as parsing the
+ * file with StoryParser.parse: the first room becomes the current room, and a parse error is
+ * reported with its line number in the whole file.
+ *
+ * A line starting with 'R' only starts a room outside a description, but a ";;;" line always ends
+ * a description. So a pre-scan from each split point looks for a ";;;" line and splits before the
+ * first line starting with 'R' after it, which must be a room line. A chunk therefore never
+ * starts in the middle of a room. Lines are split on the same separators as LineReader splits
+ * them on, found by LineReader.separatorLength, and the rest of a line is only looked at for
+ * ASCII bytes, which is safe for UTF-8, ISO-8859-1 and US-ASCII files; files in other charsets are
+ * parsed on one thread.
+ *
+ * If Config.POOL_STRINGS is set, the joined rooms are pooled by one StringPool once every chunk
+ * is parsed, since a pool cannot be shared between threads.
+ *
+ * @author Benjamin Tarmann
+ */
+public class ParallelStoryParser {
+    private static final int MIN_CHUNK = 1 << 20; // the smallest chunk worth its own task
+    private static final int CHUNKS_PER_THREAD = 4; // spare chunks for threads that finish early
+
+    /**
+     * Returns whether a file is a story file large enough to be worth parsing in parallel, in a
+     * charset that can be split at byte boundaries.
+     *
+     * @param fName The name of the file.
+     * @return true if parse should be used to parse the file.
+     */
+    public static boolean worthwhile(String fName) {
+        File file = new File(fName);
+        long size = file.length();
+        if (size < 2L * MIN_CHUNK || size > Integer.MAX_VALUE || !splittable()) {
+            return false;
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath())) {
+            LineReader in = new LineReader(ch, Charset.defaultCharset());
+            return in.nextLine() && in.trimmedLine().equals(Config.MAGIC_STORY);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the default charset encodes every character below 128 as that byte alone,
+     * and never uses those bytes in the encoding of other characters, so story files can be
+     * scanned for line separators and room lines byte by byte.
+     *
+     * @return true for UTF-8, ISO-8859-1 and US-ASCII.
+     */
+    public static boolean splittable() {
+        Charset charset = Charset.defaultCharset();
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses a story file on the common ForkJoinPool, in chunks of at least 1 MB. Errors are
+     * printed to System.out as described by AdventureStory.parseFile.
+     *
+     * @param fName The name of the story file, which must start with Config.MAGIC_STORY.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return false if the file cannot be read or parsed. Otherwise, true.
+     */
+    public static boolean parse(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        long size = new File(fName).length();
+        int chunks = (int) Math.min(size / MIN_CHUNK, pool.getParallelism() * CHUNKS_PER_THREAD);
+        return parse(fName, rooms, trans, curRoom, pool, Math.max(1, chunks));
+    }
+
+    /**
+     * Parses a story file in a given number of chunks. Errors are printed to System.out as
+     * described by AdventureStory.parseFile.
+     *
+     * @param fName The name of the story file, which must start with Config.MAGIC_STORY.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @param pool The pool to parse the chunks on.
+     * @param chunks The number of chunks to split the file into. Fewer chunks are parsed if some
+     *               have no room boundary between them.
+     * @return false if the file cannot be read or parsed. Otherwise, true.
+     */
+    public static boolean parse(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom, ForkJoinPool pool, int chunks) {
+        List<Future<Chunk>> results;
+        try (FileChannel ch = FileChannel.open(new File(fName).toPath())) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + fName);
+            }
+            ByteBuffer data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            int size = data.limit();
+
+            // the pre-scan: each chunk starts at the first room boundary after its split point
+            ArrayList<Integer> starts = new ArrayList<Integer>();
+            starts.add(0);
+            for (int i = 1; i < chunks; i++) {
+                int start = boundary(data, (int) ((long) size * i / chunks));
+                if (start > starts.get(starts.size() - 1) && start < size) {
+                    starts.add(start);
+                }
+            }
+            starts.add(size);
+
+            AtomicInteger firstError = new AtomicInteger(Integer.MAX_VALUE);
+            ArrayList<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+            for (int i = 0; i + 1 < starts.size(); i++) {
+                int index = i;
+                ByteBuffer slice = data.slice(starts.get(i), starts.get(i + 1) - starts.get(i));
+                tasks.add(() -> parseChunk(index, slice, firstError));
+            }
+            results = pool.invokeAll(tasks);
+        } catch (IOException e) {
+            System.out.print("Error reading file: " + fName);
+            System.out.println();
+            return false;
+        }
+
+        // joins the chunks in file order, stopping at the first parse error
+        int lines = 0;
+        try {
+            for (Future<Chunk> result : results) {
+                Chunk chunk = result.get();
+                rooms.addAll(chunk.rooms);
+                trans.addAll(chunk.trans);
+                if (chunk.parser.errorLine() != -1) {
+                    System.out.print("Error parsing file on line: "
+                        + (lines + chunk.parser.errorLine()) + ": " + chunk.parser.errorText());
+                    return false;
+                }
+                lines += chunk.parser.lineNumber();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.print("Error reading file: " + fName + ": " + cause);
+            System.out.println();
+            return false;
+        }
+        if (Config.POOL_STRINGS) {
+            new StringPool().dedupe(rooms, trans);
+        }
+        return new StoryParser(rooms, trans).finish(curRoom);
+    }
+
+    /**
+     * The rooms and transitions parsed from one chunk of a story file.
+     */
+    private static class Chunk {
+        private final ArrayList<String[]> rooms = new ArrayList<String[]>();
+        private final ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        private final StoryParser parser = new StoryParser(rooms, trans, false, null);
+    }
+
+    /**
+     * Parses one chunk of a story file. The first chunk starts with the Config.MAGIC_STORY line,
+     * which is skipped. Parsing stops early once an earlier chunk has a parse error, since the
+     * error of this chunk would not be reported.
+     *
+     * @param index The position of the chunk in the file.
+     * @param bytes The bytes of the chunk.
+     * @param firstError The index of the first chunk found to have a parse error.
+     * @return The rooms and transitions of the chunk.
+     * @throws IOException If the chunk cannot be decoded.
+     */
+    private static Chunk parseChunk(int index, ByteBuffer bytes, AtomicInteger firstError)
+        throws IOException {
+        Chunk chunk = new Chunk();
+        LineReader in = new LineReader(new BufferChannel(bytes), Charset.defaultCharset());
+        if (index == 0) {
+            in.nextLine();
+        }
+        while (in.nextLine()) {
+            if (!chunk.parser.parseLine(in.buffer(), in.start(), in.end())) {
+                firstError.accumulateAndGet(index, Math::min);
+                return chunk;
+            }
+            if ((in.lineNumber() & 1023) == 0 && firstError.get() < index) {
+                return chunk;
+            }
+        }
+        chunk.parser.endChunk();
+        return chunk;
+    }
+
+    /**
+     * Returns the start of the first line starting with 'R' that follows a ";;;" line, looking
+     * from the line after the one containing from. Leading and trailing whitespace is ignored, as
+     * by StoryParser.
+     *
+     * @param data The bytes of the file.
+     * @param from The split point.
+     * @return The start of the room line, or the size of data if there is none.
+     */
+    private static int boundary(ByteBuffer data, int from) {
+        int size = data.limit();
+        int pos = lineStart(data, from) ? from : nextLine(data, from);
+        boolean transitions = false; // whether a ";;;" line has been passed
+        while (pos < size) {
+            int next = nextLine(data, pos);
+            int start = pos;
+            int end = next;
+            while (start < end && (data.get(start) & 0xff) <= ' ') {
+                start++;
+            }
+            while (end > start && (data.get(end - 1) & 0xff) <= ' ') {
+                end--;
+            }
+            if (transitions && start < end && data.get(start) == 'R') {
+                return pos;
+            }
+            if (end - start == 3 && data.get(start) == ';' && data.get(start + 1) == ';'
+                && data.get(start + 2) == ';') {
+                transitions = true;
+            }
+            pos = next;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the start of the line after the one containing pos, treating "\r\n" as one line
+     * separator.
+     */
+    private static int nextLine(ByteBuffer data, int pos) {
+        int size = data.limit();
+        Charset charset = Charset.defaultCharset();
+        int length = 0;
+        while (pos < size && (length = LineReader.separatorLength(data, pos, charset)) == 0) {
+            pos++;
+        }
+        if (pos < size && data.get(pos) == '\r' && pos + 1 < size && data.get(pos + 1) == '\n') {
+            length = 2;
+        }
+        return Math.min(pos + Math.max(length, 1), size);
+    }
+
+    /**
+     * Returns whether pos is the start of a line, that is, the start of the file or the end of a
+     * line separator of one to three bytes.
+     */
+    private static boolean lineStart(ByteBuffer data, int pos) {
+        Charset charset = Charset.defaultCharset();
+        for (int length = 1; length <= 3 && length <= pos; length++) {
+            if (LineReader.separatorLength(data, pos - length, charset) == length) {
+                return true;
+            }
+        }
+        return pos == 0;
+    }
+
+    /**
+     * A channel that reads the remaining bytes of a ByteBuffer, so a LineReader can decode a
+     * chunk of a mapped file.
+     */
+    private static class BufferChannel implements ReadableByteChannel {
+        private final ByteBuffer src; // the bytes not read yet
+        private boolean open = true; // false once closed
+
+        private BufferChannel(ByteBuffer src) {
+            this.src = src;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), src.remaining());
+            dst.put(src.slice(src.position(), n));
+            src.position(src.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
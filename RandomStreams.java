@@ -0,0 +1,124 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, RandomStreams.java
+// This File: RandomStreams.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+/**
+ * Creates the generators weighted transitions are selected with, one per session.
+ *
+ * In LEGACY mode every session draws from a Random seeded with the master seed itself, so every
+ * session, and every game the main method plays, selects the same transitions as before sessions
+ * had their own streams, and as the expectations of the original tests. Otherwise, a session draws
+ * from a generator of the named RandomGenerator algorithm, such as L64X128MixRandom or
+ * SplittableRandom, seeded with sessionSeed(masterSeed, sessionId). Each session then has its own
+ * stream that does not depend on how many other sessions run or in which order they step, and
+ * that is the same every time the same master seed and session id are used, so a replay of the
+ * session is reproducible. These generators are not shared between threads, so unlike a shared
+ * Random they do not update their state with a compare-and-set.
+ *
+ * @author Benjamin Tarmann
+ */
+public class RandomStreams {
+
+    /**
+     * The mode in which every session draws from a Random seeded with the master seed
+     */
+    public static final String LEGACY = "legacy";
+
+    private static final Map<String, RandomGeneratorFactory<RandomGenerator>> factories =
+        new ConcurrentHashMap<>(); // the factories of the algorithms used so far
+
+    /**
+     * Only has static methods.
+     */
+    private RandomStreams() {}
+
+    /**
+     * Checks that an algorithm can create generators.
+     *
+     * @param algorithm LEGACY or the name of a RandomGenerator algorithm.
+     * @throws IllegalArgumentException If there is no such algorithm.
+     */
+    public static void check(String algorithm) {
+        if (!LEGACY.equals(algorithm)) {
+            factory(algorithm);
+        }
+    }
+
+    /**
+     * Returns the seed of the generator of a session: the master seed in LEGACY mode, otherwise
+     * the master seed and the session id mixed by the SplitMix64 finalizer, so consecutive session
+     * ids give unrelated seeds.
+     *
+     * @param algorithm LEGACY or the name of a RandomGenerator algorithm.
+     * @param masterSeed The seed of every session, see Settings.seed.
+     * @param sessionId The id of the session.
+     * @return The seed.
+     */
+    public static long sessionSeed(String algorithm, long masterSeed, long sessionId) {
+        if (LEGACY.equals(algorithm)) {
+            return masterSeed;
+        }
+        long z = masterSeed + (sessionId + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Creates the generator of a session.
+     *
+     * @param algorithm LEGACY or the name of a RandomGenerator algorithm.
+     * @param masterSeed The seed of every session, see Settings.seed.
+     * @param sessionId The id of the session.
+     * @return The generator.
+     * @throws IllegalArgumentException If there is no such algorithm.
+     */
+    public static RandomGenerator forSession(String algorithm, long masterSeed, long sessionId) {
+        return create(algorithm, sessionSeed(algorithm, masterSeed, sessionId));
+    }
+
+    /**
+     * Creates a generator seeded with a seed from sessionSeed, as a Replayer recreates the
+     * generator of a recorded session.
+     *
+     * @param algorithm LEGACY or the name of a RandomGenerator algorithm.
+     * @param seed The seed.
+     * @return A Random in LEGACY mode, otherwise a generator of the algorithm.
+     * @throws IllegalArgumentException If there is no such algorithm.
+     */
+    public static RandomGenerator create(String algorithm, long seed) {
+        if (LEGACY.equals(algorithm)) {
+            return new Random(seed);
+        }
+        if (algorithm.equals("SplittableRandom")) {
+            return new SplittableRandom(seed); // skips the reflection of the factory
+        }
+        return factory(algorithm).create(seed);
+    }
+
+    /**
+     * Returns the factory of an algorithm, looking it up only the first time.
+     */
+    private static RandomGeneratorFactory<RandomGenerator> factory(String algorithm) {
+        RandomGeneratorFactory<RandomGenerator> factory = factories.get(algorithm);
+        if (factory == null) {
+            factory = RandomGeneratorFactory.of(algorithm); // throws if there is none
+            factories.put(algorithm, factory);
+        }
+        return factory;
+    }
+}
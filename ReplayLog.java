@@ -0,0 +1,413 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, ReplayLog.java
+// This File: ReplayLog.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The record of one playthrough, from which Replayer plays it again without a player: the hash of
+ * the story played, the algorithm and seed of the session's generator, the room it started in, and
+ * for each step the index of the transition the player chose or the weighted transition that was
+ * selected, or that the player quit. Replaying the steps against the same story with the same seed
+ * reaches the same rooms and outcome, so a player's report can be reproduced from its log, and
+ * recorded playthroughs can be replayed against an edited story to find the ones it changes.
+ *
+ * A log is written as a few header fields followed by one variable-length int per step, so most
+ * steps take a single byte. Logs are appended one after another to a replay file by a Writer and
+ * read back with readAll.
+ *
+ * Sessions record their log if they are started with AdventureEngine.newRecordedSession.
+ *
+ * @author Benjamin Tarmann
+ */
+public class ReplayLog {
+    /**
+     * The step recorded when the player quits
+     */
+    public static final int QUIT = -1;
+
+    private static final int MAGIC = 0x52504C32; // "RPL2", the start of every log
+    private static final int MAGIC_V1 = 0x52504C31; // "RPL1", a log without its algorithm
+    private static final byte UNFINISHED = 0; // the outcome of a log that did not end
+    private static final byte SUCCESS = 1; // the outcome of a log ending with Config.SUCCESS
+    private static final byte FAIL = 2; // the outcome of a log ending with Config.FAIL
+
+    private final long storyHash; // the hash of the story played, see hash
+    private final String random; // the algorithm of the generator, see RandomStreams
+    private final long seed; // the seed of the generator weighted transitions were selected with
+    private final boolean alias; // whether they were selected with the alias method
+    private final String startRoom; // the id of the room the playthrough started in
+    private final int[] steps; // the steps, see step
+    private final String outcome; // Config.SUCCESS, Config.FAIL or null if unfinished
+
+    /**
+     * Creates a log. Use a Recorder or read to create instances.
+     */
+    private ReplayLog(long storyHash, String random, long seed, boolean alias, String startRoom,
+        int[] steps, String outcome) {
+        this.storyHash = storyHash;
+        this.random = random;
+        this.seed = seed;
+        this.alias = alias;
+        this.startRoom = startRoom;
+        this.steps = steps;
+        this.outcome = outcome;
+    }
+
+    /**
+     * Records a playthrough as it is played.
+     */
+    public static class Recorder {
+        private final long storyHash; // the hash of the story played
+        private final String random; // the algorithm of the session's generator
+        private final long seed; // the seed of the session's generator
+        private final boolean alias; // Config.ALIAS_SAMPLING when recording started
+        private final String startRoom; // the id of the room the playthrough started in
+        private int[] steps = new int[16]; // the steps recorded
+        private int numSteps; // the number of steps recorded
+
+        /**
+         * Starts recording a playthrough.
+         *
+         * @param storyHash The hash of the story, see hash.
+         * @param random The algorithm of the generator weighted transitions are selected with.
+         * @param seed The seed of the generator, from RandomStreams.sessionSeed.
+         * @param startRoom The id of the room the playthrough starts in.
+         */
+        public Recorder(long storyHash, String random, long seed, String startRoom) {
+            this.storyHash = storyHash;
+            this.random = random;
+            this.seed = seed;
+            this.alias = Config.ALIAS_SAMPLING;
+            this.startRoom = startRoom;
+        }
+
+        /**
+         * Records a transition chosen by the player.
+         *
+         * @param choice The index of the transition in its room.
+         */
+        public void chose(int choice) {
+            add(choice << 1);
+        }
+
+        /**
+         * Records a weighted transition that was selected.
+         *
+         * @param choice The index of the transition in its room.
+         */
+        public void selected(int choice) {
+            add(choice << 1 | 1);
+        }
+
+        /**
+         * Records that the player quit.
+         */
+        public void quit() {
+            add(QUIT);
+        }
+
+        /**
+         * Adds a step.
+         */
+        private void add(int step) {
+            if (numSteps == steps.length) {
+                steps = Arrays.copyOf(steps, numSteps * 2);
+            }
+            steps[numSteps++] = step;
+        }
+
+        /**
+         * Returns the log of the steps recorded so far.
+         *
+         * @param outcome Config.SUCCESS or Config.FAIL if the playthrough has ended, otherwise
+         *                null.
+         * @return The log.
+         */
+        public ReplayLog log(String outcome) {
+            return new ReplayLog(storyHash, random, seed, alias, startRoom,
+                Arrays.copyOf(steps, numSteps), outcome);
+        }
+    }
+
+    /**
+     * Appends logs to a replay file. A Writer is thread-safe, so every session of a server can
+     * hand it its log.
+     */
+    public static class Writer implements Consumer<ReplayLog>, Closeable {
+        private final DataOutputStream out; // the replay file
+
+        /**
+         * Opens a replay file, appending to it if it exists.
+         *
+         * @param fileName The name of the replay file.
+         * @throws IOException If the file cannot be opened.
+         */
+        public Writer(String fileName) throws IOException {
+            this.out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName, true), 65536));
+        }
+
+        /**
+         * Appends a log to the file. Logs are buffered until flush or close.
+         *
+         * @param log The log.
+         * @throws UncheckedIOException If the log cannot be written.
+         */
+        @Override
+        public synchronized void accept(ReplayLog log) {
+            try {
+                log.write(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the buffered logs to the file.
+         *
+         * @throws IOException If the logs cannot be written.
+         */
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns a hash of everything about a story that decides where a playthrough goes: the room
+     * ids and, for each transition, its description, destination and weight. Titles and room
+     * descriptions are not hashed, so editing the text of a room does not change the hash.
+     *
+     * @param story The story.
+     * @return The 64-bit FNV-1a hash of the story.
+     */
+    public static long hash(Story story) {
+        long hash = 0xcbf29ce484222325L;
+        for (int room = 0; room < story.size(); room++) {
+            hash = hash(hash, story.id(room));
+            for (int t = story.transitionStart(room); t < story.transitionEnd(room); t++) {
+                hash = hash(hash, story.transitionDescription(t));
+                hash = hash(hash, story.transitionRoomId(t));
+                hash = hash(hash, story.transitionWeight(t));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a String, or null, to an FNV-1a hash.
+     */
+    private static long hash(long hash, String s) {
+        if (s == null) {
+            return (hash ^ 0xffff) * 0x100000001b3L;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xfffe) * 0x100000001b3L; // ends the String, so "ab","c" is not "a","bc"
+    }
+
+    /**
+     * Returns the hash of the story played.
+     *
+     * @return The hash, see hash(Story).
+     */
+    public long storyHash() {
+        return storyHash;
+    }
+
+    /**
+     * Returns the algorithm of the generator weighted transitions were selected with.
+     *
+     * @return RandomStreams.LEGACY or the name of a RandomGenerator algorithm.
+     */
+    public String random() {
+        return random;
+    }
+
+    /**
+     * Returns the seed of the generator weighted transitions were selected with, from which
+     * RandomStreams.create recreates it.
+     *
+     * @return The seed.
+     */
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Returns whether weighted transitions were selected with the alias method, see
+     * Config.ALIAS_SAMPLING.
+     *
+     * @return true if they were selected with WeightTable.sampleAliasIndex.
+     */
+    public boolean alias() {
+        return alias;
+    }
+
+    /**
+     * Returns the id of the room the playthrough started in.
+     *
+     * @return The room id.
+     */
+    public String startRoom() {
+        return startRoom;
+    }
+
+    /**
+     * Returns the number of steps recorded.
+     *
+     * @return The number of steps.
+     */
+    public int numSteps() {
+        return steps.length;
+    }
+
+    /**
+     * Returns a step: QUIT, or twice the index of the transition taken in its room, plus 1 if it
+     * was a weighted transition that was selected rather than chosen by the player.
+     *
+     * @param i The number of the step, from 0.
+     * @return The step.
+     */
+    public int step(int i) {
+        return steps[i];
+    }
+
+    /**
+     * Returns the outcome of the playthrough.
+     *
+     * @return Config.SUCCESS, Config.FAIL, or null if the playthrough had not ended.
+     */
+    public String outcome() {
+        return outcome;
+    }
+
+    /**
+     * Writes the log.
+     *
+     * @param out The output to write to.
+     * @throws IOException If the log cannot be written.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(storyHash);
+        out.writeUTF(random);
+        out.writeLong(seed);
+        out.writeBoolean(alias);
+        out.writeUTF(startRoom);
+        out.writeByte(Config.SUCCESS.equals(outcome) ? SUCCESS
+            : Config.FAIL.equals(outcome) ? FAIL : UNFINISHED);
+        writeVarInt(out, steps.length);
+        for (int step : steps) {
+            writeVarInt(out, step + 1); // QUIT is written as 0
+        }
+    }
+
+    /**
+     * Reads a log written by write, or by an earlier version that did not write the algorithm,
+     * whose sessions all drew from a Random.
+     *
+     * @param in The input to read from.
+     * @return The log.
+     * @throws EOFException If the input ends before the first byte of the log.
+     * @throws IOException If the input cannot be read or does not hold a log.
+     */
+    public static ReplayLog read(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC && magic != MAGIC_V1) {
+            throw new IOException("Not a replay log");
+        }
+        long storyHash = in.readLong();
+        String random = magic == MAGIC ? in.readUTF() : RandomStreams.LEGACY;
+        long seed = in.readLong();
+        boolean alias = in.readBoolean();
+        String startRoom = in.readUTF();
+        byte code = in.readByte();
+        String outcome = code == SUCCESS ? Config.SUCCESS : code == FAIL ? Config.FAIL : null;
+        int numSteps = readVarInt(in);
+        if (numSteps < 0) {
+            throw new IOException("Invalid replay log");
+        }
+        int[] steps = new int[numSteps];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = readVarInt(in) - 1;
+        }
+        return new ReplayLog(storyHash, random, seed, alias, startRoom, steps, outcome);
+    }
+
+    /**
+     * Reads every log of a replay file.
+     *
+     * @param fileName The name of the replay file.
+     * @return The logs, in the order they were written.
+     * @throws IOException If the file cannot be read or a log in it is incomplete.
+     */
+    public static ArrayList<ReplayLog> readAll(String fileName) throws IOException {
+        ArrayList<ReplayLog> logs = new ArrayList<ReplayLog>();
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(fileName), 65536))) {
+            while (true) {
+                in.mark(1);
+                if (in.read() == -1) {
+                    return logs;
+                }
+                in.reset();
+                logs.add(read(in));
+            }
+        }
+    }
+
+    /**
+     * Writes a non-negative int in 7-bit groups, lowest first, with the high bit of each byte set
+     * if another byte follows.
+     */
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an int written by writeVarInt.
+     */
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid replay log");
+    }
+}
@@ -0,0 +1,358 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Replayer.java
+// This File: Replayer.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.random.RandomGenerator;
+
+/**
+ * Plays ReplayLogs again against a story, without a player or any console output, and reports
+ * the logs whose playthrough no longer goes where it went when it was recorded.
+ *
+ * A log is replayed by following the rules of a Session from its start room: weighted transitions
+ * are selected again with a generator of the log's algorithm and seed, and must select the
+ * transition the log recorded; the player's choices are taken from the log, and must still lead
+ * somewhere. A replay diverges at the first step that does not, or if it ends with another outcome
+ * than the log. Replaying a log against the story it was recorded from never diverges.
+ *
+ * Like the Simulator, the replayer classifies every room once, so a step costs an array lookup
+ * and, in weighted rooms, one random value. Logs are replayed in batches on a ForkJoinPool.
+ *
+ * Usage: java Replayer storyFile replayFile [-show n]
+ *
+ * @author Benjamin Tarmann
+ */
+public class Replayer {
+    private static final int LOGS_PER_BATCH = 1024; // logs replayed by one task
+    private static final int MAX_DIVERGENCES = 100; // divergences a Result keeps the details of
+    private static final byte CHOICE = 0; // the player chooses a transition
+    private static final byte WEIGHTED = 1; // a weighted transition is selected
+    private static final byte SUCCESS = 2; // the story ends with Config.SUCCESS
+    private static final byte FAIL = 3; // the story ends with Config.FAIL
+
+    private final Story story; // the story to replay the logs against
+    private final long storyHash; // the hash of story, see ReplayLog.hash
+    private final byte[] kind; // CHOICE, WEIGHTED, SUCCESS or FAIL for every room
+    private final WeightTable[] weights; // the weights of every WEIGHTED room
+
+    /**
+     * The outcome of replaying a number of logs.
+     */
+    public static class Result {
+        private long replayed; // the number of logs replayed
+        private long diverged; // logs whose replay diverged
+        private long otherStory; // logs recorded from a story with another hash
+        private long steps; // the steps replayed
+        private final ArrayList<String> divergences = new ArrayList<String>(); // the first ones
+
+        /**
+         * Adds the outcome of other to this result.
+         */
+        private void add(Result other) {
+            replayed += other.replayed;
+            diverged += other.diverged;
+            otherStory += other.otherStory;
+            steps += other.steps;
+            for (String divergence : other.divergences) {
+                if (divergences.size() < MAX_DIVERGENCES) {
+                    divergences.add(divergence);
+                }
+            }
+        }
+
+        /**
+         * Returns the number of logs replayed.
+         *
+         * @return The number of logs.
+         */
+        public long replayed() {
+            return replayed;
+        }
+
+        /**
+         * Returns the number of logs whose replay diverged.
+         *
+         * @return The number of logs.
+         */
+        public long diverged() {
+            return diverged;
+        }
+
+        /**
+         * Returns the number of logs recorded from a story with another hash than the story they
+         * were replayed against. Such logs may still replay without diverging.
+         *
+         * @return The number of logs.
+         */
+        public long otherStory() {
+            return otherStory;
+        }
+
+        /**
+         * Returns the number of steps replayed, up to the divergence of each log that diverged.
+         *
+         * @return The number of steps.
+         */
+        public long steps() {
+            return steps;
+        }
+
+        /**
+         * Returns how the first logs that diverged did, in the order of the logs, up to
+         * MAX_DIVERGENCES of them, such as "log 12, step 3: room 7 has no transition 4".
+         *
+         * @return The divergences.
+         */
+        public List<String> divergences() {
+            return divergences;
+        }
+
+        /**
+         * Returns a report of the replay: the counts and the first divergences.
+         *
+         * @param show The number of divergences to list.
+         * @return The report.
+         */
+        public String report(int show) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("replayed: %d logs, %d steps%n", replayed, steps));
+            sb.append(String.format("diverged: %d%n", diverged));
+            sb.append(String.format("recorded from another story: %d%n", otherStory));
+            for (int i = 0; i < Math.min(show, divergences.size()); i++) {
+                sb.append("  ").append(divergences.get(i)).append(System.lineSeparator());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Creates a replayer.
+     *
+     * @param story The story to replay logs against.
+     */
+    public Replayer(Story story) {
+        this.story = story;
+        this.storyHash = ReplayLog.hash(story);
+        this.kind = new byte[story.size()];
+        this.weights = new WeightTable[story.size()];
+        for (int room = 0; room < kind.length; room++) {
+            int start = story.transitionStart(room);
+            String desc = story.transitionEnd(room) - start == 1
+                ? story.transitionDescription(start) : null;
+            if (Config.SUCCESS.equals(desc)) {
+                kind[room] = SUCCESS;
+            } else if (Config.FAIL.equals(desc)) {
+                kind[room] = FAIL;
+            } else if (story.weights(room) != WeightTable.NONE) {
+                kind[room] = WEIGHTED;
+                weights[room] = story.weights(room);
+            } else {
+                kind[room] = CHOICE;
+            }
+        }
+    }
+
+    /**
+     * Replays one log.
+     *
+     * @param log The log.
+     * @return null if the replay did not diverge, otherwise how it diverged.
+     */
+    public String replay(ReplayLog log) {
+        Result result = new Result();
+        replay(log, 0, result);
+        return result.divergences.isEmpty() ? null : result.divergences.get(0);
+    }
+
+    /**
+     * Replays logs on the common ForkJoinPool.
+     *
+     * @param logs The logs.
+     * @return The outcome of the replays.
+     */
+    public Result replayAll(List<ReplayLog> logs) {
+        return replayAll(logs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Replays logs.
+     *
+     * @param logs The logs.
+     * @param pool The pool to replay the logs on.
+     * @return The outcome of the replays.
+     */
+    public Result replayAll(List<ReplayLog> logs, ForkJoinPool pool) {
+        return pool.invoke(new Batch(logs, 0, logs.size()));
+    }
+
+    /**
+     * Replays a range of logs, splitting it in halves until a half fits in one batch.
+     */
+    private class Batch extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+        private final List<ReplayLog> logs; // the logs
+        private final int from; // the first log of the range
+        private final int to; // the end of the range (exclusive)
+
+        private Batch(List<ReplayLog> logs, int from, int to) {
+            this.logs = logs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from <= LOGS_PER_BATCH) {
+                Result result = new Result();
+                for (int i = from; i < to; i++) {
+                    replay(logs.get(i), i, result);
+                }
+                return result;
+            }
+            int mid = (from + to) >>> 1;
+            Batch left = new Batch(logs, from, mid);
+            Batch right = new Batch(logs, mid, to);
+            right.fork();
+            Result result = left.compute();
+            result.add(right.join()); // the left half's divergences come first
+            return result;
+        }
+    }
+
+    /**
+     * Replays one log and adds it to result.
+     *
+     * @param log The log.
+     * @param number The number of the log, for the divergence message.
+     * @param result The outcome to add the replay to.
+     */
+    private void replay(ReplayLog log, int number, Result result) {
+        result.replayed++;
+        if (log.storyHash() != storyHash) {
+            result.otherStory++;
+        }
+        int room = story.indexOf(log.startRoom());
+        if (room == -1) {
+            diverged(result, number, 0, "the start room " + log.startRoom() + " does not exist");
+            return;
+        }
+        RandomGenerator rand;
+        try {
+            rand = RandomStreams.create(log.random(), log.seed());
+        } catch (IllegalArgumentException e) {
+            diverged(result, number, 0, "the algorithm " + log.random() + " does not exist");
+            return;
+        }
+        String outcome = null;
+        for (int i = 0; i < log.numSteps(); i++) {
+            byte k = kind[room];
+            int step = log.step(i);
+            if (k == SUCCESS || k == FAIL) {
+                diverged(result, number, i, "the story ended in room " + story.id(room));
+                return;
+            }
+            if (step == ReplayLog.QUIT) {
+                outcome = Config.FAIL;
+                if (i + 1 < log.numSteps()) {
+                    diverged(result, number, i + 1, "the log continues after quitting");
+                    return;
+                }
+                result.steps++;
+                break;
+            }
+            int choice = step >> 1;
+            boolean selected = (step & 1) == 1;
+            if (k == WEIGHTED) {
+                int again = log.alias() ? weights[room].sampleAliasIndex(rand)
+                    : weights[room].sampleIndex(rand);
+                if (!selected || again != choice) {
+                    diverged(result, number, i, "room " + story.id(room) + " selected transition "
+                        + again + " instead of " + (selected ? "" : "the chosen ") + choice);
+                    return;
+                }
+            } else if (selected) {
+                diverged(result, number, i, "room " + story.id(room) + " has no weights");
+                return;
+            }
+            int start = story.transitionStart(room);
+            int target = choice < story.transitionEnd(room) - start
+                ? story.target(start + choice) : -1;
+            if (target == -1) {
+                diverged(result, number, i, "room " + story.id(room) + " has no transition "
+                    + choice + " to a room");
+                return;
+            }
+            room = target;
+            result.steps++;
+        }
+        if (outcome == null && log.outcome() != null) {
+            outcome = kind[room] == SUCCESS ? Config.SUCCESS
+                : kind[room] == FAIL ? Config.FAIL : null;
+        }
+        if (outcome == null ? log.outcome() != null : !outcome.equals(log.outcome())) {
+            diverged(result, number, log.numSteps(), "the story ended with " + outcome
+                + " instead of " + log.outcome());
+        }
+    }
+
+    /**
+     * Counts a replay that diverged, keeping its message if there are not too many.
+     */
+    private static void diverged(Result result, int number, int step, String message) {
+        result.diverged++;
+        if (result.divergences.size() < MAX_DIVERGENCES) {
+            result.divergences.add("log " + number + ", step " + step + ": " + message);
+        }
+    }
+
+    /**
+     * Replays every log of a replay file against a story and prints the outcome.
+     *
+     * @param args The story filename and the replay filename, followed by -show and the number of
+     *             divergences to list, 10 by default.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java Replayer storyFile replayFile [-show n]");
+            return;
+        }
+        int show = 10;
+        try {
+            if (args.length > 3 && args[2].equals("-show")) {
+                show = Integer.parseInt(args[3]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        AdventureEngine engine = AdventureEngine.load(args[0]);
+        if (engine == null) {
+            return;
+        }
+        ArrayList<ReplayLog> logs;
+        try {
+            logs = ReplayLog.readAll(args[1]);
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + args[1]);
+            return;
+        }
+        long start = System.nanoTime();
+        Result result = new Replayer(engine.story()).replayAll(logs);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.print(result.report(show));
+        System.out.println(String.format("%.3f s (%.0f steps/s)", seconds,
+            result.steps() / seconds));
+    }
+}
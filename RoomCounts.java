@@ -0,0 +1,112 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, RoomCounts.java
+// This File: RoomCounts.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.Arrays;
+
+/**
+ * Counts the visits to each room of one version of a story, and the transitions taken out of each
+ * room, for Metrics. The counts are kept in a long[] indexed by room, so counting a step of a
+ * Session is an array increment rather than a lookup by room id. The visits and transitions of a
+ * room are next to each other, on the same cache line.
+ *
+ * The counts are incremented without synchronization, so counting costs no more than the
+ * increment. Two threads counting the same room at the same instant may count it once, and a
+ * thread reading the counts may see them a little behind: they are statistics of where players
+ * go, not exact totals.
+ *
+ * Use Metrics.counts to create instances, so Metrics reports their counts.
+ *
+ * @author Benjamin Tarmann
+ */
+public class RoomCounts {
+    private final Story story; // the story whose rooms are counted
+    private final long[] counts; // the visits to room r at 2 * r, its transitions at 2 * r + 1
+
+    /**
+     * Creates counts of 0 for every room of a story.
+     *
+     * @param story The story.
+     */
+    RoomCounts(Story story) {
+        this.story = story;
+        this.counts = new long[2 * story.size()];
+    }
+
+    /**
+     * Returns the story whose rooms are counted.
+     *
+     * @return The story.
+     */
+    public Story story() {
+        return story;
+    }
+
+    /**
+     * Counts a visit to a room.
+     *
+     * @param room The index of the room.
+     */
+    public void visit(int room) {
+        counts[2 * room]++;
+    }
+
+    /**
+     * Counts a transition taken out of a room.
+     *
+     * @param room The index of the room the transition leaves.
+     */
+    public void transition(int room) {
+        counts[2 * room + 1]++;
+    }
+
+    /**
+     * Returns the number of visits to a room.
+     *
+     * @param room The index of the room.
+     * @return The number of visits.
+     */
+    public long visits(int room) {
+        return counts[2 * room];
+    }
+
+    /**
+     * Returns the number of visits to every room.
+     *
+     * @return The number of visits.
+     */
+    public long visits() {
+        long total = 0;
+        for (int i = 0; i < counts.length; i += 2) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of transitions taken out of every room.
+     *
+     * @return The number of transitions.
+     */
+    public long transitions() {
+        long total = 0;
+        for (int i = 1; i < counts.length; i += 2) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Sets every count back to 0. Counts made during the reset may be kept.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+    }
+}
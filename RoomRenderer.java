@@ -0,0 +1,173 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, RoomRenderer.java
+// This File: RoomRenderer.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Renders room text into a reusable StringBuilder and writes it to an Appendable in a single call,
+ * instead of printing it to System.out one character at a time.
+ *
+ * The text produced is exactly what AdventureStory.printLine, AdventureStory.printString and
+ * AdventureStory.displayRoom print: lines are wrapped by the same rules, and every place those
+ * methods call System.out.println ends with System.lineSeparator().
+ *
+ * A RoomRenderer is not thread-safe; use one per output.
+ *
+ * @author Benjamin Tarmann
+ */
+public class RoomRenderer {
+    private static final String NEW_LINE = System.lineSeparator(); // what println outputs
+
+    private final Appendable out; // where the rendered text is written
+    private final StringBuilder buf = new StringBuilder(1024); // text not yet written to out
+
+    /**
+     * Creates a renderer that writes to out.
+     *
+     * @param out The destination of the rendered text, for example System.out or a Writer.
+     */
+    public RoomRenderer(Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * Renders a room, as AdventureStory.displayRoom prints it, into the buffer.
+     *
+     * @param title The room's title, or null.
+     * @param description The room's description, or null.
+     * @param width The maximum number of characters per line.
+     * @param lineChar The character of the divider lines.
+     * @return This renderer.
+     */
+    public RoomRenderer room(String title, String description, int width, char lineChar) {
+        appendRoom(buf, title, description, width, lineChar);
+        return this;
+    }
+
+    /**
+     * Adds text to the buffer as is.
+     *
+     * @param text The text to add.
+     * @return This renderer.
+     */
+    public RoomRenderer text(CharSequence text) {
+        buf.append(text);
+        return this;
+    }
+
+    /**
+     * Returns the buffer holding the text that has not been written yet.
+     *
+     * @return The buffer.
+     */
+    public StringBuilder buffer() {
+        return buf;
+    }
+
+    /**
+     * Writes the buffered text to the output with a single append, and flushes the output if it
+     * is Flushable.
+     *
+     * @throws IOException If the output cannot be written.
+     */
+    public void flush() throws IOException {
+        if (buf.length() > 0) {
+            out.append(buf);
+            buf.setLength(0);
+        }
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    /**
+     * Appends a line of len characters c, terminated by a new line, as AdventureStory.printLine
+     * prints it.
+     *
+     * @param sb The StringBuilder to append to.
+     * @param len The number of times to append c.
+     * @param c The character to append.
+     */
+    public static void appendLine(StringBuilder sb, int len, char c) {
+        for (int i = 0; i < len; i++) {
+            sb.append(c);
+        }
+        sb.append(NEW_LINE);
+    }
+
+    /**
+     * Appends a String formatted into lines of length no more than len characters, as
+     * AdventureStory.printString prints it. See that method for the wrapping rules.
+     *
+     * @param sb The StringBuilder to append to.
+     * @param len The maximum number of characters per line.
+     * @param val The string to append.
+     */
+    public static void appendString(StringBuilder sb, int len, String val) {
+        int counterVal = 0;
+        for (int i = 0; i < val.length(); i++) {
+            char c = val.charAt(i);
+            // checks for a newline
+            if (c == '\n') {
+                sb.append(c);
+                counterVal = 0;
+            } else if (counterVal >= len - 1) {
+                // the number of characters on the line meets the max per line
+                if (Character.isWhitespace(c)) {
+                    sb.append('\n');
+                    counterVal = 0;
+                } else if (!Character.isLetterOrDigit(c)) {
+                    sb.append(c).append('\n');
+                    counterVal = 0;
+                } else {
+                    if (i > 0 && Character.isWhitespace(val.charAt(i - 1))) {
+                        sb.append('\n').append(c);
+                    } else {
+                        sb.append('-').append('\n').append(c);
+                    }
+                    counterVal = 1;
+                }
+            } else {
+                sb.append(c);
+                counterVal++;
+            }
+        }
+        sb.append(NEW_LINE);
+    }
+
+    /**
+     * Appends the divider lines, title and description of a room, as AdventureStory.displayRoom
+     * prints them.
+     *
+     * @param sb The StringBuilder to append to.
+     * @param title The room's title, or null.
+     * @param description The room's description, or null.
+     * @param width The maximum number of characters per line.
+     * @param lineChar The character of the divider lines.
+     */
+    public static void appendRoom(StringBuilder sb, String title, String description, int width,
+        char lineChar) {
+        appendLine(sb, width, lineChar);
+        if (title != null) {
+            appendString(sb, width, title);
+        } else {
+            sb.append(NEW_LINE);
+        }
+        sb.append(NEW_LINE);
+        if (description != null) {
+            appendString(sb, width, description);
+        } else {
+            sb.append(NEW_LINE);
+        }
+        appendLine(sb, width, lineChar);
+    }
+}
@@ -0,0 +1,190 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, RoomTextCache.java
+// This File: RoomTextCache.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of fully rendered room blocks of one story: the divider lines, title and
+ * description of a room as displayRoom prints them, wrapped for a display width. Rooms that are
+ * entered again, such as the rocking chair rooms of Goldilocks.story, are printed from the cache
+ * instead of being wrapped again.
+ *
+ * Blocks are keyed by room index, display width and line character. When the cache is full, the
+ * least recently used block is evicted. A cache created to verify its hits only uses a cached
+ * block if the room's title and description are still the ones it was rendered from, for a Story
+ * implementation that can change in place. A cache of an immutable story, such as a StoryGraph or
+ * the story of an AdventureEngine.Version, skips that check, so a hit does not fetch the title and
+ * description at all, which for an IndexedStory or StoryImage means decoding them.
+ *
+ * The cache is thread-safe.
+ *
+ * @author Benjamin Tarmann
+ */
+public class RoomTextCache {
+    private final Story story; // the story the rooms belong to
+    private final boolean verify; // whether hits are checked against the room's current text
+    private final LinkedHashMap<Long, Block> blocks; // rendered blocks in access order
+    private final LongAdder hits = new LongAdder(); // lookups answered from the cache
+    private final LongAdder misses = new LongAdder(); // lookups that rendered the room
+
+    /**
+     * A rendered room and the text it was rendered from.
+     */
+    private static class Block {
+        private final String title; // the room's title when rendered
+        private final String description; // the room's description when rendered
+        private final String text; // the rendered block
+
+        private Block(String title, String description, String text) {
+            this.title = title;
+            this.description = description;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Creates an empty cache of a story that may change in place.
+     *
+     * @param story The story whose rooms are cached.
+     * @param maxEntries The maximum number of blocks to keep.
+     */
+    public RoomTextCache(Story story, int maxEntries) {
+        this(story, maxEntries, true);
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param story The story whose rooms are cached.
+     * @param maxEntries The maximum number of blocks to keep.
+     * @param verify true if the story may change in place, so cached blocks are checked against
+     *               the room's current title and description; false if it never changes.
+     */
+    public RoomTextCache(Story story, int maxEntries, boolean verify) {
+        this.story = story;
+        this.verify = verify;
+        this.blocks = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the story whose rooms are cached.
+     *
+     * @return The story.
+     */
+    public Story story() {
+        return story;
+    }
+
+    /**
+     * Returns the rendered block of a room, rendering and caching it if it is not cached yet.
+     *
+     * @param room The index of the room.
+     * @param width The maximum number of characters per line.
+     * @param lineChar The character of the divider lines.
+     * @return The divider lines, title and description of the room, see RoomRenderer.appendRoom.
+     */
+    public String render(int room, int width, char lineChar) {
+        Long key = ((long) room << 32) | ((long) (width & 0xFFFF) << 16) | lineChar;
+        boolean cacheable = width >= 0 && width <= 0xFFFF;
+        String title = null;
+        String description = null;
+
+        if (cacheable) {
+            Block block;
+            synchronized (blocks) {
+                block = blocks.get(key);
+            }
+            if (block != null && !verify) {
+                hits.increment();
+                return block.text;
+            }
+            if (block != null) {
+                title = story.title(room);
+                description = story.description(room);
+                if (same(block.title, title) && same(block.description, description)) {
+                    hits.increment();
+                    return block.text;
+                }
+            }
+        }
+
+        misses.increment();
+        if (title == null && description == null) {
+            title = story.title(room);
+            description = story.description(room);
+        }
+        StringBuilder sb = new StringBuilder(64 + (title == null ? 0 : title.length())
+            + (description == null ? 0 : description.length() * 9 / 8));
+        RoomRenderer.appendRoom(sb, title, description, width, lineChar);
+        String text = sb.toString();
+        if (cacheable) {
+            synchronized (blocks) {
+                blocks.put(key, verify ? new Block(title, description, text)
+                    : new Block(null, null, text));
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Returns whether two room texts are the same, comparing references before contents.
+     */
+    private static boolean same(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return The number of hits.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that had to render the room.
+     *
+     * @return The number of misses.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of blocks in the cache.
+     *
+     * @return The number of cached blocks.
+     */
+    public int size() {
+        synchronized (blocks) {
+            return blocks.size();
+        }
+    }
+
+    /**
+     * Removes every block from the cache.
+     */
+    public void clear() {
+        synchronized (blocks) {
+            blocks.clear();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Session.java
+// This File: Session.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.random.RandomGenerator;
+
+/**
+ * One player's progress through a story hosted by an AdventureEngine. A session holds only the
+ * index of its current room, its outcome once the story has ended, and its own generator; the
+ * story itself is shared with every other session of the engine.
+ *
+ * A session follows the rules of the main method's story loop:
+ *   - A room whose only transition is Config.SUCCESS or Config.FAIL ends the story with that
+ *     outcome.
+ *   - A room with weighted transitions moves on by itself, selecting a transition as probTrans
+ *     does.
+ *   - Otherwise the player chooses a transition by its index.
+ *
+ * When the engine publishes a new version of the story, the session moves to it the next time it
+ * renders its room, so every turn is played against the version the player was shown. The session
+ * stays in the room with the same id, or goes back to the start room if the room was removed.
+ *
+ * A session started with AdventureEngine.newRecordedSession records each transition it takes, and
+ * whether the player quit, in a ReplayLog. A session that moves to a new version of the story
+ * keeps recording, so its log may diverge when it is replayed against either version.
+ *
+ * A session is not thread-safe; it is meant to be used by one player's thread at a time.
+ *
+ * @author Benjamin Tarmann
+ */
+public class Session {
+    private final AdventureEngine engine; // the engine hosting the story
+    private AdventureEngine.Version version; // the version of the story being played
+    private Story story; // the story of version
+    private final long id; // the number of the session in its engine, from 0
+    private final RandomGenerator rand; // the source of weighted transitions
+    private final Settings settings; // the display width, line character and seed
+    private int room; // the index of the current room
+    private String outcome; // Config.SUCCESS or Config.FAIL once the story has ended
+    private ReplayLog.Recorder recorder; // records the playthrough, or null
+
+    /**
+     * Creates a session. Use AdventureEngine.newSession to create instances.
+     *
+     * @param engine The engine hosting the story.
+     * @param version The version of the story to start in.
+     * @param room The index of the room to start in.
+     * @param id The number of the session in its engine.
+     * @param rand The generator to draw weighted transitions from.
+     * @param settings The settings the session renders its rooms with.
+     */
+    Session(AdventureEngine engine, AdventureEngine.Version version, int room, long id,
+        RandomGenerator rand, Settings settings) {
+        this.engine = engine;
+        this.version = version;
+        this.story = version.story();
+        this.room = room;
+        this.id = id;
+        this.rand = rand;
+        this.settings = settings;
+    }
+
+    /**
+     * Starts recording the playthrough. Used by AdventureEngine.newRecordedSession before the
+     * first step.
+     *
+     * @param recorder The recorder to add the steps to.
+     */
+    void record(ReplayLog.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Returns the log of the playthrough so far, if the session records one.
+     *
+     * @return The log, or null if the session was not started with
+     *         AdventureEngine.newRecordedSession.
+     */
+    public ReplayLog replayLog() {
+        return recorder == null ? null : recorder.log(outcome);
+    }
+
+    /**
+     * Returns the number of this session in its engine, from which the seed of its generator is
+     * derived, see RandomStreams.sessionSeed.
+     *
+     * @return The id, 0 for the first session the engine started.
+     */
+    public long id() {
+        return id;
+    }
+
+    /**
+     * Returns the settings of this session.
+     *
+     * @return The settings.
+     */
+    public Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Returns the engine hosting the story of this session.
+     *
+     * @return The engine.
+     */
+    public AdventureEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Returns the index of the current room.
+     *
+     * @return The current room.
+     */
+    public int room() {
+        return room;
+    }
+
+    /**
+     * Returns the id of the current room.
+     *
+     * @return The current room id.
+     */
+    public String roomId() {
+        return story.id(room);
+    }
+
+    /**
+     * Returns the version of the story this session is playing.
+     *
+     * @return The version.
+     */
+    public AdventureEngine.Version version() {
+        return version;
+    }
+
+    /**
+     * Moves to the latest version of the story if the engine has published one, staying in the
+     * room with the same id, or going back to the start room if there is none.
+     *
+     * @return true if the session moved to a new version.
+     */
+    public boolean update() {
+        AdventureEngine.Version latest = engine.version();
+        if (latest == version) {
+            return false;
+        }
+        int moved = latest.story().indexOf(story.id(room));
+        room = moved == -1 ? latest.startRoom() : moved;
+        version = latest;
+        story = latest.story();
+        return true;
+    }
+
+    /**
+     * Returns whether the story has ended.
+     *
+     * @return true once a terminal room has been left or the player has quit.
+     */
+    public boolean isOver() {
+        return outcome != null;
+    }
+
+    /**
+     * Returns the outcome of the story.
+     *
+     * @return Config.SUCCESS or Config.FAIL once the story has ended, otherwise null.
+     */
+    public String outcome() {
+        return outcome;
+    }
+
+    /**
+     * Returns whether the current room is a terminal room, i.e. its only transition is
+     * Config.SUCCESS or Config.FAIL.
+     *
+     * @return true if the current room ends the story.
+     */
+    public boolean isTerminal() {
+        return terminalOutcome() != null;
+    }
+
+    /**
+     * Returns whether the current room moves on by itself through weighted transitions.
+     *
+     * @return true if the transitions of the current room are weighted.
+     */
+    public boolean isWeighted() {
+        return story.weights(room) != WeightTable.NONE;
+    }
+
+    /**
+     * Returns the number of transitions of the current room. Choices are numbered from 0.
+     *
+     * @return The number of transitions.
+     */
+    public int numChoices() {
+        return story.transitionEnd(room) - story.transitionStart(room);
+    }
+
+    /**
+     * Ends the story of a terminal room with its outcome, or moves on through a weighted
+     * transition. Nothing happens in a room where the player has to choose.
+     *
+     * @return The index of the transition taken, or -1 if there was none or it leads to a room
+     *         that does not exist.
+     */
+    public int step() {
+        String terminal = terminalOutcome();
+        if (terminal != null) {
+            outcome = terminal;
+            return -1;
+        }
+        long start = Metrics.sample();
+        WeightTable weights = story.weights(room);
+        int choice =
+            Config.ALIAS_SAMPLING ? weights.sampleAliasIndex(rand) : weights.sampleIndex(rand);
+        Metrics.PROB_TRANS.stop(start);
+        if (choice == -1 || !move(choice)) {
+            return -1;
+        }
+        if (recorder != null) {
+            recorder.selected(choice);
+        }
+        return choice;
+    }
+
+    /**
+     * Takes a transition of the current room chosen by the player.
+     *
+     * @param choice The index of the transition, from 0 to numChoices() - 1.
+     * @return false if there is no such transition or it leads to a room that does not exist.
+     *         Otherwise, true.
+     */
+    public boolean choose(int choice) {
+        if (isOver() || choice < 0 || choice >= numChoices()) {
+            return false;
+        }
+        if (!move(choice)) {
+            return false;
+        }
+        if (recorder != null) {
+            recorder.chose(choice);
+        }
+        return true;
+    }
+
+    /**
+     * Ends the story as a failure, as quitting the adventure does.
+     */
+    public void quit() {
+        if (recorder != null && outcome == null) {
+            recorder.quit();
+        }
+        outcome = Config.FAIL;
+    }
+
+    /**
+     * Moves to the destination of a transition of the current room.
+     *
+     * @param choice The index of the transition.
+     * @return false if the destination room does not exist.
+     */
+    private boolean move(int choice) {
+        int target = story.target(story.transitionStart(room) + choice);
+        if (target == -1) {
+            return false;
+        }
+        if (Metrics.ENABLED) {
+            version.counts().transition(room);
+        }
+        room = target;
+        return true;
+    }
+
+    /**
+     * Returns the outcome of the current room if it is a terminal room.
+     *
+     * @return Config.SUCCESS or Config.FAIL for a terminal room, otherwise null.
+     */
+    private String terminalOutcome() {
+        if (numChoices() != 1) {
+            return null;
+        }
+        String desc = story.transitionDescription(story.transitionStart(room));
+        if (Config.SUCCESS.equals(desc)) {
+            return Config.SUCCESS;
+        } else if (Config.FAIL.equals(desc)) {
+            return Config.FAIL;
+        }
+        return null;
+    }
+
+    /**
+     * Renders the current room as render(RoomRenderer, int, char) does, with the display width
+     * and line character of the session's settings.
+     *
+     * @param renderer The renderer to add the text to.
+     */
+    public void render(RoomRenderer renderer) {
+        render(renderer, settings.displayWidth(), settings.lineChar());
+    }
+
+    /**
+     * Renders the current room, as displayRoom prints it, followed by the transitions the player
+     * can choose from, as displayTransitions prints them. The session first moves to the latest
+     * version of the story, see update.
+     *
+     * @param renderer The renderer to add the text to.
+     * @param width The maximum number of characters per line.
+     * @param lineChar The character of the divider lines.
+     */
+    public void render(RoomRenderer renderer, int width, char lineChar) {
+        long begin = Metrics.sample();
+        update();
+        if (Metrics.ENABLED) {
+            version.counts().visit(room);
+        }
+        renderer.text(version.roomText().render(room, width, lineChar));
+        if (!isTerminal()) {
+            StringBuilder sb = renderer.buffer();
+            int start = story.transitionStart(room);
+            for (int t = start; t < story.transitionEnd(room); t++) {
+                if (story.transitionWeight(t) == null) {
+                    sb.append(t - start).append(") ").append(story.transitionDescription(t))
+                        .append(System.lineSeparator());
+                }
+            }
+        }
+        Metrics.RENDER.stop(begin);
+    }
+}
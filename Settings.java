@@ -0,0 +1,297 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Settings.java
+// This File: Settings.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The settings a player can change without affecting any other player: the display width, the
+ * character of the divider lines, and the seed and algorithm of the generator weighted transitions
+ * are selected with, see RandomStreams. Settings never change once created; the with methods return
+ * changed copies, so one Settings can be shared by any number of sessions and threads.
+ *
+ * Settings are read from properties, with the keys display.width, line.char, seed and random, or
+ * from command line options, -width, -lineChar, -seed and -random, and -settings to read a
+ * properties file first. Anything not given keeps its default from Config.DISPLAY_WIDTH,
+ * Config.LINE_CHAR, Config.SEED and Config.RANDOM.
+ *
+ * @author Benjamin Tarmann
+ */
+public final class Settings {
+    private final int displayWidth; // the maximum number of characters per line
+    private final char lineChar; // the character of the divider lines
+    private final long seed; // the master seed weighted transitions are selected with
+    private final String random; // RandomStreams.LEGACY or a RandomGenerator algorithm
+
+    /**
+     * Creates settings with the default algorithm, Config.RANDOM.
+     *
+     * @param displayWidth The maximum number of characters per line, at least 1.
+     * @param lineChar The character of the divider lines.
+     * @param seed The master seed weighted transitions are selected with.
+     * @throws IllegalArgumentException If displayWidth is less than 1.
+     */
+    public Settings(int displayWidth, char lineChar, long seed) {
+        this(displayWidth, lineChar, seed, Config.RANDOM);
+    }
+
+    /**
+     * Creates settings.
+     *
+     * @param displayWidth The maximum number of characters per line, at least 1.
+     * @param lineChar The character of the divider lines.
+     * @param seed The master seed weighted transitions are selected with.
+     * @param random RandomStreams.LEGACY or the name of a RandomGenerator algorithm.
+     * @throws IllegalArgumentException If displayWidth is less than 1 or there is no such
+     *                                  algorithm.
+     */
+    public Settings(int displayWidth, char lineChar, long seed, String random) {
+        if (displayWidth < 1) {
+            throw new IllegalArgumentException("Invalid display width: " + displayWidth);
+        }
+        RandomStreams.check(random);
+        this.displayWidth = displayWidth;
+        this.lineChar = lineChar;
+        this.seed = seed;
+        this.random = random;
+    }
+
+    /**
+     * Returns the default settings, Config.DISPLAY_WIDTH, Config.LINE_CHAR, Config.SEED and
+     * Config.RANDOM.
+     *
+     * @return The settings.
+     */
+    public static Settings defaults() {
+        return new Settings(Config.DISPLAY_WIDTH, Config.LINE_CHAR, Config.SEED, Config.RANDOM);
+    }
+
+    /**
+     * Returns the maximum number of characters per line.
+     *
+     * @return The display width.
+     */
+    public int displayWidth() {
+        return displayWidth;
+    }
+
+    /**
+     * Returns the character of the divider lines.
+     *
+     * @return The line character.
+     */
+    public char lineChar() {
+        return lineChar;
+    }
+
+    /**
+     * Returns the master seed weighted transitions are selected with. In RandomStreams.LEGACY
+     * mode it is the seed of every session's Random; otherwise each session's seed is derived from
+     * it and the session id.
+     *
+     * @return The seed.
+     */
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Returns the algorithm of the generators weighted transitions are selected with.
+     *
+     * @return RandomStreams.LEGACY or the name of a RandomGenerator algorithm.
+     */
+    public String random() {
+        return random;
+    }
+
+    /**
+     * Returns these settings with another display width.
+     *
+     * @param displayWidth The maximum number of characters per line, at least 1.
+     * @return The settings.
+     * @throws IllegalArgumentException If displayWidth is less than 1.
+     */
+    public Settings withDisplayWidth(int displayWidth) {
+        return new Settings(displayWidth, lineChar, seed, random);
+    }
+
+    /**
+     * Returns these settings with another line character.
+     *
+     * @param lineChar The character of the divider lines.
+     * @return The settings.
+     */
+    public Settings withLineChar(char lineChar) {
+        return new Settings(displayWidth, lineChar, seed, random);
+    }
+
+    /**
+     * Returns these settings with another seed.
+     *
+     * @param seed The master seed weighted transitions are selected with.
+     * @return The settings.
+     */
+    public Settings withSeed(long seed) {
+        return new Settings(displayWidth, lineChar, seed, random);
+    }
+
+    /**
+     * Returns these settings with another algorithm.
+     *
+     * @param random RandomStreams.LEGACY or the name of a RandomGenerator algorithm.
+     * @return The settings.
+     * @throws IllegalArgumentException If there is no such algorithm.
+     */
+    public Settings withRandom(String random) {
+        return new Settings(displayWidth, lineChar, seed, random);
+    }
+
+    /**
+     * Returns these settings changed by the properties that are set.
+     *
+     * @param props The properties display.width, line.char, seed and random.
+     * @return The settings.
+     * @throws IllegalArgumentException If a property is not a valid value.
+     */
+    public Settings with(Properties props) {
+        Settings settings = this;
+        String width = props.getProperty("display.width");
+        if (width != null) {
+            settings = settings.withDisplayWidth(parseInt("display.width", width));
+        }
+        String line = props.getProperty("line.char");
+        if (line != null) {
+            settings = settings.withLineChar(parseChar("line.char", line));
+        }
+        String seed = props.getProperty("seed");
+        if (seed != null) {
+            settings = settings.withSeed(parseLong("seed", seed));
+        }
+        String random = props.getProperty("random");
+        if (random != null) {
+            settings = settings.withRandom(random.trim());
+        }
+        return settings;
+    }
+
+    /**
+     * Returns these settings changed by the properties of a file.
+     *
+     * @param fileName The name of the properties file.
+     * @return The settings.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a property is not a valid value.
+     */
+    public Settings load(String fileName) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(fileName)) {
+            props.load(in);
+        }
+        return with(props);
+    }
+
+    /**
+     * Returns the default settings changed by command line options: -settings followed by a
+     * properties file, and -width, -lineChar, -seed and -random followed by a value. Options are
+     * applied in order, so an option after -settings overrides the file.
+     *
+     * @param args The options.
+     * @return The settings.
+     * @throws IOException If a properties file cannot be read.
+     * @throws IllegalArgumentException If an option is unknown, has no value or has an invalid
+     *                                  value.
+     */
+    public static Settings parse(String[] args) throws IOException {
+        Settings settings = defaults();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value: " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-settings":
+                    settings = settings.load(value);
+                    break;
+                case "-width":
+                    settings = settings.withDisplayWidth(parseInt("-width", value));
+                    break;
+                case "-lineChar":
+                    settings = settings.withLineChar(parseChar("-lineChar", value));
+                    break;
+                case "-seed":
+                    settings = settings.withSeed(parseLong("-seed", value));
+                    break;
+                case "-random":
+                    settings = settings.withRandom(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Parses an int setting.
+     */
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Parses a long setting.
+     */
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Parses a setting of a single character.
+     */
+    private static char parseChar(String name, String value) {
+        if (value.length() != 1) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        return value.charAt(0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Settings)) {
+            return false;
+        }
+        Settings other = (Settings) o;
+        return displayWidth == other.displayWidth && lineChar == other.lineChar
+            && seed == other.seed && random.equals(other.random);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (Integer.hashCode(displayWidth) * 31 + lineChar) * 31 + Long.hashCode(seed);
+        return hash * 31 + random.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "display.width=" + displayWidth + ", line.char=" + lineChar + ", seed=" + seed
+            + ", random=" + random;
+    }
+}
@@ -0,0 +1,479 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Simulator.java
+// This File: Simulator.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.random.RandomGenerator;
+
+/**
+ * Plays a story automatically many times and reports how the playthroughs went: how many ended in
+ * Config.SUCCESS or Config.FAIL, how many transitions they took, and how often each room was
+ * visited.
+ *
+ * Each playthrough follows the rules of the main method's story loop. Rooms with weighted
+ * transitions move on as probTrans selects, and the choices the player would make in the other
+ * rooms are made by a Policy. A playthrough that has not ended after maxSteps transitions, or that
+ * reaches a room it cannot leave, is counted as unfinished.
+ *
+ * The playthroughs are split into batches of a fixed size that run in parallel on a ForkJoinPool.
+ * Every batch draws from its own SplittableRandom, split off the seed's in a fixed order, so the
+ * results for a given seed are the same whatever the number of cores. The batches of a worker
+ * thread all add to the same statistics, one Result per thread that are added up once at the
+ * end, so a story of many rooms is not allocated and merged once per batch; the counts are sums,
+ * so they do not depend on which thread played which batch.
+ *
+ * Usage: java Simulator storyFile [-runs n] [-policy uniform|first|script:0,2,1] [-seed n]
+ *                                 [-maxSteps n] [-top n]
+ *
+ * @author Benjamin Tarmann
+ */
+public class Simulator {
+    private static final int RUNS_PER_BATCH = 4096; // playthroughs run by one task
+    private static final byte CHOICE = 0; // the player chooses a transition
+    private static final byte WEIGHTED = 1; // a weighted transition is selected
+    private static final byte SUCCESS = 2; // the story ends with Config.SUCCESS
+    private static final byte FAIL = 3; // the story ends with Config.FAIL
+
+    private final Story story; // the story to play
+    private final int startRoom; // the index of the room playthroughs start in
+    private final Policy policy; // makes the player's choices
+    private final int maxSteps; // transitions after which a playthrough is unfinished
+    private final byte[] kind; // CHOICE, WEIGHTED, SUCCESS or FAIL for every room
+    private final WeightTable[] weights; // the weights of every WEIGHTED room
+
+    /**
+     * Chooses the transitions of rooms without weighted transitions, as a player would.
+     */
+    public interface Policy {
+        /**
+         * Chooses a transition of a room.
+         *
+         * @param story The story being played.
+         * @param room The index of the current room.
+         * @param numChoices The number of transitions of the room, at least 1.
+         * @param choice The number of choices made before in this playthrough.
+         * @param rand The random values of this playthrough.
+         * @return The index of the transition, from 0 to numChoices - 1. Any other value leaves
+         *         the playthrough unfinished.
+         */
+        int choose(Story story, int room, int numChoices, int choice, RandomGenerator rand);
+    }
+
+    /**
+     * Chooses every transition with the same probability.
+     */
+    public static final Policy UNIFORM = (story, room, numChoices, choice, rand) -> rand
+        .nextInt(numChoices);
+
+    /**
+     * Always chooses the first transition.
+     */
+    public static final Policy FIRST = (story, room, numChoices, choice, rand) -> 0;
+
+    /**
+     * Returns a policy that makes the given choices in order, and continues with another policy
+     * once they are used up.
+     *
+     * @param script The indexes of the transitions to choose.
+     * @param then The policy for the choices after the script.
+     * @return The policy.
+     */
+    public static Policy scripted(int[] script, Policy then) {
+        int[] choices = script.clone();
+        return (story, room, numChoices, choice, rand) -> choice < choices.length ? choices[choice]
+            : then.choose(story, room, numChoices, choice, rand);
+    }
+
+    /**
+     * The statistics of a number of playthroughs.
+     */
+    public static class Result {
+        private long runs; // the number of playthroughs
+        private long successes; // playthroughs ending with Config.SUCCESS
+        private long failures; // playthroughs ending with Config.FAIL
+        private long unfinished; // playthroughs stopped or stuck before the end
+        private final long[] lengths; // finished playthroughs by number of transitions taken
+        private final long[] visits; // the number of times each room was entered
+
+        private Result(int rooms, int maxSteps) {
+            this.lengths = new long[maxSteps + 1];
+            this.visits = new long[rooms];
+        }
+
+        /**
+         * Adds the statistics of other to this result.
+         */
+        private void add(Result other) {
+            runs += other.runs;
+            successes += other.successes;
+            failures += other.failures;
+            unfinished += other.unfinished;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            for (int i = 0; i < visits.length; i++) {
+                visits[i] += other.visits[i];
+            }
+        }
+
+        /**
+         * Returns the number of playthroughs.
+         *
+         * @return The number of playthroughs.
+         */
+        public long runs() {
+            return runs;
+        }
+
+        /**
+         * Returns the number of playthroughs that ended with Config.SUCCESS.
+         *
+         * @return The number of successes.
+         */
+        public long successes() {
+            return successes;
+        }
+
+        /**
+         * Returns the number of playthroughs that ended with Config.FAIL.
+         *
+         * @return The number of failures.
+         */
+        public long failures() {
+            return failures;
+        }
+
+        /**
+         * Returns the number of playthroughs that did not reach the end of the story.
+         *
+         * @return The number of unfinished playthroughs.
+         */
+        public long unfinished() {
+            return unfinished;
+        }
+
+        /**
+         * Returns the number of times a room was entered, counting the start room of every
+         * playthrough.
+         *
+         * @param room The index of the room.
+         * @return The number of visits.
+         */
+        public long visits(int room) {
+            return visits[room];
+        }
+
+        /**
+         * Returns the mean number of transitions taken by the finished playthroughs.
+         *
+         * @return The mean path length, or 0 if no playthrough finished.
+         */
+        public double meanLength() {
+            long count = 0;
+            double sum = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                count += lengths[i];
+                sum += (double) i * lengths[i];
+            }
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * Returns a percentile of the number of transitions taken by the finished playthroughs.
+         *
+         * @param p The percentile, from 0 to 100.
+         * @return The path length at the percentile, or 0 if no playthrough finished.
+         */
+        public int lengthPercentile(double p) {
+            long count = successes + failures;
+            long rank = Math.max(1, (long) Math.ceil(count * p / 100));
+            long seen = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                seen += lengths[i];
+                if (seen >= rank) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns a report of the statistics: the outcomes, path lengths and the most visited
+         * rooms.
+         *
+         * @param story The story the playthroughs were played in, to name the rooms.
+         * @param top The number of most visited rooms to list.
+         * @return The report.
+         */
+        public String report(Story story, int top) {
+            StringBuilder sb = new StringBuilder();
+            String nl = System.lineSeparator();
+            sb.append(String.format("runs: %d%n", runs));
+            sb.append(String.format("%s  %d (%.4f%%)%n", Config.SUCCESS, successes,
+                percent(successes)));
+            sb.append(String.format("%s  %d (%.4f%%)%n", Config.FAIL, failures, percent(failures)));
+            sb.append(String.format("unfinished: %d (%.4f%%)%n", unfinished, percent(unfinished)));
+            sb.append(String.format("path length: mean %.3f, p50 %d, p90 %d, p99 %d, max %d%n",
+                meanLength(), lengthPercentile(50), lengthPercentile(90), lengthPercentile(99),
+                lengthPercentile(100)));
+
+            Integer[] order = new Integer[visits.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(visits[b], visits[a]));
+            sb.append("most visited rooms:").append(nl);
+            for (int i = 0; i < Math.min(top, order.length) && visits[order[i]] > 0; i++) {
+                sb.append(String.format("  %-10s %12d  %.4f per run  %s%n", story.id(order[i]),
+                    visits[order[i]], visits[order[i]] / (double) runs, story.title(order[i])));
+            }
+            return sb.toString();
+        }
+
+        private double percent(long count) {
+            return runs == 0 ? 0 : count * 100.0 / runs;
+        }
+    }
+
+    /**
+     * Creates a simulator.
+     *
+     * @param story The story to play.
+     * @param startRoom The index of the room playthroughs start in.
+     * @param policy The policy making the player's choices.
+     * @param maxSteps The number of transitions after which a playthrough is stopped.
+     */
+    public Simulator(Story story, int startRoom, Policy policy, int maxSteps) {
+        this.story = story;
+        this.startRoom = startRoom;
+        this.policy = policy;
+        this.maxSteps = Math.max(0, maxSteps);
+        this.kind = new byte[story.size()];
+        this.weights = new WeightTable[story.size()];
+        for (int room = 0; room < kind.length; room++) {
+            int start = story.transitionStart(room);
+            String desc = story.transitionEnd(room) - start == 1
+                ? story.transitionDescription(start) : null;
+            if (Config.SUCCESS.equals(desc)) {
+                kind[room] = SUCCESS;
+            } else if (Config.FAIL.equals(desc)) {
+                kind[room] = FAIL;
+            } else if (story.weights(room) != WeightTable.NONE) {
+                kind[room] = WEIGHTED;
+                weights[room] = story.weights(room);
+            } else {
+                kind[room] = CHOICE;
+            }
+        }
+    }
+
+    /**
+     * Plays the story a number of times on the common ForkJoinPool.
+     *
+     * @param runs The number of playthroughs.
+     * @param seed The seed of the random values.
+     * @return The statistics of the playthroughs.
+     */
+    public Result run(long runs, long seed) {
+        return run(runs, seed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Plays the story a number of times.
+     *
+     * @param runs The number of playthroughs.
+     * @param seed The seed of the random values.
+     * @param pool The pool to run the playthroughs on.
+     * @return The statistics of the playthroughs.
+     */
+    public Result run(long runs, long seed, ForkJoinPool pool) {
+        // kept in a map rather than ThreadLocals, so the pool's threads do not hold on to them
+        ConcurrentHashMap<Thread, Result> results = new ConcurrentHashMap<Thread, Result>();
+        pool.invoke(new Batch(0, runs, new SplittableRandom(seed), results));
+
+        Result total = new Result(story.size(), maxSteps);
+        for (Result result : results.values()) {
+            total.add(result);
+        }
+        return total;
+    }
+
+    /**
+     * Plays a range of playthroughs, splitting it in halves until a half fits in one batch.
+     */
+    private class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long from; // the first playthrough of the range
+        private final long to; // the end of the range (exclusive)
+        private final SplittableRandom rand; // the random values of the range
+        private final ConcurrentHashMap<Thread, Result> results; // the statistics per thread
+
+        private Batch(long from, long to, SplittableRandom rand,
+            ConcurrentHashMap<Thread, Result> results) {
+            this.from = from;
+            this.to = to;
+            this.rand = rand;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= RUNS_PER_BATCH) {
+                if (from < to) {
+                    Result result = results.computeIfAbsent(Thread.currentThread(),
+                        thread -> new Result(story.size(), maxSteps));
+                    for (long i = from; i < to; i++) {
+                        play(rand, result);
+                    }
+                }
+                return;
+            }
+            // the batches are split at the same places, with the same random values, every time
+            long batches = (to - from + RUNS_PER_BATCH - 1) / RUNS_PER_BATCH;
+            long mid = from + batches / 2 * RUNS_PER_BATCH;
+            invokeAll(new Batch(from, mid, rand.split(), results),
+                new Batch(mid, to, rand, results));
+        }
+    }
+
+    /**
+     * Plays the story once and adds the playthrough to result.
+     *
+     * @param rand The random values of the playthrough.
+     * @param result The statistics to add the playthrough to.
+     */
+    private void play(RandomGenerator rand, Result result) {
+        result.runs++;
+        int room = startRoom;
+        result.visits[room]++;
+        int steps = 0;
+        int choices = 0;
+        while (true) {
+            byte k = kind[room];
+            if (k == SUCCESS || k == FAIL) {
+                if (k == SUCCESS) {
+                    result.successes++;
+                } else {
+                    result.failures++;
+                }
+                result.lengths[steps]++;
+                return;
+            }
+            int start = story.transitionStart(room);
+            int numChoices = story.transitionEnd(room) - start;
+            if (steps == maxSteps || numChoices == 0) {
+                result.unfinished++;
+                return;
+            }
+
+            int choice;
+            if (k == WEIGHTED) {
+                choice = Config.ALIAS_SAMPLING ? weights[room].sampleAliasIndex(rand)
+                    : weights[room].sampleIndex(rand);
+            } else {
+                choice = policy.choose(story, room, numChoices, choices++, rand);
+            }
+            int target = choice >= 0 && choice < numChoices ? story.target(start + choice) : -1;
+            if (target == -1) {
+                result.unfinished++;
+                return;
+            }
+            room = target;
+            result.visits[room]++;
+            steps++;
+        }
+    }
+
+    /**
+     * Parses a policy given on the command line.
+     *
+     * @param name "uniform", "first", or "script:" followed by comma separated choices.
+     * @return The policy, or null if the name is not valid.
+     */
+    private static Policy parsePolicy(String name) {
+        if (name.equals("uniform")) {
+            return UNIFORM;
+        } else if (name.equals("first")) {
+            return FIRST;
+        } else if (name.startsWith("script:")) {
+            String[] list = name.substring(7).split(",");
+            int[] script = new int[list.length];
+            for (int i = 0; i < list.length; i++) {
+                script[i] = Integer.parseInt(list[i].trim());
+            }
+            return scripted(script, UNIFORM);
+        }
+        return null;
+    }
+
+    /**
+     * Plays a story many times and prints the statistics.
+     *
+     * @param args The story filename followed by the options described in the class comment.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java Simulator storyFile [-runs n] "
+                + "[-policy uniform|first|script:0,2,1] [-seed n] [-maxSteps n] [-top n]");
+            return;
+        }
+        long runs = 1_000_000;
+        Policy policy = UNIFORM;
+        long seed = Config.SEED;
+        int maxSteps = 10_000;
+        int top = 10;
+        try {
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-runs":
+                        runs = Long.parseLong(args[i + 1]);
+                        break;
+                    case "-policy":
+                        policy = parsePolicy(args[i + 1]);
+                        if (policy == null) {
+                            System.out.println("Unknown policy: " + args[i + 1]);
+                            return;
+                        }
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[i + 1]);
+                        break;
+                    case "-maxSteps":
+                        maxSteps = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "-top":
+                        top = Integer.parseInt(args[i + 1]);
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        AdventureEngine engine = AdventureEngine.load(args[0]);
+        if (engine == null) {
+            return;
+        }
+        Simulator simulator = new Simulator(engine.story(), engine.startRoom(), policy, maxSteps);
+        long start = System.nanoTime();
+        Result result = simulator.run(runs, seed);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.print(result.report(engine.story(), top));
+        System.out.println(String.format("%.3f s (%.0f runs/s)", seconds, runs / seconds));
+    }
+}
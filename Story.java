@@ -0,0 +1,154 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, Story.java
+// This File: Story.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.ArrayList;
+
+/**
+ * A read-only, indexed story. Rooms are identified by a dense index from 0 to size() - 1 in the
+ * order they appear in the story file, and transitions by their position in one flat sequence in
+ * which the transitions of room i run from transitionStart(i) (inclusive) to transitionEnd(i)
+ * (exclusive).
+ *
+ * Implementations are immutable once built, so a single instance can be shared by any number of
+ * threads.
+ *
+ * @author Benjamin Tarmann
+ */
+public interface Story {
+
+    /**
+     * Returns the number of rooms in the story.
+     *
+     * @return The number of rooms.
+     */
+    int size();
+
+    /**
+     * Returns the index of a room id.
+     *
+     * @param id The room id to search for.
+     * @return The index of the first room with the given id, or -1 if there is none.
+     */
+    int indexOf(String id);
+
+    /**
+     * Returns the id of a room.
+     *
+     * @param room The index of the room.
+     * @return The room id.
+     */
+    String id(int room);
+
+    /**
+     * Returns the title of a room.
+     *
+     * @param room The index of the room.
+     * @return The room's title.
+     */
+    String title(int room);
+
+    /**
+     * Returns the description of a room.
+     *
+     * @param room The index of the room.
+     * @return The room's description, or null if the room has none.
+     */
+    String description(int room);
+
+    /**
+     * Returns the position of the first transition of a room.
+     *
+     * @param room The index of the room.
+     * @return The first transition of the room.
+     */
+    int transitionStart(int room);
+
+    /**
+     * Returns the position one past the last transition of a room.
+     *
+     * @param room The index of the room.
+     * @return The end (exclusive) of the transitions of the room.
+     */
+    int transitionEnd(int room);
+
+    /**
+     * Returns the destination of a transition.
+     *
+     * @param tran The position of the transition.
+     * @return The index of the destination room, or -1 if the transition is terminal or its room
+     *         id does not exist.
+     */
+    int target(int tran);
+
+    /**
+     * Returns the description of a transition, the value at index Config.TRAN_DESC.
+     *
+     * @param tran The position of the transition.
+     * @return The transition description, Config.SUCCESS or Config.FAIL for terminal transitions.
+     */
+    String transitionDescription(int tran);
+
+    /**
+     * Returns the id of the destination room of a transition, the value at index
+     * Config.TRAN_ROOM_ID.
+     *
+     * @param tran The position of the transition.
+     * @return The destination room id, or null for terminal transitions.
+     */
+    String transitionRoomId(int tran);
+
+    /**
+     * Returns the probability weight of a transition as it appears in the story file, the value at
+     * index Config.TRAN_PROB.
+     *
+     * @param tran The position of the transition.
+     * @return The probability weight, or null if the transition is not weighted.
+     */
+    String transitionWeight(int tran);
+
+    /**
+     * Returns the parsed probability weights of the transitions of a room.
+     *
+     * @param room The index of the room.
+     * @return The weight table of the room, WeightTable.NONE if its transitions are not weighted.
+     */
+    WeightTable weights(int room);
+
+    /**
+     * Copies the story into the parallel rooms and trans ArrayLists described by
+     * AdventureStory.parseStory.
+     *
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     */
+    default void copyTo(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+        rooms.ensureCapacity(rooms.size() + size());
+        trans.ensureCapacity(trans.size() + size());
+        for (int i = 0; i < size(); i++) {
+            String[] room = new String[Config.ROOM_DET_LEN];
+            room[Config.ROOM_ID] = id(i);
+            room[Config.ROOM_TITLE] = title(i);
+            room[Config.ROOM_DESC] = description(i);
+            rooms.add(room);
+
+            ArrayList<String[]> roomTrans =
+                new ArrayList<String[]>(transitionEnd(i) - transitionStart(i));
+            for (int t = transitionStart(i); t < transitionEnd(i); t++) {
+                String[] tran = new String[Config.TRAN_DET_LEN];
+                tran[Config.TRAN_DESC] = transitionDescription(t);
+                tran[Config.TRAN_ROOM_ID] = transitionRoomId(t);
+                tran[Config.TRAN_PROB] = transitionWeight(t);
+                roomTrans.add(tran);
+            }
+            trans.add(roomTrans);
+        }
+    }
+}
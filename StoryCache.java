@@ -0,0 +1,377 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryCache.java
+// This File: StoryCache.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.random.RandomGenerator;
+
+/**
+ * A process-wide cache of parsed story files, so playing a story again or loading a bookmark into
+ * a story already played does not parse the file again.
+ *
+ * Stories are keyed by the canonical path of the file, and a cached story is only used while the
+ * file has the modification time and size it was parsed with. When the stories cached hold more
+ * than a given number of rooms, the least recently used ones are evicted. Concurrent requests for
+ * a story that is not cached are answered by one parse: the first request parses the file and the
+ * others wait for it.
+ *
+ * Bookmark files are not cached themselves, since they are read in a moment, but the story a
+ * bookmark names is, and the entry of a bookmark shares it. Files that cannot be parsed are not
+ * cached either, so their errors are printed, as described by AdventureStory.parseFile, every
+ * time they are requested.
+ *
+ * A cached story is kept as a StoryGraph, which cannot be changed, and shared by every request
+ * for it. It is played by Sessions of an AdventureEngine without being copied. Callers that play
+ * the parallel ArrayLists of parseFile get a copy of their own, so changing them in place does not
+ * change the story of any other request. The cache is thread-safe.
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryCache {
+    private static final StoryCache SHARED = new StoryCache(Config.STORY_CACHE_ROOMS);
+
+    private final long maxRooms; // the number of rooms kept before stories are evicted
+    private final LinkedHashMap<String, Slot> slots = // stories by canonical path, access order
+        new LinkedHashMap<String, Slot>(16, 0.75f, true);
+    private long rooms; // the number of rooms of the stories loaded into slots
+    private final LongAdder hits = new LongAdder(); // requests answered from the cache
+    private final LongAdder misses = new LongAdder(); // requests that parsed the file
+    private final LongAdder evictions = new LongAdder(); // stories evicted to make room
+    private final LongAdder loadNanos = new LongAdder(); // time spent parsing files
+
+    /**
+     * A parsed story file: its rooms and transitions, compiled into an immutable story, and the
+     * room to start in. The entry of a bookmark shares the story of the entry of its story file.
+     */
+    public static class Entry {
+        private final String fName; // the file the story was parsed from
+        private final StoryGraph story; // the rooms and transitions
+        private final String startRoom; // the id of the room to start in
+        private final Entry base; // the entry of the story file, which hosts the engine
+        private AdventureEngine engine; // plays the story, created for the first session
+
+        private Entry(String fName, StoryGraph story, String startRoom) {
+            this.fName = fName;
+            this.story = story;
+            this.startRoom = startRoom;
+            this.base = this;
+        }
+
+        private Entry(Entry base, String startRoom) {
+            this.fName = base.fName;
+            this.story = base.story;
+            this.startRoom = startRoom;
+            this.base = base;
+        }
+
+        /**
+         * Returns the story, which is shared by every request for it.
+         *
+         * @return The story.
+         */
+        public StoryGraph story() {
+            return story;
+        }
+
+        /**
+         * Copies the rooms and transitions of the story into the parallel rooms and trans
+         * ArrayLists described by AdventureStory.parseFile. The String arrays are new, so they may
+         * be changed.
+         *
+         * @param rooms The ArrayList structure that will contain the room details.
+         * @param trans The ArrayList structure that will contain the transition details.
+         */
+        public void copyTo(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+            story.copyTo(rooms, trans);
+        }
+
+        /**
+         * Returns the id of the room to start in: the first room of a story file, or the room
+         * saved in a bookmark file.
+         *
+         * @return The room id.
+         */
+        public String startRoom() {
+            return startRoom;
+        }
+
+        /**
+         * Starts a session playing the story without copying it. The session starts in the start
+         * room, or in the first room of the story if the start room is not in it, as
+         * AdventureEngine.load starts a bookmark. The sessions of a story file and of the
+         * bookmarks into it are hosted by one AdventureEngine, created for the first of them, so
+         * they share its rendered rooms.
+         *
+         * @param rand The generator, such as a Random, the session draws weighted transitions
+         *             from.
+         * @param settings The settings of the session.
+         * @return The new session.
+         */
+        public Session newSession(RandomGenerator rand, Settings settings) {
+            AdventureEngine engine = base.engine();
+            int room = story.indexOf(startRoom);
+            return engine.newSession(story.id(room == -1 ? engine.startRoom() : room), rand,
+                settings);
+        }
+
+        /**
+         * Returns the engine hosting the story, creating it the first time.
+         */
+        private synchronized AdventureEngine engine() {
+            if (engine == null) {
+                int first = story.indexOf(startRoom);
+                engine = new AdventureEngine(fName, story, first == -1 ? 0 : first);
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * A story file being parsed or parsed, and the version of the file it was parsed from.
+     */
+    private static class Slot {
+        private final FileTime modified; // the modification time of the file parsed
+        private final long size; // the size of the file parsed
+        private final FutureTask<Entry> task; // parses the file, null result if it fails
+        private int rooms = -1; // the number of rooms parsed, -1 until the parse succeeds
+
+        private Slot(BasicFileAttributes attributes, FutureTask<Entry> task) {
+            this.modified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.task = task;
+        }
+
+        /**
+         * Returns whether the file still has the version that was parsed.
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return modified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+        }
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxRooms The number of rooms the cached stories may hold before the least recently
+     *                 used are evicted. The most recent story is kept even if it is larger.
+     */
+    public StoryCache(long maxRooms) {
+        this.maxRooms = maxRooms;
+    }
+
+    /**
+     * Returns the cache shared by the whole program, which keeps Config.STORY_CACHE_ROOMS rooms.
+     *
+     * @return The shared cache.
+     */
+    public static StoryCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the parsed story of a story file, story image or bookmark file, parsing it with
+     * AdventureStory.parseFile unless the cache holds the current version of the file.
+     *
+     * @param fName The name of the file.
+     * @return The parsed story, or null if the file cannot be read or parsed. Errors are printed
+     *         by the request that parses the file.
+     */
+    public Entry get(String fName) {
+        File file = new File(fName);
+        String path;
+        BasicFileAttributes attributes;
+        try {
+            path = file.getCanonicalPath();
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return parse(fName); // prints the error parseFile prints for the file
+        }
+        String[] bookmark = Bookmarks.read(fName);
+        if (bookmark != null) {
+            // takes the story of the bookmark from the cache, and only its room from the bookmark
+            String storyFile = Bookmarks.storyOf(fName);
+            Entry story = storyFile == null ? null : get(storyFile);
+            return story == null ? null : new Entry(story.base, bookmark[1]);
+        }
+
+        Slot slot;
+        boolean owner = false; // whether this request parses the file
+        synchronized (slots) {
+            slot = slots.get(path);
+            if (slot == null || !slot.matches(attributes)) {
+                if (slot != null && slot.rooms != -1) {
+                    rooms -= slot.rooms;
+                }
+                slot = new Slot(attributes, new FutureTask<Entry>(() -> parse(fName)));
+                slots.put(path, slot);
+                owner = true;
+            }
+        }
+
+        Entry entry;
+        if (owner) {
+            misses.increment();
+            long start = System.nanoTime();
+            slot.task.run();
+            loadNanos.add(System.nanoTime() - start);
+        } else {
+            hits.increment();
+        }
+        try {
+            entry = slot.task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            entry = null;
+        }
+
+        if (owner) {
+            synchronized (slots) {
+                if (slots.get(path) == slot) {
+                    if (entry == null) {
+                        slots.remove(path);
+                    } else {
+                        slot.rooms = entry.story().size();
+                        rooms += slot.rooms;
+                        evict(slot);
+                    }
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts the least recently used parsed stories until the rooms cached fit, keeping the given
+     * one. Must be called while holding the lock on slots.
+     */
+    private void evict(Slot keep) {
+        Iterator<Slot> it = slots.values().iterator();
+        while (rooms > maxRooms && it.hasNext()) {
+            Slot slot = it.next();
+            if (slot != keep && slot.rooms != -1) {
+                rooms -= slot.rooms;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Parses a file with AdventureStory.parseFile, compiles it into a StoryGraph and warns about
+     * mistakes in the story with StoryValidator.check, so the warnings are printed once per
+     * version of the file rather than every time the cached story is played.
+     *
+     * @param fName The name of the file.
+     * @return The parsed story, or null if the file cannot be read or parsed.
+     */
+    private static Entry parse(String fName) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] curRoom = new String[1];
+        long start = Metrics.start();
+        if (!AdventureStory.parseFile(fName, rooms, trans, curRoom)) {
+            return null;
+        }
+        Metrics.parsed(start, trans);
+        StoryGraph story = StoryGraph.compile(rooms, trans);
+        StoryValidator.check(story);
+        return new Entry(fName, story, curRoom[0]);
+    }
+
+    /**
+     * Returns the number of stories cached or being parsed.
+     *
+     * @return The number of stories.
+     */
+    public int size() {
+        synchronized (slots) {
+            return slots.size();
+        }
+    }
+
+    /**
+     * Returns the number of rooms of the stories cached.
+     *
+     * @return The number of rooms.
+     */
+    public long rooms() {
+        synchronized (slots) {
+            return rooms;
+        }
+    }
+
+    /**
+     * Returns the number of requests answered with a story parsed by another request.
+     *
+     * @return The number of hits.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests that parsed a story file, bookmarks excluded.
+     *
+     * @return The number of misses.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of stories evicted to keep the rooms cached within the limit.
+     *
+     * @return The number of evictions.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total time the misses spent parsing story files.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long loadNanos() {
+        return loadNanos.sum();
+    }
+
+    /**
+     * Removes every story from the cache. Stories being parsed are still returned to the
+     * requests waiting for them.
+     */
+    public void clear() {
+        synchronized (slots) {
+            slots.clear();
+            rooms = 0;
+        }
+    }
+
+    /**
+     * Returns the metrics of the cache, such as "2 stories, 30 rooms, 5 hits, 2 misses,
+     * 0 evictions, 3.1 ms loading".
+     *
+     * @return The metrics.
+     */
+    @Override
+    public String toString() {
+        return String.format("%d stories, %d rooms, %d hits, %d misses, %d evictions, %.1f ms "
+            + "loading", size(), rooms(), hits(), misses(), evictions(), loadNanos() / 1e6);
+    }
+}
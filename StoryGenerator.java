@@ -0,0 +1,346 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryGenerator.java
+// This File: StoryGenerator.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates story files of any size for benchmarks and load tests. The stories are written in the
+ * format parseStory accepts, one room at a time, so a story of millions of rooms is never held in
+ * memory.
+ *
+ * Rooms are numbered from 1. The first transition of every room that does not end the story leads
+ * to the next room, and when the next room ends the story, the second transition leads to the
+ * room after it. Two rooms in a row only end the story at the end of the file, so with a
+ * branching factor of at least 2 every room is reachable from room 1, and every room that does
+ * not end the story can reach the last room, which always ends it. The other transitions lead to
+ * random rooms. A room either ends the story with Config.SUCCESS or Config.FAIL, moves on through
+ * weighted transitions, or lets the player choose.
+ *
+ * The same settings and seed always generate the same story.
+ *
+ * Usage: java StoryGenerator [-rooms n] [-branching n] [-weighted fraction] [-desc chars]
+ *                            [-comments fraction] [-terminal fraction] [-success fraction]
+ *                            [-seed n] [-o file]
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryGenerator {
+    private static final String[] WORDS = {"the", "a", "old", "dark", "narrow", "winding",
+        "passage", "door", "stair", "window", "lantern", "dust", "cold", "wind", "bear", "chair",
+        "porridge", "bed", "forest", "path", "river", "stone", "quiet", "distant", "light",
+        "shadow", "leads", "opens", "into", "beyond", "under", "over", "and", "of", "with", "room",
+        "small", "large", "wooden", "table", "smell", "sound", "echo", "hall", "garden", "gate"};
+    private static final int LINE_LENGTH = 200; // description characters per line of the file
+
+    private int rooms = 1000; // the number of rooms
+    private int branching = 3; // the number of transitions of a room that does not end the story
+    private double weightedFraction = 0.2; // fraction of rooms with weighted transitions
+    private int descLength = 300; // the approximate number of characters of a description
+    private double commentDensity = 0.05; // the chance of a comment line before a room or block
+    private double terminalFraction = 0.01; // fraction of rooms that end the story
+    private double successFraction = 0.5; // fraction of ending rooms that succeed
+    private long seed = Config.SEED; // the seed of every random choice
+
+    /**
+     * Sets the number of rooms.
+     *
+     * @param rooms The number of rooms, at least 1.
+     * @return This generator.
+     */
+    public StoryGenerator rooms(int rooms) {
+        this.rooms = Math.max(1, rooms);
+        return this;
+    }
+
+    /**
+     * Sets the number of transitions of a room that does not end the story.
+     *
+     * @param branching The number of transitions, at least 1.
+     * @return This generator.
+     */
+    public StoryGenerator branching(int branching) {
+        this.branching = Math.max(1, branching);
+        return this;
+    }
+
+    /**
+     * Sets the fraction of the rooms not ending the story whose transitions are weighted.
+     *
+     * @param fraction The fraction, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator weightedFraction(double fraction) {
+        this.weightedFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the approximate length of the room descriptions.
+     *
+     * @param chars The number of characters, 0 for rooms without a description.
+     * @return This generator.
+     */
+    public StoryGenerator descLength(int chars) {
+        this.descLength = Math.max(0, chars);
+        return this;
+    }
+
+    /**
+     * Sets the chance of a comment line before each room and each transition block.
+     *
+     * @param density The chance, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator commentDensity(double density) {
+        this.commentDensity = density;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of rooms that end the story. The last room always ends the story.
+     *
+     * @param fraction The fraction, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator terminalFraction(double fraction) {
+        this.terminalFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of the rooms ending the story that end it with Config.SUCCESS rather than
+     * Config.FAIL.
+     *
+     * @param fraction The fraction, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator successFraction(double fraction) {
+        this.successFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the seed of the generated story.
+     *
+     * @param seed The seed.
+     * @return This generator.
+     */
+    public StoryGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Writes the story to a file, encoded in UTF-8.
+     *
+     * @param fName The name of the file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(String fName) throws IOException {
+        try (Writer out = Files.newBufferedWriter(Paths.get(fName), StandardCharsets.UTF_8)) {
+            write(out);
+        }
+    }
+
+    /**
+     * Writes the story. The writer is not closed.
+     *
+     * @param out The writer to write to. It should be buffered.
+     * @throws IOException If the story cannot be written.
+     */
+    public void write(Writer out) throws IOException {
+        Random rand = new Random(seed);
+        StringBuilder sb = new StringBuilder(descLength + 256);
+        sb.append(Config.MAGIC_STORY).append('\n');
+        sb.append("# Generated story: ").append(rooms).append(" rooms, seed ").append(seed)
+            .append("\n\n");
+
+        boolean ends = rooms == 1; // whether the current room ends the story
+        for (int r = 1; r <= rooms; r++) {
+            // decided one room ahead, so that this room can lead past the next one if it ends
+            boolean nextEnds = r + 1 == rooms || (r + 1 < rooms && !ends
+                && rand.nextDouble() < terminalFraction);
+            if (rand.nextDouble() < commentDensity) {
+                sb.append("# room ").append(r).append('\n');
+            }
+            sb.append('R').append(r).append(": ");
+            appendWords(sb, rand, 3 + rand.nextInt(3), true);
+            sb.append('\n');
+            appendDescription(sb, rand);
+            sb.append(";;;\n");
+            if (rand.nextDouble() < commentDensity) {
+                sb.append("# transitions of room ").append(r).append('\n');
+            }
+
+            if (ends) {
+                sb.append(rand.nextDouble() < successFraction ? Config.SUCCESS : Config.FAIL)
+                    .append('\n');
+            } else if (rand.nextDouble() < weightedFraction) {
+                for (int t = 0; t < branching; t++) {
+                    sb.append(": -> ").append(target(r, t, nextEnds, rand)).append(" ? ")
+                        .append(1 + rand.nextInt(9)).append('\n');
+                }
+            } else {
+                for (int t = 0; t < branching; t++) {
+                    sb.append(": ");
+                    appendWords(sb, rand, 2 + rand.nextInt(4), true);
+                    sb.append(" -> ").append(target(r, t, nextEnds, rand)).append('\n');
+                }
+            }
+            sb.append('\n');
+
+            out.append(sb);
+            sb.setLength(0);
+            ends = nextEnds;
+        }
+    }
+
+    /**
+     * Returns the destination of a transition: the next room for the first transition, the room
+     * after it for the second transition when the next room ends the story, and a random room
+     * otherwise.
+     *
+     * @param room The number of the room the transition belongs to.
+     * @param t The index of the transition.
+     * @param nextEnds Whether the next room ends the story.
+     * @param rand The source of random rooms.
+     * @return The id of the destination room.
+     */
+    private int target(int room, int t, boolean nextEnds, Random rand) {
+        if (t == 0) {
+            return room + 1;
+        } else if (t == 1 && nextEnds && room + 2 <= rooms) {
+            return room + 2;
+        }
+        return 1 + rand.nextInt(rooms);
+    }
+
+    /**
+     * Appends a description of about descLength characters, as sentences on lines of about
+     * LINE_LENGTH characters.
+     *
+     * @param sb The StringBuilder to append to.
+     * @param rand The source of random words.
+     */
+    private void appendDescription(StringBuilder sb, Random rand) {
+        int written = 0;
+        int lineStart = sb.length();
+        while (written < descLength) {
+            int before = sb.length();
+            if (sb.length() > lineStart) {
+                sb.append(' ');
+            }
+            appendWords(sb, rand, 4 + rand.nextInt(8), true);
+            sb.append('.');
+            written += sb.length() - before;
+            if (sb.length() - lineStart >= LINE_LENGTH) {
+                sb.append('\n');
+                lineStart = sb.length();
+            }
+        }
+        if (sb.length() > lineStart) {
+            sb.append('\n');
+        }
+    }
+
+    /**
+     * Appends random words separated by spaces. The words never contain the characters the
+     * story format gives a meaning to, such as '?', ':' or "->".
+     *
+     * @param sb The StringBuilder to append to.
+     * @param rand The source of random words.
+     * @param count The number of words.
+     * @param capitalize Whether to capitalize the first word.
+     */
+    private static void appendWords(StringBuilder sb, Random rand, int count, boolean capitalize) {
+        for (int w = 0; w < count; w++) {
+            if (w > 0) {
+                sb.append(' ');
+            }
+            String word = WORDS[rand.nextInt(WORDS.length)];
+            if (w == 0 && capitalize) {
+                sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            } else {
+                sb.append(word);
+            }
+        }
+    }
+
+    /**
+     * Generates a story and writes it to a file, or to System.out if no file is given.
+     *
+     * @param args The options described in the class comment.
+     */
+    public static void main(String[] args) {
+        StoryGenerator generator = new StoryGenerator();
+        String fName = null;
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-rooms":
+                        generator.rooms(Integer.parseInt(value));
+                        break;
+                    case "-branching":
+                        generator.branching(Integer.parseInt(value));
+                        break;
+                    case "-weighted":
+                        generator.weightedFraction(Double.parseDouble(value));
+                        break;
+                    case "-desc":
+                        generator.descLength(Integer.parseInt(value));
+                        break;
+                    case "-comments":
+                        generator.commentDensity(Double.parseDouble(value));
+                        break;
+                    case "-terminal":
+                        generator.terminalFraction(Double.parseDouble(value));
+                        break;
+                    case "-success":
+                        generator.successFraction(Double.parseDouble(value));
+                        break;
+                    case "-seed":
+                        generator.seed(Long.parseLong(value));
+                        break;
+                    case "-o":
+                        fName = value;
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        try {
+            if (fName != null) {
+                generator.write(fName);
+            } else {
+                Writer out = new BufferedWriter(
+                    new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                generator.write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing file: " + fName);
+        }
+    }
+}
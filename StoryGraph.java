@@ -0,0 +1,205 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryGraph.java
+// This File: StoryGraph.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A compiled, indexed view of a parsed story. The graph is built once from the parallel rooms and
+ * trans ArrayLists produced by parseStory and afterwards answers lookups without scanning them.
+ *
+ * Every room id is interned to a dense int index (its position in the rooms ArrayList), so an id
+ * to room lookup is a single hash probe. The transitions are stored CSR-style: the transitions of
+ * room i are the entries tranStart[i] (inclusive) to tranStart[i + 1] (exclusive) of the flat
+ * tranTarget array, which holds the index of each destination room, or -1 if the transition is
+ * terminal or points at a room id that does not exist.
+ *
+ * The probability weights of each room's transitions are parsed once, into a WeightTable per room.
+ *
+ * The Strings of the rooms and transitions are copied into arrays of the graph when it is
+ * compiled, so the graph does not change when the ArrayLists it was compiled from are changed
+ * afterwards, and can be shared by any number of threads.
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryGraph implements Story {
+    private final String[] ids; // room id per room
+    private final String[] titles; // room title per room
+    private final String[] descriptions; // room description per room, null if none
+    private final HashMap<String, Integer> index; // room id -> dense room index
+    private final int[] tranStart; // CSR row offsets, one per room plus one
+    private final int[] tranTarget; // destination room index per transition, -1 if none
+    private final String[] tranDescs; // description per transition
+    private final String[] tranRoomIds; // destination room id per transition, null if terminal
+    private final String[] tranWeights; // weight String per transition, null if not weighted
+    private final WeightTable[] weights; // parsed transition weights per room
+
+    /**
+     * Builds the graph. Use compile to create instances.
+     */
+    private StoryGraph(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+        int roomCount = rooms.size();
+        this.ids = new String[roomCount];
+        this.titles = new String[roomCount];
+        this.descriptions = new String[roomCount];
+        this.index = new HashMap<>(roomCount * 4 / 3 + 1);
+
+        for (int i = 0; i < roomCount; i++) {
+            String[] room = rooms.get(i);
+            ids[i] = room[Config.ROOM_ID];
+            titles[i] = room[Config.ROOM_TITLE];
+            descriptions[i] = room[Config.ROOM_DESC];
+            // the first room with a given id wins, matching a front to back linear search
+            index.putIfAbsent(ids[i], i);
+        }
+
+        tranStart = new int[roomCount + 1];
+        int total = 0;
+        for (int i = 0; i < roomCount; i++) {
+            tranStart[i] = total;
+            if (trans != null && i < trans.size()) {
+                total += trans.get(i).size();
+            }
+        }
+        tranStart[roomCount] = total;
+
+        tranTarget = new int[total];
+        tranDescs = new String[total];
+        tranRoomIds = new String[total];
+        tranWeights = new String[total];
+        weights = new WeightTable[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            if (trans != null && i < trans.size()) {
+                weights[i] = WeightTable.build(trans.get(i));
+            } else {
+                weights[i] = WeightTable.NONE;
+            }
+            for (int t = tranStart[i]; t < tranStart[i + 1]; t++) {
+                String[] tran = trans.get(i).get(t - tranStart[i]);
+                tranDescs[t] = tran[Config.TRAN_DESC];
+                tranRoomIds[t] = tran[Config.TRAN_ROOM_ID];
+                tranWeights[t] = tran[Config.TRAN_PROB];
+                tranTarget[t] = indexOf(tranRoomIds[t]);
+            }
+        }
+    }
+
+    /**
+     * Compiles the parallel ArrayLists produced by parseStory into a graph. The ArrayLists are
+     * not referenced by the graph, so they may be changed or dropped afterwards.
+     *
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details. May be null if
+     *              only room lookups are needed.
+     * @return The compiled graph.
+     */
+    public static StoryGraph compile(ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        return new StoryGraph(rooms, trans);
+    }
+
+    /**
+     * Returns the number of rooms in the graph.
+     *
+     * @return The number of rooms.
+     */
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the dense index of a room id.
+     *
+     * @param id The room id to search for.
+     * @return The index of the first room with the given id, or -1 if there is none.
+     */
+    @Override
+    public int indexOf(String id) {
+        Integer i = index.get(id);
+        return i == null ? -1 : i;
+    }
+
+    @Override
+    public String id(int room) {
+        return ids[room];
+    }
+
+    @Override
+    public String title(int room) {
+        return titles[room];
+    }
+
+    @Override
+    public String description(int room) {
+        return descriptions[room];
+    }
+
+    /**
+     * Returns the position in the flat transition arrays of the first transition of a room.
+     *
+     * @param room The index of the room.
+     * @return The first transition of the room.
+     */
+    @Override
+    public int transitionStart(int room) {
+        return tranStart[room];
+    }
+
+    /**
+     * Returns the position in the flat transition arrays one past the last transition of a room.
+     *
+     * @param room The index of the room.
+     * @return The end (exclusive) of the transitions of the room.
+     */
+    @Override
+    public int transitionEnd(int room) {
+        return tranStart[room + 1];
+    }
+
+    /**
+     * Returns the parsed probability weights of the transitions of a room.
+     *
+     * @param room The index of the room.
+     * @return The weight table of the room, WeightTable.NONE if its transitions are not weighted.
+     */
+    @Override
+    public WeightTable weights(int room) {
+        return weights[room];
+    }
+
+    /**
+     * Returns the destination of a transition.
+     *
+     * @param tran The position of the transition in the flat transition arrays.
+     * @return The index of the destination room, or -1 if the transition is terminal or its room
+     *         id does not exist.
+     */
+    @Override
+    public int target(int tran) {
+        return tranTarget[tran];
+    }
+
+    @Override
+    public String transitionDescription(int tran) {
+        return tranDescs[tran];
+    }
+
+    @Override
+    public String transitionRoomId(int tran) {
+        return tranRoomIds[tran];
+    }
+
+    @Override
+    public String transitionWeight(int tran) {
+        return tranWeights[tran];
+    }
+}
@@ -0,0 +1,543 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryImage.java
+// This File: StoryImage.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A precompiled binary story image, loaded by memory-mapping the file.
+ *
+ * An image is produced from a text story file by the compile method (or by running this class) and
+ * begins with a line containing Config.MAGIC_IMAGE. Opening an image only maps the file and reads
+ * its header; room ids, titles, descriptions and transitions are decoded from the mapped region
+ * when they are asked for, and room ids are found through a hash table stored in the image. The
+ * time to open an image therefore does not depend on the size of the story.
+ *
+ * The story is checked by StoryValidator when it is compiled, and the number of problems found is
+ * stored in the header, so loading an image does not validate it again. AdventureStory.main and
+ * AdventureEngine.load play an image through a Session on the mapped story; only parseFile, whose
+ * callers expect the parallel ArrayLists, copies the image into them with load.
+ *
+ * The image layout, after the magic line, is a sequence of big-endian ints:
+ *
+ * Section   | Contents
+ * ---------------------------------------------------------------------------------------------
+ * header    | version, roomCount, tranCount, stringCount, slotCount, problems (-1 if the story
+ *           | was not validated when compiled; version 1 images have no problems field)
+ * rooms     | per room: idStr, titleStr, descStr, tranStart, weighted (1 if every weight parses)
+ * trans     | per transition: descStr, roomIdStr, probStr, weight, target room index (-1 if none)
+ * slots     | per hash slot: hash of the room id, room index (-1 if the slot is empty)
+ * strings   | stringCount + 1 offsets into the string data
+ * data      | the UTF-8 bytes of every distinct string, each string stored once
+ *
+ * A string reference of -1 stands for null. Since the whole file is mapped into a single buffer,
+ * images are limited to 2 GB. Opening an image checks that the sections its header describes fit
+ * in the file, so a corrupt or truncated image is rejected with an IOException.
+ *
+ * The weight tables of weighted rooms are built when first asked for and kept in a cache of soft
+ * references, holding the Config.WEIGHT_CACHE_SIZE most recently used.
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryImage implements Story {
+    private static final int VERSION = 2; // the version of the image layout
+    private static final int ROOM_INTS = 5; // ints per room record
+    private static final int TRAN_INTS = 5; // ints per transition record
+    private static final int SLOT_INTS = 2; // ints per hash slot
+
+    private final ByteBuffer buf; // the mapped image
+    private final int roomCount; // the number of rooms
+    private final int tranCount; // the number of transitions
+    private final int slotCount; // the number of hash slots, a power of 2
+    private final int problems; // the problems found when compiled, -1 if not validated
+    private final int roomsPos; // the position of the room records
+    private final int tranStartsPos; // the position of the tranStart of room 0
+    private final int transPos; // the position of the transition records
+    private final int slotsPos; // the position of the hash slots
+    private final int offsetsPos; // the position of the string offsets
+    private final int dataPos; // the position of the string data
+    private final LinkedHashMap<Integer, SoftReference<WeightTable>> weights; // built, LRU
+
+    /**
+     * Reads the header of a mapped image. Use open to create instances.
+     */
+    private StoryImage(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        int pos = magicLength();
+        int version = buf.limit() < pos + 4 ? -1 : buf.getInt(pos);
+        int headerSize = version == 1 ? 20 : 24; // version 1 has no problems field
+        if (buf.limit() < pos + headerSize || (version != 1 && version != VERSION)) {
+            throw new IOException("Unsupported story image version");
+        }
+        roomCount = buf.getInt(pos + 4);
+        tranCount = buf.getInt(pos + 8);
+        int stringCount = buf.getInt(pos + 12);
+        slotCount = buf.getInt(pos + 16);
+        problems = version == 1 ? -1 : buf.getInt(pos + 20);
+        if (roomCount < 0 || tranCount < 0 || stringCount < 0 || slotCount <= 0
+            || Integer.bitCount(slotCount) != 1) {
+            throw new IOException("Corrupt story image header");
+        }
+
+        // the sections are checked against the size of the image in long, so the positions of
+        // a corrupt header cannot overflow
+        long rooms = pos + headerSize;
+        long trans = rooms + (long) roomCount * ROOM_INTS * 4;
+        long slots = trans + (long) tranCount * TRAN_INTS * 4;
+        long offsets = slots + (long) slotCount * SLOT_INTS * 4;
+        long data = offsets + ((long) stringCount + 1) * 4;
+        if (data > buf.limit()) {
+            throw new IOException("Truncated story image");
+        }
+        long dataLength = buf.getInt((int) data - 4);
+        if (dataLength < 0 || data + dataLength > buf.limit()) {
+            throw new IOException("Truncated story image");
+        }
+        roomsPos = (int) rooms;
+        tranStartsPos = roomsPos + 12;
+        transPos = (int) trans;
+        slotsPos = (int) slots;
+        offsetsPos = (int) offsets;
+        dataPos = (int) data;
+        weights = new LinkedHashMap<Integer, SoftReference<WeightTable>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, SoftReference<WeightTable>> eldest) {
+                return size() > Config.WEIGHT_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Memory-maps a story image.
+     *
+     * @param fName The name of the image file.
+     * @return The image.
+     * @throws IOException If the file cannot be read or is not a story image.
+     */
+    public static StoryImage open(String fName) throws IOException {
+        try (FileChannel ch = FileChannel.open(new File(fName).toPath())) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Story image larger than 2 GB: " + fName);
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (!hasMagic(buf)) {
+                throw new IOException("Not a story image: " + fName);
+            }
+            return new StoryImage(buf);
+        }
+    }
+
+    /**
+     * Checks whether a file begins with the Config.MAGIC_IMAGE line by reading only its first
+     * bytes. Binary images cannot be read through a Scanner.
+     *
+     * @param fName The name of the file.
+     * @return true if the file is a story image, false if it is not or it cannot be read.
+     */
+    public static boolean isImage(String fName) {
+        byte[] magic = new byte[magicLength()];
+        try (InputStream in = Files.newInputStream(new File(fName).toPath())) {
+            return in.readNBytes(magic, 0, magic.length) == magic.length
+                && hasMagic(ByteBuffer.wrap(magic));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads a story image into the parallel rooms and trans ArrayLists. The first line, containing
+     * Config.MAGIC_IMAGE, is read again from the file.
+     *
+     * If there is an IOException or the file is not a valid image, print an error message,
+     * terminated by a new line, to System.out, saying "Error reading file: fName".
+     *
+     * @param fName The name of the image file.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1, or null. The current room id will be stored in
+     *                the cell at index 0.
+     * @return false if the image cannot be read or has no rooms. Otherwise, true.
+     */
+    public static boolean load(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        StoryImage image;
+        try {
+            image = open(fName);
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + fName);
+            return false;
+        }
+        if (image.size() < 1) {
+            System.out.print("Error parsing file: rooms or transitions not properly parsed.");
+            return false;
+        }
+        image.copyTo(rooms, trans);
+        if (curRoom != null) {
+            curRoom[0] = rooms.get(0)[Config.ROOM_ID];
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of problems StoryValidator found in the story when the image was
+     * compiled.
+     *
+     * @return The number of problems, or -1 if the story was not validated when compiled.
+     */
+    public int problems() {
+        return problems;
+    }
+
+    /**
+     * Compiles a story file into a story image. The story file is loaded with
+     * AdventureStory.parseFile, which prints any errors, and checked with StoryValidator.check,
+     * which prints a warning for each problem found.
+     *
+     * @param storyFile The name of the story file to compile.
+     * @param imageFile The name of the image file to write.
+     * @return false if the story could not be loaded or the image could not be written.
+     */
+    public static boolean compile(String storyFile, String imageFile) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        if (!AdventureStory.parseFile(storyFile, rooms, trans, new String[1])) {
+            return false;
+        }
+        StoryGraph story = StoryGraph.compile(rooms, trans);
+        StoryValidator.Report report = StoryValidator.check(story);
+        try {
+            write(story, report == null ? -1 : report.messages().size(), imageFile);
+        } catch (IOException e) {
+            System.out.println("Error writing file: " + imageFile);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a story that was not validated as a story image, which is validated when it is
+     * loaded.
+     *
+     * @param story The story to write.
+     * @param imageFile The name of the image file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Story story, String imageFile) throws IOException {
+        write(story, -1, imageFile);
+    }
+
+    /**
+     * Writes a story as a story image.
+     *
+     * @param story The story to write.
+     * @param problems The number of problems StoryValidator found in the story, or -1 if it was
+     *                 not validated.
+     * @param imageFile The name of the image file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Story story, int problems, String imageFile) throws IOException {
+        int numRooms = story.size();
+        int numTrans = numRooms == 0 ? 0 : story.transitionEnd(numRooms - 1);
+
+        // every distinct string is stored once
+        HashMap<String, Integer> strings = new HashMap<>();
+        ArrayList<byte[]> data = new ArrayList<byte[]>();
+        int[] roomStrs = new int[numRooms * 3];
+        int[] tranStrs = new int[numTrans * 3];
+        for (int i = 0; i < numRooms; i++) {
+            roomStrs[i * 3] = intern(story.id(i), strings, data);
+            roomStrs[i * 3 + 1] = intern(story.title(i), strings, data);
+            roomStrs[i * 3 + 2] = intern(story.description(i), strings, data);
+        }
+        for (int t = 0; t < numTrans; t++) {
+            tranStrs[t * 3] = intern(story.transitionDescription(t), strings, data);
+            tranStrs[t * 3 + 1] = intern(story.transitionRoomId(t), strings, data);
+            tranStrs[t * 3 + 2] = intern(story.transitionWeight(t), strings, data);
+        }
+
+        // open addressing hash table of room ids, at most half full
+        int numSlots = Integer.highestOneBit(Math.max(numRooms, 1) * 2 - 1) << 1;
+        int[] slotHash = new int[numSlots];
+        int[] slotRoom = new int[numSlots];
+        Arrays.fill(slotRoom, -1);
+        for (int i = 0; i < numRooms; i++) {
+            if (story.indexOf(story.id(i)) != i) {
+                continue; // only the first room with an id can be found
+            }
+            int hash = story.id(i).hashCode();
+            int slot = spread(hash) & (numSlots - 1);
+            while (slotRoom[slot] != -1) {
+                slot = (slot + 1) & (numSlots - 1);
+            }
+            slotHash[slot] = hash;
+            slotRoom[slot] = i;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(imageFile), 65536))) {
+            out.write((Config.MAGIC_IMAGE + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(VERSION);
+            out.writeInt(numRooms);
+            out.writeInt(numTrans);
+            out.writeInt(data.size());
+            out.writeInt(numSlots);
+            out.writeInt(problems);
+            for (int i = 0; i < numRooms; i++) {
+                out.writeInt(roomStrs[i * 3]);
+                out.writeInt(roomStrs[i * 3 + 1]);
+                out.writeInt(roomStrs[i * 3 + 2]);
+                out.writeInt(story.transitionStart(i));
+                out.writeInt(story.weights(i) == WeightTable.NONE ? 0 : 1);
+            }
+            for (int i = 0; i < numRooms; i++) {
+                boolean weighted = story.weights(i) != WeightTable.NONE;
+                for (int t = story.transitionStart(i); t < story.transitionEnd(i); t++) {
+                    out.writeInt(tranStrs[t * 3]);
+                    out.writeInt(tranStrs[t * 3 + 1]);
+                    out.writeInt(tranStrs[t * 3 + 2]);
+                    out.writeInt(weighted ? Integer.parseInt(story.transitionWeight(t)) : 0);
+                    out.writeInt(story.target(t));
+                }
+            }
+            for (int slot = 0; slot < numSlots; slot++) {
+                out.writeInt(slotHash[slot]);
+                out.writeInt(slotRoom[slot]);
+            }
+            long offset = 0;
+            for (byte[] bytes : data) {
+                out.writeInt((int) offset);
+                offset += bytes.length;
+            }
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Story image larger than 2 GB: " + imageFile);
+            }
+            out.writeInt((int) offset);
+            for (byte[] bytes : data) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of s in the string table, adding it if it is not there yet.
+     */
+    private static int intern(String s, HashMap<String, Integer> strings, ArrayList<byte[]> data) {
+        if (s == null) {
+            return -1;
+        }
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = data.size();
+            strings.put(s, index);
+            data.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+        return index;
+    }
+
+    /**
+     * Spreads the bits of a hash code so that ids with similar hash codes use different slots.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the length in bytes of the Config.MAGIC_IMAGE line.
+     */
+    private static int magicLength() {
+        return Config.MAGIC_IMAGE.length() + 1;
+    }
+
+    /**
+     * Checks whether a buffer begins with the Config.MAGIC_IMAGE line.
+     */
+    private static boolean hasMagic(ByteBuffer buf) {
+        if (buf.limit() < magicLength()) {
+            return false;
+        }
+        for (int i = 0; i < Config.MAGIC_IMAGE.length(); i++) {
+            if (buf.get(i) != Config.MAGIC_IMAGE.charAt(i)) {
+                return false;
+            }
+        }
+        return buf.get(Config.MAGIC_IMAGE.length()) == '\n';
+    }
+
+    /**
+     * Decodes a string of the string table from the mapped image.
+     */
+    private String string(int index) {
+        if (index == -1) {
+            return null;
+        }
+        int start = buf.getInt(offsetsPos + index * 4);
+        int end = buf.getInt(offsetsPos + index * 4 + 4);
+        byte[] bytes = new byte[end - start];
+        buf.get(dataPos + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns an int of a room record.
+     */
+    private int roomInt(int room, int field) {
+        return buf.getInt(roomsPos + (room * ROOM_INTS + field) * 4);
+    }
+
+    /**
+     * Returns an int of a transition record.
+     */
+    private int tranInt(int tran, int field) {
+        return buf.getInt(transPos + (tran * TRAN_INTS + field) * 4);
+    }
+
+    @Override
+    public int size() {
+        return roomCount;
+    }
+
+    @Override
+    public int indexOf(String id) {
+        if (id == null) {
+            return -1;
+        }
+        int hash = id.hashCode();
+        int slot = spread(hash) & (slotCount - 1);
+        while (true) {
+            int room = buf.getInt(slotsPos + slot * SLOT_INTS * 4 + 4);
+            if (room == -1) {
+                return -1;
+            }
+            if (buf.getInt(slotsPos + slot * SLOT_INTS * 4) == hash && id.equals(id(room))) {
+                return room;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+    }
+
+    @Override
+    public String id(int room) {
+        return string(roomInt(room, 0));
+    }
+
+    @Override
+    public String title(int room) {
+        return string(roomInt(room, 1));
+    }
+
+    @Override
+    public String description(int room) {
+        return string(roomInt(room, 2));
+    }
+
+    @Override
+    public int transitionStart(int room) {
+        return buf.getInt(tranStartsPos + room * ROOM_INTS * 4);
+    }
+
+    @Override
+    public int transitionEnd(int room) {
+        return room + 1 == roomCount ? tranCount : transitionStart(room + 1);
+    }
+
+    @Override
+    public int target(int tran) {
+        return tranInt(tran, 4);
+    }
+
+    @Override
+    public String transitionDescription(int tran) {
+        return string(tranInt(tran, 0));
+    }
+
+    @Override
+    public String transitionRoomId(int tran) {
+        return string(tranInt(tran, 1));
+    }
+
+    @Override
+    public String transitionWeight(int tran) {
+        return string(tranInt(tran, 2));
+    }
+
+    @Override
+    public WeightTable weights(int room) {
+        if (roomInt(room, 4) == 0) {
+            return WeightTable.NONE;
+        }
+        SoftReference<WeightTable> ref;
+        synchronized (weights) {
+            ref = weights.get(room);
+        }
+        WeightTable table = ref == null ? null : ref.get();
+        if (table == null) {
+            int start = transitionStart(room);
+            String[] roomIds = new String[transitionEnd(room) - start];
+            int[] values = new int[roomIds.length];
+            for (int t = 0; t < roomIds.length; t++) {
+                roomIds[t] = transitionRoomId(start + t);
+                values[t] = tranInt(start + t, 3);
+            }
+            table = WeightTable.build(roomIds, values);
+            synchronized (weights) {
+                weights.put(room, new SoftReference<WeightTable>(table));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the number of weight tables built and still cached.
+     *
+     * @return The number of cached weight tables.
+     */
+    public int cachedWeights() {
+        synchronized (weights) {
+            return weights.size();
+        }
+    }
+
+    /**
+     * Compiles a story file into a story image.
+     *
+     * @param args The story filename and the image filename.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: java StoryImage storyFile imageFile");
+            return;
+        }
+        if (compile(args[0], args[1])) {
+            System.out.println("Compiled " + args[0] + " into " + args[1]);
+        } else {
+            System.out.println();
+            System.out.println("Unable to compile " + args[0]);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryParser.java
+// This File: StoryParser.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A single-pass story parser that works on ranges of a character buffer, such as the lines handed
+ * out by a LineReader, instead of on Strings read through a Scanner.
+ *
+ * The parser accepts the story file format described by AdventureStory.parseStory and fills the
+ * same parallel rooms and trans ArrayLists, with the same "Error parsing file on line: lineNo:
+ * lineRead" diagnostics. Lines are trimmed in place, multi-line descriptions are accumulated in
+ * one reusable StringBuilder, and each transition line is searched for " -> " and '?' only once.
+ *
+ * If Config.POOL_STRINGS is set, equal room ids and transition Strings are shared through a
+ * StringPool, and a String is only created the first time its text is seen. Every transition is
+ * still an array of its own.
+ *
+ * Two kinds of malformed lines that made parseStory throw a StringIndexOutOfBoundsException are
+ * reported as parse errors instead: a room line without a ':' and a transition line without
+ * " -> ". A '?' that only appears before the " -> " of a transition is part of the transition
+ * description rather than the start of a weight.
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryParser {
+    private static final char[] ARROW = {' ', '-', '>', ' '}; // separates description and room id
+
+    private final ArrayList<String[]> rooms; // the room details parsed
+    private final ArrayList<ArrayList<String[]>> trans; // the transition details parsed
+    private final StringBuilder desc = new StringBuilder(); // description of the current room
+    private String[] descRoom; // the room whose description is in desc, null if none
+    private int descLines; // the number of description lines in desc
+    private AdventureStory.parseState state = AdventureStory.parseState.DEFAULT;
+    private int numLines; // the number of lines parsed
+    private final boolean printErrors; // whether parse errors are printed to System.out
+    private int errorLine = -1; // the number of the line with a parse error, -1 if none
+    private final StringPool pool; // shares equal Strings, null if not pooling
+    private String errorText; // the trimmed line with a parse error
+
+    /**
+     * Creates a parser that adds the rooms and transitions it parses to rooms and trans.
+     *
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     */
+    public StoryParser(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+        this(rooms, trans, true, Config.POOL_STRINGS ? new StringPool() : null);
+    }
+
+    /**
+     * Creates a parser that adds the rooms and transitions it parses to rooms and trans.
+     *
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param printErrors Whether parse errors are printed to System.out. Either way, the line
+     *                    with the error is kept, see errorLine and errorText.
+     */
+    public StoryParser(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans,
+        boolean printErrors) {
+        this(rooms, trans, printErrors, Config.POOL_STRINGS ? new StringPool() : null);
+    }
+
+    /**
+     * Creates a parser that adds the rooms and transitions it parses to rooms and trans, sharing
+     * equal Strings through a pool.
+     *
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param printErrors Whether parse errors are printed to System.out. Either way, the line
+     *                    with the error is kept, see errorLine and errorText.
+     * @param pool The pool, which may be shared by parsers of the same story, or null to create
+     *             new Strings for every line.
+     */
+    public StoryParser(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans,
+        boolean printErrors, StringPool pool) {
+        this.rooms = rooms;
+        this.trans = trans;
+        this.printErrors = printErrors;
+        this.pool = pool;
+    }
+
+    /**
+     * Parses the remaining lines of a story file. The first line, containing Config.MAGIC_STORY,
+     * must already have been read from in.
+     *
+     * @param in The reader of the story file.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return false if there is a parsing error. Otherwise, true.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean parse(LineReader in, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) throws IOException {
+        StoryParser parser = new StoryParser(rooms, trans);
+        while (in.nextLine()) {
+            if (!parser.parseLine(in.buffer(), in.start(), in.end())) {
+                return false;
+            }
+        }
+        return parser.finish(curRoom);
+    }
+
+    /**
+     * Parses one line of a story file. On a parse error, the error message is printed to
+     * System.out as described by AdventureStory.parseStory.
+     *
+     * @param buf The buffer holding the line.
+     * @param start The start of the line in buf.
+     * @param end The end (exclusive) of the line in buf, excluding the line separator.
+     * @return false if the line violates the story file format. Otherwise, true.
+     */
+    public boolean parseLine(char[] buf, int start, int end) {
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        numLines++;
+
+        // checks if the line should be ignored
+        if (state != AdventureStory.parseState.DESCRIPTION
+            && (start == end || buf[start] == '#')) {
+            return true;
+        }
+        // checks if the line contains information for a room
+        if (state != AdventureStory.parseState.DESCRIPTION && buf[start] == 'R') {
+            int colon = indexOf(buf, start, end, ':');
+            if (colon == -1) {
+                return error(buf, start, end);
+            }
+            String[] room = new String[Config.ROOM_DET_LEN];
+            room[Config.ROOM_ID] = pooled(buf, start + 1, colon);
+            room[Config.ROOM_TITLE] = trimmed(buf, colon + 1, end);
+            rooms.add(room);
+            descRoom = room;
+            descLines = 0;
+            desc.setLength(0);
+            state = AdventureStory.parseState.DESCRIPTION;
+            return true;
+        }
+        // checks if the following lines are transitions
+        if (end - start == 3 && buf[start] == ';' && buf[start + 1] == ';'
+            && buf[start + 2] == ';') {
+            endDescription();
+            trans.add(new ArrayList<String[]>());
+            state = AdventureStory.parseState.TRANSITION;
+            return true;
+        }
+        // stores room description information
+        if (state == AdventureStory.parseState.DESCRIPTION) {
+            if (descLines++ > 0) {
+                desc.append('\n');
+            }
+            desc.append(buf, start, end - start);
+            return true;
+        }
+        // stores transition information
+        if (state == AdventureStory.parseState.TRANSITION) {
+            if (buf[start] == ':') {
+                return parseTransition(buf, start, end);
+            }
+            if (equals(buf, start, end, Config.SUCCESS) || equals(buf, start, end, Config.FAIL)) {
+                String[] tran = new String[Config.TRAN_DET_LEN];
+                tran[Config.TRAN_DESC] = pooled(buf, start, end);
+                trans.get(trans.size() - 1).add(tran);
+                return true;
+            }
+        }
+        // line does not follow story format
+        return error(buf, start, end);
+    }
+
+    /**
+     * Parses a normal or weighted transition line, which begins with ':'.
+     *
+     * @param buf The buffer holding the trimmed line.
+     * @param start The start of the line in buf.
+     * @param end The end (exclusive) of the line in buf.
+     * @return false if the line has no " -> ". Otherwise, true.
+     */
+    private boolean parseTransition(char[] buf, int start, int end) {
+        int arrow = indexOf(buf, start, end, ARROW);
+        if (arrow == -1) {
+            return error(buf, start, end);
+        }
+        int question = -1;
+        for (int i = end - 1; i >= arrow + ARROW.length; i--) {
+            if (buf[i] == '?') {
+                question = i;
+                break;
+            }
+        }
+
+        String[] tran = new String[Config.TRAN_DET_LEN];
+        tran[Config.TRAN_DESC] = pooled(buf, start + 1, arrow);
+        if (question == -1) {
+            tran[Config.TRAN_ROOM_ID] = pooled(buf, arrow + ARROW.length, end);
+        } else {
+            tran[Config.TRAN_ROOM_ID] = pooled(buf, arrow + ARROW.length, question);
+            // the weight starts two characters after the '?', as in "? 4"
+            int weight = Math.min(question + 2, end);
+            tran[Config.TRAN_PROB] = pool == null ? new String(buf, weight, end - weight)
+                : pool.intern(buf, weight, end);
+        }
+        trans.get(trans.size() - 1).add(tran);
+        return true;
+    }
+
+    /**
+     * Stores the description accumulated for the current room, if there is one.
+     */
+    private void endDescription() {
+        if (descRoom != null && descLines > 0) {
+            descRoom[Config.ROOM_DESC] = desc.toString();
+        }
+        descRoom = null;
+    }
+
+    /**
+     * Records the parse error on the current line, and prints its message if printErrors is set.
+     *
+     * @return false, so callers can return the result directly.
+     */
+    private boolean error(char[] buf, int start, int end) {
+        state = AdventureStory.parseState.ERROR;
+        errorLine = numLines;
+        errorText = new String(buf, start, end - start);
+        if (printErrors) {
+            System.out.print("Error parsing file on line: " + errorLine + ": " + errorText);
+        }
+        return false;
+    }
+
+    /**
+     * Stores the description of the last room parsed. This completes the parse of a part of a
+     * story file, such as a chunk parsed by ParallelStoryParser, without the checks of finish.
+     */
+    public void endChunk() {
+        endDescription();
+    }
+
+    /**
+     * Completes the parse after the last line. Checks that rooms and trans are not empty and have
+     * the same size, and stores the id of the first room in curRoom.
+     *
+     * @param curRoom An array of at least length 1, or null. The current room id will be stored in
+     *                the cell at index 0.
+     * @return false if the rooms or transitions were not properly parsed. Otherwise, true.
+     */
+    public boolean finish(String[] curRoom) {
+        endDescription();
+        if (rooms.size() < 1 || trans.size() < 1 || rooms.size() != trans.size()) {
+            System.out.print("Error parsing file: rooms or transitions not properly parsed.");
+            return false;
+        }
+        if (curRoom != null) {
+            curRoom[0] = rooms.get(0)[Config.ROOM_ID];
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of lines parsed so far.
+     *
+     * @return The number of calls to parseLine.
+     */
+    public int lineNumber() {
+        return numLines;
+    }
+
+    /**
+     * Returns the number of the line with the parse error, counted from the first line parsed.
+     *
+     * @return The line number, or -1 if there was no parse error.
+     */
+    public int errorLine() {
+        return errorLine;
+    }
+
+    /**
+     * Returns the trimmed line with the parse error.
+     *
+     * @return The line, or null if there was no parse error.
+     */
+    public String errorText() {
+        return errorText;
+    }
+
+    /**
+     * Returns a String of a range of buf with leading and trailing whitespace removed.
+     */
+    private static String trimmed(char[] buf, int start, int end) {
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        return new String(buf, start, end - start);
+    }
+
+    /**
+     * Returns a range of buf with leading and trailing whitespace removed, from the pool if there
+     * is one.
+     */
+    private String pooled(char[] buf, int start, int end) {
+        if (pool == null) {
+            return trimmed(buf, start, end);
+        }
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        return pool.intern(buf, start, end);
+    }
+
+    /**
+     * Returns the index of the first c in a range of buf, or -1 if there is none.
+     */
+    private static int indexOf(char[] buf, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first occurrence of s in a range of buf, or -1 if there is none.
+     */
+    private static int indexOf(char[] buf, int start, int end, char[] s) {
+        for (int i = start; i <= end - s.length; i++) {
+            int j = 0;
+            while (j < s.length && buf[i + j] == s[j]) {
+                j++;
+            }
+            if (j == s.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether a range of buf holds the characters of s.
+     */
+    private static boolean equals(char[] buf, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,465 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryValidator.java
+// This File: StoryValidator.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the mistakes in a story that parseStory does not check for, so they are reported when
+ * the story is loaded rather than when a player runs into them:
+ *   - transitions to room ids that no room has,
+ *   - room ids used by more than one room,
+ *   - rooms that cannot be reached from the start room,
+ *   - rooms that do not end the story but have no transition that can be taken,
+ *   - cycles of rooms that, once entered, can never be left,
+ *   - weighted rooms whose weights sum to zero or less, or are not numbers.
+ *
+ * The start room's reachable rooms and the strongly connected components among them are found in
+ * a single iterative pass of Tarjan's algorithm, so validation takes time linear in the number of
+ * rooms and transitions and does not recurse, however long the paths of the story are.
+ *
+ * Usage: java StoryValidator storyFile
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryValidator {
+    private static final int LIST_LIMIT = 10; // room ids listed in a message about many rooms
+
+    /**
+     * The problems found in a story.
+     */
+    public static class Report {
+        private final Story story; // the story validated
+        private final int startRoom; // the room the reachable rooms are reached from
+        private int[] dangling = new int[0]; // transitions leading to missing room ids
+        private int[] duplicates = new int[0]; // rooms whose id an earlier room already has
+        private int[] unreachable = new int[0]; // rooms not reachable from startRoom
+        private int[] deadEnds = new int[0]; // rooms with no transition that can be taken
+        private final List<int[]> closedCycles = new ArrayList<int[]>(); // cycles without exit
+        private int[] zeroWeights = new int[0]; // weighted rooms with weights summing to <= 0
+        private int[] badWeights = new int[0]; // weighted rooms with a weight not a number
+
+        private Report(Story story, int startRoom) {
+            this.story = story;
+            this.startRoom = startRoom;
+        }
+
+        /**
+         * Returns whether no problem was found.
+         *
+         * @return true if the story is valid.
+         */
+        public boolean isValid() {
+            return dangling.length == 0 && duplicates.length == 0 && unreachable.length == 0
+                && deadEnds.length == 0 && closedCycles.isEmpty() && zeroWeights.length == 0
+                && badWeights.length == 0;
+        }
+
+        /**
+         * Returns the transitions that lead to room ids no room has.
+         *
+         * @return The indexes of the transitions.
+         */
+        public int[] danglingTransitions() {
+            return dangling.clone();
+        }
+
+        /**
+         * Returns the rooms whose id is also the id of an earlier room. Those rooms can never be
+         * entered, since transitions lead to the first room with the id.
+         *
+         * @return The indexes of the rooms.
+         */
+        public int[] duplicateRooms() {
+            return duplicates.clone();
+        }
+
+        /**
+         * Returns the rooms that cannot be reached from the start room.
+         *
+         * @return The indexes of the rooms.
+         */
+        public int[] unreachableRooms() {
+            return unreachable.clone();
+        }
+
+        /**
+         * Returns the reachable rooms that do not end the story and have no transition to an
+         * existing room.
+         *
+         * @return The indexes of the rooms.
+         */
+        public int[] deadEndRooms() {
+            return deadEnds.clone();
+        }
+
+        /**
+         * Returns the cycles of reachable rooms that can never be left once entered.
+         *
+         * @return The indexes of the rooms of each cycle.
+         */
+        public List<int[]> closedCycles() {
+            List<int[]> copy = new ArrayList<int[]>();
+            for (int[] cycle : closedCycles) {
+                copy.add(cycle.clone());
+            }
+            return copy;
+        }
+
+        /**
+         * Returns the rooms whose transitions all have weights, summing to zero or less.
+         *
+         * @return The indexes of the rooms.
+         */
+        public int[] zeroWeightRooms() {
+            return zeroWeights.clone();
+        }
+
+        /**
+         * Returns the rooms whose transitions all have weights, one of which is not a number.
+         *
+         * @return The indexes of the rooms.
+         */
+        public int[] invalidWeightRooms() {
+            return badWeights.clone();
+        }
+
+        /**
+         * Returns a message describing each problem found, in the order of the list in the class
+         * comment.
+         *
+         * @return The messages, empty if the story is valid.
+         */
+        public List<String> messages() {
+            List<String> messages = new ArrayList<String>();
+            for (int t : dangling) {
+                int room = roomOf(t);
+                messages.add("Transition " + (t - story.transitionStart(room) + 1) + " of room "
+                    + story.id(room) + " leads to a missing room: " + story.transitionRoomId(t));
+            }
+            for (int room : duplicates) {
+                messages.add("Room id " + story.id(room) + " is used by more than one room");
+            }
+            if (unreachable.length > 0) {
+                messages.add(plural(unreachable.length, "room") + " cannot be reached from room "
+                    + story.id(startRoom) + ": " + ids(unreachable));
+            }
+            for (int room : deadEnds) {
+                messages.add("Room " + story.id(room) + " has no transition that can be taken");
+            }
+            for (int[] cycle : closedCycles) {
+                messages.add(plural(cycle.length, "room") + " form a cycle with no exit: "
+                    + ids(cycle));
+            }
+            for (int room : zeroWeights) {
+                messages.add("The weights of room " + story.id(room) + " sum to zero or less");
+            }
+            for (int room : badWeights) {
+                messages.add("A weight of room " + story.id(room) + " is not a number");
+            }
+            return messages;
+        }
+
+        /**
+         * Returns the room a transition belongs to: the last room whose transitions start at or
+         * before it.
+         */
+        private int roomOf(int tran) {
+            int lo = 0;
+            int hi = story.size() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (story.transitionStart(mid) <= tran) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Returns the ids of rooms, separated by commas, listing at most LIST_LIMIT of them.
+         */
+        private String ids(int[] rooms) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < rooms.length && i < LIST_LIMIT; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(story.id(rooms[i]));
+            }
+            if (rooms.length > LIST_LIMIT) {
+                sb.append(" and ").append(rooms.length - LIST_LIMIT).append(" more");
+            }
+            return sb.toString();
+        }
+
+        private static String plural(int count, String noun) {
+            return count + " " + noun + (count == 1 ? "" : "s");
+        }
+    }
+
+    /**
+     * A growable list of ints.
+     */
+    private static class Ints {
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Validates a story.
+     *
+     * @param story The story.
+     * @param startRoom The index of the room the story starts in.
+     * @return The problems found.
+     */
+    public static Report validate(Story story, int startRoom) {
+        Report report = new Report(story, startRoom);
+        int rooms = story.size();
+        if (rooms == 0) {
+            return report;
+        }
+
+        // transitions that lead nowhere, and what kind of room each room is
+        Ints dangling = new Ints();
+        Ints duplicates = new Ints();
+        Ints zeroWeights = new Ints();
+        Ints badWeights = new Ints();
+        boolean[] ending = new boolean[rooms];
+        double[][] chances = new double[rooms][]; // selection chances of weighted rooms
+        for (int r = 0; r < rooms; r++) {
+            if (story.indexOf(story.id(r)) != r) {
+                duplicates.add(r);
+            }
+            int first = story.transitionStart(r);
+            int end = story.transitionEnd(r);
+            String desc = end - first == 1 ? story.transitionDescription(first) : null;
+            if (Config.SUCCESS.equals(desc) || Config.FAIL.equals(desc)) {
+                ending[r] = true;
+                continue;
+            }
+            boolean weighted = end > first;
+            for (int t = first; t < end; t++) {
+                if (story.target(t) == -1) {
+                    dangling.add(t);
+                }
+                weighted &= story.transitionWeight(t) != null;
+            }
+            if (weighted) {
+                WeightTable weights = story.weights(r);
+                if (weights != WeightTable.NONE) {
+                    chances[r] = weights.probabilities();
+                } else if (numericWeights(story, first, end)) {
+                    zeroWeights.add(r);
+                } else {
+                    badWeights.add(r);
+                }
+            }
+        }
+        report.dangling = dangling.toArray();
+        report.duplicates = duplicates.toArray();
+        report.zeroWeights = zeroWeights.toArray();
+        report.badWeights = badWeights.toArray();
+
+        // Tarjan's algorithm from the start room, without recursion
+        int[] index = new int[rooms];
+        int[] low = new int[rooms];
+        int[] component = new int[rooms];
+        int[] next = new int[rooms]; // the next transition of each room on the call stack
+        int[] calls = new int[rooms];
+        int[] stack = new int[rooms];
+        boolean[] onStack = new boolean[rooms];
+        Arrays.fill(index, -1);
+        int counter = 0;
+        int components = 0;
+        int top = 0;
+        int depth = 0;
+
+        index[startRoom] = low[startRoom] = counter++;
+        stack[top++] = startRoom;
+        onStack[startRoom] = true;
+        next[startRoom] = story.transitionStart(startRoom);
+        calls[depth++] = startRoom;
+        while (depth > 0) {
+            int v = calls[depth - 1];
+            if (next[v] < story.transitionEnd(v)) {
+                int t = next[v]++;
+                int w = follow(story, chances, v, t);
+                if (w == -1) {
+                    continue;
+                }
+                if (index[w] == -1) {
+                    index[w] = low[w] = counter++;
+                    stack[top++] = w;
+                    onStack[w] = true;
+                    next[w] = story.transitionStart(w);
+                    calls[depth++] = w;
+                } else if (onStack[w]) {
+                    low[v] = Math.min(low[v], index[w]);
+                }
+                continue;
+            }
+            depth--;
+            if (depth > 0) {
+                int u = calls[depth - 1];
+                low[u] = Math.min(low[u], low[v]);
+            }
+            if (low[v] == index[v]) {
+                int w;
+                do {
+                    w = stack[--top];
+                    onStack[w] = false;
+                    component[w] = components;
+                } while (w != v);
+                components++;
+            }
+        }
+
+        // components that are cycles and that no transition leaves
+        int[] size = new int[components];
+        boolean[] cyclic = new boolean[components];
+        boolean[] exit = new boolean[components];
+        Ints unreachable = new Ints();
+        Ints deadEnds = new Ints();
+        for (int r = 0; r < rooms; r++) {
+            if (index[r] == -1) {
+                unreachable.add(r);
+                continue;
+            }
+            int c = component[r];
+            size[c]++;
+            boolean moves = false;
+            for (int t = story.transitionStart(r); t < story.transitionEnd(r); t++) {
+                int w = follow(story, chances, r, t);
+                if (w == -1) {
+                    continue;
+                }
+                moves = true;
+                if (w == r) {
+                    cyclic[c] = true;
+                } else if (component[w] != c) {
+                    exit[c] = true;
+                }
+            }
+            if (!moves && !ending[r]) {
+                deadEnds.add(r);
+            }
+        }
+        int[] fill = new int[components];
+        int[][] members = new int[components][];
+        for (int r = 0; r < rooms; r++) {
+            if (index[r] != -1) {
+                int c = component[r];
+                if ((size[c] > 1 || cyclic[c]) && !exit[c]) {
+                    if (members[c] == null) {
+                        members[c] = new int[size[c]];
+                    }
+                    members[c][fill[c]++] = r;
+                }
+            }
+        }
+        for (int[] cycle : members) {
+            if (cycle != null) {
+                report.closedCycles.add(cycle);
+            }
+        }
+        report.unreachable = unreachable.toArray();
+        report.deadEnds = deadEnds.toArray();
+        return report;
+    }
+
+    /**
+     * Validates a story that has just been loaded, if Config.VALIDATE_STORY is set, and prints a
+     * warning terminated by a new line to System.out for each problem found. Reachability is
+     * checked from the first room, where the story starts. At most LIST_LIMIT warnings are
+     * printed, followed by the number of problems left out.
+     *
+     * @param story The story.
+     * @return The problems found, or null if Config.VALIDATE_STORY is not set.
+     */
+    public static Report check(Story story) {
+        if (!Config.VALIDATE_STORY || story.size() == 0) {
+            return null;
+        }
+        Report report = validate(story, 0);
+        List<String> messages = report.messages();
+        for (int i = 0; i < messages.size() && i < LIST_LIMIT; i++) {
+            System.out.println("Warning: " + messages.get(i));
+        }
+        if (messages.size() > LIST_LIMIT) {
+            System.out.println("Warning: " + (messages.size() - LIST_LIMIT) + " more problems");
+        }
+        return report;
+    }
+
+    /**
+     * Returns the room a transition leads to, or -1 if it leads to no room or, in a weighted
+     * room, is never selected.
+     */
+    private static int follow(Story story, double[][] chances, int room, int tran) {
+        if (chances[room] != null && chances[room][tran - story.transitionStart(room)] == 0) {
+            return -1;
+        }
+        return story.target(tran);
+    }
+
+    /**
+     * Returns whether the weights of a range of transitions are all numbers.
+     */
+    private static boolean numericWeights(Story story, int first, int end) {
+        try {
+            for (int t = first; t < end; t++) {
+                Integer.parseInt(story.transitionWeight(t));
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Validates a story file and prints the problems found.
+     *
+     * @param args The name of the story, bookmark or story image file.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java StoryValidator storyFile");
+            return;
+        }
+        AdventureEngine engine = AdventureEngine.load(args[0]);
+        if (engine == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        Report report = validate(engine.story(), engine.startRoom());
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (String message : report.messages()) {
+            System.out.println(message);
+        }
+        System.out.println(String.format("%s: %d rooms, %s, %.3f s", args[0],
+            engine.story().size(), report.isValid() ? "valid" : "problems found", seconds));
+    }
+}
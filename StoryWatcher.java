@@ -0,0 +1,353 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StoryWatcher.java
+// This File: StoryWatcher.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reloads the story of an AdventureEngine when its story file changes, without restarting the
+ * sessions playing it. A WatchService reports changes to the file, and each change is reloaded
+ * incrementally: only the room blocks whose text changed are parsed again.
+ *
+ * The file is split into blocks, each starting at a room line: a line starting with 'R' outside a
+ * description. Every block is identified by its length and a 64-bit hash of its text, and the
+ * rooms and transitions parsed from it are kept. On a reload, a block with the same length and
+ * hash as a block of the previous version reuses its rooms and transitions; the other blocks are
+ * parsed by a StoryParser. The rooms are then compiled into a new StoryGraph, compared with the
+ * previous one, and published to the engine as a new version. Sessions stay in the room with the
+ * same id, see Session.update.
+ *
+ * If the new file cannot be parsed, the error is printed as AdventureStory.parseFile prints it and
+ * the engine keeps the previous version.
+ *
+ * @author Benjamin Tarmann
+ */
+public class StoryWatcher implements Closeable {
+    private static final long SETTLE_MILLIS = 100; // waited for an editor to finish saving
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L; // FNV-1a hash of nothing
+    private static final long FNV_PRIME = 0x100000001b3L; // FNV-1a multiplier
+
+    private final AdventureEngine engine; // the engine whose story is reloaded
+    private final File file; // the story file
+    private HashMap<Long, Block> blocks = new HashMap<Long, Block>(); // blocks by key()
+    private ArrayList<Block> order = new ArrayList<Block>(); // the blocks in file order
+    private WatchService watcher; // reports changes to the directory of the file
+    private Thread thread; // waits for changes and reloads the story
+
+    /**
+     * The text of one room block and the rooms and transitions parsed from it. Usually a block
+     * holds one room, but the block before the first room holds none.
+     */
+    private static class Block {
+        private final long hash; // the hash of the text of the block
+        private final int length; // the number of characters of the block
+        private final ArrayList<String[]> rooms = new ArrayList<String[]>();
+        private final ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+
+        private Block(long hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        /**
+         * Returns the key of a block with the given hash and length.
+         */
+        private static long key(long hash, int length) {
+            return hash * 31 + length;
+        }
+    }
+
+    /**
+     * Creates a watcher of the story file of an engine, and parses the file once so later reloads
+     * only parse the blocks that change. The engine is not changed.
+     *
+     * @param engine The engine, which must have been loaded from a story file.
+     * @throws IOException If the file cannot be read or is not a story file that parses.
+     */
+    public StoryWatcher(AdventureEngine engine) throws IOException {
+        this.engine = engine;
+        this.file = new File(engine.storyFile());
+        if (StoryImage.isImage(engine.storyFile()) || read() == null) {
+            throw new IOException("Not a story file that parses: " + engine.storyFile());
+        }
+    }
+
+    /**
+     * Starts a daemon thread that reloads the story whenever the file is changed.
+     *
+     * @return This watcher.
+     * @throws IOException If the directory of the file cannot be watched.
+     */
+    public StoryWatcher start() throws IOException {
+        Path dir = file.getAbsoluteFile().toPath().getParent();
+        watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::watch, "story-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Waits for changes to the file and reloads it, until the watcher is closed. Several events
+     * in quick succession, as editors produce while saving, cause one reload.
+     */
+    private void watch() {
+        Path name = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || name.equals(event.context());
+                    }
+                    key.reset();
+                    if (changed) {
+                        Thread.sleep(SETTLE_MILLIS);
+                    }
+                    key = changed ? watcher.poll() : null;
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the watcher was closed
+        }
+    }
+
+    /**
+     * Stops watching the file.
+     *
+     * @throws IOException If the WatchService cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Reloads the story file, parsing only the blocks that changed since the last reload, and
+     * publishes the new story to the engine unless the file is unchanged. The rooms changed,
+     * added and removed are printed, terminated by a new line, to System.out. Errors are printed
+     * as AdventureStory.parseFile prints them, and the engine keeps its story.
+     *
+     * @return The number of blocks parsed, 0 if the file is unchanged, or -1 if it could not be
+     *         read or parsed.
+     */
+    public synchronized int reload() {
+        ArrayList<Block> previous = order;
+        ArrayList<Block> parsed;
+        try {
+            parsed = read();
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + file.getPath());
+            return -1;
+        }
+        if (parsed == null) {
+            return -1;
+        }
+        if (order.equals(previous)) {
+            return 0;
+        }
+
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        for (Block block : order) {
+            rooms.addAll(block.rooms);
+            trans.addAll(block.trans);
+        }
+        String[] curRoom = new String[1];
+        new StoryParser(rooms, trans).finish(curRoom);
+        StoryGraph graph = StoryGraph.compile(rooms, trans);
+        StoryValidator.check(graph);
+
+        // compares the new story with the old one
+        AdventureEngine.Version old = engine.version();
+        int changed = 0;
+        int added = 0;
+        for (Block block : parsed) {
+            for (String[] room : block.rooms) {
+                if (old.story().indexOf(room[Config.ROOM_ID]) == -1) {
+                    added++;
+                } else {
+                    changed++;
+                }
+            }
+        }
+        int removed = 0;
+        for (int r = 0; r < old.story().size(); r++) {
+            if (graph.indexOf(old.story().id(r)) == -1) {
+                removed++;
+            }
+        }
+
+        int start = graph.indexOf(old.story().id(old.startRoom()));
+        engine.publish(graph, start != -1 ? start : Math.max(0, graph.indexOf(curRoom[0])));
+        System.out.println("Reloaded " + file.getPath() + ": " + changed + " rooms changed, "
+            + added + " added, " + removed + " removed");
+        return parsed.size();
+    }
+
+    /**
+     * Reads the story file into blocks, reusing the blocks of the last read whose text is the
+     * same, and keeps them for the next read if the file parses.
+     *
+     * @return The blocks that were parsed, or null if the file is not a story file or has a parse
+     *         error.
+     * @throws IOException If the file cannot be read.
+     */
+    private ArrayList<Block> read() throws IOException {
+        HashMap<Long, Block> nextBlocks = new HashMap<Long, Block>();
+        ArrayList<Block> nextOrder = new ArrayList<Block>();
+        ArrayList<Block> parsed = new ArrayList<Block>();
+        char[] text = new char[4096]; // the text of the current block
+        int[] lineEnds = new int[64]; // the end of each line of the current block in text
+        int length = 0; // the number of characters in text
+        int lines = 0; // the number of lines of the current block
+        int firstLine = 0; // the number of lines before the current block, after the first line
+        long hash = FNV_OFFSET;
+        boolean description = false; // whether the current line is part of a description
+        StringPool pool = Config.POOL_STRINGS ? new StringPool() : null; // shared by the blocks
+
+        try (FileChannel ch = FileChannel.open(file.toPath())) {
+            LineReader in = new LineReader(ch, Charset.defaultCharset());
+            if (!in.nextLine() || !in.trimmedLine().equals(Config.MAGIC_STORY)) {
+                System.out.println("First line of " + file.getPath() + " is not "
+                    + Config.MAGIC_STORY);
+                return null;
+            }
+            boolean more = true;
+            while (more) {
+                more = in.nextLine();
+                char[] buf = in.buffer();
+                int start = in.start();
+                int end = in.end();
+                int first = start;
+                while (first < end && buf[first] <= ' ') {
+                    first++;
+                }
+                int last = end;
+                while (last > first && buf[last - 1] <= ' ') {
+                    last--;
+                }
+                boolean roomLine = more && !description && first < end && buf[first] == 'R';
+
+                if (!more || roomLine) {
+                    // the current block ends before this line
+                    Block block = blocks.get(Block.key(hash, length));
+                    if (block == null || block.length != length || block.hash != hash) {
+                        block = new Block(hash, length);
+                        StoryParser parser = new StoryParser(block.rooms, block.trans, false,
+                            pool);
+                        for (int i = 0, from = 0; i < lines; from = lineEnds[i++]) {
+                            if (!parser.parseLine(text, from, lineEnds[i])) {
+                                System.out.print("Error parsing file on line: "
+                                    + (firstLine + parser.errorLine()) + ": "
+                                    + parser.errorText());
+                                System.out.println();
+                                return null;
+                            }
+                        }
+                        parser.endChunk();
+                        parsed.add(block);
+                    }
+                    nextBlocks.put(Block.key(hash, length), block);
+                    nextOrder.add(block);
+                    firstLine += lines;
+                    length = 0;
+                    lines = 0;
+                    hash = FNV_OFFSET;
+                }
+                if (!more) {
+                    break;
+                }
+
+                if (roomLine) {
+                    description = true;
+                } else if (last - first == 3 && buf[first] == ';' && buf[first + 1] == ';'
+                    && buf[first + 2] == ';') {
+                    description = false;
+                }
+                if (length + end - start > text.length) {
+                    text = Arrays.copyOf(text, Math.max(text.length * 2, length + end - start));
+                }
+                if (lines == lineEnds.length) {
+                    lineEnds = Arrays.copyOf(lineEnds, lines * 2);
+                }
+                for (int i = start; i < end; i++) {
+                    text[length++] = buf[i];
+                    hash = (hash ^ buf[i]) * FNV_PRIME;
+                }
+                hash = (hash ^ '\n') * FNV_PRIME;
+                lineEnds[lines++] = length;
+            }
+        }
+
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        for (Block block : nextOrder) {
+            rooms.addAll(block.rooms);
+            trans.addAll(block.trans);
+        }
+        if (!new StoryParser(rooms, trans).finish(null)) {
+            System.out.println();
+            return null;
+        }
+        blocks = nextBlocks;
+        order = nextOrder;
+        return parsed;
+    }
+
+    /**
+     * Loads a story file and reloads it whenever it changes, printing each reload, until the
+     * program is stopped. Useful to check how edits to a story are reloaded.
+     *
+     * @param args The name of the story file.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java StoryWatcher storyFile");
+            return;
+        }
+        AdventureEngine engine = AdventureEngine.load(args[0]);
+        if (engine == null) {
+            return;
+        }
+        try {
+            new StoryWatcher(engine).start();
+            System.out.println("Watching " + args[0]);
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (IOException e) {
+            System.out.println("Error watching file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+}
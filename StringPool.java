@@ -0,0 +1,157 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, StringPool.java
+// This File: StringPool.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.ArrayList;
+
+/**
+ * Shares equal Strings of a story, so a story that repeats the same transitions in many rooms,
+ * such as ": Explore the kitchen -> 7" in Goldilocks.story, keeps one copy of their texts. Room
+ * ids are shared between a room and the transitions leading to it, and weights such as "1" are
+ * stored once.
+ *
+ * Strings can be looked up by a range of a char array, so a parser only creates a String the
+ * first time it sees the text. The Strings themselves are stored by the JVM as Latin-1 bytes
+ * whenever their characters allow it.
+ *
+ * Only the Strings, which cannot be changed, are shared: every room and transition keeps an array
+ * of its own, so changing one in place does not change any other. A pool is not thread-safe.
+ *
+ * @author Benjamin Tarmann
+ */
+public class StringPool {
+    private String[] table = new String[256]; // open addressing hash table, null if empty
+    private int size; // the number of Strings in table
+    private long hits; // lookups answered with a String already in the pool
+
+    /**
+     * Returns the pooled String equal to s, adding s if there is none.
+     *
+     * @param s The String, or null.
+     * @return The pooled String, or null if s is null.
+     */
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        int slot = spread(s.hashCode()) & (table.length - 1);
+        while (table[slot] != null) {
+            if (table[slot].equals(s)) {
+                hits++;
+                return table[slot];
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return add(slot, s);
+    }
+
+    /**
+     * Returns the pooled String holding a range of a char array, creating it if there is none.
+     *
+     * @param buf The array.
+     * @param start The start of the range.
+     * @param end The end (exclusive) of the range.
+     * @return The pooled String.
+     */
+    public String intern(char[] buf, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i]; // the hash String.hashCode computes
+        }
+        int slot = spread(hash) & (table.length - 1);
+        while (table[slot] != null) {
+            String s = table[slot];
+            if (s.length() == end - start && s.hashCode() == hash && matches(s, buf, start)) {
+                hits++;
+                return s;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return add(slot, new String(buf, start, end - start));
+    }
+
+    /**
+     * Shares the room ids and the Strings of the transitions of parsed rooms through this pool,
+     * replacing them in the room and transition arrays.
+     *
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details.
+     */
+    public void dedupe(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+        for (String[] room : rooms) {
+            room[Config.ROOM_ID] = intern(room[Config.ROOM_ID]);
+        }
+        for (ArrayList<String[]> list : trans) {
+            for (String[] tran : list) {
+                for (int i = 0; i < tran.length; i++) {
+                    tran[i] = intern(tran[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct Strings in the pool.
+     *
+     * @return The number of Strings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of lookups that found a String already in the pool.
+     *
+     * @return The number of hits.
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Adds a String to an empty slot, growing the table when it is half full.
+     */
+    private String add(int slot, String s) {
+        table[slot] = s;
+        if (++size * 2 > table.length) {
+            String[] old = table;
+            table = new String[old.length * 2];
+            for (String t : old) {
+                if (t != null) {
+                    int i = spread(t.hashCode()) & (table.length - 1);
+                    while (table[i] != null) {
+                        i = (i + 1) & (table.length - 1);
+                    }
+                    table[i] = t;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Mixes the high bits of a hash into the low bits used to pick a slot.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns whether the characters of s are the ones starting at start in buf.
+     */
+    private static boolean matches(String s, char[] buf, int start) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != buf[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -11,6 +11,7 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Random;
 
@@ -39,6 +40,50 @@ public class TestAdventureStory {
             }
         }
 
+        // test 2: a LineReader skips bad and blank lines and consumes the rest of the line
+        {
+            LineReader in = new LineReader(
+                new java.io.StringReader("abc\n\n  99\n2147483648\n-7 rest\n12\n"));
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            java.io.PrintStream out = new java.io.PrintStream(printed, true);
+            int first = AdventureStory.promptInt(in, out, "Enter integer: ", -10, 15);
+            int second = AdventureStory.promptInt(in, out, "Enter integer: ", -10, 15);
+            String expected = "Enter integer: Invalid value.\n".repeat(3) + "Enter integer: ";
+            if (first != -7 || second != 12
+                || !printed.toString().replace("\r\n", "\n").startsWith(expected)) {
+                System.out.println("2) testPromptInt expected: -7 12 result: " + first + " "
+                    + second + " " + printed);
+                error = true;
+            }
+        }
+
+        // test 3: the end of the input ends the prompt, and answers piped at once are all read
+        {
+            LineReader in = new LineReader(new java.io.StringReader("x\n"));
+            java.io.PrintStream out =
+                new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+            try {
+                AdventureStory.promptInt(in, out, "Enter integer: ", 0, 1);
+                System.out.println("3) testPromptInt expected: NoSuchElementException");
+                error = true;
+            } catch (java.util.NoSuchElementException e) {
+                // expected
+            }
+            StringBuilder piped = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                piped.append(i % 3).append('\n');
+            }
+            in = new LineReader(new java.io.StringReader(piped.toString()));
+            long sum = 0;
+            for (int i = 0; i < 100000; i++) {
+                sum += AdventureStory.promptInt(in, out, "Choose: ", -2, 2);
+            }
+            if (sum != 99999 || in.hasBufferedLine()) {
+                System.out.println("3) testPromptInt expected: 99999 result: " + sum);
+                error = true;
+            }
+        }
+
         if (error) {
             System.out.println("testPromptInt failed");
         } else {
@@ -74,6 +119,24 @@ public class TestAdventureStory {
                 error = true;
             }
         }
+
+        // test 3: a LineReader returns trimmed lines and ends with the input
+        {
+            LineReader in = new LineReader(new java.io.StringReader("  foo bar \r\n"));
+            java.io.PrintStream out =
+                new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+            String result = AdventureStory.promptString(in, out, "Enter: ");
+            boolean ended = false;
+            try {
+                AdventureStory.promptString(in, out, "Enter: ");
+            } catch (java.util.NoSuchElementException e) {
+                ended = true;
+            }
+            if (!"foo bar".equals(result) || !ended) {
+                System.out.println("3) testPromptString expected: foo bar result: " + result);
+                error = true;
+            }
+        }
         if (error) {
             System.out.println("testPromptString failed");
         } else {
@@ -110,6 +173,40 @@ public class TestAdventureStory {
             }
         }
 
+        // test 3: a blank line is the null character
+        {
+            Scanner in = new Scanner("   \n");
+            char result = AdventureStory.promptChar(in, "Enter: ");
+            if (result != '\0') {
+                System.out.println("3) testPromptChar expected: the null character result: "
+                    + result);
+                error = true;
+            }
+        }
+
+        // test 4: a LineReader gives the same characters, prompts again after a blank line and
+        // ends the prompt when the input ends
+        {
+            LineReader in = new LineReader(new java.io.StringReader("  Yes\n\t\nN"));
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            java.io.PrintStream out = new java.io.PrintStream(printed);
+            String result = "" + AdventureStory.promptChar(in, out, "Enter: ")
+                + AdventureStory.promptChar(in, out, "Enter: ");
+            boolean ended = false;
+            try {
+                AdventureStory.promptChar(in, out, "Enter: ");
+            } catch (NoSuchElementException e) {
+                ended = true;
+            }
+            out.flush();
+            if (!result.equals("yn") || !ended
+                || !printed.toString().equals("Enter: Enter: Enter: Enter: ")) {
+                System.out.println("4) testPromptChar expected: y, n, the end of the input "
+                    + "result: " + result + " " + ended + " " + printed);
+                error = true;
+            }
+        }
+
         if (error) {
             System.out.println("testPromptChar failed");
         } else {
@@ -117,6 +214,56 @@ public class TestAdventureStory {
         }
     }
 
+    /**
+     * This runs some tests on how the main method ends when its input ends.
+     */
+    private static void testMainEndOfInput() {
+        boolean error = false;
+        String[] inputs =
+            {"Goldilocks.story\n", "Goldilocks.story\n1\n", "Goldilocks.story\n1\n\n"};
+
+        // test 1: the input ending in the middle of a story ends the game
+        // test 2: the input ending at the prompt to play again ends the game
+        // test 3: a blank answer to the prompt to play again asks again
+        for (int i = 0; i < inputs.length; i++) {
+            java.io.InputStream in = System.in;
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            try {
+                System.setIn(new java.io.ByteArrayInputStream(inputs[i].getBytes()));
+                System.setOut(new java.io.PrintStream(printed));
+                AdventureStory.main(new String[0]);
+            } catch (RuntimeException e) {
+                printed.write('\n');
+                printed.writeBytes(e.toString().getBytes());
+            } finally {
+                System.setIn(in);
+                System.setOut(out);
+            }
+            String result = printed.toString().trim();
+            if (!result.endsWith("Thank you for playing!")
+                || result.indexOf("Please enter the story filename") != result
+                    .lastIndexOf("Please enter the story filename")) {
+                String[] lines = result.split("\n");
+                System.out.println((i + 1) + ") testMainEndOfInput expected: Thank you for "
+                    + "playing! result: " + lines[lines.length - 1]);
+                error = true;
+            }
+            int prompts = result.split("Do you want to try again\\?", -1).length - 1;
+            if (i > 0 && prompts != i) {
+                System.out.println((i + 1) + ") testMainEndOfInput expected: " + i
+                    + " prompt(s) to play again result: " + prompts);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testMainEndOfInput failed");
+        } else {
+            System.out.println("testMainEndOfInput passed");
+        }
+    }
+
 
     /**
      * This runs some tests on the getRoomIndex method.
@@ -197,6 +344,268 @@ public class TestAdventureStory {
         }
     }
 
+    /**
+     * This runs some tests on the StoryGraph class and the lookups that delegate to it.
+     */
+    private static void testStoryGraph() {
+        boolean error = false;
+
+        // test 1
+        {
+            ArrayList<String[]> rooms = new ArrayList<>(Arrays.asList(new String[][] {
+                {"id1", "", ""}, {"id2", "", ""}, {"id3", "", ""}, {"id4", "", ""}}));
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"a", "id4", null},
+                {"b", "id9", null}})));
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"=)", null, null}})));
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"c", "id1", null}})));
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"=(", null, null}})));
+            StoryGraph graph = StoryGraph.compile(rooms, trans);
+            if (graph.indexOf("id4") != 3 || graph.indexOf("id9") != -1) {
+                System.out.println("1) testStoryGraph indexOf returned the wrong index");
+                error = true;
+            }
+            if (graph.transitionStart(0) != 0 || graph.transitionEnd(0) != 2
+                || graph.target(0) != 3 || graph.target(1) != -1 || graph.target(2) != -1
+                || graph.target(graph.transitionStart(2)) != 0) {
+                System.out.println("1) testStoryGraph transitions not compiled properly");
+                error = true;
+            }
+            // the graph keeps what it was compiled from when the ArrayLists change
+            rooms.get(3)[Config.ROOM_ID] = "id5";
+            trans.get(0).get(0)[Config.TRAN_DESC] = "changed";
+            trans.get(0).clear();
+            if (!graph.id(3).equals("id4") || graph.indexOf("id4") != 3
+                || graph.transitionEnd(0) != 2 || !graph.transitionDescription(0).equals("a")) {
+                System.out.println("1) testStoryGraph the graph changed with its ArrayLists");
+                error = true;
+            }
+        }
+
+        // test 2
+        {
+            // the fourth room is beyond the rooms checked by a fixed size scan
+            ArrayList<String[]> rooms = new ArrayList<>(Arrays.asList(new String[][] {
+                {"id1", "", ""}, {"id2", "", ""}, {"id3", "", ""}, {"id4", "", ""}}));
+            int expected = 3;
+            int result = AdventureStory.getRoomIndex("id4", rooms);
+            if (expected != result) {
+                System.out
+                    .println("2) testStoryGraph expected: " + expected + " result: " + result);
+                error = true;
+            }
+            // a room changed in place after the graph was compiled is still found
+            rooms.get(1)[Config.ROOM_ID] = "id5";
+            expected = 1;
+            result = AdventureStory.getRoomIndex("id5", rooms);
+            if (expected != result || AdventureStory.getRoomDetails("id2", rooms) != null) {
+                System.out
+                    .println("2) testStoryGraph expected: " + expected + " result: " + result);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryGraph failed");
+        } else {
+            System.out.println("testStoryGraph passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the RoomRenderer class and the printString method.
+     */
+    private static void testRoomRenderer() {
+        boolean error = false;
+        String nl = System.lineSeparator();
+        String[] vals = {"The quick brown fox jumps over the lazy dog.",
+            "abcdefghij klm,nop qrs\nshort line\n\nend!", "word, word. word; wordy  spaced   text"};
+        int[] lens = {10, 7, 12};
+        String[] expected = {"The quick\nbrown fox\njumps ove-\nr the laz-\ny dog." + nl,
+            "abcdef-\nghij k-\nlm,nop\nqrs\nshort \nline\n\nend!" + nl,
+            "word, word.\nword; wordy\n spaced   t-\next" + nl};
+
+        // test 1: the wrapping rules of printString
+        for (int i = 0; i < vals.length; i++) {
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            System.setOut(new java.io.PrintStream(printed));
+            AdventureStory.printString(lens[i], vals[i]);
+            System.setOut(out);
+            if (!expected[i].equals(printed.toString())) {
+                System.out.println("1) testRoomRenderer expected: " + expected[i] + " result: "
+                    + printed);
+                error = true;
+            }
+        }
+
+        // test 2: a room is written to the output with a single append
+        {
+            StringBuilder written = new StringBuilder();
+            int[] appends = new int[1];
+            Appendable counting = new Appendable() {
+                public Appendable append(CharSequence csq) {
+                    appends[0]++;
+                    written.append(csq);
+                    return this;
+                }
+
+                public Appendable append(CharSequence csq, int start, int end) {
+                    return append(csq.subSequence(start, end));
+                }
+
+                public Appendable append(char c) {
+                    return append(String.valueOf(c));
+                }
+            };
+            RoomRenderer renderer = new RoomRenderer(counting);
+            try {
+                renderer.room(vals[0], null, lens[0], '=').flush();
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            String expRoom = "==========" + nl + expected[0] + nl + nl + "==========" + nl;
+            if (appends[0] != 1 || !expRoom.equals(written.toString())) {
+                System.out.println("2) testRoomRenderer expected: " + expRoom + " result: "
+                    + written + " in " + appends[0] + " writes");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testRoomRenderer failed");
+        } else {
+            System.out.println("testRoomRenderer passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the RoomTextCache class used by the displayRoom method.
+     */
+    private static void testRoomTextCache() {
+        boolean error = false;
+        ArrayList<String[]> rooms = new ArrayList<>(Arrays.asList(new String[][] {
+            {"1", "Room 1", "A long enough description to be wrapped at a width of twenty."},
+            {"2", "Room 2", null}, {"3", "Room 3", "Short"}}));
+
+        // test 1: displaying a room again is answered from the cache with the same output
+        {
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream first = new java.io.ByteArrayOutputStream();
+            java.io.ByteArrayOutputStream second = new java.io.ByteArrayOutputStream();
+            System.setOut(new java.io.PrintStream(first));
+            AdventureStory.displayRoom("1", rooms);
+            long hits = AdventureStory.roomTextCache().hits();
+            System.setOut(new java.io.PrintStream(second));
+            AdventureStory.displayRoom("1", rooms);
+            System.setOut(out);
+            if (AdventureStory.roomTextCache().hits() != hits + 1
+                || !first.toString().equals(second.toString())) {
+                System.out.println("1) testRoomTextCache expected a hit with the same output");
+                error = true;
+            }
+        }
+
+        // test 2: the least recently used room is evicted, and rooms changed in place are
+        // displayed with their new text
+        {
+            RoomTextCache cache = new RoomTextCache(StoryGraph.compile(rooms, null), 2);
+            cache.render(0, 20, '-');
+            cache.render(1, 20, '-');
+            cache.render(0, 20, '-');
+            cache.render(2, 20, '-'); // evicts room 1
+            cache.render(1, 20, '-');
+            cache.render(1, 30, '-');
+            if (cache.hits() != 1 || cache.misses() != 5 || cache.size() != 2) {
+                System.out.println("2) testRoomTextCache hits: " + cache.hits() + " misses: "
+                    + cache.misses() + " size: " + cache.size());
+                error = true;
+            }
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream changed = new java.io.ByteArrayOutputStream();
+            System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+            AdventureStory.displayRoom("2", rooms);
+            rooms.get(1)[Config.ROOM_DESC] = "Changed";
+            System.setOut(new java.io.PrintStream(changed));
+            AdventureStory.displayRoom("2", rooms);
+            System.setOut(out);
+            if (!changed.toString().contains("Changed")) {
+                System.out.println("2) testRoomTextCache expected the changed description actual: "
+                    + changed);
+                error = true;
+            }
+        }
+
+        // test 3: a cache of an immutable story answers hits without reading the room's text
+        {
+            ArrayList<String[]> fixed = new ArrayList<>(Arrays.asList(new String[][] {
+                {"1", "Room 1", "Before"}}));
+            RoomTextCache cache = new RoomTextCache(StoryGraph.compile(fixed, null), 2, false);
+            String first = cache.render(0, 20, '-');
+            fixed.get(0)[Config.ROOM_DESC] = "After"; // not read again by the cache
+            String second = cache.render(0, 20, '-');
+            if (cache.hits() != 1 || cache.misses() != 1 || second != first
+                || !second.contains("Before")) {
+                System.out.println("3) testRoomTextCache hits: " + cache.hits() + " misses: "
+                    + cache.misses() + " text: " + second);
+                error = true;
+            }
+        }
+
+        // test 4: the graphs displayRoom keeps hold Config.STORY_CACHE_ROOMS rooms at most, so
+        // compiling a larger story drops the graph of the smaller one
+        {
+            long maxRooms = Config.STORY_CACHE_ROOMS;
+            java.io.PrintStream out = System.out;
+            boolean[] kept = new boolean[2];
+            try {
+                System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+                for (int limit = 3; limit >= 2; limit--) {
+                    Config.STORY_CACHE_ROOMS = limit;
+                    ArrayList<String[]> small = new ArrayList<>(Arrays.asList(new String[][] {
+                        {"1", "Small", "One room"}}));
+                    ArrayList<String[]> large = new ArrayList<>(Arrays.asList(new String[][] {
+                        {"A", "Large", "First"}, {"B", "Large", "Second"}}));
+                    AdventureStory.displayRoom("1", small);
+                    Story before = AdventureStory.roomTextCache().story();
+                    AdventureStory.displayRoom("A", large);
+                    AdventureStory.displayRoom("1", small);
+                    kept[limit - 2] = AdventureStory.roomTextCache().story() == before;
+                }
+            } finally {
+                Config.STORY_CACHE_ROOMS = maxRooms;
+                System.setOut(out);
+            }
+            if (!kept[1] || kept[0]) {
+                System.out.println("4) testRoomTextCache expected the small story to be kept "
+                    + "within 3 rooms and compiled again within 2");
+                error = true;
+            }
+        }
+
+        // test 5: the graph of a game is dropped when the game ends, here by the end of the input
+        {
+            boolean cached = Config.STORY_CACHE;
+            try {
+                Config.STORY_CACHE = false;
+                playMain("Goldilocks.story\n0\n2\n3\n0\n1\n0\n0\n0\n0\nn\n");
+            } finally {
+                Config.STORY_CACHE = cached;
+            }
+            if (AdventureStory.roomTextCache() != null) {
+                System.out.println("5) testRoomTextCache expected no rendered rooms after the "
+                    + "game, actual: " + AdventureStory.roomTextCache().story().size() + " rooms");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testRoomTextCache failed");
+        } else {
+            System.out.println("testRoomTextCache passed");
+        }
+    }
+
     /*
      * This runs some tests on the parseStory method
      */
@@ -280,107 +689,2568 @@ public class TestAdventureStory {
 
 
     /*
-     * This runs some tests on the parseBookmark method
+     * This runs some tests on the StoryParser class, comparing its results to the parseStory method
      */
-    private static void testParseBookmark() {
+    private static void testStoryParser() {
         boolean error = false;
+        String[] stories = {"Goldilocks.story", "GoldiFight.story", "NeverEnd.story"};
+        String[] inputs = {
+            "#!STORY\r\nR1: Room 1\r\nLine 1\r\n\r\n  Line 3  \r\n;;;\r\n: Go -> 2\r\n"
+                + "R2: Room 2\n;;;\n: Maybe -> 1 ? 3\n: Maybe not -> 2 ? 1\n\nR3:\n;;;\n=(",
+            "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Transition 1 -> 1\n"
+                + "R2: Room 2 \n Room 2 description \n;;;X\n =) \n",
+            "#!STORY\n# comment\n\nR1: Room 1\n;;;\nNot a transition\n", "WRONG FORMAT"};
 
-        // test 1
-        {
-            Scanner s = new Scanner("Goldilocks.story\n" + "7");
-            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
-            ArrayList<String[]> rooms = new ArrayList<>();
-            String[] curRoom = new String[1];
-            boolean expected = true;
-            boolean actual = AdventureStory.parseBookmark(s, rooms, trans, curRoom);
-            if (expected != actual) {
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList(inputs));
+        for (String story : stories) {
+            try {
+                contents.add(new String(java.nio.file.Files.readAllBytes(
+                    java.nio.file.Paths.get(story)), java.nio.charset.Charset.defaultCharset()));
+            } catch (java.io.IOException e) {
+                System.out.println("testStoryParser unable to read " + story);
                 error = true;
-                System.out.print("testParseBookmark 1 failed ");
             }
         }
-        // test 2
+
+        for (int test = 0; test < contents.size(); test++) {
+            ArrayList<String[]> expRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+            String[] expCur = new String[1];
+            ArrayList<String[]> actRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+            String[] actCur = new String[1];
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream expOut = new java.io.ByteArrayOutputStream();
+            java.io.ByteArrayOutputStream actOut = new java.io.ByteArrayOutputStream();
+            boolean expected = false;
+            boolean actual = false;
+            try {
+                Scanner sc = new Scanner(contents.get(test));
+                System.setOut(new java.io.PrintStream(expOut));
+                if (sc.nextLine().trim().equals(Config.MAGIC_STORY)) {
+                    expected = AdventureStory.parseStory(sc, expRooms, expTrans, expCur);
+                }
+                LineReader in = new LineReader(
+                    java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(
+                        contents.get(test).getBytes(java.nio.charset.Charset.defaultCharset()))),
+                    java.nio.charset.Charset.defaultCharset());
+                System.setOut(new java.io.PrintStream(actOut));
+                if (in.nextLine() && in.trimmedLine().equals(Config.MAGIC_STORY)) {
+                    actual = StoryParser.parse(in, actRooms, actTrans, actCur);
+                }
+            } catch (java.io.IOException e) {
+                actual = !expected;
+            } finally {
+                System.setOut(out);
+            }
+            if (expected != actual || !compareArrayListsArrays(expRooms, actRooms)
+                || !compare2dArrayLists(expTrans, actTrans) || !Arrays.equals(expCur, actCur)
+                || !expOut.toString().equals(actOut.toString())) {
+                System.out.println((test + 1) + ") testStoryParser expected: " + expected + " "
+                    + expOut + "\n" + Arrays.deepToString(expRooms.toArray()) + "\n"
+                    + toString2dArrayLists(expTrans) + "\nactual: " + actual + " " + actOut + "\n"
+                    + Arrays.deepToString(actRooms.toArray()) + "\n"
+                    + toString2dArrayLists(actTrans));
+                error = true;
+            }
+        }
+
+        // a transition without " -> " is a parse error rather than an exception
         {
-            Scanner s = new Scanner("WRONG FORMAT\n" + "7");
-            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
-            ArrayList<String[]> rooms = new ArrayList<>();
-            String[] curRoom = new String[1];
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            StoryParser parser = new StoryParser(rooms, trans);
+            String[] lines = {"R1: Room 1", ";;;", ": No arrow 2"};
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream actOut = new java.io.ByteArrayOutputStream();
+            System.setOut(new java.io.PrintStream(actOut));
+            boolean actual = true;
+            for (int i = 0; i < lines.length && actual; i++) {
+                actual = parser.parseLine(lines[i].toCharArray(), 0, lines[i].length());
+            }
+            System.setOut(out);
+            String expected = "Error parsing file on line: 3: : No arrow 2";
+            if (actual || !expected.equals(actOut.toString())) {
+                System.out.println("testStoryParser expected: " + expected + " actual: " + actOut);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryParser failed");
+        } else {
+            System.out.println("testStoryParser passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the ParallelStoryParser class
+     */
+    private static void testParallelStoryParser() {
+        boolean error = false;
+        java.io.StringWriter story = new java.io.StringWriter();
+        java.io.File file = null;
+        try {
+            new StoryGenerator().rooms(3000).seed(11).write(story);
+            file = java.io.File.createTempFile("parallel", ".story");
+        } catch (java.io.IOException e) {
+            System.out.println("testParallelStoryParser unable to create a story");
+            error = true;
+        }
+
+        // test 1: the rooms and transitions are the same as the ones of the single-pass parser,
+        // for any number of chunks; test 2: so is a parse error in one of the last chunks
+        String[] contents = {story.toString(),
+            story.toString().replaceFirst("\n: (?=[^\\n]*-> 2900\\b)", "\nbogus line\n: ")};
+        for (int test = 0; test < contents.length && file != null; test++) {
+            for (int chunks : new int[] {1, 7, 64}) {
+                ArrayList<String[]> expRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+                String[] expCur = new String[1];
+                ArrayList<String[]> actRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+                String[] actCur = new String[1];
+                java.io.PrintStream out = System.out;
+                java.io.ByteArrayOutputStream expOut = new java.io.ByteArrayOutputStream();
+                java.io.ByteArrayOutputStream actOut = new java.io.ByteArrayOutputStream();
+                boolean expected = false;
+                boolean actual = true;
+                try {
+                    java.nio.file.Files.write(file.toPath(),
+                        contents[test].getBytes(java.nio.charset.Charset.defaultCharset()));
+                    System.setOut(new java.io.PrintStream(expOut));
+                    try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel
+                        .open(file.toPath())) {
+                        LineReader in = new LineReader(ch, java.nio.charset.Charset
+                            .defaultCharset());
+                        in.nextLine();
+                        expected = StoryParser.parse(in, expRooms, expTrans, expCur);
+                    }
+                    System.setOut(new java.io.PrintStream(actOut));
+                    actual = ParallelStoryParser.parse(file.getPath(), actRooms, actTrans,
+                        actCur, java.util.concurrent.ForkJoinPool.commonPool(), chunks);
+                } catch (java.io.IOException e) {
+                    actual = !expected;
+                } finally {
+                    System.setOut(out);
+                }
+                if (expected != actual || expected != (test == 0)
+                    || !compareArrayListsArrays(expRooms, actRooms)
+                    || !compare2dArrayLists(expTrans, actTrans) || !Arrays.equals(expCur, actCur)
+                    || !expOut.toString().equals(actOut.toString())) {
+                    System.out.println((test + 1) + ") testParallelStoryParser with " + chunks
+                        + " chunks expected: " + expected + " " + expOut + " " + expRooms.size()
+                        + " rooms, actual: " + actual + " " + actOut + " " + actRooms.size()
+                        + " rooms");
+                    error = true;
+                }
+            }
+        }
+
+        // test 3: a file of more than 2 MB with rooms after '\u2028', '\u2029' and '\u0085' line
+        // separators is parsed the same by parseFile, on several threads, as by parseStory
+        java.nio.charset.CharsetEncoder encoder =
+            java.nio.charset.Charset.defaultCharset().newEncoder();
+        StringBuilder separators = new StringBuilder();
+        for (char c : new char[] {'\u2028', '\u2029', '\u0085'}) {
+            if (encoder.canEncode(c)) {
+                separators.append(c);
+            }
+        }
+        if (file != null && ParallelStoryParser.splittable() && separators.length() > 0) {
+            java.io.StringWriter large = new java.io.StringWriter();
+            StringBuilder content = new StringBuilder();
+            ArrayList<String[]> expRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+            String[] expCur = new String[1];
+            ArrayList<String[]> actRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+            String[] actCur = new String[1];
             boolean expected = false;
-            boolean actual = AdventureStory.parseBookmark(s, rooms, trans, curRoom);
-            if (expected != actual) {
+            boolean actual = false;
+            boolean worthwhile = false;
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream actOut = new java.io.ByteArrayOutputStream();
+            try {
+                new StoryGenerator().rooms(5000).seed(11).write(large);
+                String[] parts = large.toString().split("\n\n(?=R)", -1);
+                content.append(parts[0]);
+                for (int i = 1; i < parts.length; i++) {
+                    content.append(separators.charAt(i % separators.length())).append(parts[i]);
+                }
+                java.nio.file.Files.write(file.toPath(),
+                    content.toString().getBytes(java.nio.charset.Charset.defaultCharset()));
+                try (Scanner sc = new Scanner(file)) {
+                    sc.nextLine();
+                    expected = AdventureStory.parseStory(sc, expRooms, expTrans, expCur);
+                }
+                worthwhile = ParallelStoryParser.worthwhile(file.getPath());
+                System.setOut(new java.io.PrintStream(actOut));
+                actual = AdventureStory.parseFile(file.getPath(), actRooms, actTrans, actCur)
+                    && ParallelStoryParser.parse(file.getPath(), new ArrayList<String[]>(),
+                        new ArrayList<ArrayList<String[]>>(), new String[1],
+                        java.util.concurrent.ForkJoinPool.commonPool(), 64);
+            } catch (java.io.IOException e) {
+                actual = !expected;
+            } finally {
+                System.setOut(out);
+            }
+            if (!expected || !actual || !worthwhile || expRooms.size() != 5000
+                || !compareArrayListsArrays(expRooms, actRooms)
+                || !compare2dArrayLists(expTrans, actTrans) || !Arrays.equals(expCur, actCur)) {
+                System.out.println("3) testParallelStoryParser expected: " + expected + " "
+                    + expRooms.size() + " rooms, actual: " + actual + " " + actOut + " "
+                    + actRooms.size() + " rooms, worthwhile: " + worthwhile);
                 error = true;
-                System.out.print("testParseBookmark 1 failed ");
             }
         }
+        if (file != null) {
+            file.delete();
+        }
 
-        // error check
         if (error) {
-            System.out.println("parseBookmark failed");
+            System.out.println("testParallelStoryParser failed");
         } else {
-            System.out.println("parseBookmark passed");
+            System.out.println("testParallelStoryParser passed");
         }
     }
 
     /*
-     * This runs some tests on the probTrans method
+     * This runs some tests on the StoryImage class
      */
-    private static void testProbTrans() {
-        Boolean error = false;
+    private static void testStoryImage() {
+        boolean error = false;
 
-        // test 1
+        // test 1: an image loads the same rooms and transitions as the story file
         {
-            ArrayList<String[]> curTrans = new ArrayList<String[]>();
-            curTrans.add(new String[Config.TRAN_DET_LEN]);
-            curTrans.add(new String[Config.TRAN_DET_LEN]);
-            curTrans.add(new String[Config.TRAN_DET_LEN]);
-            curTrans.get(0)[Config.TRAN_ROOM_ID] = "1";
-            curTrans.get(0)[Config.TRAN_PROB] = "1";
-            curTrans.get(1)[Config.TRAN_ROOM_ID] = "2";
-            curTrans.get(1)[Config.TRAN_PROB] = "1";
-            curTrans.get(2)[Config.TRAN_ROOM_ID] = "3";
-            curTrans.get(2)[Config.TRAN_PROB] = "1";
-            Random rand = new Random(Config.SEED);
-            String actual;
-            String expected = "2";
-            actual = AdventureStory.probTrans(rand, curTrans);
-            if (!actual.equals(expected)) {
+            String imageFile = "Goldilocks.test.img";
+            ArrayList<String[]> expRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+            String[] expCur = new String[1];
+            ArrayList<String[]> actRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+            String[] actCur = new String[1];
+            if (!AdventureStory.parseFile("Goldilocks.story", expRooms, expTrans, expCur)
+                || !StoryImage.compile("Goldilocks.story", imageFile)
+                || !AdventureStory.parseFile(imageFile, actRooms, actTrans, actCur)) {
+                System.out.println("1) testStoryImage unable to compile and load the image");
+                error = true;
+            } else if (!compareArrayListsArrays(expRooms, actRooms)
+                || !compare2dArrayLists(expTrans, actTrans) || !Arrays.equals(expCur, actCur)) {
+                System.out.println("1) testStoryImage expected: \n"
+                    + Arrays.deepToString(expRooms.toArray()) + "\n"
+                    + toString2dArrayLists(expTrans) + "\nactual: \n"
+                    + Arrays.deepToString(actRooms.toArray()) + "\n"
+                    + toString2dArrayLists(actTrans));
+                error = true;
+            }
+
+            // test 2: the image answers lookups without loading the ArrayLists
+            try {
+                StoryImage image = StoryImage.open(imageFile);
+                StoryGraph graph = StoryGraph.compile(expRooms, expTrans);
+                for (int i = 0; i < graph.size() && !error; i++) {
+                    if (image.indexOf(graph.id(i)) != i
+                        || !image.title(i).equals(graph.title(i))
+                        || image.transitionEnd(i) != graph.transitionEnd(i)) {
+                        System.out.println("2) testStoryImage room " + graph.id(i) + " differs");
+                        error = true;
+                    }
+                }
+                if (image.indexOf("no such room") != -1) {
+                    System.out.println("2) testStoryImage found a room that does not exist");
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("2) testStoryImage unable to open the image");
+                error = true;
+            }
+
+            // test 3: the problems found when compiling are kept in the image, and the main
+            // method plays the image as it plays the story file
+            try {
+                StoryImage image = StoryImage.open(imageFile);
+                int problems = StoryValidator.validate(StoryGraph.compile(expRooms, expTrans), 0)
+                    .messages().size();
+                if (image.problems() != problems) {
+                    System.out.println("3) testStoryImage expected: " + problems
+                        + " problems actual: " + image.problems());
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("3) testStoryImage unable to open the image");
+                error = true;
+            }
+            String moves = "\n0\n2\n3\n0\n1\n0\n0\n0\n0\ny\n";
+            String story = playMain("Goldilocks.story" + moves + "Goldilocks.story\n-2\n");
+            String played = playMain(imageFile + moves + imageFile + "\n-2\n");
+            if (!played.replace(imageFile, "Goldilocks.story").equals(story)) {
+                System.out.println("3) testStoryImage expected: \n" + story + "\nactual: \n"
+                    + played);
                 error = true;
             }
+            new java.io.File(imageFile).delete();
         }
 
-        // test 2
+        // test 4: an image whose header describes sections beyond the end of the file, even ones
+        // whose positions overflow an int, is rejected with an IOException
         {
-            ArrayList<String[]> curTrans = new ArrayList<String[]>();
-            curTrans.add(new String[Config.TRAN_DET_LEN]);
-            curTrans.add(new String[Config.TRAN_DET_LEN]);
-            curTrans.add(new String[Config.TRAN_DET_LEN]);
-            curTrans.get(0)[Config.TRAN_ROOM_ID] = "1";
-            curTrans.get(0)[Config.TRAN_PROB] = null;
-            curTrans.get(1)[Config.TRAN_ROOM_ID] = "2";
-            curTrans.get(1)[Config.TRAN_PROB] = null;
-            curTrans.get(2)[Config.TRAN_ROOM_ID] = "3";
-            curTrans.get(2)[Config.TRAN_PROB] = null;
-            Random rand = new Random(Config.SEED);
-            String expected = null;
-            String actual = AdventureStory.probTrans(rand, curTrans);
-            if (actual != expected) {
+            String imageFile = "Goldilocks.corrupt.img";
+            java.io.PrintStream out = System.out;
+            byte[] image = null;
+            try {
+                System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+                StoryImage.compile("Goldilocks.story", imageFile);
+                image = java.nio.file.Files.readAllBytes(java.nio.file.Path.of(imageFile));
+            } catch (java.io.IOException e) {
                 error = true;
-                System.out.print("Expected: " + expected + " Actual: " + actual + ".");
+            } finally {
+                System.setOut(out);
+            }
+            int header = Config.MAGIC_IMAGE.length() + 1; // the position of the version
+            int[][] patches = {{4, 0x40000000}, {8, 0x7fffffff}, {12, 0x7fffffff}, {4, -1},
+                {16, 0}, {16, 3}, {12, 0x3fffffff}};
+            for (int i = 0; image != null && i <= patches.length; i++) {
+                byte[] corrupt;
+                if (i < patches.length) {
+                    corrupt = image.clone();
+                    java.nio.ByteBuffer.wrap(corrupt).putInt(header + patches[i][0],
+                        patches[i][1]);
+                } else {
+                    corrupt = Arrays.copyOf(image, image.length - 1); // truncated
+                }
+                String result;
+                try {
+                    java.nio.file.Files.write(java.nio.file.Path.of(imageFile), corrupt);
+                    StoryImage.open(imageFile);
+                    result = "opened";
+                } catch (java.io.IOException e) {
+                    result = null;
+                } catch (RuntimeException e) {
+                    result = e.toString();
+                }
+                if (result != null) {
+                    System.out.println("4) testStoryImage expected an IOException for patch " + i
+                        + " actual: " + result);
+                    error = true;
+                }
             }
+            new java.io.File(imageFile).delete();
         }
+
+        // test 5: only Config.WEIGHT_CACHE_SIZE weight tables are kept, and they are built again
+        {
+            String storyFile = "weights.test.story";
+            String imageFile = "weights.test.img";
+            int cacheSize = Config.WEIGHT_CACHE_SIZE;
+            StoryImage image = null;
+            try {
+                java.nio.file.Files.write(java.nio.file.Path.of(storyFile), Arrays.asList(
+                    Config.MAGIC_STORY, "R1: One", ";;;", ": A -> 2 ? 1", ": B -> 3 ? 3", "R2: Two",
+                    ";;;", ": A -> 3 ? 2", ": B -> 4 ? 1", "R3: Three", ";;;", ": A -> 4 ? 5",
+                    ": B -> 1 ? 1", "R4: Four", ";;;", Config.SUCCESS));
+                StoryImage.write(AdventureEngine.load(storyFile).story(), imageFile);
+                Config.WEIGHT_CACHE_SIZE = 2;
+                image = StoryImage.open(imageFile);
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            AdventureStory.parseFile(storyFile, rooms, trans, new String[1]);
+            StoryGraph graph = StoryGraph.compile(rooms, trans);
+            Random expRand = new Random(Config.SEED);
+            Random actRand = new Random(Config.SEED);
+            for (int i = 0; image != null && i < 4 * image.size(); i++) {
+                int room = i % image.size();
+                String expected = graph.weights(room).sample(expRand);
+                String actual = image.weights(room).sample(actRand);
+                if (!java.util.Objects.equals(expected, actual) || image.cachedWeights() > 2) {
+                    System.out.println("5) testStoryImage expected: " + expected + " actual: "
+                        + actual + " with " + image.cachedWeights() + " weight tables cached");
+                    error = true;
+                    break;
+                }
+            }
+            Config.WEIGHT_CACHE_SIZE = cacheSize;
+            new java.io.File(storyFile).delete();
+            new java.io.File(imageFile).delete();
+        }
+
         if (error) {
-            System.out.println(" testProbTrans failed");
+            System.out.println("testStoryImage failed");
         } else {
-            System.out.println("testProbTrans passed");
+            System.out.println("testStoryImage passed");
         }
     }
 
-    private static String toString2dArrayLists(ArrayList<ArrayList<String[]>> arrL1) {
-        String toRet = "[\n";
-        for (int i = 0; i < arrL1.size(); ++i) {
-            toRet += "\t" + Arrays.deepToString(arrL1.get(i).toArray());
-            if (i < arrL1.size() - 1)
-                toRet += ",";
-            toRet += "\n";
+    /*
+     * This runs some tests on the IndexedStory class
+     */
+    private static void testIndexedStory() {
+        boolean error = false;
+        java.io.File file = null;
+        try {
+            file = java.io.File.createTempFile("indexed", ".story");
+        } catch (java.io.IOException e) {
+            System.out.println("testIndexedStory unable to create a file");
+            error = true;
+        }
+
+        // test 1: the rooms and transitions are the ones parseFile loads, with "\r\n" line
+        // separators, blank description lines and a description line starting with 'R'
+        String[] contents = {"Goldilocks.story", "GoldiFight.story", "NeverEnd.story",
+            Config.MAGIC_STORY + "\r\n# c\r\nR1: One \r\n  first  \r\n\r\nR not a room\r\n;;;"
+                + "\r\n: Go -> 2\r\n: Stay -> 1 ? 3\r\n\r\nR2:Two\n;;;\n=)\n",
+            Config.MAGIC_STORY + "\nR1:One\n;;;\n: Go -> 2\nNot a transition\n"};
+        for (int test = 0; test < contents.length && file != null; test++) {
+            String fName = contents[test];
+            ArrayList<String[]> expRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+            ArrayList<String[]> actRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream expOut = new java.io.ByteArrayOutputStream();
+            java.io.ByteArrayOutputStream actOut = new java.io.ByteArrayOutputStream();
+            boolean expected = false;
+            IndexedStory story = null;
+            try {
+                if (!fName.endsWith(".story")) {
+                    java.nio.file.Files.write(file.toPath(),
+                        fName.getBytes(java.nio.charset.Charset.defaultCharset()));
+                    fName = file.getPath();
+                }
+                System.setOut(new java.io.PrintStream(expOut));
+                expected = AdventureStory.parseFile(fName, expRooms, expTrans, new String[1]);
+                System.setOut(new java.io.PrintStream(actOut));
+                story = IndexedStory.open(fName);
+            } catch (java.io.IOException e) {
+                expected = !expected;
+            } finally {
+                System.setOut(out);
+            }
+            if (story != null) {
+                story.copyTo(actRooms, actTrans);
+            }
+            if (expected != (story != null) || (expected
+                && (!compareArrayListsArrays(expRooms, actRooms)
+                || !compare2dArrayLists(expTrans, actTrans)))
+                || !expOut.toString().equals(actOut.toString())) {
+                System.out.println((test + 1) + ") testIndexedStory expected: " + expected + " "
+                    + expOut + "\n" + Arrays.deepToString(expRooms.toArray()) + "\nactual: "
+                    + (story != null) + " " + actOut + "\n"
+                    + Arrays.deepToString(actRooms.toArray()));
+                error = true;
+            }
+        }
+
+        // test 2: only a bounded number of descriptions is kept, and they are read again
+        {
+            IndexedStory story = null;
+            try {
+                story = IndexedStory.open("Goldilocks.story", 2);
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            for (int i = 0; story != null && i < 2 * story.size(); i++) {
+                int room = i % story.size();
+                if (!story.description(room).equals(engine.story().description(room))
+                    || story.cachedDescriptions() > 2) {
+                    System.out.println("2) testIndexedStory expected: "
+                        + engine.story().description(room) + " actual: "
+                        + story.description(room));
+                    error = true;
+                    break;
+                }
+            }
+        }
+
+        // test 3: only a bounded number of weight tables is kept, and they are built again
+        if (file != null) {
+            IndexedStory story = null;
+            try {
+                java.nio.file.Files.write(file.toPath(), java.util.Arrays.asList(
+                    Config.MAGIC_STORY, "R1: One", ";;;", ": A -> 2 ? 1", ": B -> 3 ? 3", "R2: Two",
+                    ";;;", ": A -> 3 ? 2", ": B -> 4 ? 1", "R3: Three", ";;;", ": A -> 4 ? 5",
+                    ": B -> 1 ? 1", "R4: Four", ";;;", Config.SUCCESS));
+                story = IndexedStory.open(file.getPath(), 2);
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            if (story != null) {
+                story.copyTo(rooms, trans);
+            }
+            StoryGraph graph = StoryGraph.compile(rooms, trans);
+            Random expRand = new Random(Config.SEED);
+            Random actRand = new Random(Config.SEED);
+            for (int i = 0; story != null && i < 4 * story.size(); i++) {
+                int room = i % story.size();
+                String expected = graph.weights(room).sample(expRand);
+                String actual = story.weights(room).sample(actRand);
+                if (!java.util.Objects.equals(expected, actual) || story.cachedWeights() > 2) {
+                    System.out.println("3) testIndexedStory expected: " + expected + " actual: "
+                        + actual + " with " + story.cachedWeights() + " weight tables cached");
+                    error = true;
+                    break;
+                }
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+
+        if (error) {
+            System.out.println("testIndexedStory failed");
+        } else {
+            System.out.println("testIndexedStory passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the StringPool class
+     */
+    private static void testStringPool() {
+        boolean error = false;
+
+        // test 1: a range of a char array gives the String already pooled, even as the table grows
+        {
+            StringPool pool = new StringPool();
+            String[] ids = new String[1000];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = pool.intern(new String("" + i));
+            }
+            char[] buf = "R 17 -> 999 ?".toCharArray();
+            if (pool.intern(buf, 2, 4) != ids[17] || pool.intern(buf, 8, 11) != ids[999]
+                || !pool.intern(buf, 5, 7).equals("->") || pool.size() != 1001
+                || pool.intern(new String("42")) != ids[42] || pool.intern((String) null) != null) {
+                System.out.println("1) testStringPool expected: pooled Strings actual: "
+                    + pool.size() + " Strings");
+                error = true;
+            }
+        }
+
+        // test 2: pooled stories hold the same rooms and transitions, sharing equal Strings but
+        // not the transition arrays, so changing one transition in place changes no other
+        boolean poolStrings = Config.POOL_STRINGS;
+        boolean streamParser = Config.STREAM_PARSER;
+        try {
+            for (boolean stream : new boolean[] {false, true}) {
+                Config.STREAM_PARSER = stream;
+                ArrayList<String[]> expRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+                ArrayList<String[]> actRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+                Config.POOL_STRINGS = false;
+                AdventureStory.parseFile("Goldilocks.story", expRooms, expTrans, new String[1]);
+                Config.POOL_STRINGS = true;
+                AdventureStory.parseFile("Goldilocks.story", actRooms, actTrans, new String[1]);
+
+                java.util.IdentityHashMap<Object, Boolean> distinct =
+                    new java.util.IdentityHashMap<Object, Boolean>();
+                java.util.IdentityHashMap<Object, Boolean> texts =
+                    new java.util.IdentityHashMap<Object, Boolean>();
+                int count = 0;
+                for (ArrayList<String[]> list : actTrans) {
+                    for (String[] tran : list) {
+                        distinct.put(tran, true);
+                        texts.put(tran[Config.TRAN_DESC], true);
+                        count++;
+                    }
+                }
+                String id = actRooms.get(1)[Config.ROOM_ID];
+                boolean shared = false;
+                for (ArrayList<String[]> list : actTrans) {
+                    for (String[] tran : list) {
+                        shared |= tran[Config.TRAN_ROOM_ID] == id;
+                    }
+                }
+                if (!compareArrayListsArrays(expRooms, actRooms)
+                    || !compare2dArrayLists(expTrans, actTrans) || distinct.size() != count
+                    || texts.size() >= count || !shared) {
+                    System.out.println("2) testStringPool expected: " + count
+                        + " transitions, fewer distinct texts, sharing room ids, stream " + stream
+                        + " actual: " + distinct.size() + " distinct, " + texts.size()
+                        + " texts, shared ids " + shared);
+                    error = true;
+                }
+                // the first of the transitions to the largest chair, which other rooms repeat
+                for (int i = 0; i < actTrans.size(); i++) {
+                    String[] tran = actTrans.get(i).get(0);
+                    if ("Try the largest rocking chair".equals(tran[Config.TRAN_DESC])) {
+                        tran[Config.TRAN_DESC] = "changed";
+                        expTrans.get(i).get(0)[Config.TRAN_DESC] = "changed";
+                        break;
+                    }
+                }
+                if (!compare2dArrayLists(expTrans, actTrans)) {
+                    System.out.println("2) testStringPool expected only the changed transition "
+                        + "to change, stream " + stream);
+                    error = true;
+                }
+            }
+        } finally {
+            Config.POOL_STRINGS = poolStrings;
+            Config.STREAM_PARSER = streamParser;
+        }
+
+        if (error) {
+            System.out.println("testStringPool failed");
+        } else {
+            System.out.println("testStringPool passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the StoryCache class
+     */
+    private static void testStoryCache() {
+        boolean error = false;
+        java.io.File file = null;
+        java.io.File bookmark = null;
+        try {
+            file = java.io.File.createTempFile("cache", ".story");
+            bookmark = java.io.File.createTempFile("cache", ".bookmark");
+            java.nio.file.Files.write(file.toPath(), java.util.Arrays.asList(Config.MAGIC_STORY,
+                "R1: One", ";;;", ": Go -> 2", "R2: Two", ";;;", Config.SUCCESS));
+            java.nio.file.Files.write(bookmark.toPath(),
+                java.util.Arrays.asList(Config.MAGIC_BOOKMARK, file.getPath(), "2"));
+        } catch (java.io.IOException e) {
+            System.out.println("testStoryCache unable to create a file");
+            error = true;
+        }
+
+        // test 1: a story is parsed once, and a bookmark shares its story from the cache
+        if (!error) {
+            StoryCache cache = new StoryCache(1000);
+            StoryCache.Entry first = cache.get(file.getPath());
+            StoryCache.Entry again = cache.get(file.getPath());
+            StoryCache.Entry marked = cache.get(bookmark.getPath());
+            if (first == null || again != first || cache.hits() != 2 || cache.misses() != 1
+                || !first.startRoom().equals("1") || first.story().size() != 2 || marked == null
+                || !marked.startRoom().equals("2") || marked.story() != first.story()) {
+                System.out.println("1) testStoryCache expected: 2 hits 1 miss actual: " + cache);
+                error = true;
+            }
+            // sessions play the cached story, starting in the room of the bookmark
+            Session played = first == null ? null
+                : first.newSession(new java.util.Random(Config.SEED), Settings.defaults());
+            Session resumed = marked == null ? null
+                : marked.newSession(new java.util.Random(Config.SEED), Settings.defaults());
+            if (played == null || resumed == null || !played.roomId().equals("1")
+                || !resumed.roomId().equals("2") || played.version().story() != first.story()
+                || played.engine() != resumed.engine()) {
+                System.out.println("1) testStoryCache expected sessions in rooms 1 and 2 of "
+                    + "the cached story");
+                error = true;
+            }
+            // the lists a caller gets are its own, so changing them leaves the cached story
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            first.copyTo(rooms, trans);
+            rooms.get(0)[Config.ROOM_TITLE] = "Changed";
+            trans.get(0).get(0)[Config.TRAN_ROOM_ID] = "1";
+            ArrayList<String[]> copyRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> copyTrans = new ArrayList<ArrayList<String[]>>();
+            cache.get(file.getPath()).copyTo(copyRooms, copyTrans);
+            if (!copyRooms.get(0)[Config.ROOM_TITLE].equals("One")
+                || !copyTrans.get(0).get(0)[Config.TRAN_ROOM_ID].equals("2")
+                || first.story().target(0) != 1) {
+                System.out.println("1) testStoryCache a caller's change reached the cache");
+                error = true;
+            }
+        }
+
+        // test 2: a changed file is parsed again, and files that fail to parse are not cached
+        if (!error) {
+            StoryCache cache = new StoryCache(1000);
+            StoryCache.Entry first = cache.get(file.getPath());
+            java.io.PrintStream out = System.out;
+            StoryCache.Entry missing;
+            try {
+                java.nio.file.Files.write(file.toPath(), java.util.Arrays.asList(
+                    Config.MAGIC_STORY, "R1: One", ";;;", Config.FAIL));
+                System.setOut(new java.io.PrintStream(new java.io.ByteArrayOutputStream()));
+                missing = cache.get("missing.story");
+                missing = missing != null ? missing : cache.get("missing.story");
+            } catch (java.io.IOException e) {
+                missing = first;
+            } finally {
+                System.setOut(out);
+            }
+            StoryCache.Entry changed = cache.get(file.getPath());
+            if (changed == null || changed == first || changed.story().size() != 1
+                || missing != null || cache.misses() != 2 || cache.size() != 1) {
+                System.out.println("2) testStoryCache expected: 2 misses, 1 story actual: "
+                    + cache);
+                error = true;
+            }
+        }
+
+        // test 3: the least recently used stories are evicted to keep the rooms within the limit
+        {
+            StoryCache cache = new StoryCache(20);
+            cache.get("Goldilocks.story"); // 16 rooms
+            cache.get("NeverEnd.story"); // 2 rooms
+            cache.get("GoldiFight.story"); // 18 rooms, evicts Goldilocks.story
+            cache.get("NeverEnd.story");
+            cache.get("Goldilocks.story"); // evicts GoldiFight.story
+            cache.get("NeverEnd.story");
+            if (cache.evictions() != 2 || cache.size() != 2 || cache.rooms() != 18
+                || cache.hits() != 2 || cache.misses() != 4) {
+                System.out.println("3) testStoryCache expected: 2 evictions, 2 stories, 18 rooms "
+                    + "actual: " + cache);
+                error = true;
+            }
+        }
+
+        // test 4: concurrent requests for a story that is not cached parse it once
+        {
+            StoryCache cache = new StoryCache(1000);
+            StoryCache.Entry[] entries = new StoryCache.Entry[8];
+            Thread[] threads = new Thread[entries.length];
+            java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+            for (int i = 0; i < threads.length; i++) {
+                int index = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                        entries[index] = cache.get("Goldilocks.story");
+                    } catch (InterruptedException e) {
+                        // leaves the entry null
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                error = true;
+            }
+            boolean same = true;
+            for (StoryCache.Entry entry : entries) {
+                same &= entry != null && entry == entries[0];
+            }
+            if (!same || cache.misses() != 1 || cache.hits() != threads.length - 1) {
+                System.out.println("4) testStoryCache expected: 1 miss 7 hits actual: " + cache);
+                error = true;
+            }
+        }
+
+        // test 5: a story with mistakes is warned about when it is parsed, not on every hit
+        if (!error) {
+            java.io.File broken = null;
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream first = new java.io.ByteArrayOutputStream();
+            java.io.ByteArrayOutputStream again = new java.io.ByteArrayOutputStream();
+            try {
+                broken = java.io.File.createTempFile("cache", ".story");
+                java.nio.file.Files.write(broken.toPath(), java.util.Arrays.asList(
+                    Config.MAGIC_STORY, "R1: One", ";;;", Config.SUCCESS, "R2: Lost", ";;;",
+                    Config.FAIL));
+                StoryCache cache = new StoryCache(1000);
+                System.setOut(new java.io.PrintStream(first));
+                cache.get(broken.getPath());
+                System.setOut(new java.io.PrintStream(again));
+                cache.get(broken.getPath());
+            } catch (java.io.IOException e) {
+                first.write('!');
+            } finally {
+                System.setOut(out);
+                if (broken != null) {
+                    broken.delete();
+                }
+            }
+            if (Config.VALIDATE_STORY && (!first.toString().startsWith("Warning: ")
+                || again.size() != 0)) {
+                System.out.println("5) testStoryCache expected: warnings once actual: " + first
+                    + again);
+                error = true;
+            }
+        }
+
+        // test 6: the main method plays a cached story in a session the same as it plays the
+        // rooms and transitions of a story that is not cached
+        {
+            String input =
+                "Goldilocks.story\n0\n2\n3\n0\n1\n0\n0\n0\n0\ny\nGoldilocks.story\n-2\n";
+            boolean cached = Config.STORY_CACHE;
+            String expected;
+            String actual;
+            try {
+                Config.STORY_CACHE = false;
+                expected = playMain(input);
+                Config.STORY_CACHE = true;
+                actual = playMain(input);
+            } finally {
+                Config.STORY_CACHE = cached;
+            }
+            if (!actual.equals(expected)) {
+                System.out.println("6) testStoryCache expected: \n" + expected + "\nactual: \n"
+                    + actual);
+                error = true;
+            }
+        }
+
+        // test 7: the rooms and transitions parsed from a bookmark are looked up in the graph of
+        // the cached story instead of being compiled again
+        if (!error && Config.STORY_CACHE) {
+            java.io.PrintStream out = System.out;
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            String[] curRoom = new String[1];
+            boolean parsed;
+            try {
+                System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+                parsed = AdventureStory.parseFile(bookmark.getPath(), rooms, trans, curRoom);
+                AdventureStory.displayRoom(rooms.get(0)[Config.ROOM_ID], rooms);
+            } finally {
+                System.setOut(out);
+            }
+            StoryCache.Entry entry = StoryCache.shared().get(file.getPath());
+            if (!parsed || entry == null
+                || AdventureStory.roomTextCache().story() != entry.story()) {
+                System.out.println("7) testStoryCache expected the bookmark to be displayed from "
+                    + "the cached graph");
+                error = true;
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+        if (bookmark != null) {
+            bookmark.delete();
+        }
+
+        if (error) {
+            System.out.println("testStoryCache failed");
+        } else {
+            System.out.println("testStoryCache passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the Bookmarks class
+     */
+    private static void testBookmarks() {
+        boolean error = false;
+        java.io.File dir = null;
+        try {
+            dir = java.nio.file.Files.createTempDirectory("bookmarks").toFile();
+        } catch (java.io.IOException e) {
+            System.out.println("testBookmarks unable to create a directory");
+            error = true;
+        }
+
+        // test 1: a chain of bookmarks is followed to its story, and the first bookmark's room is
+        // the current room
+        if (!error) {
+            String first = new java.io.File(dir, "first.bookmark").getPath();
+            String second = new java.io.File(dir, "second.bookmark").getPath();
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            String[] curRoom = new String[1];
+            boolean parsed = AdventureStory.saveBookmark("Goldilocks.story", "7", second)
+                && AdventureStory.saveBookmark(second, "4", first)
+                && AdventureStory.parseFile(first, rooms, trans, curRoom);
+            String[] bookmark = Bookmarks.read(first);
+            if (!parsed || !"4".equals(curRoom[0]) || rooms.size() != 16 || bookmark == null
+                || !bookmark[0].equals(second) || !"Goldilocks.story".equals(
+                    Bookmarks.storyOf(first)) || dir.list().length != 2) {
+                System.out.println("1) testBookmarks expected: true 4 16 actual: " + parsed + " "
+                    + curRoom[0] + " " + rooms.size() + " " + Arrays.toString(dir.list()));
+                error = true;
+            }
+        }
+
+        // test 2: bookmarks that lead back to themselves are an error, not a StackOverflowError
+        if (!error) {
+            String self = new java.io.File(dir, "self.bookmark").getPath();
+            String a = new java.io.File(dir, "a.bookmark").getPath();
+            String b = new java.io.File(dir, "b.bookmark").getPath();
+            AdventureStory.saveBookmark(self, "1", self);
+            AdventureStory.saveBookmark(b, "1", a);
+            AdventureStory.saveBookmark(a, "2", b);
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream actOut = new java.io.ByteArrayOutputStream();
+            boolean parsed;
+            try {
+                System.setOut(new java.io.PrintStream(actOut));
+                parsed = AdventureStory.parseFile(self, new ArrayList<String[]>(),
+                    new ArrayList<ArrayList<String[]>>(), new String[1])
+                    || AdventureStory.parseFile(a, new ArrayList<String[]>(),
+                        new ArrayList<ArrayList<String[]>>(), new String[1]);
+            } catch (StackOverflowError e) {
+                parsed = true;
+            } finally {
+                System.setOut(out);
+            }
+            String expected = "Bookmark cycle: " + self + " -> " + self + "\n"
+                + "Bookmark cycle: " + b + " -> " + a + " -> " + b + "\n";
+            if (parsed || !actOut.toString().replace("\r", "").equals(expected)) {
+                System.out.println("2) testBookmarks expected: " + expected + " actual: "
+                    + parsed + " " + actOut);
+                error = true;
+            }
+        }
+
+        // test 3: a bookmark replaces the previous one whole, and no temporary file is left
+        if (!error) {
+            java.io.File kept = new java.io.File(dir, "kept.bookmark");
+            int files = dir.list().length;
+            boolean saved = AdventureStory.saveBookmark("a/long/path/to/Goldilocks.story", "17",
+                kept.getPath()) && AdventureStory.saveBookmark("NeverEnd.story", "1",
+                    kept.getPath());
+            boolean missing = AdventureStory.saveBookmark("NeverEnd.story", "1",
+                new java.io.File(dir, "missing/dir.bookmark").getPath());
+            String nl = System.lineSeparator();
+            String text = null;
+            try {
+                text = new String(java.nio.file.Files.readAllBytes(kept.toPath()),
+                    java.nio.charset.Charset.defaultCharset());
+            } catch (java.io.IOException e) {
+                // leaves text null
+            }
+            String expected = Config.MAGIC_BOOKMARK + nl + "NeverEnd.story" + nl + "1" + nl;
+            if (!saved || missing || !expected.equals(text) || dir.list().length != files + 1) {
+                System.out.println("3) testBookmarks expected: " + expected + " actual: " + text
+                    + " " + Arrays.toString(dir.list()));
+                error = true;
+            }
+        }
+
+        // test 4: a saved bookmark has the default permissions, or keeps those of the file it
+        // replaces
+        if (!error) {
+            java.nio.file.Path plain = new java.io.File(dir, "plain.txt").toPath();
+            java.nio.file.Path created = new java.io.File(dir, "created.bookmark").toPath();
+            java.nio.file.Path shared = new java.io.File(dir, "shared.bookmark").toPath();
+            try {
+                java.nio.file.Files.createFile(plain);
+                Bookmarks.save("Goldilocks.story", "3", created.toString());
+                Bookmarks.save("Goldilocks.story", "3", shared.toString());
+                java.util.Set<java.nio.file.attribute.PosixFilePermission> readable =
+                    java.nio.file.attribute.PosixFilePermissions.fromString("rw-r--r--");
+                java.nio.file.Files.setPosixFilePermissions(shared, readable);
+                Bookmarks.save("Goldilocks.story", "4", shared.toString());
+                if (!java.nio.file.Files.getPosixFilePermissions(created)
+                    .equals(java.nio.file.Files.getPosixFilePermissions(plain))
+                    || !java.nio.file.Files.getPosixFilePermissions(shared).equals(readable)) {
+                    System.out.println("4) testBookmarks expected: " + readable + " actual: "
+                        + java.nio.file.Files.getPosixFilePermissions(shared));
+                    error = true;
+                }
+            } catch (UnsupportedOperationException e) {
+                // the file system has no POSIX permissions
+            } catch (java.io.IOException e) {
+                System.out.println("4) testBookmarks " + e);
+                error = true;
+            }
+        }
+        if (dir != null) {
+            for (java.io.File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+
+        if (error) {
+            System.out.println("testBookmarks failed");
+        } else {
+            System.out.println("testBookmarks passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the BookmarkLog class
+     */
+    private static void testBookmarkLog() {
+        boolean error = false;
+        java.io.File file = null;
+        try {
+            file = java.io.File.createTempFile("bookmarks", ".log");
+            file.delete();
+        } catch (java.io.IOException e) {
+            System.out.println("testBookmarkLog unable to create a file");
+            error = true;
+        }
+
+        // test 1: bookmarks put and removed are replayed when the log is opened again
+        if (!error) {
+            try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                for (int i = 0; i < 100; i++) {
+                    log.put("s" + (i % 10), "Goldilocks.story", "" + i);
+                }
+                log.remove("s3");
+                log.remove("missing");
+                log.flush();
+                log.put("s4", "NeverEnd.story", "1");
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                if (error || log.size() != 9 || log.get("s3") != null
+                    || !Arrays.equals(log.get("s9"), new String[] {"Goldilocks.story", "99"})
+                    || !Arrays.equals(log.get("s4"), new String[] {"NeverEnd.story", "1"})) {
+                    System.out.println("1) testBookmarkLog expected: 9 sessions actual: "
+                        + log.size() + " " + Arrays.toString(log.get("s9")));
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+        }
+
+        // test 2: a record left half written is dropped
+        if (!error) {
+            try {
+                long size = file.length();
+                try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                    log.put("s0", "GoldiFight.story", "5");
+                }
+                try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw")) {
+                    raf.setLength(file.length() - 3);
+                }
+                try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                    if (!Arrays.equals(log.get("s0"), new String[] {"Goldilocks.story", "90"})
+                        || file.length() != size || log.size() != 9) {
+                        System.out.println("2) testBookmarkLog expected: the record dropped "
+                            + "actual: " + Arrays.toString(log.get("s0")));
+                        error = true;
+                    }
+                }
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+        }
+
+        // test 3: a log of mostly dead records is compacted, while it is flushed periodically
+        if (!error) {
+            try (BookmarkLog log = new BookmarkLog(file.getPath()).start(5)) {
+                for (int round = 0; round < 400; round++) {
+                    for (int i = 0; i < 100; i++) {
+                        log.put("session-" + i, "Goldilocks.story", "" + round);
+                    }
+                    if (round % 20 == 0) {
+                        log.flush();
+                    }
+                }
+                log.flush();
+                if (log.compactions() == 0 || log.logBytes() >= 1 << 20 || log.size() != 109) {
+                    System.out.println("3) testBookmarkLog expected: compacted actual: "
+                        + log.compactions() + " " + log.logBytes());
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                if (!Arrays.equals(log.get("session-42"),
+                    new String[] {"Goldilocks.story", "399"}) || log.size() != 109) {
+                    System.out.println("3) testBookmarkLog expected: 399 actual: "
+                        + Arrays.toString(log.get("session-42")));
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+        }
+
+        // test 4: records whose write fails are written by the next flush
+        if (!error) {
+            try {
+                try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                    java.lang.reflect.Field channel = BookmarkLog.class.getDeclaredField("channel");
+                    channel.setAccessible(true);
+                    java.nio.channels.FileChannel open =
+                        (java.nio.channels.FileChannel) channel.get(log);
+                    log.put("failed", "NeverEnd.story", "2");
+                    open.close(); // makes the next write fail
+                    boolean failed = false;
+                    try {
+                        log.flush();
+                    } catch (java.io.IOException e) {
+                        failed = true;
+                    }
+                    channel.set(log, java.nio.channels.FileChannel.open(file.toPath(),
+                        java.nio.file.StandardOpenOption.READ,
+                        java.nio.file.StandardOpenOption.WRITE));
+                    log.put("later", "NeverEnd.story", "1");
+                    if (!failed || log.flush() == 0) {
+                        System.out.println("4) testBookmarkLog expected the first flush to fail");
+                        error = true;
+                    }
+                }
+                try (BookmarkLog log = new BookmarkLog(file.getPath())) {
+                    if (!Arrays.equals(log.get("failed"), new String[] {"NeverEnd.story", "2"})
+                        || !Arrays.equals(log.get("later"), new String[] {"NeverEnd.story", "1"})) {
+                        System.out.println("4) testBookmarkLog expected: the records written "
+                            + "actual: " + Arrays.toString(log.get("failed")));
+                        error = true;
+                    }
+                }
+            } catch (ReflectiveOperationException | java.io.IOException e) {
+                System.out.println("4) testBookmarkLog " + e);
+                error = true;
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+
+        if (error) {
+            System.out.println("testBookmarkLog failed");
+        } else {
+            System.out.println("testBookmarkLog passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the BookmarkStore implementations
+     */
+    private static void testBookmarkStore() {
+        boolean error = false;
+        java.io.File dir = null;
+        try {
+            dir = java.nio.file.Files.createTempDirectory("stores").toFile();
+        } catch (java.io.IOException e) {
+            System.out.println("testBookmarkStore unable to create a directory");
+            error = true;
+        }
+        String[] names = dir == null ? new String[0]
+            : new String[] {new java.io.File(dir, "files").getPath() + java.io.File.separator,
+                new java.io.File(dir, "bookmarks.log").getPath(),
+                new java.io.File(dir, "bookmarks").getPath()};
+
+        // test 1: every store keeps the last save of each session across reopening
+        for (String name : names) {
+            try {
+                try (BookmarkStore store = BookmarkStore.open(name)) {
+                    for (int i = 0; i < 3000; i++) {
+                        store.save("s" + (i % 1000), "Goldilocks.story", "" + (i % 17));
+                    }
+                    store.remove("s5");
+                    store.save("s6", "NeverEnd.story", "1");
+                    store.commit();
+                    store.save("s7", "GoldiFight.story", "2");
+                }
+                try (BookmarkStore store = BookmarkStore.open(name)) {
+                    if (store.load("s5") != null || store.load("missing") != null
+                        || !Arrays.equals(store.load("s999"), new String[] {"Goldilocks.story",
+                            "" + (2999 % 17)})
+                        || !Arrays.equals(store.load("s6"), new String[] {"NeverEnd.story", "1"})
+                        || !Arrays.equals(store.load("s7"), new String[] {"GoldiFight.story",
+                            "2"})) {
+                        System.out.println("1) testBookmarkStore expected: the last saves "
+                            + "actual: " + name + " " + Arrays.toString(store.load("s999")));
+                        error = true;
+                    }
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("1) testBookmarkStore " + name + ": " + e);
+                error = true;
+            }
+        }
+
+        // test 2: a half written save of the mapped store leaves the previous bookmark, and a
+        // save whose Strings were lost is ignored
+        if (dir != null) {
+            String name = new java.io.File(dir, "crash").getPath();
+            try {
+                try (MappedBookmarkStore store = new MappedBookmarkStore(name)) {
+                    store.save("a", "Goldilocks.story", "4");
+                    store.save("b", "Goldilocks.story", "5");
+                    store.commit();
+                    store.save("a", "Goldilocks.story", "7");
+                    store.save("b", "a new story", "a new room");
+                }
+                try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(name, "rw")) {
+                    raf.seek(64 + 32 + 8); // the room index of the second half of record 0
+                    raf.writeInt(0x7777);
+                }
+                java.io.File strings = new java.io.File(name + ".strings");
+                try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(strings, "rw")) {
+                    raf.setLength(raf.length() - 2);
+                }
+                try (MappedBookmarkStore store = new MappedBookmarkStore(name)) {
+                    if (!Arrays.equals(store.load("a"), new String[] {"Goldilocks.story", "4"})
+                        || !Arrays.equals(store.load("b"),
+                            new String[] {"Goldilocks.story", "5"}) || store.size() != 2) {
+                        System.out.println("2) testBookmarkStore expected: 4 5 actual: "
+                            + Arrays.toString(store.load("a")) + " "
+                            + Arrays.toString(store.load("b")));
+                        error = true;
+                    }
+                    store.save("c", "NeverEnd.story", "1");
+                }
+                try (MappedBookmarkStore store = new MappedBookmarkStore(name)) {
+                    if (!Arrays.equals(store.load("c"), new String[] {"NeverEnd.story", "1"})
+                        || store.size() != 3) {
+                        System.out.println("2) testBookmarkStore expected: 3 sessions actual: "
+                            + store.size());
+                        error = true;
+                    }
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("2) testBookmarkStore " + e);
+                error = true;
+            }
+        }
+
+        // test 3: concurrent commits of the mapped store are grouped
+        if (dir != null) {
+            try (MappedBookmarkStore store = new MappedBookmarkStore(
+                new java.io.File(dir, "group").getPath())) {
+                Thread[] threads = new Thread[4];
+                boolean[] failed = new boolean[1];
+                for (int t = 0; t < threads.length; t++) {
+                    int id = t;
+                    threads[t] = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < 200; i++) {
+                                store.save("t" + id + "-" + (i % 50), "Goldilocks.story", "" + i);
+                                store.commit();
+                            }
+                        } catch (java.io.IOException e) {
+                            failed[0] = true;
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                if (failed[0] || store.size() != 200
+                    || store.commits() + store.groupedCommits() != 800 || store.commits() > 800) {
+                    System.out.println("3) testBookmarkStore expected: 800 commits actual: "
+                        + store.commits() + " + " + store.groupedCommits());
+                    error = true;
+                }
+            } catch (java.io.IOException | InterruptedException e) {
+                error = true;
+            }
+        }
+
+        // test 4: saving a session twice between commits of the mapped store rewrites the half
+        // that was not committed, so tearing the second save leaves the committed bookmark
+        if (dir != null) {
+            String name = new java.io.File(dir, "twice").getPath();
+            String copy = new java.io.File(dir, "twice-crash").getPath();
+            try {
+                try (MappedBookmarkStore store = new MappedBookmarkStore(name)) {
+                    store.save("a", "Goldilocks.story", "2");
+                    store.save("a", "Goldilocks.story", "3");
+                    store.save("a", "Goldilocks.story", "1");
+                    store.commit();
+                    store.save("a", "Goldilocks.story", "2");
+                    store.save("a", "Goldilocks.story", "3");
+                    // the files as a crash before the next commit would leave them
+                    java.nio.file.Files.copy(java.nio.file.Paths.get(name),
+                        java.nio.file.Paths.get(copy));
+                    java.nio.file.Files.copy(java.nio.file.Paths.get(name + ".strings"),
+                        java.nio.file.Paths.get(copy + ".strings"));
+                }
+                try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(copy, "rw")) {
+                    raf.seek(64 + 16);
+                    int first = raf.readInt();
+                    raf.seek(64 + 32);
+                    int second = raf.readInt();
+                    raf.seek(64 + (first > second ? 16 : 32) + 12); // the checksum of the last
+                    raf.writeInt(0);
+                }
+                try (MappedBookmarkStore store = new MappedBookmarkStore(copy)) {
+                    if (!Arrays.equals(store.load("a"), new String[] {"Goldilocks.story", "1"})) {
+                        System.out.println("4) testBookmarkStore expected: [Goldilocks.story, 1] "
+                            + "actual: " + Arrays.toString(store.load("a")));
+                        error = true;
+                    }
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("4) testBookmarkStore " + e);
+                error = true;
+            }
+        }
+        if (dir != null) {
+            java.util.ArrayDeque<java.io.File> files = new java.util.ArrayDeque<java.io.File>();
+            files.push(dir);
+            ArrayList<java.io.File> all = new ArrayList<java.io.File>();
+            while (!files.isEmpty()) {
+                java.io.File f = files.pop();
+                all.add(f);
+                java.io.File[] children = f.listFiles();
+                for (int i = 0; children != null && i < children.length; i++) {
+                    files.push(children[i]);
+                }
+            }
+            for (int i = all.size() - 1; i >= 0; i--) {
+                all.get(i).delete();
+            }
+        }
+
+        if (error) {
+            System.out.println("testBookmarkStore failed");
+        } else {
+            System.out.println("testBookmarkStore passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the LatencyHistogram and Metrics classes
+     */
+    private static void testMetrics() {
+        boolean error = false;
+
+        // test 1: small values are counted exactly, larger ones within an eighth
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.percentile(50);
+        long p99 = histogram.percentile(99);
+        if (histogram.count() != 1000 || histogram.max() != 1000000 || p50 > 500000
+            || p50 < 500000 * 7 / 8 || p99 > 990000 || p99 < 990000 * 7 / 8
+            || Math.abs(histogram.mean() - 500500) > 1) {
+            System.out.println("1) testMetrics expected: count 1000, p50 near 500000, p99 near "
+                + "990000 actual: " + histogram.count() + " " + p50 + " " + p99);
+            error = true;
+        }
+        LatencyHistogram small = new LatencyHistogram("small");
+        for (int i = 0; i < 20; i++) {
+            small.record(i);
+        }
+        small.record(-5);
+        if (small.percentile(0) != 0 || small.percentile(50) != 9 || small.percentile(100) != 18) {
+            System.out.println("1) testMetrics expected: 0 9 18 actual: " + small.percentile(0)
+                + " " + small.percentile(50) + " " + small.percentile(100));
+            error = true;
+        }
+
+        // test 2: values recorded by several threads at once are all counted
+        LatencyHistogram shared = new LatencyHistogram("shared");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    shared.record(j);
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            error = true;
+        }
+        if (shared.count() != 400000 || shared.max() != 99999) {
+            System.out.println("2) testMetrics expected: 400000 99999 actual: " + shared.count()
+                + " " + shared.max());
+            error = true;
+        }
+        shared.reset();
+        if (shared.count() != 0 || shared.percentile(99) != 0 || shared.max() != 0) {
+            System.out.println("2) testMetrics expected: an empty histogram after reset actual: "
+                + shared);
+            error = true;
+        }
+
+        // test 3: metrics are only kept when enabled, and can be read over JMX
+        long before = Metrics.visits("test-room");
+        Metrics.visit("test-room");
+        long expected = Metrics.ENABLED ? before + 1 : 0;
+        if (Metrics.visits("test-room") != expected || (!Metrics.ENABLED && Metrics.start() != 0)) {
+            System.out.println("3) testMetrics expected: " + expected + " visits actual: "
+                + Metrics.visits("test-room"));
+            error = true;
+        }
+        try {
+            javax.management.MBeanServer server =
+                java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            javax.management.ObjectName name =
+                new javax.management.ObjectName("AdventureStory:type=Metrics");
+            if (!Metrics.register() || !Metrics.register()
+                || !(server.getAttribute(name, "RoomVisits") instanceof Long)
+                || !Metrics.text().startsWith("metrics: ")) {
+                System.out.println("3) testMetrics expected: a registered MBean actual: "
+                    + server.isRegistered(name));
+                error = true;
+            }
+        } catch (javax.management.JMException e) {
+            System.out.println("3) testMetrics " + e);
+            error = true;
+        }
+
+        // test 4: sessions count visits and transitions in the counts of their version, which
+        // are still reported once a reload retires them
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            Session session = engine.newSession();
+            String startId = session.roomId();
+            long visitsBefore = Metrics.visits(startId);
+            long takenBefore = Metrics.transitionsTaken();
+            session.render(new RoomRenderer(java.io.Writer.nullWriter()));
+            session.choose(0);
+            long visitsExpected = Metrics.ENABLED ? visitsBefore + 1 : visitsBefore;
+            long takenExpected = Metrics.ENABLED ? takenBefore + 1 : takenBefore;
+            boolean countsExpected = Metrics.ENABLED == (session.version().counts() != null);
+            engine.publish(engine.story(), engine.startRoom());
+            if (!countsExpected || Metrics.visits(startId) != visitsExpected
+                || Metrics.transitionsTaken() != takenExpected
+                || (!Metrics.ENABLED && Metrics.sample() != 0)) {
+                System.out.println("4) testMetrics expected: " + visitsExpected + " visits, "
+                    + takenExpected + " transitions actual: " + Metrics.visits(startId) + " "
+                    + Metrics.transitionsTaken());
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testMetrics failed");
+        } else {
+            System.out.println("testMetrics passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the ReplayLog and Replayer classes
+     */
+    private static void testReplay() {
+        boolean error = false;
+        AdventureEngine engine = AdventureEngine.load("GoldiFight.story");
+        Random rand = new Random(Config.SEED);
+        ArrayList<ReplayLog> logs = new ArrayList<ReplayLog>();
+        for (int i = 0; i < 3000; i++) {
+            Session session = engine.newRecordedSession(engine.settings().withSeed(i));
+            for (int step = 0; step < 50 && !session.isOver(); step++) {
+                if (session.isTerminal() || session.isWeighted()) {
+                    session.step();
+                } else if (i % 10 == 0 && step == 3) {
+                    session.quit();
+                } else {
+                    session.choose(rand.nextInt(session.numChoices()));
+                }
+            }
+            logs.add(session.replayLog());
+        }
+
+        // test 1: logs replayed against the story they were recorded from never diverge
+        Replayer replayer = new Replayer(engine.story());
+        Replayer.Result result = replayer.replayAll(logs);
+        long steps = 0;
+        for (ReplayLog log : logs) {
+            steps += log.numSteps();
+        }
+        if (result.replayed() != 3000 || result.diverged() != 0 || result.otherStory() != 0
+            || result.steps() != steps || replayer.replay(logs.get(10)) != null
+            || logs.get(10).step(logs.get(10).numSteps() - 1) != ReplayLog.QUIT) {
+            System.out.println("1) testReplay expected: 3000 logs, no divergence result: "
+                + result.report(3));
+            error = true;
+        }
+
+        // test 2: logs survive being written to and read from a replay file
+        java.io.File file = null;
+        try {
+            file = java.io.File.createTempFile("replays", ".bin");
+            try (ReplayLog.Writer writer = new ReplayLog.Writer(file.getPath())) {
+                logs.forEach(writer);
+            }
+            ArrayList<ReplayLog> read = ReplayLog.readAll(file.getPath());
+            boolean same = read.size() == logs.size();
+            for (int i = 0; same && i < read.size(); i++) {
+                ReplayLog a = logs.get(i);
+                ReplayLog b = read.get(i);
+                same = a.storyHash() == b.storyHash() && a.seed() == b.seed()
+                    && a.random().equals(b.random()) && a.startRoom().equals(b.startRoom())
+                    && a.numSteps() == b.numSteps()
+                    && java.util.Objects.equals(a.outcome(), b.outcome());
+                for (int s = 0; same && s < a.numSteps(); s++) {
+                    same = a.step(s) == b.step(s);
+                }
+            }
+            if (!same || file.length() > 10 * (steps + 3000 * 40)) {
+                System.out.println("2) testReplay expected: the same logs result: " + read.size()
+                    + " logs in " + file.length() + " bytes");
+                error = true;
+            }
+        } catch (java.io.IOException e) {
+            System.out.println("2) testReplay " + e);
+            error = true;
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        // test 3: replaying against a story with the first two choices swapped finds the logs it
+        // changes
+        java.io.File edited = null;
+        try {
+            edited = java.io.File.createTempFile("edited", ".story");
+            String story = new String(java.nio.file.Files.readAllBytes(
+                java.nio.file.Paths.get("GoldiFight.story")));
+            java.nio.file.Files.write(edited.toPath(),
+                story.replace(": Explore the cottage -> 3", ": Explore the cottage -> 0")
+                    .replace(": Head back home -> 2", ": Explore the cottage -> 3")
+                    .replace(": Explore the cottage -> 0", ": Head back home -> 2").getBytes());
+            AdventureEngine changed = AdventureEngine.load(edited.getPath());
+            Replayer.Result diff = new Replayer(changed.story()).replayAll(logs);
+            long expected = 0;
+            for (ReplayLog log : logs) {
+                if (log.numSteps() > 0) {
+                    expected++; // the first choice now leads to the other room
+                }
+            }
+            if (diff.otherStory() != 3000 || diff.diverged() != expected || expected == 0
+                || diff.divergences().isEmpty()) {
+                System.out.println("3) testReplay expected: " + expected + " diverged result: "
+                    + diff.report(3));
+                error = true;
+            }
+        } catch (java.io.IOException e) {
+            System.out.println("3) testReplay " + e);
+            error = true;
+        } finally {
+            if (edited != null) {
+                edited.delete();
+            }
+        }
+
+        if (error) {
+            System.out.println("testReplay failed");
+        } else {
+            System.out.println("testReplay passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the Settings class and the sessions started with them
+     */
+    private static void testSettings() {
+        boolean error = false;
+
+        // test 1: the defaults come from Config and options override them in order
+        try {
+            Settings defaults = Settings.parse(new String[0]);
+            Settings parsed =
+                Settings.parse(new String[] {"-width", "40", "-lineChar", "=", "-seed", "7"});
+            Settings expected = new Settings(40, '=', 7);
+            if (defaults.displayWidth() != Config.DISPLAY_WIDTH
+                || defaults.lineChar() != Config.LINE_CHAR || defaults.seed() != Config.SEED
+                || !parsed.equals(expected) || parsed.hashCode() != expected.hashCode()
+                || !parsed.equals(defaults.withDisplayWidth(40).withLineChar('=').withSeed(7))) {
+                System.out.println("1) testSettings expected: " + expected + " result: " + parsed);
+                error = true;
+            }
+        } catch (java.io.IOException e) {
+            System.out.println("1) testSettings " + e);
+            error = true;
+        }
+
+        // test 2: properties change only the settings they set
+        {
+            java.util.Properties props = new java.util.Properties();
+            props.setProperty("display.width", " 30 ");
+            props.setProperty("line.char", "*");
+            Settings settings = Settings.defaults().withSeed(3).with(props);
+            if (!settings.equals(new Settings(30, '*', 3))) {
+                System.out.println("2) testSettings expected: display.width=30, line.char=*, "
+                    + "seed=3 result: " + settings);
+                error = true;
+            }
+        }
+
+        // test 3: invalid settings are rejected
+        {
+            String[][] invalid = {{"-width", "0"}, {"-width", "wide"}, {"-lineChar", "ab"},
+                {"-seed"}, {"-colour", "red"}, {"-settings", "NoSuchFile.properties"}};
+            for (String[] args : invalid) {
+                try {
+                    Settings settings = Settings.parse(args);
+                    System.out.println("3) testSettings expected an error for "
+                        + Arrays.toString(args) + " result: " + settings);
+                    error = true;
+                } catch (IllegalArgumentException | java.io.IOException e) {
+                    // expected
+                }
+            }
+        }
+
+        // test 4: sessions of one engine render with their own settings
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            Session wide = engine.newSession();
+            Session narrow = engine.newSession(new Settings(20, '#', Config.SEED));
+            RoomRenderer wideText = new RoomRenderer(new StringBuilder());
+            RoomRenderer narrowText = new RoomRenderer(new StringBuilder());
+            wide.render(wideText);
+            narrow.render(narrowText);
+            String narrowLine = "####################" + System.lineSeparator();
+            String text = narrowText.buffer().toString();
+            String room = text.substring(0, text.lastIndexOf(narrowLine)); // without transitions
+            boolean fits = true;
+            for (String line : room.split(System.lineSeparator())) {
+                fits &= line.length() <= 20;
+            }
+            if (!text.startsWith(narrowLine) || room.equals(narrowLine) || !fits
+                || wideText.buffer().toString().contains("#")
+                || wideText.buffer().length() == narrowText.buffer().length()
+                || !wide.settings().equals(Settings.defaults())) {
+                System.out.println("4) testSettings expected: lines of 20 characters result: "
+                    + text);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testSettings failed");
+        } else {
+            System.out.println("testSettings passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the RandomStreams class and the generators of sessions
+     */
+    private static void testRandomStreams() {
+        boolean error = false;
+
+        // test 1: in legacy mode every session draws the sequence of a Random seeded with the seed
+        {
+            Random expected = new Random(Config.SEED);
+            java.util.random.RandomGenerator first =
+                RandomStreams.forSession(RandomStreams.LEGACY, Config.SEED, 0);
+            java.util.random.RandomGenerator other =
+                RandomStreams.forSession(RandomStreams.LEGACY, Config.SEED, 41);
+            for (int i = 0; i < 1000; i++) {
+                int value = expected.nextInt(100);
+                if (first.nextInt(100) != value || other.nextInt(100) != value) {
+                    System.out.println("1) testRandomStreams expected: the values of Random(6) "
+                        + "result: another value at " + i);
+                    error = true;
+                    break;
+                }
+            }
+            if (!(first instanceof Random)) {
+                System.out.println("1) testRandomStreams expected: a Random result: " + first);
+                error = true;
+            }
+        }
+
+        // test 2: split streams depend only on the master seed and the session id
+        {
+            String[] algorithms = {"L64X128MixRandom", "SplittableRandom"};
+            for (String algorithm : algorithms) {
+                java.util.random.RandomGenerator a = RandomStreams.forSession(algorithm, 6, 3);
+                java.util.random.RandomGenerator b = RandomStreams.forSession(algorithm, 6, 4);
+                RandomStreams.forSession(algorithm, 6, 5).nextLong(); // another session in between
+                java.util.random.RandomGenerator again = RandomStreams.forSession(algorithm, 6, 3);
+                java.util.random.RandomGenerator seeded = RandomStreams.create(algorithm,
+                    RandomStreams.sessionSeed(algorithm, 6, 3));
+                boolean same = true;
+                boolean differs = false;
+                for (int i = 0; i < 100; i++) {
+                    long value = a.nextLong();
+                    same &= again.nextLong() == value && seeded.nextLong() == value;
+                    differs |= b.nextLong() != value;
+                }
+                if (!same || !differs || RandomStreams.sessionSeed(algorithm, 6, 3)
+                    == RandomStreams.sessionSeed(algorithm, 6, 4)) {
+                    System.out.println("2) testRandomStreams expected: one stream per session "
+                        + "of " + algorithm + " result: same " + same + ", differs " + differs);
+                    error = true;
+                }
+            }
+        }
+
+        // test 3: unknown algorithms are rejected
+        try {
+            Settings settings = Settings.parse(new String[] {"-random", "NoSuchRandom"});
+            System.out.println("3) testRandomStreams expected an error result: " + settings);
+            error = true;
+        } catch (IllegalArgumentException | java.io.IOException e) {
+            // expected
+        }
+
+        // test 4: sessions of an engine get their own streams, and their logs still replay
+        {
+            AdventureEngine engine = AdventureEngine.load("NeverEnd.story");
+            Settings split = engine.settings().withRandom("L64X128MixRandom");
+            ArrayList<ReplayLog> logs = new ArrayList<ReplayLog>();
+            java.util.HashSet<Integer> lengths = new java.util.HashSet<Integer>();
+            java.util.HashSet<Integer> legacyLengths = new java.util.HashSet<Integer>();
+            for (int i = 0; i < 200; i++) {
+                Session session = engine.newRecordedSession(split);
+                Session legacy = engine.newRecordedSession(engine.settings());
+                for (int step = 0; step < 100 && !session.isOver(); step++) {
+                    session.step();
+                }
+                for (int step = 0; step < 100 && !legacy.isOver(); step++) {
+                    legacy.step();
+                }
+                lengths.add(session.replayLog().numSteps());
+                legacyLengths.add(legacy.replayLog().numSteps());
+                logs.add(session.replayLog());
+                logs.add(legacy.replayLog());
+            }
+            Replayer.Result result = new Replayer(engine.story()).replayAll(logs);
+            if (lengths.size() < 2 || legacyLengths.size() != 1 || result.diverged() != 0
+                || !logs.get(0).random().equals("L64X128MixRandom")
+                || !logs.get(1).random().equals(RandomStreams.LEGACY)) {
+                System.out.println("4) testRandomStreams expected: sessions of different "
+                    + "lengths that replay result: " + lengths.size() + " lengths, "
+                    + legacyLengths.size() + " legacy lengths, " + result.report(3));
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testRandomStreams failed");
+        } else {
+            System.out.println("testRandomStreams passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the AdventureEngine and Session classes
+     */
+    private static void testAdventureEngine() {
+        boolean error = false;
+
+        // test 1: choices lead through the story as in the main method
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            Session session = engine.newSession();
+            int[] choices = {0, 3};
+            for (int choice : choices) {
+                if (!session.choose(choice)) {
+                    error = true;
+                }
+            }
+            if (!session.roomId().equals("7") || session.isOver() || session.choose(99)) {
+                System.out.println("1) testAdventureEngine expected room 7, result: "
+                    + session.roomId());
+                error = true;
+            }
+            session.quit();
+            if (!Config.FAIL.equals(session.outcome())) {
+                System.out.println("1) testAdventureEngine quitting did not fail the story");
+                error = true;
+            }
+        }
+
+        // test 2: concurrent sessions share the story and follow the same seeded path as probTrans
+        {
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            String[] curRoom = new String[1];
+            AdventureStory.parseFile("NeverEnd.story", rooms, trans, curRoom);
+            Random rand = new Random(Config.SEED);
+            int expected = 0;
+            while (!curRoom[0].equals("2")) {
+                curRoom[0] = AdventureStory.probTrans(rand, trans.get(0));
+                expected++;
+            }
+
+            AdventureEngine engine = AdventureEngine.load("NeverEnd.story");
+            int[] steps = new int[8 * 500];
+            boolean[] success = new boolean[steps.length];
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                int first = t * 500;
+                threads[t] = new Thread(() -> {
+                    for (int i = first; i < first + 500; i++) {
+                        Session session = engine.newSession();
+                        while (!session.isOver()) {
+                            if (session.step() != -1) {
+                                steps[i]++;
+                            }
+                        }
+                        success[i] = Config.SUCCESS.equals(session.outcome());
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    error = true;
+                }
+            }
+            for (int i = 0; i < steps.length; i++) {
+                if (steps[i] != expected || !success[i]) {
+                    System.out.println("2) testAdventureEngine expected: " + expected + " steps, "
+                        + "result: " + steps[i] + " steps");
+                    error = true;
+                    break;
+                }
+            }
+        }
+
+        if (error) {
+            System.out.println("testAdventureEngine failed");
+        } else {
+            System.out.println("testAdventureEngine passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the StoryWatcher class
+     */
+    private static void testStoryWatcher() {
+        boolean error = false;
+        java.io.File file = null;
+        String story = null;
+        AdventureEngine engine = null;
+        StoryWatcher watcher = null;
+        java.io.PrintStream out = System.out;
+        try {
+            file = java.io.File.createTempFile("watched", ".story");
+            story = new String(java.nio.file.Files.readAllBytes(
+                java.nio.file.Paths.get("Goldilocks.story")), java.nio.charset.Charset
+                .defaultCharset());
+            java.nio.file.Files.write(file.toPath(),
+                story.getBytes(java.nio.charset.Charset.defaultCharset()));
+            engine = AdventureEngine.load(file.getPath());
+            watcher = new StoryWatcher(engine);
+        } catch (java.io.IOException e) {
+            System.out.println("testStoryWatcher unable to watch a story: " + e);
+            error = true;
+        }
+
+        // test 1: an edited room is parsed again, and a session stays in its room
+        if (!error) {
+            Session session = engine.newSession();
+            session.choose(0);
+            String[] versions = {story.replace("R3:Cottage Sitting Room", "R3:The Sitting Room"),
+                story.replace("R3:Cottage Sitting Room", "R3:The Sitting Room")
+                    + "\nR17:Epilogue\n;;;\n=)\n"};
+            int[] expected = {1, 2};
+            for (int test = 0; test < versions.length; test++) {
+                java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+                int parsed = -1;
+                try {
+                    java.nio.file.Files.write(file.toPath(),
+                        versions[test].getBytes(java.nio.charset.Charset.defaultCharset()));
+                    System.setOut(new java.io.PrintStream(printed));
+                    parsed = watcher.reload();
+                } catch (java.io.IOException e) {
+                    parsed = -1;
+                } finally {
+                    System.setOut(out);
+                }
+                RoomRenderer text = new RoomRenderer(new StringBuilder());
+                session.render(text, Config.DISPLAY_WIDTH, Config.LINE_CHAR);
+                System.setOut(new java.io.PrintStream(new java.io.ByteArrayOutputStream()));
+                AdventureEngine full = AdventureEngine.load(file.getPath());
+                System.setOut(out);
+                ArrayList<String[]> expRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+                ArrayList<String[]> actRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> actTrans = new ArrayList<ArrayList<String[]>>();
+                full.story().copyTo(expRooms, expTrans);
+                engine.story().copyTo(actRooms, actTrans);
+                if (parsed != expected[test] || engine.version().number() != test + 2
+                    || !session.roomId().equals("3")
+                    || !text.buffer().toString().contains("The Sitting")
+                    || !compareArrayListsArrays(expRooms, actRooms)
+                    || !compare2dArrayLists(expTrans, actTrans)) {
+                    System.out.println((test + 1) + ") testStoryWatcher expected " + expected[test]
+                        + " blocks parsed, result: " + parsed + " " + printed + "in room "
+                        + session.roomId());
+                    error = true;
+                }
+            }
+        }
+
+        // test 2: an unchanged file is not published again, and a file with an error is not
+        // published at all
+        if (!error) {
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            int unchanged = -1;
+            int broken = 0;
+            int version = engine.version().number();
+            try {
+                System.setOut(new java.io.PrintStream(printed));
+                unchanged = watcher.reload();
+                java.nio.file.Files.write(file.toPath(), story.replace(": Head back home -> 2",
+                    "Head back home").getBytes(java.nio.charset.Charset.defaultCharset()));
+                broken = watcher.reload();
+            } catch (java.io.IOException e) {
+                broken = 0;
+            } finally {
+                System.setOut(out);
+            }
+            if (unchanged != 0 || broken != -1 || engine.version().number() != version
+                || !printed.toString().startsWith("Error parsing file on line: 9: ")) {
+                System.out.println("2) testStoryWatcher expected 0 and -1, result: " + unchanged
+                    + " and " + broken + " " + printed);
+                error = true;
+            }
+        }
+
+        // test 3: a session in a room that was removed goes back to the start room; rooms 2 and
+        // 17 are removed
+        if (!error) {
+            Session session = engine.newSession();
+            session.choose(1);
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            try {
+                java.nio.file.Files.write(file.toPath(), story.replaceFirst(
+                    "(?s)R2:Finding.*?\\n(?=R3:)", "").replace("-> 2\n", "-> 3\n")
+                    .getBytes(java.nio.charset.Charset.defaultCharset()));
+                System.setOut(new java.io.PrintStream(printed));
+                watcher.reload();
+            } catch (java.io.IOException e) {
+                error = true;
+            } finally {
+                System.setOut(out);
+            }
+            boolean updated = session.update();
+            if (!updated || !session.roomId().equals("1") || engine.story().indexOf("2") != -1
+                || !printed.toString().contains("2 removed")) {
+                System.out.println("3) testStoryWatcher expected room 1, result: "
+                    + session.roomId() + " " + printed);
+                error = true;
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+
+        if (error) {
+            System.out.println("testStoryWatcher failed");
+        } else {
+            System.out.println("testStoryWatcher passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the GameServer and LoadGenerator classes
+     */
+    private static void testGameServer() {
+        boolean error = false;
+
+        // test 1: the game loop reads from and writes to the given streams, skipping bad input
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            LineReader in = new LineReader(new java.io.StringReader("abc\n0\n-1\ny\nn\n"));
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            GameServer.play(engine, in, new java.io.PrintStream(printed, true));
+            String result = printed.toString();
+            String[] expected = {"Welcome to this choose your own adventure system!",
+                "Choose: Invalid value.", "Are you sure you want to quit the adventure? ",
+                "You failed to complete the adventure. Better luck next time!",
+                "Do you want to try again? Thank you for playing!"};
+            for (String text : expected) {
+                if (!result.contains(text)) {
+                    System.out.println("1) testGameServer expected: " + text + " result: "
+                        + result);
+                    error = true;
+                }
+            }
+            if (result.indexOf("Invalid value.") != result.lastIndexOf("Invalid value.")) {
+                System.out.println("1) testGameServer read the invalid value more than once");
+                error = true;
+            }
+        }
+
+        // test 2: simulated clients play every session over loopback
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            try {
+                LoadGenerator.Report report = LoadGenerator.run(engine, 8, 5, Config.SEED);
+                if (report.sessions != 40 || report.steps == 0
+                    || report.p99Nanos < report.p50Nanos) {
+                    System.out.println("2) testGameServer unexpected report: " + report);
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("2) testGameServer load run failed: " + e);
+                error = true;
+            }
+        }
+
+        // test 3: an invalid port is reported instead of throwing
+        {
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            try {
+                System.setOut(new java.io.PrintStream(printed));
+                GameServer.main(new String[] {"Goldilocks.story", "seventy"});
+                GameServer.main(new String[] {"Goldilocks.story", "70000"});
+            } catch (RuntimeException e) {
+                printed.write('!');
+            } finally {
+                System.setOut(out);
+            }
+            String expected = "Invalid port: seventy" + System.lineSeparator()
+                + "Invalid port: 70000" + System.lineSeparator();
+            if (!printed.toString().endsWith(expected)) {
+                System.out.println("3) testGameServer expected: " + expected + " result: "
+                    + printed);
+                error = true;
+            }
+        }
+
+        // test 4: the options are parsed in any order, and the sessions of the server draw from
+        // a split generator unless -random names another algorithm
+        {
+            java.io.PrintStream out = System.out;
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            try {
+                System.setOut(new java.io.PrintStream(printed));
+                GameServer.main(new String[] {"Goldilocks.story", "-random", "NoSuchRandom"});
+                GameServer.main(new String[] {"-width", "60", "Goldilocks.story", "-watch",
+                    "-random", "legacy", "seventy"});
+                GameServer.main(new String[] {"-watch", "-seed", "5"});
+            } catch (RuntimeException e) {
+                printed.write('!');
+            } finally {
+                System.setOut(out);
+            }
+            String[] lines = printed.toString().split(System.lineSeparator());
+            if (lines.length != 3 || !lines[0].startsWith("Invalid settings: ")
+                || !lines[1].equals("Invalid port: seventy") || !lines[2].startsWith("Usage: ")) {
+                System.out.println("4) testGameServer expected: Invalid settings, Invalid port "
+                    + "and Usage result: " + printed);
+                error = true;
+            }
+            try {
+                Settings split = GameServer.settings(new ArrayList<String>());
+                Settings legacy = GameServer.settings(new ArrayList<String>(
+                    Arrays.asList("-width", "60", "-random", RandomStreams.LEGACY)));
+                if (!split.random().equals(GameServer.RANDOM)
+                    || split.random().equals(RandomStreams.LEGACY)
+                    || !legacy.random().equals(RandomStreams.LEGACY)
+                    || legacy.displayWidth() != 60) {
+                    System.out.println("4) testGameServer expected: " + GameServer.RANDOM
+                        + " and legacy result: " + split.random() + " and " + legacy.random());
+                    error = true;
+                }
+            } catch (java.io.IOException e) {
+                System.out.println("4) testGameServer " + e);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testGameServer failed");
+        } else {
+            System.out.println("testGameServer passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the StoryGenerator class
+     */
+    private static void testStoryGenerator() {
+        boolean error = false;
+
+        // test 1: a generated story parses, and every transition leads to a room of the story
+        {
+            java.io.StringWriter story = new java.io.StringWriter();
+            try {
+                new StoryGenerator().rooms(500).branching(4).weightedFraction(0.5).descLength(450)
+                    .commentDensity(0.5).terminalFraction(0.1).successFraction(1).seed(42)
+                    .write(story);
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            Scanner sc = new Scanner(story.toString());
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            String[] curRoom = new String[1];
+            if (!sc.nextLine().equals(Config.MAGIC_STORY)
+                || !AdventureStory.parseStory(sc, rooms, trans, curRoom) || rooms.size() != 500
+                || !curRoom[0].equals("1")) {
+                System.out.println("1) testStoryGenerator expected 500 rooms, result: "
+                    + rooms.size());
+                error = true;
+            }
+
+            int weighted = 0;
+            int terminal = 0;
+            for (int i = 0; i < trans.size() && !error; i++) {
+                ArrayList<String[]> t = trans.get(i);
+                if (t.size() == 1 && t.get(0)[Config.TRAN_DESC].equals(Config.SUCCESS)) {
+                    terminal++;
+                } else if (t.size() != 4 || !t.get(0)[Config.TRAN_ROOM_ID].equals("" + (i + 2))) {
+                    System.out.println("1) testStoryGenerator unexpected transitions of room "
+                        + (i + 1));
+                    error = true;
+                } else if (t.get(0)[Config.TRAN_PROB] != null) {
+                    weighted++;
+                }
+                for (String[] tran : t) {
+                    if (tran[Config.TRAN_ROOM_ID] != null
+                        && AdventureStory.getRoomIndex(tran[Config.TRAN_ROOM_ID], rooms) == -1) {
+                        System.out.println("1) testStoryGenerator dangling room id: "
+                            + tran[Config.TRAN_ROOM_ID]);
+                        error = true;
+                    }
+                }
+            }
+            if (terminal < 30 || terminal > 80 || weighted < 180 || weighted > 270) {
+                System.out.println("1) testStoryGenerator unexpected mix: " + terminal
+                    + " terminal, " + weighted + " weighted rooms");
+                error = true;
+            }
+        }
+
+        // test 2: the same seed generates the same story
+        {
+            java.io.StringWriter first = new java.io.StringWriter();
+            java.io.StringWriter second = new java.io.StringWriter();
+            try {
+                new StoryGenerator().rooms(50).seed(7).write(first);
+                new StoryGenerator().rooms(50).seed(7).write(second);
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            if (!first.toString().equals(second.toString())) {
+                System.out.println("2) testStoryGenerator the same seed generated different "
+                    + "stories");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryGenerator failed");
+        } else {
+            System.out.println("testStoryGenerator passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the Simulator class
+     */
+    private static void testSimulator() {
+        boolean error = false;
+
+        // test 1: NeverEnd.story leaves room 1 with probability 1/5, after 5 transitions on average
+        {
+            AdventureEngine engine = AdventureEngine.load("NeverEnd.story");
+            Simulator sim =
+                new Simulator(engine.story(), engine.startRoom(), Simulator.UNIFORM, 10_000);
+            Simulator.Result result = sim.run(200_000, 1);
+            if (result.successes() != 200_000 || Math.abs(result.meanLength() - 5) > 0.1
+                || result.visits(engine.story().indexOf("2")) != 200_000) {
+                System.out.println("1) testSimulator expected mean length 5, result: "
+                    + result.meanLength() + ", successes: " + result.successes());
+                error = true;
+            }
+        }
+
+        // test 2: the results for a seed do not depend on the number of threads
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            Simulator sim =
+                new Simulator(engine.story(), engine.startRoom(), Simulator.UNIFORM, 10_000);
+            java.util.concurrent.ForkJoinPool one = new java.util.concurrent.ForkJoinPool(1);
+            java.util.concurrent.ForkJoinPool four = new java.util.concurrent.ForkJoinPool(4);
+            Simulator.Result first = sim.run(50_000, 42, one);
+            Simulator.Result second = sim.run(50_000, 42, four);
+            one.shutdown();
+            four.shutdown();
+            boolean same = first.successes() == second.successes()
+                && first.meanLength() == second.meanLength();
+            for (int room = 0; room < engine.story().size(); room++) {
+                same = same && first.visits(room) == second.visits(room);
+            }
+            if (!same || first.runs() != 50_000 || first.successes() + first.failures() != 50_000) {
+                System.out.println("2) testSimulator results differ between thread counts");
+                error = true;
+            }
+        }
+
+        // test 3: scripted choices, then the first transition, follow a single path
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            Simulator.Policy policy = Simulator.scripted(new int[] {0, 3}, Simulator.FIRST);
+            Simulator sim = new Simulator(engine.story(), engine.startRoom(), policy, 100);
+            Simulator.Result result = sim.run(1000, 7);
+            if (result.visits(engine.story().indexOf("7")) != 1000
+                || result.lengthPercentile(0) != result.lengthPercentile(100)) {
+                System.out.println("3) testSimulator expected every run to visit room 7");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testSimulator failed");
+        } else {
+            System.out.println("testSimulator passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the MarkovAnalyzer class
+     */
+    private static void testMarkovAnalyzer() {
+        boolean error = false;
+
+        // test 1: NeverEnd.story always ends, after 5 transitions on average
+        {
+            AdventureEngine engine = AdventureEngine.load("NeverEnd.story");
+            MarkovAnalyzer.Result result = new MarkovAnalyzer(engine.story(),
+                MarkovAnalyzer.UNIFORM).analyze(1e-12, 1000);
+            int start = engine.startRoom();
+            if (Math.abs(result.success(start) - 1) > 1e-9
+                || Math.abs(result.expectedSteps(start) - 5) > 1e-9 || !result.converged()) {
+                System.out.println("1) testMarkovAnalyzer expected 1 and 5 steps, result: "
+                    + result.success(start) + " and " + result.expectedSteps(start) + " steps");
+                error = true;
+            }
+        }
+
+        // test 2: the exact chances agree with a simulation of the same policy
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            int start = engine.startRoom();
+            MarkovAnalyzer.Result exact = new MarkovAnalyzer(engine.story(),
+                MarkovAnalyzer.UNIFORM).analyze(1e-12, 1000);
+            Simulator.Result simulated = new Simulator(engine.story(), start, Simulator.UNIFORM,
+                10_000).run(200_000, 3);
+            double successRate = simulated.successes() / (double) simulated.runs();
+            if (Math.abs(exact.success(start) - successRate) > 0.005
+                || Math.abs(exact.expectedSteps(start) - simulated.meanLength()) > 0.05
+                || Math.abs(exact.success(start) + exact.fail(start) - 1) > 1e-9) {
+                System.out.println("2) testMarkovAnalyzer expected: " + successRate + ", "
+                    + simulated.meanLength() + " steps, result: " + exact.success(start) + ", "
+                    + exact.expectedSteps(start) + " steps");
+                error = true;
+            }
+        }
+
+        // test 3: always choosing the first transition loops forever in Goldilocks.story
+        {
+            AdventureEngine engine = AdventureEngine.load("Goldilocks.story");
+            int start = engine.startRoom();
+            MarkovAnalyzer.Result result = new MarkovAnalyzer(engine.story(),
+                MarkovAnalyzer.FIRST).analyze(1e-12, 1000);
+            if (result.unfinished(start) != 1 || !Double.isNaN(result.expectedSteps(start))) {
+                System.out.println("3) testMarkovAnalyzer expected the story never to end");
+                error = true;
+            }
+        }
+
+        // test 4: probabilities follow the selections of probTrans, even for negative weights
+        {
+            double[] result = WeightTable.build(new String[] {"a", "b", "c"}, new int[] {3, -2, 4})
+                .probabilities();
+            if (result[0] != 0.6 || result[1] != 0 || result[2] != 0.4) {
+                System.out.println("4) testMarkovAnalyzer expected: [0.6, 0.0, 0.4] result: "
+                    + java.util.Arrays.toString(result));
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testMarkovAnalyzer failed");
+        } else {
+            System.out.println("testMarkovAnalyzer passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the StoryValidator class
+     */
+    private static void testStoryValidator() {
+        boolean error = false;
+
+        // test 1: each kind of problem is found in a story that has all of them
+        {
+            Scanner sc = new Scanner("R1:Start\n;;;\n: Left -> 2\n: Right -> 3\n: Lost -> 9\n\n"
+                + "R2:Stuck\n;;;\n: -> 3 ? 0\n: -> 1 ? 0\n\n"
+                + "R3:Loop\n;;;\n: On -> 4\n\nR4:Back\n;;;\n: On -> 3\n\n"
+                + "R5:Hidden\n;;;\n=)\n\nR3:Again\n;;;\n=(\n");
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            AdventureStory.parseStory(sc, rooms, trans, new String[1]);
+            StoryValidator.Report report = StoryValidator.validate(
+                StoryGraph.compile(rooms, trans), 0);
+            if (report.isValid() || !Arrays.equals(report.danglingTransitions(), new int[] {2})
+                || !Arrays.equals(report.duplicateRooms(), new int[] {5})
+                || !Arrays.equals(report.unreachableRooms(), new int[] {4, 5})
+                || !Arrays.equals(report.zeroWeightRooms(), new int[] {1})
+                || report.closedCycles().size() != 1
+                || !Arrays.equals(report.closedCycles().get(0), new int[] {2, 3})
+                || report.messages().size() != 5) {
+                System.out.println("1) testStoryValidator result: " + report.messages());
+                error = true;
+            }
+        }
+
+        // test 2: the bundled stories are valid
+        {
+            for (String fName : new String[] {"Goldilocks.story", "NeverEnd.story"}) {
+                AdventureEngine engine = AdventureEngine.load(fName);
+                StoryValidator.Report report = StoryValidator.validate(engine.story(),
+                    engine.startRoom());
+                if (!report.isValid()) {
+                    System.out.println("2) testStoryValidator expected " + fName
+                        + " to be valid, result: " + report.messages());
+                    error = true;
+                }
+            }
+        }
+
+        // test 3: every room of a generated story can be reached, and can reach an ending
+        {
+            java.io.StringWriter story = new java.io.StringWriter();
+            try {
+                new StoryGenerator().rooms(2000).terminalFraction(0.2).seed(7).write(story);
+            } catch (java.io.IOException e) {
+                error = true;
+            }
+            Scanner sc = new Scanner(story.toString());
+            sc.nextLine(); // the magic number
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            AdventureStory.parseStory(sc, rooms, trans, new String[1]);
+            StoryValidator.Report report = StoryValidator.validate(
+                StoryGraph.compile(rooms, trans), 0);
+            if (!report.isValid()) {
+                System.out.println("3) testStoryValidator result: " + report.messages());
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryValidator failed");
+        } else {
+            System.out.println("testStoryValidator passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the parseBookmark method
+     */
+    private static void testParseBookmark() {
+        boolean error = false;
+
+        // test 1
+        {
+            Scanner s = new Scanner("Goldilocks.story\n" + "7");
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
+            ArrayList<String[]> rooms = new ArrayList<>();
+            String[] curRoom = new String[1];
+            boolean expected = true;
+            boolean actual = AdventureStory.parseBookmark(s, rooms, trans, curRoom);
+            if (expected != actual) {
+                error = true;
+                System.out.print("testParseBookmark 1 failed ");
+            }
+        }
+        // test 2
+        {
+            Scanner s = new Scanner("WRONG FORMAT\n" + "7");
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
+            ArrayList<String[]> rooms = new ArrayList<>();
+            String[] curRoom = new String[1];
+            boolean expected = false;
+            boolean actual = AdventureStory.parseBookmark(s, rooms, trans, curRoom);
+            if (expected != actual) {
+                error = true;
+                System.out.print("testParseBookmark 1 failed ");
+            }
+        }
+
+        // error check
+        if (error) {
+            System.out.println("parseBookmark failed");
+        } else {
+            System.out.println("parseBookmark passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the probTrans method
+     */
+    private static void testProbTrans() {
+        Boolean error = false;
+
+        // test 1
+        {
+            ArrayList<String[]> curTrans = new ArrayList<String[]>();
+            curTrans.add(new String[Config.TRAN_DET_LEN]);
+            curTrans.add(new String[Config.TRAN_DET_LEN]);
+            curTrans.add(new String[Config.TRAN_DET_LEN]);
+            curTrans.get(0)[Config.TRAN_ROOM_ID] = "1";
+            curTrans.get(0)[Config.TRAN_PROB] = "1";
+            curTrans.get(1)[Config.TRAN_ROOM_ID] = "2";
+            curTrans.get(1)[Config.TRAN_PROB] = "1";
+            curTrans.get(2)[Config.TRAN_ROOM_ID] = "3";
+            curTrans.get(2)[Config.TRAN_PROB] = "1";
+            Random rand = new Random(Config.SEED);
+            String actual;
+            String expected = "2";
+            actual = AdventureStory.probTrans(rand, curTrans);
+            if (!actual.equals(expected)) {
+                error = true;
+            }
+        }
+
+        // test 2
+        {
+            ArrayList<String[]> curTrans = new ArrayList<String[]>();
+            curTrans.add(new String[Config.TRAN_DET_LEN]);
+            curTrans.add(new String[Config.TRAN_DET_LEN]);
+            curTrans.add(new String[Config.TRAN_DET_LEN]);
+            curTrans.get(0)[Config.TRAN_ROOM_ID] = "1";
+            curTrans.get(0)[Config.TRAN_PROB] = null;
+            curTrans.get(1)[Config.TRAN_ROOM_ID] = "2";
+            curTrans.get(1)[Config.TRAN_PROB] = null;
+            curTrans.get(2)[Config.TRAN_ROOM_ID] = "3";
+            curTrans.get(2)[Config.TRAN_PROB] = null;
+            Random rand = new Random(Config.SEED);
+            String expected = null;
+            String actual = AdventureStory.probTrans(rand, curTrans);
+            if (actual != expected) {
+                error = true;
+                System.out.print("Expected: " + expected + " Actual: " + actual + ".");
+            }
+        }
+        if (error) {
+            System.out.println(" testProbTrans failed");
+        } else {
+            System.out.println("testProbTrans passed");
+        }
+    }
+
+    /*
+     * This runs some tests on the WeightTable class used by the probTrans method
+     */
+    private static void testWeightTable() {
+        boolean error = false;
+
+        // test 1: the selections match the running sum scan of the original probTrans
+        {
+            Random weightRand = new Random(42);
+            for (int test = 0; test < 100 && !error; test++) {
+                ArrayList<String[]> curTrans = new ArrayList<String[]>();
+                int numTrans = 1 + weightRand.nextInt(12);
+                for (int i = 0; i < numTrans; i++) {
+                    curTrans.add(new String[] {"", "" + i, "" + weightRand.nextInt(6)});
+                }
+                WeightTable weights = WeightTable.build(curTrans);
+                Random expRand = new Random(Config.SEED);
+                Random actRand = new Random(Config.SEED);
+                for (int draw = 0; draw < 50 && weights.totalWeight() > 0; draw++) {
+                    int randomValue = expRand.nextInt(weights.totalWeight());
+                    int sum = 0;
+                    int expected = -1;
+                    for (int i = 0; i < curTrans.size() && expected == -1; i++) {
+                        sum += Integer.parseInt(curTrans.get(i)[Config.TRAN_PROB]);
+                        if (sum > randomValue) {
+                            expected = i;
+                        }
+                    }
+                    int actual = weights.sampleIndex(actRand);
+                    if (actual != expected) {
+                        System.out.println("1) testWeightTable expected: " + expected
+                            + " actual: " + actual);
+                        error = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // test 2: the alias method selects with the same probabilities
+        {
+            ArrayList<String[]> curTrans = new ArrayList<String[]>();
+            curTrans.add(new String[] {"", "1", "4"});
+            curTrans.add(new String[] {"", "2", "0"});
+            curTrans.add(new String[] {"", "3", "1"});
+            WeightTable weights = WeightTable.build(curTrans);
+            Random rand = new Random(Config.SEED);
+            int[] counts = new int[3];
+            for (int draw = 0; draw < 50000; draw++) {
+                counts[weights.sampleAliasIndex(rand)]++;
+            }
+            if (counts[1] != 0 || Math.abs(counts[0] - 40000) > 1000) {
+                System.out.println("2) testWeightTable alias counts: " + Arrays.toString(counts));
+                error = true;
+            }
+        }
+
+        // test 3: weights compiled with the story give the same results as parsing them directly
+        {
+            ArrayList<String[]> rooms =
+                new ArrayList<>(Arrays.asList(new String[][] {{"1", "", ""}, {"2", "", ""}}));
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"", "1", "4"},
+                {"", "2", "1"}})));
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"=)", null, null}})));
+            ArrayList<String[]> copy = new ArrayList<>(trans.get(0));
+            AdventureStory.displayTransitions("1", rooms, trans);
+            Random expRand = new Random(Config.SEED);
+            Random actRand = new Random(Config.SEED);
+            for (int draw = 0; draw < 100; draw++) {
+                String expected = AdventureStory.probTrans(expRand, copy);
+                String actual = AdventureStory.probTrans(actRand, trans.get(0));
+                if (!expected.equals(actual)) {
+                    System.out.println("3) testWeightTable expected: " + expected + " actual: "
+                        + actual);
+                    error = true;
+                    break;
+                }
+            }
+            if (AdventureStory.probTrans(actRand, trans.get(1)) != null) {
+                System.out.println("3) testWeightTable terminal room returned a room id");
+                error = true;
+            }
+        }
+
+        // test 4: weights edited in place are honoured, while another story is also looked up
+        {
+            ArrayList<String[]> rooms =
+                new ArrayList<>(Arrays.asList(new String[][] {{"1", "", ""}, {"2", "", ""}}));
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<>();
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"", "1", "4"},
+                {"", "2", "1"}})));
+            trans.add(new ArrayList<>(Arrays.asList(new String[][] {{"=)", null, null}})));
+            ArrayList<String[]> otherRooms =
+                new ArrayList<>(Arrays.asList(new String[][] {{"A", "", ""}}));
+            ArrayList<ArrayList<String[]>> otherTrans = new ArrayList<>();
+            otherTrans.add(new ArrayList<>(Arrays.asList(new String[][] {{"=(", null, null}})));
+            AdventureStory.displayTransitions("1", rooms, trans);
+            AdventureStory.displayTransitions("A", otherRooms, otherTrans);
+            trans.get(0).get(0)[Config.TRAN_PROB] = "0";
+            Random rand = new Random(Config.SEED);
+            for (int draw = 0; draw < 100; draw++) {
+                String actual = AdventureStory.probTrans(rand, trans.get(0));
+                if (!"2".equals(actual)) {
+                    System.out.println("4) testWeightTable expected: 2 actual: " + actual);
+                    error = true;
+                    break;
+                }
+            }
+        }
+
+        if (error) {
+            System.out.println("testWeightTable failed");
+        } else {
+            System.out.println("testWeightTable passed");
+        }
+    }
+
+    private static String toString2dArrayLists(ArrayList<ArrayList<String[]>> arrL1) {
+        String toRet = "[\n";
+        for (int i = 0; i < arrL1.size(); ++i) {
+            toRet += "\t" + Arrays.deepToString(arrL1.get(i).toArray());
+            if (i < arrL1.size() - 1)
+                toRet += ",";
+            toRet += "\n";
         }
         toRet += "]";
         return toRet;
@@ -408,6 +3278,27 @@ public class TestAdventureStory {
         return true;
     }
     
+    /**
+     * Runs the main method of AdventureStory with the given input, and returns what it printed.
+     *
+     * @param input The lines the player enters.
+     * @return The output of the main method.
+     */
+    private static String playMain(String input) {
+        java.io.InputStream in = System.in;
+        java.io.PrintStream out = System.out;
+        java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+        try {
+            System.setIn(new java.io.ByteArrayInputStream(input.getBytes()));
+            System.setOut(new java.io.PrintStream(printed));
+            AdventureStory.main(new String[0]);
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
     /**
      * This is the main method that runs the various tests.
      * 
@@ -417,15 +3308,40 @@ public class TestAdventureStory {
         // Milestone 1 Tests
         // testPromptInt();
         // testPromptChar();
+        // testMainEndOfInput();
         // testPromptString();
         // testGetRoomIndex();
         // testGetRoomDetails();
+        // testStoryGraph();
+        // testRoomRenderer();
+        // testRoomTextCache();
 
         // Milestone 2 Tests
         // testParseStory();
+        // testStoryParser();
+        // testParallelStoryParser();
+        // testStoryImage();
+        // testIndexedStory();
+        // testStringPool();
+        // testStoryCache();
+        // testBookmarks();
+        // testBookmarkLog();
+        // testBookmarkStore();
+        // testMetrics();
+        // testReplay();
+        // testSettings();
+        // testRandomStreams();
+        // testAdventureEngine();
+        // testStoryWatcher();
+        // testGameServer();
+        // testStoryGenerator();
 
         // Milestone 3 Tests
         // testParseBookmark();
         // testProbTrans();
+        // testWeightTable();
+        // testSimulator();
+        // testMarkovAnalyzer();
+        // testStoryValidator();
     }
 }
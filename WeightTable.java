@@ -0,0 +1,274 @@
+/////////////////////////////////////////// FILE  HEADER /////////////////////////////////////////////
+//
+// Title: Adventure Story
+// Files: AdventureStory.java, TestAdventureStory.java, Config.java, WeightTable.java
+// This File: WeightTable.java
+//
+// Name: Benjamin Tarmann
+// Email: btarmann@wisc.edu
+//
+///////////////////////////////////////// 100 COLUMNS WIDE /////////////////////////////////////////
+
+import java.util.ArrayList;
+import java.util.random.RandomGenerator;
+
+/**
+ * The pre-parsed probability weights of the transitions of one room. The Strings at index
+ * Config.TRAN_PROB are parsed once when the table is built, so sampling a transition neither parses
+ * nor allocates.
+ *
+ * Two ways of sampling are supported:
+ *   - sample: draws rand.nextInt(totalWeight) and binary searches the prefix sums of the weights.
+ *     This selects exactly the same transition as the original linear probTrans did for the same
+ *     Random, so seeded stories play out the same way.
+ *   - sampleAlias: uses Vose's alias method, drawing a bucket and a threshold in O(1) regardless of
+ *     the number of transitions. It selects with the same probabilities, but consumes the Random
+ *     differently, so the sequence of rooms visited for a given seed is not the same.
+ *
+ * @author Benjamin Tarmann
+ */
+public class WeightTable {
+    /**
+     * Table returned for transitions that cannot be sampled: a weight is missing or not a number,
+     * or the weights sum to less than 1.
+     */
+    public static final WeightTable NONE = new WeightTable(new String[0], new int[0], false);
+
+    private final String[] roomIds; // the TRAN_ROOM_ID of each transition
+    private final int[] prefix; // prefix[i] is the sum of the weights of transitions 0 to i
+    private final int totalWeight; // the sum of all weights
+    private final boolean monotonic; // false if a negative weight makes prefix unsorted
+    private final int[] aliasProb; // alias method: threshold in [0, totalWeight] of each bucket
+    private final int[] alias; // alias method: the transition a bucket falls back to
+
+    /**
+     * Creates a table. Use build to create instances.
+     */
+    private WeightTable(String[] roomIds, int[] prefix, boolean monotonic) {
+        this.roomIds = roomIds;
+        this.prefix = prefix;
+        this.totalWeight = prefix.length == 0 ? 0 : prefix[prefix.length - 1];
+        this.monotonic = monotonic;
+        this.aliasProb = new int[prefix.length];
+        this.alias = new int[prefix.length];
+        if (monotonic && totalWeight > 0) {
+            buildAlias();
+        }
+    }
+
+    /**
+     * Parses the probability weights of the transitions of a room.
+     *
+     * @param curTrans The ArrayList structure that contains the transition details.
+     * @return The table, or WeightTable.NONE if curTrans is null, a weight cannot be parsed with
+     *         Integer.parseInt or the weights sum to less than 1.
+     */
+    public static WeightTable build(ArrayList<String[]> curTrans) {
+        if (curTrans == null || curTrans.size() == 0) {
+            return NONE;
+        }
+
+        String[] roomIds = new String[curTrans.size()];
+        int[] weights = new int[curTrans.size()];
+        try {
+            for (int i = 0; i < curTrans.size(); i++) {
+                weights[i] = Integer.parseInt(curTrans.get(i)[Config.TRAN_PROB]);
+                roomIds[i] = curTrans.get(i)[Config.TRAN_ROOM_ID];
+            }
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+        return build(roomIds, weights);
+    }
+
+    /**
+     * Builds a table from weights that have already been parsed.
+     *
+     * @param roomIds The TRAN_ROOM_ID of each transition.
+     * @param weights The probability weight of each transition.
+     * @return The table, or WeightTable.NONE if there are no weights or they sum to less than 1.
+     */
+    public static WeightTable build(String[] roomIds, int[] weights) {
+        int[] prefix = new int[weights.length];
+        boolean monotonic = true;
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) {
+                monotonic = false;
+            }
+            sum += weights[i];
+            prefix[i] = sum;
+        }
+
+        if (sum < 1) {
+            return NONE;
+        }
+        return new WeightTable(roomIds, prefix, monotonic);
+    }
+
+    /**
+     * Returns the number of transitions in the table.
+     *
+     * @return The number of transitions, 0 for WeightTable.NONE.
+     */
+    public int size() {
+        return prefix.length;
+    }
+
+    /**
+     * Returns the sum of the weights of the transitions.
+     *
+     * @return The total weight, 0 for WeightTable.NONE.
+     */
+    public int totalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Returns the probability with which sampleIndex selects each transition: the share of the
+     * values 0 to totalWeight - 1 for which it is the first transition whose running sum of
+     * weights exceeds the value. Without negative weights this is the weight of the transition
+     * divided by totalWeight. With negative weights the probabilities may sum to less than 1, the
+     * remainder being the chance that no transition is selected.
+     *
+     * @return The probability of each transition, an empty array for WeightTable.NONE.
+     */
+    public double[] probabilities() {
+        double[] p = new double[prefix.length];
+        if (totalWeight < 1) {
+            return p;
+        }
+        int lower = 0; // the values below lower select an earlier transition
+        for (int i = 0; i < prefix.length; i++) {
+            int upper = Math.min(prefix[i], totalWeight);
+            if (upper > lower) {
+                p[i] = (double) (upper - lower) / totalWeight;
+                lower = upper;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Selects a transition exactly as the original probTrans did: a random integer between 0 and
+     * totalWeight - 1 is drawn from rand, and the first transition whose running sum of weights
+     * exceeds it is selected. Nothing is drawn from rand for WeightTable.NONE.
+     *
+     * @param rand The generator, such as a Random, from which to draw random values.
+     * @return The index of the selected transition, or -1 for WeightTable.NONE.
+     */
+    public int sampleIndex(RandomGenerator rand) {
+        if (totalWeight < 1) {
+            return -1;
+        }
+        int randomValue = rand.nextInt(totalWeight);
+        if (!monotonic) {
+            for (int i = 0; i < prefix.length; i++) {
+                if (prefix[i] > randomValue) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // finds the first prefix sum greater than randomValue
+        int lo = 0;
+        int hi = prefix.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (prefix[mid] > randomValue) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Selects a transition with sampleIndex.
+     *
+     * @param rand The generator, such as a Random, from which to draw random values.
+     * @return The room id of the selected transition, or null for WeightTable.NONE.
+     */
+    public String sample(RandomGenerator rand) {
+        int i = sampleIndex(rand);
+        return i == -1 ? null : roomIds[i];
+    }
+
+    /**
+     * Selects a transition with Vose's alias method in constant time. Tables with negative weights
+     * are sampled with sampleIndex instead.
+     *
+     * @param rand The generator, such as a Random, from which to draw random values.
+     * @return The index of the selected transition, or -1 for WeightTable.NONE.
+     */
+    public int sampleAliasIndex(RandomGenerator rand) {
+        if (totalWeight < 1) {
+            return -1;
+        }
+        if (!monotonic) {
+            return sampleIndex(rand);
+        }
+        int bucket = rand.nextInt(aliasProb.length);
+        return rand.nextInt(totalWeight) < aliasProb[bucket] ? bucket : alias[bucket];
+    }
+
+    /**
+     * Selects a transition with sampleAliasIndex.
+     *
+     * @param rand The generator, such as a Random, from which to draw random values.
+     * @return The room id of the selected transition, or null for WeightTable.NONE.
+     */
+    public String sampleAlias(RandomGenerator rand) {
+        int i = sampleAliasIndex(rand);
+        return i == -1 ? null : roomIds[i];
+    }
+
+    /**
+     * Builds the alias table with Vose's method using exact integer arithmetic. Every weight is
+     * scaled by the number of transitions, so that each bucket holds exactly totalWeight.
+     */
+    private void buildAlias() {
+        int n = prefix.length;
+        long[] scaled = new long[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (long) (prefix[i] - (i == 0 ? 0 : prefix[i - 1])) * n;
+            if (scaled[i] < totalWeight) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+
+        int[] p = aliasProb;
+        int[] a = alias;
+        while (numSmall > 0 && numLarge > 0) {
+            int l = small[--numSmall];
+            int g = large[--numLarge];
+            p[l] = (int) scaled[l];
+            a[l] = g;
+            scaled[g] -= totalWeight - scaled[l];
+            if (scaled[g] < totalWeight) {
+                small[numSmall++] = g;
+            } else {
+                large[numLarge++] = g;
+            }
+        }
+        // whatever is left holds exactly totalWeight
+        while (numLarge > 0) {
+            int g = large[--numLarge];
+            p[g] = totalWeight;
+            a[g] = g;
+        }
+        while (numSmall > 0) {
+            int l = small[--numSmall];
+            p[l] = totalWeight;
+            a[l] = l;
+        }
+    }
+}